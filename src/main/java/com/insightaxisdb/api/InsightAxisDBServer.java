@@ -50,6 +50,7 @@ public class InsightAxisDBServer {
                 eventStore,
                 Config.getLong("saveIntervalMillis", 60000)
         );
+        this.persistenceManager.setQueryLoad(queryEngine::getActiveQueryCount);
         this.rfmAnalysis = new RFMAnalysis(userProfileStore, eventStore, "purchase", "price");
         this.cohortAnalysis = new CohortAnalysis(userProfileStore, eventStore);
         this.recommendationEngine = new RecommendationEngine(
@@ -125,6 +126,8 @@ public class InsightAxisDBServer {
         get("/api/system/config", this::getConfig);
         post("/api/system/save", this::saveData);
         post("/api/system/load", this::loadData);
+        get("/api/system/recovery", this::getRecoveryProgress);
+        get("/api/system/maintenance", this::getMaintenanceStats);
         
         // Error handling
         exception(Exception.class, (exception, request, response) -> {
@@ -322,7 +325,10 @@ public class InsightAxisDBServer {
             String userId = (String) requestBody.get("userId");
             @SuppressWarnings("unchecked")
             Map<String, Object> properties = (Map<String, Object>) requestBody.get("properties");
-            Long timestamp = (Long) requestBody.get("timestamp");
+            // JSON numbers arrive as Integer or Long depending on their size
+            Number timestampValue = (Number) requestBody.get("timestamp");
+            Long timestamp = timestampValue != null ? timestampValue.longValue() : null;
+            String idempotencyKey = (String) requestBody.get("idempotencyKey");
             
             if (eventName == null || userId == null) {
                 response.status(400);
@@ -338,7 +344,18 @@ public class InsightAxisDBServer {
                 properties = new HashMap<>();
             }
             
-            Event event = eventStore.addEvent(eventName, userId, properties, timestamp);
+            Event event = eventStore.addEvent(eventName, userId, properties, timestamp, idempotencyKey);
+            
+            if (event == null) {
+                response.status(429);
+                return Map.of(
+                        "error", true,
+                        "message", "Monthly event cap reached for user: " + userId,
+                        "status", 429,
+                        "timestamp", System.currentTimeMillis()
+                );
+            }
+            
             return event;
         } catch (Exception e) {
             response.status(400);
@@ -553,6 +570,9 @@ public class InsightAxisDBServer {
                     case "COUNT":
                         aggregationType = Query.AggregationType.COUNT;
                         break;
+                    case "COUNT_DISTINCT":
+                        aggregationType = Query.AggregationType.COUNT_DISTINCT;
+                        break;
                 }
                 
                 if (aggregationType != null) {
@@ -561,9 +581,72 @@ public class InsightAxisDBServer {
             }
         }
         
+        // Add group by, as field names or {field, interval} objects
+        Object groupBy = requestBody.get("groupBy");
+        if (groupBy != null) {
+            if (!(groupBy instanceof List)) {
+                throw new IllegalArgumentException("groupBy must be a list");
+            }
+            for (Object key : (List<?>) groupBy) {
+                if (key instanceof String) {
+                    query.groupBy((String) key);
+                    continue;
+                }
+                if (!(key instanceof Map) || !(((Map<?, ?>) key).get("field") instanceof String)) {
+                    throw new IllegalArgumentException(
+                            "groupBy entries must be field names or {field, interval} objects: " + key);
+                }
+                
+                Map<?, ?> groupKey = (Map<?, ?>) key;
+                String field = (String) groupKey.get("field");
+                Object interval = groupKey.get("interval");
+                if (interval == null) {
+                    query.groupBy(field);
+                } else {
+                    query.groupByInterval(field, parseInterval(interval));
+                }
+            }
+        }
+        
+        // JSON numbers decode as Integer or Long depending on their size
+        Object maxGroups = requestBody.get("maxGroups");
+        if (maxGroups != null) {
+            Number groupLimit = maxGroups instanceof Number ? (Number) maxGroups : null;
+            if (groupLimit == null || groupLimit.doubleValue() != groupLimit.intValue() || groupLimit.intValue() < 1) {
+                throw new IllegalArgumentException("maxGroups must be a positive integer: " + maxGroups);
+            }
+            query.maxGroups(groupLimit.intValue());
+        }
+        
         return query;
     }
     
+    /**
+     * Parse a group by interval: MINUTE, HOUR, DAY or WEEK, or a number of milliseconds.
+     */
+    private long parseInterval(Object interval) {
+        if (interval instanceof Number) {
+            long millis = ((Number) interval).longValue();
+            if (millis <= 0) {
+                throw new IllegalArgumentException("Interval must be a positive number of milliseconds: " + interval);
+            }
+            return millis;
+        }
+        
+        switch (interval.toString().toUpperCase()) {
+            case "MINUTE":
+                return 60L * 1000;
+            case "HOUR":
+                return 60L * 60 * 1000;
+            case "DAY":
+                return 24L * 60 * 60 * 1000;
+            case "WEEK":
+                return 7L * 24 * 60 * 60 * 1000;
+            default:
+                throw new IllegalArgumentException("Unknown interval: " + interval);
+        }
+    }
+    
     /**
      * Get RFM segmentation.
      */
@@ -734,7 +817,24 @@ public class InsightAxisDBServer {
      */
     private Object loadData(Request request, Response response) {
         try {
-            persistenceManager.loadAll();
+            if (!persistenceManager.loadAll()) {
+                response.status(409);
+                return Map.of(
+                        "error", true,
+                        "message", "Data is already loaded",
+                        "status", 409,
+                        "timestamp", System.currentTimeMillis()
+                );
+            }
+            if (persistenceManager.getRecoveryProgress().getPhase() == RecoveryProgress.Phase.FAILED) {
+                response.status(500);
+                return Map.of(
+                        "error", true,
+                        "message", "Failed to load data from disk",
+                        "status", 500,
+                        "timestamp", System.currentTimeMillis()
+                );
+            }
             
             return Map.of(
                     "success", true,
@@ -751,6 +851,20 @@ public class InsightAxisDBServer {
         }
     }
     
+    /**
+     * Get the progress of loading data from disk.
+     */
+    private Object getRecoveryProgress(Request request, Response response) {
+        return persistenceManager.getRecoveryProgress().toMap();
+    }
+    
+    /**
+     * Get the statistics of the background maintenance jobs.
+     */
+    private Object getMaintenanceStats(Request request, Response response) {
+        return persistenceManager.getMaintenanceStats();
+    }
+    
     /**
      * Convert an object to JSON.
      */
@@ -11,6 +11,47 @@ public class Config {
     // Storage settings
     public static final int DEFAULT_LOOKBACK_PERIOD_DAYS = 1095; // 3 years
     public static final int MAX_DATA_POINTS_PER_USER_PER_MONTH = 2000;
+    public static final String DEFAULT_EVENT_CAP_POLICY = "DROP_NEWEST"; // Options: DROP_NEWEST, DROP_OLDEST, DOWNSAMPLE
+    public static final int QUOTA_HISTORY_MONTHS = 2; // Months that keep event IDs for DROP_OLDEST and DOWNSAMPLE
+    public static final long SEGMENT_DURATION_MILLIS = 24 * 60 * 60 * 1000L; // 1 day, so retention in days drops whole segments
+    public static final String DEFAULT_EVENT_STORAGE_MODE = "HEAP"; // Options: HEAP, OFF_HEAP
+    public static final int OFF_HEAP_CHUNK_SIZE_BYTES = 1024 * 1024; // Direct buffer chunk size for off-heap segments
+    
+    // Tiering settings
+    public static final boolean COLD_TIER_ENABLED = true;
+    public static final int HOT_TIER_DAYS = 30; // Segments older than this are sealed into NCF files
+    public static final long HOT_TIER_MEMORY_BUDGET_BYTES = 512L * 1024 * 1024; // Oldest segments move out above this
+    public static final int COLD_SEGMENT_CACHE_SIZE = 8; // Number of cold segments kept loaded after a read
+    
+    // Write-ahead log settings
+    public static final boolean WAL_ENABLED = true;
+    public static final long WAL_SEGMENT_SIZE_BYTES = 64L * 1024 * 1024; // A new log segment is started above this
+    public static final long WAL_GROUP_COMMIT_MILLIS = 2; // Longest time a write waits to share an fsync
+    
+    // Checkpoint settings
+    public static final int CHECKPOINT_MERGE_THRESHOLD = 8; // Delta files per store before small ones are merged
+    public static final int RECOVERY_THREADS = 4; // Threads restoring checkpoint files at startup
+    
+    // Maintenance settings
+    public static final int MAINTENANCE_THREADS = 2; // Background jobs that may run at the same time
+    public static final long MAINTENANCE_MAX_BYTES_PER_SECOND = 64L * 1024 * 1024; // Background write rate, 0 = unlimited
+    public static final int MAINTENANCE_PAUSE_QUERY_THRESHOLD = 8; // Running queries that pause low priority jobs, 0 = never
+    public static final long MAINTENANCE_MAX_PAUSE_MILLIS = 5 * 60 * 1000L; // Longest time a job waits for queries
+    public static final int RETENTION_DAYS = 0; // Events older than this are dropped hourly, 0 = keep forever
+    
+    // I/O settings
+    public static final int IO_BUFFER_SIZE_BYTES = 256 * 1024; // Direct buffer size for persistence reads and writes
+    public static final int IO_POOLED_BUFFERS = 64; // Released direct buffers kept for reuse
+    public static final int IO_READ_AHEAD_BUFFERS = 4; // Buffers read ahead during sequential scans
+    
+    // Profile settings
+    public static final String PROFILE_INDEXES = ""; // Indexed properties, e.g. "plan:HASH,age:SORTED"
+    
+    // Deduplication settings
+    public static final long DEDUP_WINDOW_MILLIS = 60 * 60 * 1000L; // 1 hour per filter window
+    public static final int DEDUP_WINDOW_COUNT = 24; // Idempotency keys are remembered for 24 windows
+    public static final int DEDUP_EXPECTED_KEYS_PER_WINDOW = 100000;
+    public static final double DEDUP_FALSE_POSITIVE_RATE = 0.01;
     
     // Compression settings
     public static final boolean COMPRESSION_ENABLED = true;
@@ -23,6 +64,7 @@ public class Config {
     // Query settings
     public static final int QUERY_TIMEOUT_SECONDS = 30;
     public static final int MAX_CONCURRENT_QUERIES = 100;
+    public static final int QUERY_MAX_GROUPS = 100000; // Groups of a GROUP BY before further keys share an overflow group
     
     // ML settings
     public static final boolean ML_ENABLED = true;
@@ -36,15 +78,78 @@ public class Config {
         
         config.put("DEFAULT_LOOKBACK_PERIOD_DAYS", DEFAULT_LOOKBACK_PERIOD_DAYS);
         config.put("MAX_DATA_POINTS_PER_USER_PER_MONTH", MAX_DATA_POINTS_PER_USER_PER_MONTH);
+        config.put("DEFAULT_EVENT_CAP_POLICY", DEFAULT_EVENT_CAP_POLICY);
+        config.put("QUOTA_HISTORY_MONTHS", QUOTA_HISTORY_MONTHS);
+        config.put("SEGMENT_DURATION_MILLIS", SEGMENT_DURATION_MILLIS);
+        config.put("DEFAULT_EVENT_STORAGE_MODE", DEFAULT_EVENT_STORAGE_MODE);
+        config.put("OFF_HEAP_CHUNK_SIZE_BYTES", OFF_HEAP_CHUNK_SIZE_BYTES);
+        config.put("COLD_TIER_ENABLED", COLD_TIER_ENABLED);
+        config.put("HOT_TIER_DAYS", HOT_TIER_DAYS);
+        config.put("HOT_TIER_MEMORY_BUDGET_BYTES", HOT_TIER_MEMORY_BUDGET_BYTES);
+        config.put("COLD_SEGMENT_CACHE_SIZE", COLD_SEGMENT_CACHE_SIZE);
+        config.put("WAL_ENABLED", WAL_ENABLED);
+        config.put("WAL_SEGMENT_SIZE_BYTES", WAL_SEGMENT_SIZE_BYTES);
+        config.put("WAL_GROUP_COMMIT_MILLIS", WAL_GROUP_COMMIT_MILLIS);
+        config.put("CHECKPOINT_MERGE_THRESHOLD", CHECKPOINT_MERGE_THRESHOLD);
+        config.put("RECOVERY_THREADS", RECOVERY_THREADS);
+        config.put("MAINTENANCE_THREADS", MAINTENANCE_THREADS);
+        config.put("MAINTENANCE_MAX_BYTES_PER_SECOND", MAINTENANCE_MAX_BYTES_PER_SECOND);
+        config.put("MAINTENANCE_PAUSE_QUERY_THRESHOLD", MAINTENANCE_PAUSE_QUERY_THRESHOLD);
+        config.put("MAINTENANCE_MAX_PAUSE_MILLIS", MAINTENANCE_MAX_PAUSE_MILLIS);
+        config.put("RETENTION_DAYS", RETENTION_DAYS);
+        config.put("IO_BUFFER_SIZE_BYTES", IO_BUFFER_SIZE_BYTES);
+        config.put("IO_POOLED_BUFFERS", IO_POOLED_BUFFERS);
+        config.put("IO_READ_AHEAD_BUFFERS", IO_READ_AHEAD_BUFFERS);
+        config.put("PROFILE_INDEXES", PROFILE_INDEXES);
+        config.put("DEDUP_WINDOW_MILLIS", DEDUP_WINDOW_MILLIS);
+        config.put("DEDUP_WINDOW_COUNT", DEDUP_WINDOW_COUNT);
+        config.put("DEDUP_EXPECTED_KEYS_PER_WINDOW", DEDUP_EXPECTED_KEYS_PER_WINDOW);
+        config.put("DEDUP_FALSE_POSITIVE_RATE", DEDUP_FALSE_POSITIVE_RATE);
         config.put("COMPRESSION_ENABLED", COMPRESSION_ENABLED);
         config.put("COMPRESSION_ALGORITHM", COMPRESSION_ALGORITHM);
         config.put("SHARDING_ENABLED", SHARDING_ENABLED);
         config.put("DEFAULT_SHARDS", DEFAULT_SHARDS);
         config.put("QUERY_TIMEOUT_SECONDS", QUERY_TIMEOUT_SECONDS);
         config.put("MAX_CONCURRENT_QUERIES", MAX_CONCURRENT_QUERIES);
+        config.put("QUERY_MAX_GROUPS", QUERY_MAX_GROUPS);
         config.put("ML_ENABLED", ML_ENABLED);
         config.put("ML_MODEL_CACHE_SIZE", ML_MODEL_CACHE_SIZE);
         
         return config;
     }
+    
+    /**
+     * Get a string setting, overridable with the system property {@code insightaxisdb.<key>}.
+     *
+     * @param key Setting name
+     * @param defaultValue Value to use when the setting is not overridden
+     * @return Setting value
+     */
+    public static String getString(String key, String defaultValue) {
+        return System.getProperty("insightaxisdb." + key, defaultValue);
+    }
+    
+    /**
+     * Get an integer setting, overridable with the system property {@code insightaxisdb.<key>}.
+     *
+     * @param key Setting name
+     * @param defaultValue Value to use when the setting is not overridden
+     * @return Setting value
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+    
+    /**
+     * Get a long setting, overridable with the system property {@code insightaxisdb.<key>}.
+     *
+     * @param key Setting name
+     * @param defaultValue Value to use when the setting is not overridden
+     * @return Setting value
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
 }
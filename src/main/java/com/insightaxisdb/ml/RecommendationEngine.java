@@ -116,19 +116,17 @@ public class RecommendationEngine {
      * @return List of popular item IDs with scores
      */
     public List<ScoredItem> getPopularItems(int maxItems) {
-        // Get all purchase events
-        List<Event> purchaseEvents = eventStore.getEventsByName(itemPurchaseEventName);
-        
-        // Count purchases for each item
+        // Count purchases for each item in a scan over the purchase events
         Map<String, Integer> itemCounts = new HashMap<>();
         
-        for (Event event : purchaseEvents) {
-            Object itemIdObj = event.getProperties().get(itemIdField);
-            if (itemIdObj instanceof String) {
-                String itemId = (String) itemIdObj;
-                itemCounts.merge(itemId, 1, Integer::sum);
-            }
-        }
+        eventStore.streamEvents(itemPurchaseEventName, Long.MIN_VALUE, Long.MAX_VALUE, null, false)
+                .forEach(event -> {
+                    Object itemIdObj = event.getProperties().get(itemIdField);
+                    if (itemIdObj instanceof String) {
+                        String itemId = (String) itemIdObj;
+                        itemCounts.merge(itemId, 1, Integer::sum);
+                    }
+                });
         
         // Sort items by popularity
         return itemCounts.entrySet().stream()
@@ -146,9 +144,7 @@ public class RecommendationEngine {
      * @return Set of item IDs
      */
     private Set<String> getUserItems(String userId, String eventName) {
-        List<Event> events = eventStore.getUserEventsByName(userId, eventName);
-        
-        return events.stream()
+        return eventStore.streamUserEvents(userId, eventName, Long.MIN_VALUE, Long.MAX_VALUE, null, false)
                 .map(event -> event.getProperties().get(itemIdField))
                 .filter(itemId -> itemId instanceof String)
                 .map(itemId -> (String) itemId)
@@ -176,21 +172,14 @@ public class RecommendationEngine {
      * @return Map of item ID to similar items with similarity scores
      */
     private Map<String, Map<String, Double>> calculateItemSimilarity() {
-        // Get all purchase events
-        List<Event> purchaseEvents = eventStore.getEventsByName(itemPurchaseEventName);
-        
-        // Group purchases by user
-        Map<String, Set<String>> userItems = new HashMap<>();
-        
-        for (Event event : purchaseEvents) {
-            String userId = event.getUserId();
-            Object itemIdObj = event.getProperties().get(itemIdField);
-            
-            if (itemIdObj instanceof String) {
-                String itemId = (String) itemIdObj;
-                userItems.computeIfAbsent(userId, k -> new HashSet<>()).add(itemId);
-            }
-        }
+        // Group purchased items by user in a parallel scan; events without an
+        // item ID are filtered out inside the scan
+        Map<String, Set<String>> userItems = eventStore
+                .streamEvents(itemPurchaseEventName, Long.MIN_VALUE, Long.MAX_VALUE,
+                        event -> event.getProperties().get(itemIdField) instanceof String, true)
+                .collect(Collectors.groupingBy(Event::getUserId,
+                        Collectors.mapping(event -> (String) event.getProperties().get(itemIdField),
+                                Collectors.toSet())));
         
         // Count co-occurrences of items
         Map<String, Map<String, Integer>> coOccurrences = new HashMap<>();
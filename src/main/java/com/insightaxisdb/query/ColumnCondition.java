@@ -0,0 +1,123 @@
+package com.insightaxisdb.query;
+
+import com.insightaxisdb.storage.ProfileColumnStore;
+import com.insightaxisdb.storage.PropertySchema;
+
+/**
+ * Query condition evaluated directly on the values of a profile column.
+ *
+ * Comparisons against numbers are decided on the unboxed column values, with
+ * the same semantics as {@link QueryCondition#matches(java.util.Map)}: equality
+ * requires the same boxed type, while ordering compares double values. Other
+ * operators and column types defer to the compiled condition, one value at a time.
+ */
+public class ColumnCondition implements ProfileColumnStore.ColumnPredicate {
+
+    private final CompiledCondition compiled;
+    private final QueryCondition.Operator operator;
+    private final Object value;
+    private final boolean numericValue;
+    private final double doubleValue;
+
+    /**
+     * Initialize column condition.
+     *
+     * @param condition Condition to evaluate
+     */
+    public ColumnCondition(QueryCondition condition) {
+        this.compiled = CompiledCondition.compile(condition);
+        this.operator = condition.getOperator();
+        this.value = condition.getValue();
+        this.numericValue = value instanceof Number;
+        this.doubleValue = numericValue ? ((Number) value).doubleValue() : 0;
+    }
+
+    @Override
+    public boolean matchesMissing() {
+        return operator == QueryCondition.Operator.NOT_EXISTS;
+    }
+
+    @Override
+    public boolean matches(long columnValue, PropertySchema.SlotType type) {
+        switch (operator) {
+            case EXISTS:
+                return true;
+            case NOT_EXISTS:
+                return false;
+            case EQUALS:
+                return equalsValue(columnValue, type);
+            case NOT_EQUALS:
+                return !equalsValue(columnValue, type);
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUALS:
+                return type != PropertySchema.SlotType.BOOLEAN && numericValue && compare((double) columnValue);
+            default:
+                return matches(box(columnValue, type));
+        }
+    }
+
+    @Override
+    public boolean matches(double columnValue) {
+        switch (operator) {
+            case EXISTS:
+                return true;
+            case NOT_EXISTS:
+                return false;
+            case EQUALS:
+                return value instanceof Double
+                        && Double.doubleToLongBits(columnValue) == Double.doubleToLongBits((Double) value);
+            case NOT_EQUALS:
+                return !(value instanceof Double
+                        && Double.doubleToLongBits(columnValue) == Double.doubleToLongBits((Double) value));
+            case GREATER_THAN:
+            case GREATER_THAN_OR_EQUALS:
+            case LESS_THAN:
+            case LESS_THAN_OR_EQUALS:
+                return numericValue && compare(columnValue);
+            default:
+                return matches((Object) columnValue);
+        }
+    }
+
+    @Override
+    public boolean matches(Object columnValue) {
+        return compiled.matches(columnValue);
+    }
+
+    private boolean equalsValue(long columnValue, PropertySchema.SlotType type) {
+        switch (type) {
+            case BOOLEAN:
+                return value instanceof Boolean && (columnValue != 0) == (Boolean) value;
+            case INT:
+                return value instanceof Integer && columnValue == (Integer) value;
+            default:
+                return value instanceof Long && columnValue == (Long) value;
+        }
+    }
+
+    private boolean compare(double columnValue) {
+        switch (operator) {
+            case GREATER_THAN:
+                return columnValue > doubleValue;
+            case GREATER_THAN_OR_EQUALS:
+                return columnValue >= doubleValue;
+            case LESS_THAN:
+                return columnValue < doubleValue;
+            default:
+                return columnValue <= doubleValue;
+        }
+    }
+
+    private static Object box(long columnValue, PropertySchema.SlotType type) {
+        switch (type) {
+            case BOOLEAN:
+                return columnValue != 0;
+            case INT:
+                return (int) columnValue;
+            default:
+                return columnValue;
+        }
+    }
+}
@@ -0,0 +1,591 @@
+package com.insightaxisdb.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Query condition compiled into a predicate specialized for its operator and
+ * value type.
+ *
+ * Compiling decides up front what {@link QueryCondition#matches(Map)} decides
+ * on every row: the operator, the type of the value and its conversions. Each
+ * compiled condition is a small final class, so the JIT sees one receiver type
+ * per condition. Numeric bounds are kept as doubles, IN lists of longs or ints
+ * become sorted arrays and other IN lists hash sets. Rows are read with a single
+ * map lookup; only a null value needs a second one to tell a missing field from
+ * a null one. The results are the same as those of the interpreted condition.
+ */
+public abstract class CompiledCondition implements Predicate<Map<String, Object>> {
+
+    private static final Predicate<Map<String, Object>> ALWAYS = row -> true;
+
+    private final String field;
+
+    CompiledCondition(String field) {
+        this.field = field;
+    }
+
+    /**
+     * Compile a condition.
+     *
+     * @param condition Condition to compile
+     * @return Compiled condition
+     */
+    public static CompiledCondition compile(QueryCondition condition) {
+        String field = condition.getField();
+        Object value = condition.getValue();
+
+        switch (condition.getOperator()) {
+            case EXISTS:
+                return new Exists(field, true);
+            case NOT_EXISTS:
+                return new Exists(field, false);
+            case EQUALS:
+                return equalsCondition(field, value, false);
+            case NOT_EQUALS:
+                return equalsCondition(field, value, true);
+            case GREATER_THAN:
+                return rangeCondition(field, value, value, false, null, false);
+            case GREATER_THAN_OR_EQUALS:
+                return rangeCondition(field, value, value, true, null, false);
+            case LESS_THAN:
+                return rangeCondition(field, value, null, false, value, false);
+            case LESS_THAN_OR_EQUALS:
+                return rangeCondition(field, value, null, false, value, true);
+            case CONTAINS:
+                return new Contains(field, value);
+            case STARTS_WITH:
+                return value instanceof String ? new StartsWith(field, (String) value) : new Never(field);
+            case ENDS_WITH:
+                return value instanceof String ? new EndsWith(field, (String) value) : new Never(field);
+            case IN:
+                return value instanceof List ? inCondition(field, (List<?>) value, false) : new Never(field);
+            case NOT_IN:
+                return value instanceof List ? inCondition(field, (List<?>) value, true) : new Never(field);
+            default:
+                return new Never(field);
+        }
+    }
+
+    /**
+     * Compile the conditions of a query into one predicate that requires all
+     * of them, evaluating the most selective first.
+     *
+     * @param conditions Conditions to compile
+     * @return Predicate matching the rows that match every condition
+     */
+    public static Predicate<Map<String, Object>> compileAll(List<QueryCondition> conditions) {
+        if (conditions.isEmpty()) {
+            return ALWAYS;
+        }
+        if (conditions.size() == 1) {
+            return compile(conditions.get(0));
+        }
+
+        List<CompiledCondition> compiled = new ArrayList<>(conditions.size());
+        for (QueryCondition condition : conditions) {
+            compiled.add(compile(condition));
+        }
+        // Stable, so conditions of equal estimates keep the query's order
+        compiled.sort(Comparator.comparingDouble(CompiledCondition::selectivity));
+        return new All(compiled.toArray(new CompiledCondition[0]));
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public boolean test(Map<String, Object> row) {
+        Object value = row.get(field);
+        if (value == null) {
+            return row.containsKey(field) ? matchesNull() : matchesMissing();
+        }
+        return matchesValue(value);
+    }
+
+    /**
+     * Check if a value of the field matches, the field being present.
+     *
+     * @param value Field value, possibly null
+     * @return Whether the value matches
+     */
+    public boolean matches(Object value) {
+        return value == null ? matchesNull() : matchesValue(value);
+    }
+
+    /**
+     * Check if a non-null field value matches.
+     */
+    abstract boolean matchesValue(Object value);
+
+    /**
+     * Check if a row with the field set to null matches.
+     */
+    boolean matchesNull() {
+        return false;
+    }
+
+    /**
+     * Check if a row without the field matches.
+     */
+    boolean matchesMissing() {
+        return false;
+    }
+
+    /**
+     * Estimate the fraction of rows that match, used to order conditions.
+     */
+    abstract double selectivity();
+
+    private static CompiledCondition equalsCondition(String field, Object value, boolean negate) {
+        if (value instanceof String) {
+            return new StringEquals(field, (String) value, negate);
+        }
+        if (value instanceof Long) {
+            return new LongEquals(field, (Long) value, negate);
+        }
+        if (value instanceof Integer) {
+            return new IntEquals(field, (Integer) value, negate);
+        }
+        return new ObjectEquals(field, value, negate);
+    }
+
+    private static CompiledCondition rangeCondition(String field, Object value, Object lower, boolean lowerInclusive,
+                                                    Object upper, boolean upperInclusive) {
+        if (value instanceof Number) {
+            return new NumberRange(field,
+                    lower != null ? ((Number) lower).doubleValue() : Double.NEGATIVE_INFINITY, lower == null || lowerInclusive,
+                    upper != null ? ((Number) upper).doubleValue() : Double.POSITIVE_INFINITY, upper == null || upperInclusive);
+        }
+        if (value instanceof String) {
+            return new StringRange(field, (String) lower, lowerInclusive, (String) upper, upperInclusive);
+        }
+        // Only numbers and strings are ordered
+        return new Never(field);
+    }
+
+    private static CompiledCondition inCondition(String field, List<?> values, boolean negate) {
+        if (!values.isEmpty() && values.stream().allMatch(v -> v instanceof Long)) {
+            long[] sorted = values.stream().mapToLong(v -> (Long) v).sorted().toArray();
+            return new LongIn(field, sorted, negate);
+        }
+        if (!values.isEmpty() && values.stream().allMatch(v -> v instanceof Integer)) {
+            int[] sorted = values.stream().mapToInt(v -> (Integer) v).sorted().toArray();
+            return new IntIn(field, sorted, negate);
+        }
+        return new ObjectIn(field, new HashSet<>(values), negate);
+    }
+
+    private static double inSelectivity(int size, boolean negate) {
+        double selectivity = Math.min(0.5, 0.05 * size);
+        return negate ? 1 - selectivity : selectivity;
+    }
+
+    /**
+     * All of several conditions, most selective first.
+     */
+    private static final class All implements Predicate<Map<String, Object>> {
+        private final CompiledCondition[] conditions;
+
+        All(CompiledCondition[] conditions) {
+            this.conditions = conditions;
+        }
+
+        @Override
+        public boolean test(Map<String, Object> row) {
+            for (CompiledCondition condition : conditions) {
+                if (!condition.test(row)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Condition that no row matches, such as an ordering against a value that is not ordered.
+     */
+    private static final class Never extends CompiledCondition {
+        Never(String field) {
+            super(field);
+        }
+
+        @Override
+        public boolean test(Map<String, Object> row) {
+            return false;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return false;
+        }
+
+        @Override
+        double selectivity() {
+            return 0;
+        }
+    }
+
+    /**
+     * EXISTS or NOT_EXISTS.
+     */
+    private static final class Exists extends CompiledCondition {
+        private final boolean exists;
+
+        Exists(String field, boolean exists) {
+            super(field);
+            this.exists = exists;
+        }
+
+        @Override
+        public boolean test(Map<String, Object> row) {
+            return row.containsKey(getField()) == exists;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return exists;
+        }
+
+        @Override
+        boolean matchesNull() {
+            return exists;
+        }
+
+        @Override
+        boolean matchesMissing() {
+            return !exists;
+        }
+
+        @Override
+        double selectivity() {
+            return exists ? 0.7 : 0.3;
+        }
+    }
+
+    /**
+     * EQUALS or NOT_EQUALS against a string.
+     */
+    private static final class StringEquals extends CompiledCondition {
+        private final String constant;
+        private final boolean negate;
+
+        StringEquals(String field, String constant, boolean negate) {
+            super(field);
+            this.constant = constant;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return constant.equals(value) != negate;
+        }
+
+        @Override
+        double selectivity() {
+            return negate ? 0.95 : 0.05;
+        }
+    }
+
+    /**
+     * EQUALS or NOT_EQUALS against a long; like {@link Long#equals}, only longs are equal.
+     */
+    private static final class LongEquals extends CompiledCondition {
+        private final long constant;
+        private final boolean negate;
+
+        LongEquals(String field, long constant, boolean negate) {
+            super(field);
+            this.constant = constant;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return (value instanceof Long && (Long) value == constant) != negate;
+        }
+
+        @Override
+        double selectivity() {
+            return negate ? 0.95 : 0.05;
+        }
+    }
+
+    /**
+     * EQUALS or NOT_EQUALS against an int; like {@link Integer#equals}, only ints are equal.
+     */
+    private static final class IntEquals extends CompiledCondition {
+        private final int constant;
+        private final boolean negate;
+
+        IntEquals(String field, int constant, boolean negate) {
+            super(field);
+            this.constant = constant;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return (value instanceof Integer && (Integer) value == constant) != negate;
+        }
+
+        @Override
+        double selectivity() {
+            return negate ? 0.95 : 0.05;
+        }
+    }
+
+    /**
+     * EQUALS or NOT_EQUALS against any other value, including null.
+     */
+    private static final class ObjectEquals extends CompiledCondition {
+        private final Object constant;
+        private final boolean negate;
+
+        ObjectEquals(String field, Object constant, boolean negate) {
+            super(field);
+            this.constant = constant;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return value.equals(constant) != negate;
+        }
+
+        @Override
+        boolean matchesNull() {
+            // A null field only equals a null value, and is never unequal to anything
+            return !negate && constant == null;
+        }
+
+        @Override
+        double selectivity() {
+            return negate ? 0.95 : 0.05;
+        }
+    }
+
+    /**
+     * Ordering comparison against a number, on double values.
+     */
+    private static final class NumberRange extends CompiledCondition {
+        private final double lower;
+        private final boolean lowerInclusive;
+        private final double upper;
+        private final boolean upperInclusive;
+
+        NumberRange(String field, double lower, boolean lowerInclusive, double upper, boolean upperInclusive) {
+            super(field);
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            if (!(value instanceof Number)) {
+                return false;
+            }
+            double d = ((Number) value).doubleValue();
+            return (lowerInclusive ? d >= lower : d > lower) && (upperInclusive ? d <= upper : d < upper);
+        }
+
+        @Override
+        double selectivity() {
+            return 0.3;
+        }
+    }
+
+    /**
+     * Ordering comparison against a string; a null bound is open.
+     */
+    private static final class StringRange extends CompiledCondition {
+        private final String lower;
+        private final boolean lowerInclusive;
+        private final String upper;
+        private final boolean upperInclusive;
+
+        StringRange(String field, String lower, boolean lowerInclusive, String upper, boolean upperInclusive) {
+            super(field);
+            this.lower = lower;
+            this.lowerInclusive = lowerInclusive;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            if (!(value instanceof String)) {
+                return false;
+            }
+            String s = (String) value;
+            if (lower != null) {
+                int comparison = s.compareTo(lower);
+                if (lowerInclusive ? comparison < 0 : comparison <= 0) {
+                    return false;
+                }
+            }
+            if (upper != null) {
+                int comparison = s.compareTo(upper);
+                return upperInclusive ? comparison <= 0 : comparison < 0;
+            }
+            return true;
+        }
+
+        @Override
+        double selectivity() {
+            return 0.3;
+        }
+    }
+
+    /**
+     * CONTAINS: a substring of a string, or an element of a list.
+     */
+    private static final class Contains extends CompiledCondition {
+        private final Object constant;
+        private final String substring;
+
+        Contains(String field, Object constant) {
+            super(field);
+            this.constant = constant;
+            this.substring = constant instanceof String ? (String) constant : null;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            if (value instanceof String) {
+                return substring != null && ((String) value).contains(substring);
+            }
+            return value instanceof List && ((List<?>) value).contains(constant);
+        }
+
+        @Override
+        double selectivity() {
+            return 0.25;
+        }
+    }
+
+    /**
+     * STARTS_WITH a string.
+     */
+    private static final class StartsWith extends CompiledCondition {
+        private final String prefix;
+
+        StartsWith(String field, String prefix) {
+            super(field);
+            this.prefix = prefix;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return value instanceof String && ((String) value).startsWith(prefix);
+        }
+
+        @Override
+        double selectivity() {
+            return 0.2;
+        }
+    }
+
+    /**
+     * ENDS_WITH a string.
+     */
+    private static final class EndsWith extends CompiledCondition {
+        private final String suffix;
+
+        EndsWith(String field, String suffix) {
+            super(field);
+            this.suffix = suffix;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return value instanceof String && ((String) value).endsWith(suffix);
+        }
+
+        @Override
+        double selectivity() {
+            return 0.25;
+        }
+    }
+
+    /**
+     * IN or NOT_IN a list of longs, by binary search of the sorted values.
+     */
+    private static final class LongIn extends CompiledCondition {
+        private final long[] values;
+        private final boolean negate;
+
+        LongIn(String field, long[] values, boolean negate) {
+            super(field);
+            this.values = values;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return (value instanceof Long && Arrays.binarySearch(values, (Long) value) >= 0) != negate;
+        }
+
+        @Override
+        double selectivity() {
+            return inSelectivity(values.length, negate);
+        }
+    }
+
+    /**
+     * IN or NOT_IN a list of ints, by binary search of the sorted values.
+     */
+    private static final class IntIn extends CompiledCondition {
+        private final int[] values;
+        private final boolean negate;
+
+        IntIn(String field, int[] values, boolean negate) {
+            super(field);
+            this.values = values;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return (value instanceof Integer && Arrays.binarySearch(values, (Integer) value) >= 0) != negate;
+        }
+
+        @Override
+        double selectivity() {
+            return inSelectivity(values.length, negate);
+        }
+    }
+
+    /**
+     * IN or NOT_IN a list of any other values, by hash lookup.
+     */
+    private static final class ObjectIn extends CompiledCondition {
+        private final Set<Object> values;
+        private final boolean negate;
+
+        ObjectIn(String field, Set<Object> values, boolean negate) {
+            super(field);
+            this.values = values;
+            this.negate = negate;
+        }
+
+        @Override
+        boolean matchesValue(Object value) {
+            return values.contains(value) != negate;
+        }
+
+        @Override
+        double selectivity() {
+            return inSelectivity(values.size(), negate);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.insightaxisdb.query;
+
+import com.insightaxisdb.storage.Event;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only row view of an event for query execution.
+ *
+ * The row exposes the event's properties plus the eventId, eventName, userId
+ * and timestamp fields without copying the properties into a new map. The
+ * event fields take precedence over properties with the same key.
+ */
+public class EventRow extends AbstractMap<String, Object> {
+    private static final String[] EVENT_FIELDS = {"eventId", "eventName", "userId", "timestamp"};
+
+    private final Event event;
+
+    /**
+     * Initialize event row.
+     *
+     * @param event Event to expose
+     */
+    public EventRow(Event event) {
+        this.event = event;
+    }
+
+    @Override
+    public Object get(Object key) {
+        return isEventField(key) ? eventField(key) : event.getProperties().get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return isEventField(key) || event.getProperties().containsKey(key);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                Iterator<Entry<String, Object>> properties = event.getProperties().entrySet().iterator();
+
+                return new Iterator<Entry<String, Object>>() {
+                    private int field = 0;
+                    private Entry<String, Object> nextProperty = advance();
+
+                    private Entry<String, Object> advance() {
+                        // Skip properties shadowed by event fields
+                        while (properties.hasNext()) {
+                            Entry<String, Object> entry = properties.next();
+                            if (!isEventField(entry.getKey())) {
+                                return entry;
+                            }
+                        }
+                        return null;
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return field < EVENT_FIELDS.length || nextProperty != null;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (field < EVENT_FIELDS.length) {
+                            String key = EVENT_FIELDS[field++];
+                            return new SimpleImmutableEntry<>(key, eventField(key));
+                        }
+                        if (nextProperty == null) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, Object> entry = nextProperty;
+                        nextProperty = advance();
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = EVENT_FIELDS.length;
+                for (String key : event.getProperties().keySet()) {
+                    if (!isEventField(key)) {
+                        size++;
+                    }
+                }
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Get the underlying event.
+     *
+     * @return Event
+     */
+    public Event getEvent() {
+        return event;
+    }
+
+    private Object eventField(Object key) {
+        if ("eventId".equals(key)) {
+            return event.getEventId();
+        }
+        if ("eventName".equals(key)) {
+            return event.getEventName();
+        }
+        if ("userId".equals(key)) {
+            return event.getUserId();
+        }
+        if ("timestamp".equals(key)) {
+            return event.getTimestamp();
+        }
+        return null;
+    }
+
+    private static boolean isEventField(Object key) {
+        for (String field : EVENT_FIELDS) {
+            if (field.equals(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
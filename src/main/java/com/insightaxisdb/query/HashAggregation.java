@@ -0,0 +1,179 @@
+package com.insightaxisdb.query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash aggregation operator for grouped queries.
+ *
+ * Rows are grouped by their key values in a hash table, and all aggregates of
+ * a group are updated in the same pass, into primitive accumulators. The table
+ * holds at most a set number of groups; rows with keys beyond those are added
+ * to a single overflow group, so memory stays bounded without spilling however
+ * many distinct keys the rows have.
+ */
+class HashAggregation {
+
+    private final Query.GroupKey[] keys;
+    private final Query.Aggregation[] aggregations;
+    private final boolean[] numeric;
+    private final int maxGroups;
+    private final Map<Object, Group> groups = new LinkedHashMap<>();
+    private Group overflow;
+
+    /**
+     * Initialize an empty aggregation.
+     *
+     * @param keys Keys to group by
+     * @param aggregations Aggregates to compute per group
+     * @param maxGroups Number of groups kept before further keys go to the overflow group
+     */
+    HashAggregation(List<Query.GroupKey> keys, List<Query.Aggregation> aggregations, int maxGroups) {
+        this.keys = keys.toArray(new Query.GroupKey[0]);
+        this.aggregations = aggregations.toArray(new Query.Aggregation[0]);
+        this.numeric = new boolean[this.aggregations.length];
+        for (int i = 0; i < this.aggregations.length; i++) {
+            Query.AggregationType type = this.aggregations[i].getType();
+            numeric[i] = type != Query.AggregationType.COUNT && type != Query.AggregationType.COUNT_DISTINCT;
+        }
+        this.maxGroups = maxGroups;
+    }
+
+    /**
+     * Add a row to its group.
+     *
+     * @param row Row to add
+     */
+    void add(Map<String, Object> row) {
+        Object key = key(row);
+        Group group = groups.get(key);
+        if (group == null) {
+            if (groups.size() < maxGroups) {
+                group = new Group(key);
+                groups.put(key, group);
+            } else {
+                if (overflow == null) {
+                    overflow = new Group(null);
+                }
+                group = overflow;
+            }
+        }
+        group.add(row);
+    }
+
+    /**
+     * Get one row per group, with the key fields and the aggregates by alias,
+     * in the order the groups were first seen. The overflow group comes last,
+     * with null keys and {@link Query#OVERFLOW_GROUP_FIELD} set.
+     *
+     * @return Group rows
+     */
+    List<Map<String, Object>> toRows() {
+        List<Map<String, Object>> rows = new ArrayList<>(groups.size() + 1);
+        for (Group group : groups.values()) {
+            rows.add(group.toRow(false));
+        }
+        if (overflow != null) {
+            rows.add(overflow.toRow(true));
+        }
+        return rows;
+    }
+
+    private Object key(Map<String, Object> row) {
+        if (keys.length == 1) {
+            return keys[0].valueOf(row);
+        }
+        Object[] values = new Object[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = keys[i].valueOf(row);
+        }
+        return Arrays.asList(values);
+    }
+
+    /**
+     * Accumulators of one group.
+     */
+    private final class Group {
+        private final Object key;
+        private long count = 0;
+        private final double[] sums = new double[aggregations.length];
+        private final long[] numericCounts = new long[aggregations.length];
+        private final double[] mins = new double[aggregations.length];
+        private final double[] maxs = new double[aggregations.length];
+        private final Set<?>[] distinct = new Set<?>[aggregations.length];
+
+        Group(Object key) {
+            this.key = key;
+            Arrays.fill(mins, Double.POSITIVE_INFINITY);
+            Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(Map<String, Object> row) {
+            count++;
+            for (int i = 0; i < aggregations.length; i++) {
+                if (numeric[i]) {
+                    Object value = row.get(aggregations[i].getField());
+                    if (value instanceof Number) {
+                        double d = ((Number) value).doubleValue();
+                        sums[i] += d;
+                        numericCounts[i]++;
+                        mins[i] = Math.min(mins[i], d);
+                        maxs[i] = Math.max(maxs[i], d);
+                    }
+                } else if (aggregations[i].getType() == Query.AggregationType.COUNT_DISTINCT) {
+                    Object value = row.get(aggregations[i].getField());
+                    if (value != null) {
+                        if (distinct[i] == null) {
+                            distinct[i] = new HashSet<>();
+                        }
+                        ((Set<Object>) distinct[i]).add(value);
+                    }
+                }
+            }
+        }
+
+        Map<String, Object> toRow(boolean isOverflow) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                Object value = isOverflow ? null : keys.length == 1 ? key : ((List<?>) key).get(i);
+                row.put(keys[i].getField(), value);
+            }
+            if (isOverflow) {
+                row.put(Query.OVERFLOW_GROUP_FIELD, true);
+            }
+
+            // Same results as the whole-result aggregates, which yield 0.0 without numeric values
+            for (int i = 0; i < aggregations.length; i++) {
+                Object value;
+                switch (aggregations[i].getType()) {
+                    case COUNT:
+                        value = count;
+                        break;
+                    case COUNT_DISTINCT:
+                        value = distinct[i] != null ? (long) distinct[i].size() : 0L;
+                        break;
+                    case SUM:
+                        value = sums[i];
+                        break;
+                    case AVG:
+                        value = numericCounts[i] > 0 ? sums[i] / numericCounts[i] : 0.0;
+                        break;
+                    case MIN:
+                        value = numericCounts[i] > 0 ? mins[i] : 0.0;
+                        break;
+                    default:
+                        value = numericCounts[i] > 0 ? maxs[i] : 0.0;
+                        break;
+                }
+                row.put(aggregations[i].getAlias(), value);
+            }
+            return row;
+        }
+    }
+}
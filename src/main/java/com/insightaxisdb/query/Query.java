@@ -1,20 +1,32 @@
 package com.insightaxisdb.query;
 
+import com.insightaxisdb.core.Config;
+
 import java.util.*;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Represents a query for retrieving and filtering data.
  */
 public class Query {
     
+    private static final int PARALLEL_TOP_ROWS = 100000;
+    
+    /**
+     * Field set on the result row of the overflow group of a grouped query.
+     */
+    public static final String OVERFLOW_GROUP_FIELD = "_overflow";
+    
     private final List<QueryCondition> conditions = new ArrayList<>();
     private final List<String> selectFields = new ArrayList<>();
     private final Map<String, SortOrder> sortFields = new LinkedHashMap<>();
     private Integer limit;
     private Integer offset;
     private final List<Aggregation> aggregations = new ArrayList<>();
+    private final List<GroupKey> groupKeys = new ArrayList<>();
+    private Integer maxGroups;
     
     /**
      * Sort order for query results.
@@ -63,6 +75,45 @@ public class Query {
         }
     }
     
+    /**
+     * Represents a key of a grouped query: the value of a field, or for an
+     * interval key, the start of the interval a numeric value falls in.
+     */
+    public static class GroupKey {
+        private final String field;
+        private final long intervalMillis;
+        
+        public GroupKey(String field, long intervalMillis) {
+            this.field = field;
+            this.intervalMillis = intervalMillis;
+        }
+        
+        public String getField() {
+            return field;
+        }
+        
+        public long getIntervalMillis() {
+            return intervalMillis;
+        }
+        
+        /**
+         * Get the key value of a row.
+         *
+         * @param row Row to group
+         * @return Field value, or interval start for interval keys
+         */
+        public Object valueOf(Map<String, Object> row) {
+            Object value = row.get(field);
+            if (intervalMillis <= 0) {
+                return value;
+            }
+            if (!(value instanceof Number)) {
+                return null;
+            }
+            return Math.floorDiv(((Number) value).longValue(), intervalMillis) * intervalMillis;
+        }
+    }
+    
     /**
      * Create a new query.
      */
@@ -149,95 +200,73 @@ public class Query {
         return this;
     }
     
+    /**
+     * Group the results by the values of fields. Aggregations are then
+     * computed per group, and the query returns one row per group.
+     *
+     * @param fields Fields to group by
+     * @return This query for chaining
+     */
+    public Query groupBy(String... fields) {
+        for (String field : fields) {
+            groupKeys.add(new GroupKey(field, 0));
+        }
+        return this;
+    }
+    
+    /**
+     * Group the results by the interval a numeric field falls in, such as
+     * the day of a timestamp. Intervals are aligned to zero, so days of epoch
+     * milliseconds are UTC days.
+     *
+     * @param field Field to group by
+     * @param intervalMillis Interval length
+     * @return This query for chaining
+     */
+    public Query groupByInterval(String field, long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+        }
+        groupKeys.add(new GroupKey(field, intervalMillis));
+        return this;
+    }
+    
+    /**
+     * Set the number of groups a grouped query keeps. Rows of further keys
+     * are aggregated into one overflow group, marked with
+     * {@link #OVERFLOW_GROUP_FIELD}.
+     *
+     * @param maxGroups Maximum number of groups
+     * @return This query for chaining
+     */
+    public Query maxGroups(int maxGroups) {
+        if (maxGroups < 1) {
+            throw new IllegalArgumentException("Group limit must be positive: " + maxGroups);
+        }
+        this.maxGroups = maxGroups;
+        return this;
+    }
+    
     /**
      * Execute the query on a list of rows.
      *
+     * With both a sort order and a limit, only the first offset + limit rows
+     * in sort order are kept while filtering, rather than sorting all of them.
+     * Grouped queries aggregate the matching rows in one pass, and sort order,
+     * offset, limit and selected fields then apply to the group rows.
+     *
      * @param rows Rows to query
      * @return Query results
      */
     public QueryResult execute(List<Map<String, Object>> rows) {
-        // Filter rows based on conditions
-        Predicate<Map<String, Object>> predicate = row -> {
-            for (QueryCondition condition : conditions) {
-                if (!condition.matches(row)) {
-                    return false;
-                }
-            }
-            return true;
-        };
-        
-        List<Map<String, Object>> filteredRows = rows.stream()
-                .filter(predicate)
-                .collect(Collectors.toList());
-        
-        // Sort rows
-        if (!sortFields.isEmpty()) {
-            filteredRows.sort((row1, row2) -> {
-                for (Map.Entry<String, SortOrder> entry : sortFields.entrySet()) {
-                    String field = entry.getKey();
-                    SortOrder order = entry.getValue();
-                    
-                    Object value1 = row1.get(field);
-                    Object value2 = row2.get(field);
-                    
-                    // Handle null values
-                    if (value1 == null && value2 == null) {
-                        continue;
-                    }
-                    if (value1 == null) {
-                        return order == SortOrder.ASCENDING ? -1 : 1;
-                    }
-                    if (value2 == null) {
-                        return order == SortOrder.ASCENDING ? 1 : -1;
-                    }
-                    
-                    // Compare values
-                    int comparison;
-                    if (value1 instanceof Comparable && value1.getClass().equals(value2.getClass())) {
-                        @SuppressWarnings("unchecked")
-                        Comparable<Object> comparable1 = (Comparable<Object>) value1;
-                        comparison = comparable1.compareTo(value2);
-                    } else {
-                        // Fall back to string comparison
-                        comparison = value1.toString().compareTo(value2.toString());
-                    }
-                    
-                    if (comparison != 0) {
-                        return order == SortOrder.ASCENDING ? comparison : -comparison;
-                    }
-                }
-                
-                return 0;
-            });
+        // Filter rows based on the conditions, compiled once for all rows
+        Predicate<Map<String, Object>> predicate = CompiledCondition.compileAll(conditions);
+        if (!groupKeys.isEmpty()) {
+            return executeGrouped(rows, predicate);
         }
         
-        // Apply offset and limit
-        int startIndex = offset != null ? offset : 0;
-        int endIndex = limit != null ? Math.min(startIndex + limit, filteredRows.size()) : filteredRows.size();
-        
-        if (startIndex >= filteredRows.size()) {
-            filteredRows = Collections.emptyList();
-        } else {
-            filteredRows = filteredRows.subList(startIndex, endIndex);
-        }
-        
-        // Select fields
-        List<Map<String, Object>> resultRows;
-        if (!selectFields.isEmpty()) {
-            resultRows = filteredRows.stream()
-                    .map(row -> {
-                        Map<String, Object> resultRow = new HashMap<>();
-                        for (String field : selectFields) {
-                            if (row.containsKey(field)) {
-                                resultRow.put(field, row.get(field));
-                            }
-                        }
-                        return resultRow;
-                    })
-                    .collect(Collectors.toList());
-        } else {
-            resultRows = filteredRows;
-        }
+        List<Map<String, Object>> filteredRows = page(rows, predicate);
+        List<Map<String, Object>> resultRows = selectFields(filteredRows);
         
         // Calculate aggregations
         Map<String, Object> aggregationResults = new HashMap<>();
@@ -304,6 +333,240 @@ public class Query {
         return new QueryResult(resultRows, aggregationResults);
     }
     
+    /**
+     * Keep only the selected fields of rows.
+     */
+    private List<Map<String, Object>> selectFields(List<Map<String, Object>> rows) {
+        if (!selectFields.isEmpty()) {
+            return rows.stream()
+                    .map(row -> {
+                        Map<String, Object> resultRow = new HashMap<>();
+                        for (String field : selectFields) {
+                            if (row.containsKey(field)) {
+                                resultRow.put(field, row.get(field));
+                            }
+                        }
+                        return resultRow;
+                    })
+                    .collect(Collectors.toList());
+        }
+        return rows;
+    }
+    
+    /**
+     * Execute a grouped query with a {@link HashAggregation}.
+     */
+    private QueryResult executeGrouped(List<Map<String, Object>> rows, Predicate<Map<String, Object>> predicate) {
+        int groupLimit = maxGroups != null
+                ? maxGroups : Math.max(1, Config.getInt("queryMaxGroups", Config.QUERY_MAX_GROUPS));
+        HashAggregation aggregation = new HashAggregation(groupKeys, aggregations, groupLimit);
+        for (Map<String, Object> row : rows) {
+            if (predicate.test(row)) {
+                aggregation.add(row);
+            }
+        }
+        
+        List<Map<String, Object>> groupRows = page(aggregation.toRows(), row -> true);
+        return new QueryResult(selectFields(groupRows), new HashMap<>());
+    }
+    
+    /**
+     * Filter, sort and page rows.
+     */
+    private List<Map<String, Object>> page(List<Map<String, Object>> rows, Predicate<Map<String, Object>> predicate) {
+        int startIndex = offset != null ? offset : 0;
+        long topCount = limit != null ? (long) startIndex + limit : Long.MAX_VALUE;
+        
+        List<Map<String, Object>> filteredRows;
+        if (!sortFields.isEmpty() && topCount >= 0 && topCount < rows.size()) {
+            // Only the first offset + limit rows in sort order can be returned
+            filteredRows = topRows(rows, predicate, (int) topCount);
+        } else {
+            filteredRows = rows.stream()
+                    .filter(predicate)
+                    .collect(Collectors.toList());
+            
+            // Sort rows
+            if (!sortFields.isEmpty()) {
+                filteredRows.sort(rowComparator());
+            }
+        }
+        
+        // Apply offset and limit
+        int endIndex = limit != null ? (int) Math.min(topCount, filteredRows.size()) : filteredRows.size();
+        
+        if (startIndex >= filteredRows.size()) {
+            return Collections.emptyList();
+        }
+        return filteredRows.subList(startIndex, endIndex);
+    }
+    
+    /**
+     * Create a comparator ordering rows by the sort fields.
+     */
+    private Comparator<Map<String, Object>> rowComparator() {
+        return (row1, row2) -> {
+            for (Map.Entry<String, SortOrder> entry : sortFields.entrySet()) {
+                String field = entry.getKey();
+                SortOrder order = entry.getValue();
+                
+                Object value1 = row1.get(field);
+                Object value2 = row2.get(field);
+                
+                // Handle null values
+                if (value1 == null && value2 == null) {
+                    continue;
+                }
+                if (value1 == null) {
+                    return order == SortOrder.ASCENDING ? -1 : 1;
+                }
+                if (value2 == null) {
+                    return order == SortOrder.ASCENDING ? 1 : -1;
+                }
+                
+                // Compare values
+                int comparison;
+                if (value1 instanceof Comparable && value1.getClass().equals(value2.getClass())) {
+                    @SuppressWarnings("unchecked")
+                    Comparable<Object> comparable1 = (Comparable<Object>) value1;
+                    comparison = comparable1.compareTo(value2);
+                } else {
+                    // Fall back to string comparison
+                    comparison = value1.toString().compareTo(value2.toString());
+                }
+                
+                if (comparison != 0) {
+                    return order == SortOrder.ASCENDING ? comparison : -comparison;
+                }
+            }
+            
+            return 0;
+        };
+    }
+    
+    /**
+     * Find the first matching rows in sort order without sorting all of them.
+     *
+     * Matching rows go through a heap bounded to the count, so this takes
+     * O(n log k) time and O(k) memory. Large inputs are split over the common
+     * pool, each part keeping a heap of its own, and the heaps are merged.
+     * Ties go to the earlier row, as in a stable sort of all rows.
+     *
+     * @param rows Rows to query
+     * @param predicate Filter for the rows
+     * @param count Number of rows to keep
+     * @return First matching rows in sort order
+     */
+    private List<Map<String, Object>> topRows(List<Map<String, Object>> rows,
+                                              Predicate<Map<String, Object>> predicate, int count) {
+        List<Map<String, Object>> source = rows instanceof RandomAccess ? rows : new ArrayList<>(rows);
+        Comparator<Map<String, Object>> comparator = rowComparator();
+        
+        IntStream indexes = IntStream.range(0, source.size());
+        if (source.size() >= PARALLEL_TOP_ROWS) {
+            indexes = indexes.parallel();
+        }
+        TopRows top = indexes
+                .filter(i -> predicate.test(source.get(i)))
+                .collect(() -> new TopRows(source, comparator, count), TopRows::offer, TopRows::merge);
+        
+        List<Map<String, Object>> result = new ArrayList<>(count);
+        for (int index : top.sorted()) {
+            result.add(source.get(index));
+        }
+        return result;
+    }
+    
+    /**
+     * Bounded max-heap of row indexes, keeping the first rows in sort order.
+     */
+    private static class TopRows {
+        private final List<Map<String, Object>> rows;
+        private final Comparator<Map<String, Object>> comparator;
+        private final int capacity;
+        private int[] heap;
+        private int size = 0;
+        
+        TopRows(List<Map<String, Object>> rows, Comparator<Map<String, Object>> comparator, int capacity) {
+            this.rows = rows;
+            this.comparator = comparator;
+            this.capacity = capacity;
+            this.heap = new int[Math.min(capacity, 16)];
+        }
+        
+        void offer(int index) {
+            if (size < capacity) {
+                if (size == heap.length) {
+                    heap = Arrays.copyOf(heap, (int) Math.min(capacity, heap.length * 2L));
+                }
+                heap[size] = index;
+                siftUp(size++);
+            } else if (capacity > 0 && compare(index, heap[0]) < 0) {
+                // Replaces the last row kept so far
+                heap[0] = index;
+                siftDown(0, size);
+            }
+        }
+        
+        void merge(TopRows other) {
+            for (int i = 0; i < other.size; i++) {
+                offer(other.heap[i]);
+            }
+        }
+        
+        /**
+         * Sort the kept indexes in place, first row first.
+         */
+        int[] sorted() {
+            for (int end = size - 1; end > 0; end--) {
+                swap(0, end);
+                siftDown(0, end);
+            }
+            return Arrays.copyOf(heap, size);
+        }
+        
+        private int compare(int a, int b) {
+            int comparison = comparator.compare(rows.get(a), rows.get(b));
+            return comparison != 0 ? comparison : Integer.compare(a, b);
+        }
+        
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (compare(heap[i], heap[parent]) <= 0) {
+                    return;
+                }
+                swap(i, parent);
+                i = parent;
+            }
+        }
+        
+        private void siftDown(int i, int end) {
+            while (true) {
+                int largest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < end && compare(heap[left], heap[largest]) > 0) {
+                    largest = left;
+                }
+                if (right < end && compare(heap[right], heap[largest]) > 0) {
+                    largest = right;
+                }
+                if (largest == i) {
+                    return;
+                }
+                swap(i, largest);
+                i = largest;
+            }
+        }
+        
+        private void swap(int i, int j) {
+            int tmp = heap[i];
+            heap[i] = heap[j];
+            heap[j] = tmp;
+        }
+    }
+    
     // Getters
     
     public List<QueryCondition> getConditions() {
@@ -329,4 +592,12 @@ public class Query {
     public List<Aggregation> getAggregations() {
         return aggregations;
     }
+    
+    public List<GroupKey> getGroupKeys() {
+        return groupKeys;
+    }
+    
+    public Integer getMaxGroups() {
+        return maxGroups;
+    }
 }
@@ -153,10 +153,13 @@ public class QueryCondition {
     /**
      * Create a predicate from this condition.
      *
+     * The predicate is compiled for the operator and value, which makes it
+     * faster than {@link #matches(Map)} when evaluated on many rows.
+     *
      * @return Predicate that checks if a row matches this condition
      */
     public Predicate<Map<String, Object>> toPredicate() {
-        return this::matches;
+        return CompiledCondition.compile(this);
     }
     
     // Static factory methods for creating conditions
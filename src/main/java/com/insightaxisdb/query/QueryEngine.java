@@ -2,13 +2,23 @@ package com.insightaxisdb.query;
 
 import com.insightaxisdb.storage.Event;
 import com.insightaxisdb.storage.EventStore;
+import com.insightaxisdb.storage.ProfileColumnStore;
+import com.insightaxisdb.storage.ProfileIndex;
 import com.insightaxisdb.storage.UserProfile;
 import com.insightaxisdb.storage.UserProfileStore;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.DoubleSummaryStatistics;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -16,8 +26,12 @@ import java.util.stream.Collectors;
  */
 public class QueryEngine {
 
+    private static final Set<String> PROFILE_FIELDS = new HashSet<>(
+            Arrays.asList("userId", "firstSeenAt", "lastSeenAt", "eventCount"));
+
     private final UserProfileStore userProfileStore;
     private final EventStore eventStore;
+    private final AtomicInteger activeQueries = new AtomicInteger();
 
     /**
      * Create a new query engine.
@@ -30,29 +44,135 @@ public class QueryEngine {
         this.eventStore = eventStore;
     }
 
+    /**
+     * Get the number of queries currently running, which background
+     * maintenance uses to tell peak hours.
+     *
+     * @return Number of running queries
+     */
+    public int getActiveQueryCount() {
+        return activeQueries.get();
+    }
+
+    /**
+     * Run a query, counting it as active while it runs.
+     */
+    private QueryResult tracked(Supplier<QueryResult> query) {
+        activeQueries.incrementAndGet();
+        try {
+            return query.get();
+        } finally {
+            activeQueries.decrementAndGet();
+        }
+    }
+
     /**
      * Query user profiles.
      *
+     * Conditions on indexed properties, and equality or IN conditions on the
+     * user ID, narrow the profiles through the indexes first. Without a usable
+     * index, conditions on properties are evaluated on the profile columns and
+     * only the matching profiles are read. All conditions are still evaluated
+     * on the rows.
+     *
      * @param query Query to execute
      * @return Query result
      */
     public QueryResult queryUserProfiles(Query query) {
-        // Convert user profiles to rows
+        return tracked(() -> selectUserProfiles(query));
+    }
+
+    /**
+     * Query user profiles without counting the query as active.
+     */
+    private QueryResult selectUserProfiles(Query query) {
+        // Convert candidate user profiles to rows
         List<Map<String, Object>> rows = new ArrayList<>();
 
-        for (UserProfile profile : getAllUserProfiles()) {
-            Map<String, Object> row = new HashMap<>(profile.getProperties());
-            row.put("userId", profile.getUserId());
-            row.put("firstSeenAt", profile.getFirstSeenAt());
-            row.put("lastSeenAt", profile.getLastSeenAt());
-            row.put("eventCount", profile.getEventCount());
-            rows.add(row);
+        for (UserProfile profile : findCandidateProfiles(query.getConditions())) {
+            rows.add(toRow(profile));
         }
 
         // Execute query on rows
         return query.execute(rows);
     }
 
+    /**
+     * Aggregate user profiles without returning rows.
+     *
+     * Conditions and aggregations are computed on the profile columns, so no
+     * profile is read. Queries that refer to the profile fields (userId,
+     * firstSeenAt, lastSeenAt, eventCount) need the profile objects and run
+     * through {@link #queryUserProfiles(Query)} instead. Limit and offset do
+     * not apply, since no rows are returned. Grouped queries also run through
+     * {@link #queryUserProfiles(Query)} and return their group rows.
+     *
+     * @param query Query with the conditions and aggregations
+     * @return Query result with aggregations only, or the group rows of a grouped query
+     */
+    public QueryResult aggregateUserProfiles(Query query) {
+        return tracked(() -> aggregateProfileColumns(query));
+    }
+
+    /**
+     * Aggregate user profiles without counting the query as active.
+     */
+    private QueryResult aggregateProfileColumns(Query query) {
+        if (!query.getGroupKeys().isEmpty()) {
+            return selectUserProfiles(query);
+        }
+
+        boolean columnar = query.getConditions().stream()
+                .noneMatch(condition -> PROFILE_FIELDS.contains(condition.getField()))
+                && query.getAggregations().stream()
+                .allMatch(aggregation -> aggregation.getType() == Query.AggregationType.COUNT
+                        || !PROFILE_FIELDS.contains(aggregation.getField()));
+        if (!columnar) {
+            return new QueryResult(new ArrayList<>(), selectUserProfiles(query).getAggregations());
+        }
+
+        ProfileColumnStore columnStore = userProfileStore.getColumnStore();
+        BitSet rows = scanColumns(query.getConditions());
+        if (rows == null) {
+            rows = columnStore.all();
+        }
+
+        // Calculate aggregations on the columns
+        Map<String, Object> aggregationResults = new HashMap<>();
+        for (Query.Aggregation aggregation : query.getAggregations()) {
+            String alias = aggregation.getAlias();
+            if (aggregation.getType() == Query.AggregationType.COUNT) {
+                aggregationResults.put(alias, (long) rows.cardinality());
+                continue;
+            }
+            if (aggregation.getType() == Query.AggregationType.COUNT_DISTINCT) {
+                aggregationResults.put(alias, columnStore.countDistinct(aggregation.getField(), rows));
+                continue;
+            }
+
+            DoubleSummaryStatistics statistics = columnStore.summarize(aggregation.getField(), rows);
+            boolean empty = statistics.getCount() == 0;
+            switch (aggregation.getType()) {
+                case SUM:
+                    aggregationResults.put(alias, statistics.getSum());
+                    break;
+                case AVG:
+                    aggregationResults.put(alias, empty ? 0.0 : statistics.getAverage());
+                    break;
+                case MIN:
+                    aggregationResults.put(alias, empty ? 0.0 : statistics.getMin());
+                    break;
+                case MAX:
+                    aggregationResults.put(alias, empty ? 0.0 : statistics.getMax());
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        return new QueryResult(new ArrayList<>(), aggregationResults);
+    }
+
     /**
      * Query events.
      *
@@ -60,16 +180,18 @@ public class QueryEngine {
      * @return Query result
      */
     public QueryResult queryEvents(Query query) {
-        // Convert events to rows
+        return tracked(() -> selectEvents(query));
+    }
+
+    /**
+     * Query events without counting the query as active.
+     */
+    private QueryResult selectEvents(Query query) {
+        // Expose events as rows without copying their properties
         List<Map<String, Object>> rows = new ArrayList<>();
 
         for (Event event : getAllEvents()) {
-            Map<String, Object> row = new HashMap<>(event.getProperties());
-            row.put("eventId", event.getEventId());
-            row.put("eventName", event.getEventName());
-            row.put("userId", event.getUserId());
-            row.put("timestamp", event.getTimestamp());
-            rows.add(row);
+            rows.add(new EventRow(event));
         }
 
         // Execute query on rows
@@ -84,16 +206,18 @@ public class QueryEngine {
      * @return Query result
      */
     public QueryResult queryUserEvents(String userId, Query query) {
-        // Convert user events to rows
+        return tracked(() -> selectUserEvents(userId, query));
+    }
+
+    /**
+     * Query a user's events without counting the query as active.
+     */
+    private QueryResult selectUserEvents(String userId, Query query) {
+        // Expose user events as rows without copying their properties
         List<Map<String, Object>> rows = new ArrayList<>();
 
         for (Event event : eventStore.getUserEvents(userId)) {
-            Map<String, Object> row = new HashMap<>(event.getProperties());
-            row.put("eventId", event.getEventId());
-            row.put("eventName", event.getEventName());
-            row.put("userId", event.getUserId());
-            row.put("timestamp", event.getTimestamp());
-            rows.add(row);
+            rows.add(new EventRow(event));
         }
 
         // Execute query on rows
@@ -108,6 +232,13 @@ public class QueryEngine {
      * @return Query result
      */
     public QueryResult findUsersWithEvent(String eventName, Query query) {
+        return tracked(() -> selectUsersWithEvent(eventName, query));
+    }
+
+    /**
+     * Find users who performed an event without counting the query as active.
+     */
+    private QueryResult selectUsersWithEvent(String eventName, Query query) {
         // Find all events with the given name
         List<Event> events = eventStore.getEventsByName(eventName);
 
@@ -123,12 +254,7 @@ public class QueryEngine {
         for (String userId : userIds) {
             UserProfile profile = userProfileStore.getProfile(userId);
             if (profile != null) {
-                Map<String, Object> row = new HashMap<>(profile.getProperties());
-                row.put("userId", profile.getUserId());
-                row.put("firstSeenAt", profile.getFirstSeenAt());
-                row.put("lastSeenAt", profile.getLastSeenAt());
-                row.put("eventCount", profile.getEventCount());
-                rows.add(row);
+                rows.add(toRow(profile));
             }
         }
 
@@ -145,6 +271,13 @@ public class QueryEngine {
      * @return Query result
      */
     public QueryResult findUsersWithEventSequence(List<String> eventSequence, Long withinMillis, Query query) {
+        return tracked(() -> selectUsersWithEventSequence(eventSequence, withinMillis, query));
+    }
+
+    /**
+     * Find users who performed an event sequence without counting the query as active.
+     */
+    private QueryResult selectUsersWithEventSequence(List<String> eventSequence, Long withinMillis, Query query) {
         if (eventSequence.isEmpty()) {
             return new QueryResult(new ArrayList<>(), new HashMap<>());
         }
@@ -178,12 +311,7 @@ public class QueryEngine {
         for (String userId : matchingUserIds) {
             UserProfile profile = userProfileStore.getProfile(userId);
             if (profile != null) {
-                Map<String, Object> row = new HashMap<>(profile.getProperties());
-                row.put("userId", profile.getUserId());
-                row.put("firstSeenAt", profile.getFirstSeenAt());
-                row.put("lastSeenAt", profile.getLastSeenAt());
-                row.put("eventCount", profile.getEventCount());
-                rows.add(row);
+                rows.add(toRow(profile));
             }
         }
 
@@ -230,39 +358,157 @@ public class QueryEngine {
     }
 
     /**
-     * Get all user profiles.
+     * Get the profiles that may match a set of conditions, using indexes where possible.
      *
-     * @return List of all user profiles
+     * @param conditions Conditions, all of which must match
+     * @return Candidate profiles, or all profiles if no condition can use an index
      */
-    private List<UserProfile> getAllUserProfiles() {
-        List<UserProfile> profiles = new ArrayList<>();
+    private List<UserProfile> findCandidateProfiles(List<QueryCondition> conditions) {
+        // Intersect the index matches, starting from the most selective
+        Set<String> candidates = null;
+        for (QueryCondition condition : conditions) {
+            Set<String> matches = lookupIndex(condition);
+            if (matches == null) {
+                continue;
+            }
+            if (candidates == null) {
+                candidates = matches;
+            } else if (matches.size() < candidates.size()) {
+                matches.retainAll(candidates);
+                candidates = matches;
+            } else {
+                candidates.retainAll(matches);
+            }
+        }
+
+        // Without an index, filter on the profile columns
+        if (candidates == null) {
+            BitSet rows = scanColumns(conditions);
+            if (rows == null) {
+                return userProfileStore.getAllProfiles();
+            }
+            candidates = new HashSet<>(userProfileStore.getColumnStore().getUserIds(rows));
+        }
 
-        // For testing purposes, we'll just get profiles for users we know exist
-        for (int i = 1; i <= 10; i++) {
-            String userId = "user" + i;
+        List<UserProfile> profiles = new ArrayList<>(candidates.size());
+        for (String userId : candidates) {
             UserProfile profile = userProfileStore.getProfile(userId);
             if (profile != null) {
                 profiles.add(profile);
             }
         }
-
         return profiles;
     }
 
     /**
-     * Get all events.
+     * Evaluate the conditions on properties against the profile columns.
      *
-     * @return List of all events
+     * @param conditions Conditions, all of which must match
+     * @return Dense IDs of the matching profiles, or null if no condition is on a property
      */
-    private List<Event> getAllEvents() {
-        List<Event> events = new ArrayList<>();
+    private BitSet scanColumns(List<QueryCondition> conditions) {
+        ProfileColumnStore columnStore = userProfileStore.getColumnStore();
+        BitSet rows = null;
+        for (QueryCondition condition : conditions) {
+            if (PROFILE_FIELDS.contains(condition.getField())) {
+                continue;
+            }
 
-        // For testing purposes, we'll get events for users we know exist
-        for (int i = 1; i <= 10; i++) {
-            String userId = "user" + i;
-            events.addAll(eventStore.getUserEvents(userId));
+            BitSet matches = columnStore.scan(condition.getField(), new ColumnCondition(condition));
+            if (rows == null) {
+                rows = matches;
+            } else {
+                rows.and(matches);
+            }
         }
+        return rows;
+    }
 
-        return events;
+    /**
+     * Look up the users that may match a condition in a profile index.
+     *
+     * @param condition Condition
+     * @return Mutable set of candidate user IDs, or null if no index applies
+     */
+    private Set<String> lookupIndex(QueryCondition condition) {
+        String field = condition.getField();
+        Object value = condition.getValue();
+
+        // User IDs are the store's own key
+        if (field.equals("userId")) {
+            if (condition.getOperator() == QueryCondition.Operator.EQUALS && value instanceof String) {
+                return new HashSet<>(Collections.singleton((String) value));
+            }
+            if (condition.getOperator() == QueryCondition.Operator.IN && value instanceof List) {
+                Set<String> userIds = new HashSet<>();
+                for (Object userId : (List<?>) value) {
+                    if (userId instanceof String) {
+                        userIds.add((String) userId);
+                    }
+                }
+                return userIds;
+            }
+            return null;
+        }
+
+        // Profile fields shadow properties of the same name in rows
+        if (PROFILE_FIELDS.contains(field)) {
+            return null;
+        }
+
+        ProfileIndex index = userProfileStore.getIndex(field);
+        if (index == null) {
+            return null;
+        }
+
+        Set<String> matches;
+        switch (condition.getOperator()) {
+            case EQUALS:
+                matches = index.lookupEquals(value);
+                break;
+            case IN:
+                matches = value instanceof List ? index.lookupIn((List<?>) value) : Collections.emptySet();
+                break;
+            case GREATER_THAN:
+                matches = index.lookupRange(value, false, null, false);
+                break;
+            case GREATER_THAN_OR_EQUALS:
+                matches = index.lookupRange(value, true, null, false);
+                break;
+            case LESS_THAN:
+                matches = index.lookupRange(null, false, value, false);
+                break;
+            case LESS_THAN_OR_EQUALS:
+                matches = index.lookupRange(null, false, value, true);
+                break;
+            default:
+                matches = null;
+                break;
+        }
+        return matches != null ? new HashSet<>(matches) : null;
+    }
+
+    /**
+     * Convert a user profile to a query row.
+     *
+     * @param profile User profile
+     * @return Row with the profile's properties and fields
+     */
+    private Map<String, Object> toRow(UserProfile profile) {
+        Map<String, Object> row = new HashMap<>(profile.getProperties());
+        row.put("userId", profile.getUserId());
+        row.put("firstSeenAt", profile.getFirstSeenAt());
+        row.put("lastSeenAt", profile.getLastSeenAt());
+        row.put("eventCount", profile.getEventCount());
+        return row;
+    }
+
+    /**
+     * Get all events.
+     *
+     * @return List of all events
+     */
+    private List<Event> getAllEvents() {
+        return eventStore.getAllEvents();
     }
 }
@@ -2,6 +2,7 @@ package com.insightaxisdb.segmentation;
 
 import com.insightaxisdb.storage.Event;
 import com.insightaxisdb.storage.EventStore;
+import com.insightaxisdb.storage.EventStoreSnapshot;
 import com.insightaxisdb.storage.UserProfile;
 import com.insightaxisdb.storage.UserProfileStore;
 
@@ -56,10 +57,9 @@ public class CohortAnalysis {
         // Calculate start time for analysis
         long startTime = currentTime - (numPeriods * periodLength);
         
-        // Get all user profiles
-        // In a real implementation, we would need a way to get all profiles from the store
-        // For now, we'll just use a placeholder
-        List<UserProfile> profiles = new ArrayList<>();
+        // Get all user profiles as of now, so profiles created during the
+        // analysis do not change the cohorts
+        List<UserProfile> profiles = userProfileStore.snapshot().getAllProfiles();
         
         // Group users by acquisition period
         Map<Integer, List<String>> cohorts = new HashMap<>();
@@ -87,38 +87,42 @@ public class CohortAnalysis {
         // Calculate retention for each cohort
         int[][] retentionMatrix = new int[numPeriods][numPeriods];
         
-        for (int cohortIndex = 0; cohortIndex < numPeriods; cohortIndex++) {
-            List<String> cohortUsers = cohorts.getOrDefault(cohortIndex, Collections.emptyList());
-            
-            if (cohortUsers.isEmpty()) {
-                continue;
-            }
-            
-            // Set cohort size
-            retentionMatrix[cohortIndex][0] = cohortUsers.size();
-            
-            // Calculate retention for each period
-            for (int periodIndex = 1; periodIndex < numPeriods - cohortIndex; periodIndex++) {
-                long periodStart = startTime + (cohortIndex + periodIndex) * periodLength;
-                long periodEnd = periodStart + periodLength;
+        // Events are read from a snapshot, so ingestion carries on meanwhile
+        try (EventStoreSnapshot events = eventStore.snapshot()) {
+            for (int cohortIndex = 0; cohortIndex < numPeriods; cohortIndex++) {
+                List<String> cohortUsers = cohorts.getOrDefault(cohortIndex, Collections.emptyList());
                 
-                // Count users who performed the target event in this period
-                int activeUsers = 0;
+                if (cohortUsers.isEmpty()) {
+                    continue;
+                }
+                
+                // Set cohort size
+                retentionMatrix[cohortIndex][0] = cohortUsers.size();
                 
-                for (String userId : cohortUsers) {
-                    List<Event> userEvents = eventStore.getUserEventsByName(userId, targetEventName);
+                // Calculate retention for each period
+                for (int periodIndex = 1; periodIndex < numPeriods - cohortIndex; periodIndex++) {
+                    long periodStart = startTime + (cohortIndex + periodIndex) * periodLength;
+                    long periodEnd = periodStart + periodLength;
                     
-                    boolean activeInPeriod = userEvents.stream()
-                            .anyMatch(event -> event.getTimestamp() >= periodStart && 
-                                              event.getTimestamp() < periodEnd);
+                    // Count users who performed the target event in this period
+                    int activeUsers = 0;
                     
-                    if (activeInPeriod) {
-                        activeUsers++;
+                    for (String userId : cohortUsers) {
+                        List<Event> userEvents = events.getUserEventsByName(userId, targetEventName);
+                        
+                        boolean activeInPeriod = userEvents.stream()
+                                .anyMatch(event -> event.getTimestamp() >= periodStart && 
+                                                  event.getTimestamp() < periodEnd);
+                        
+                        if (activeInPeriod) {
+                            activeUsers++;
+                        }
                     }
+                    
+                    retentionMatrix[cohortIndex][periodIndex] = activeUsers;
                 }
-                
-                retentionMatrix[cohortIndex][periodIndex] = activeUsers;
             }
+            
         }
         
         // Calculate retention percentages
@@ -2,10 +2,12 @@ package com.insightaxisdb.segmentation;
 
 import com.insightaxisdb.storage.Event;
 import com.insightaxisdb.storage.EventStore;
+import com.insightaxisdb.storage.EventStoreSnapshot;
 import com.insightaxisdb.storage.UserProfile;
 import com.insightaxisdb.storage.UserProfileStore;
 
 import java.util.*;
+import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
 /**
@@ -46,42 +48,25 @@ public class RFMAnalysis {
         long currentTime = System.currentTimeMillis();
         long recencyCutoff = currentTime - (recencyDays * 24 * 60 * 60 * 1000L);
 
-        // Get all purchase events
-        List<Event> purchaseEvents = eventStore.getEventsByName(purchaseEventName);
-
-        // Group events by user
-        Map<String, List<Event>> eventsByUser = purchaseEvents.stream()
-                .collect(Collectors.groupingBy(Event::getUserId));
+        // Aggregate purchases per user in a single parallel scan of a snapshot,
+        // without materializing the purchase events or holding up ingestion
+        Map<String, RFMAccumulator> accumulators;
+        try (EventStoreSnapshot events = eventStore.snapshot()) {
+            accumulators = events
+                    .streamEvents(purchaseEventName, Long.MIN_VALUE, Long.MAX_VALUE, null, true)
+                    .collect(Collectors.groupingBy(Event::getUserId,
+                            Collector.of(RFMAccumulator::new, RFMAccumulator::add, RFMAccumulator::merge)));
+        }
 
         // Calculate raw RFM values for each user
         Map<String, RFMValues> rfmValuesByUser = new HashMap<>();
 
-        for (Map.Entry<String, List<Event>> entry : eventsByUser.entrySet()) {
-            String userId = entry.getKey();
-            List<Event> userEvents = entry.getValue();
-
-            // Calculate recency (time since last purchase)
-            long lastPurchaseTime = userEvents.stream()
-                    .mapToLong(Event::getTimestamp)
-                    .max()
-                    .orElse(0);
-            long recency = currentTime - lastPurchaseTime;
-
-            // Calculate frequency (number of purchases)
-            int frequency = userEvents.size();
-
-            // Calculate monetary value (total amount spent)
-            double monetary = userEvents.stream()
-                    .mapToDouble(event -> {
-                        Object value = event.getProperties().get(monetaryValueField);
-                        if (value instanceof Number) {
-                            return ((Number) value).doubleValue();
-                        }
-                        return 0.0;
-                    })
-                    .sum();
-
-            rfmValuesByUser.put(userId, new RFMValues(recency, frequency, monetary));
+        for (Map.Entry<String, RFMAccumulator> entry : accumulators.entrySet()) {
+            RFMAccumulator accumulator = entry.getValue();
+
+            // Recency is the time since the last purchase
+            long recency = currentTime - accumulator.lastPurchaseTime;
+            rfmValuesByUser.put(entry.getKey(), new RFMValues(recency, accumulator.frequency, accumulator.monetary));
         }
 
         // Calculate RFM scores
@@ -363,6 +348,32 @@ public class RFMAnalysis {
         }
     }
 
+    /**
+     * Running RFM totals for one user during a scan.
+     */
+    private class RFMAccumulator {
+        private long lastPurchaseTime = 0;
+        private int frequency = 0;
+        private double monetary = 0.0;
+
+        void add(Event event) {
+            lastPurchaseTime = Math.max(lastPurchaseTime, event.getTimestamp());
+            frequency++;
+
+            Object value = event.getProperties().get(monetaryValueField);
+            if (value instanceof Number) {
+                monetary += ((Number) value).doubleValue();
+            }
+        }
+
+        RFMAccumulator merge(RFMAccumulator other) {
+            lastPurchaseTime = Math.max(lastPurchaseTime, other.lastPurchaseTime);
+            frequency += other.frequency;
+            monetary += other.monetary;
+            return this;
+        }
+    }
+
     /**
      * RFM score for a user.
      */
@@ -0,0 +1,884 @@
+package com.insightaxisdb.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Incremental checkpoints of the profile and event stores.
+ *
+ * A checkpoint writes only what changed since the previous one: the changed
+ * profiles to {@code profiles/delta-<n>.prof}, a {@link ProfileSnapshotFile}
+ * sorted by user ID with a deletion record for each deleted profile, and the
+ * new events to {@code events/delta-<n>.ncf}, followed by a removal record for
+ * each event the per-user cap removed. Delta files are never modified.
+ * The MANIFEST lists the live ones in order, along with the first write-ahead
+ * log segment they do not cover; it is replaced atomically once the new files
+ * are synced, so a crash during a checkpoint only leaves unlisted files behind,
+ * which are deleted on the next open.
+ *
+ * Once a store has more delta files than the merge threshold, the newest ones
+ * are merged: starting from the newest file, each older file is taken as long
+ * as it is no larger than the files taken so far. Small deltas are merged often
+ * and large ones rarely, so a record is rewritten a logarithmic number of times.
+ * Merges write their output while checkpoints go on, and only take the lock
+ * to update the manifest. Profile files are merged in one streaming pass over
+ * the sorted inputs; the latest record of a user wins, and deletion records
+ * are dropped once no older file is left for them to shadow.
+ *
+ * Since delta files are immutable, a backup is a set of hard links to the
+ * live ones plus a manifest listing them. Events that checkpoints leave out
+ * because their segment was sealed are in the cold tier's segment files, which
+ * a backup links alongside.
+ */
+public class CheckpointStore {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final int RESTORE_BATCH_SIZE = 1024;
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final String FILE_PREFIX = "delta-";
+    private static final String PROFILE_SUFFIX = ".prof";
+    private static final String EVENT_SUFFIX = ".ncf";
+    private static final List<String> EVENT_COLUMNS =
+            Arrays.asList("eventId", "eventName", "userId", "timestamp", "properties");
+    private static final String REMOVED_COLUMN = "removed";
+
+    private final File directory;
+    private final File profilesDirectory;
+    private final File eventsDirectory;
+    private final int mergeThreshold;
+    private final IoThrottle throttle;
+    private final Object mergeLock = new Object();
+    private final List<DeltaFile> profileFiles = new ArrayList<>();
+    private final List<DeltaFile> eventFiles = new ArrayList<>();
+    private long nextFileId = 1;
+    private long writeAheadLogSegmentId = 0;
+
+    /**
+     * Open the checkpoints in a directory, creating it if needed.
+     *
+     * @param directory Data directory
+     * @param mergeThreshold Number of delta files per store above which the newest are merged
+     */
+    public CheckpointStore(File directory, int mergeThreshold) throws IOException {
+        this(directory, mergeThreshold, IoThrottle.UNLIMITED);
+    }
+
+    /**
+     * Open the checkpoints in a directory, creating it if needed.
+     *
+     * @param directory Data directory
+     * @param mergeThreshold Number of delta files per store above which the newest are merged
+     * @param throttle Throttle for the checkpoint and merge writes
+     */
+    public CheckpointStore(File directory, int mergeThreshold, IoThrottle throttle) throws IOException {
+        if (mergeThreshold < 1) {
+            throw new IllegalArgumentException("Merge threshold must be positive: " + mergeThreshold);
+        }
+
+        this.directory = directory;
+        this.profilesDirectory = new File(directory, "profiles");
+        this.eventsDirectory = new File(directory, "events");
+        this.mergeThreshold = mergeThreshold;
+        this.throttle = throttle;
+
+        for (File dir : new File[] {directory, profilesDirectory, eventsDirectory}) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create checkpoint directory: " + dir);
+            }
+        }
+
+        readManifest();
+        deleteUnlisted(profilesDirectory, PROFILE_SUFFIX, profileFiles);
+        deleteUnlisted(eventsDirectory, EVENT_SUFFIX, eventFiles);
+    }
+
+    /**
+     * Write a checkpoint of the changes in the given deltas.
+     *
+     * The deltas are only read; the caller commits them once this returns.
+     *
+     * @param profiles Profiles changed since the last checkpoint
+     * @param events Events stored since the last checkpoint
+     * @param writeAheadLogSegmentId First write-ahead log segment not covered by the checkpoint
+     * @return Whether anything was written
+     */
+    public synchronized boolean write(ProfileDelta profiles, EventDelta events, long writeAheadLogSegmentId)
+            throws IOException {
+        List<DeltaFile> newProfileFiles = new ArrayList<>(profileFiles);
+        List<DeltaFile> newEventFiles = new ArrayList<>(eventFiles);
+
+        if (!profiles.isEmpty()) {
+            List<ProfileSnapshotFile.Record> records = new ArrayList<>();
+            for (UserProfile profile : profiles.getProfiles()) {
+                records.add(ProfileSnapshotFile.Record.of(profile));
+            }
+            for (String userId : profiles.getDeletedUserIds()) {
+                records.add(ProfileSnapshotFile.Record.deletion(userId));
+            }
+            records.sort(Comparator.comparing(ProfileSnapshotFile.Record::getUserId));
+            newProfileFiles.add(writeProfileFile(records.iterator()));
+        }
+
+        if (!events.isEmpty()) {
+            DeltaFile file = writeEventFile(events::forEach, events.getRemovals());
+            if (file != null) {
+                newEventFiles.add(file);
+            }
+        }
+
+        if (newProfileFiles.size() == profileFiles.size() && newEventFiles.size() == eventFiles.size()) {
+            return false;
+        }
+        writeManifest(newProfileFiles, newEventFiles, writeAheadLogSegmentId);
+        return true;
+    }
+
+    /**
+     * Drop expired event files and merge the newest delta files of a store
+     * that has more than the merge threshold.
+     *
+     * The merged files are written without holding up checkpoints, which may
+     * add newer files meanwhile; only the manifest update excludes them.
+     *
+     * @param eventCutoffTime Events before this time are dropped (Unix timestamp)
+     * @return Number of delta files replaced
+     */
+    public int merge(long eventCutoffTime) throws IOException {
+        synchronized (mergeLock) {
+            List<DeltaFile> currentProfileFiles = getProfileFiles();
+            List<DeltaFile> currentEventFiles = getEventFiles();
+            List<DeltaFile> obsolete = new ArrayList<>();
+
+            for (DeltaFile file : currentEventFiles) {
+                if (file.maxTimestamp < eventCutoffTime) {
+                    obsolete.add(file);
+                }
+            }
+            currentEventFiles.removeAll(obsolete);
+
+            List<DeltaFile> mergedProfileFiles = new ArrayList<>();
+            DeltaFile profileFile = null;
+            if (currentProfileFiles.size() > mergeThreshold) {
+                mergedProfileFiles.addAll(currentProfileFiles.subList(mergeStart(currentProfileFiles),
+                        currentProfileFiles.size()));
+                // Files added meanwhile are newer, so deletions in a run reaching the oldest file shadow nothing
+                profileFile = mergeProfileFiles(mergedProfileFiles,
+                        mergedProfileFiles.size() == currentProfileFiles.size());
+            }
+
+            List<DeltaFile> mergedEventFiles = new ArrayList<>();
+            DeltaFile eventFile = null;
+            if (currentEventFiles.size() > mergeThreshold) {
+                mergedEventFiles.addAll(currentEventFiles.subList(mergeStart(currentEventFiles),
+                        currentEventFiles.size()));
+                // Events removed later in the run are dropped; the removals stay for older files and the cold tier
+                List<List<Event>> events = new ArrayList<>();
+                List<EventDelta.Removal> removals = new ArrayList<>();
+                Map<EventId, Integer> removedIn = new HashMap<>();
+                for (DeltaFile source : mergedEventFiles) {
+                    int index = events.size();
+                    List<Event> fileEvents = new ArrayList<>();
+                    readEvents(source, event -> {
+                        if (event.getTimestamp() >= eventCutoffTime) {
+                            fileEvents.add(event);
+                        }
+                    }, removal -> {
+                        if (removal.getTimestamp() >= eventCutoffTime) {
+                            removals.add(removal);
+                            removedIn.put(removal.getEventId(), index);
+                        }
+                    });
+                    events.add(fileEvents);
+                }
+                eventFile = writeEventFile(consumer -> {
+                    for (int i = 0; i < events.size(); i++) {
+                        for (Event event : events.get(i)) {
+                            if (removedIn.getOrDefault(event.getId(), -1) < i) {
+                                consumer.accept(event);
+                            }
+                        }
+                    }
+                }, removals);
+            }
+
+            obsolete.addAll(mergedProfileFiles);
+            obsolete.addAll(mergedEventFiles);
+            if (obsolete.isEmpty()) {
+                return 0;
+            }
+
+            synchronized (this) {
+                List<DeltaFile> newEventFiles = new ArrayList<>(eventFiles);
+                newEventFiles.removeIf(file -> file.maxTimestamp < eventCutoffTime && obsolete.contains(file));
+                writeManifest(replaceRun(profileFiles, mergedProfileFiles, profileFile),
+                        replaceRun(newEventFiles, mergedEventFiles, eventFile), writeAheadLogSegmentId);
+            }
+            for (DeltaFile file : obsolete) {
+                file(file).delete();
+            }
+            return obsolete.size();
+        }
+    }
+
+    /**
+     * Restore the checkpointed profiles into a store on the calling thread.
+     *
+     * @param store Profile store
+     * @return Number of profile records applied
+     */
+    public long restoreProfiles(UserProfileStore store) throws IOException {
+        return restoreProfiles(store, Runnable::run, new RecoveryProgress());
+    }
+
+    /**
+     * Restore the checkpointed profiles into a store.
+     *
+     * Files are applied oldest first, so later records win. A file holds at
+     * most one record per user, so each file is mapped and its index split
+     * into ranges that are decoded and applied in parallel on the executor.
+     *
+     * @param store Profile store
+     * @param executor Executor for the batches
+     * @param progress Progress to report to
+     * @return Number of profile records applied
+     */
+    public long restoreProfiles(UserProfileStore store, Executor executor, RecoveryProgress progress)
+            throws IOException {
+        List<DeltaFile> files = getProfileFiles();
+        progress.addFiles(files.size(), totalBytes(files));
+
+        long count = 0;
+        for (DeltaFile file : files) {
+            try (ProfileSnapshotFile.Reader reader = new ProfileSnapshotFile.Reader(file(file))) {
+                List<CompletableFuture<Long>> tasks = new ArrayList<>();
+                for (int from = 0; from < reader.getRecordCount(); from += RESTORE_BATCH_SIZE) {
+                    int to = Math.min(from + RESTORE_BATCH_SIZE, reader.getRecordCount());
+                    tasks.add(submitProfiles(store, reader, from, to, executor, progress));
+                }
+                count += await(tasks);
+            }
+            progress.fileLoaded(file.bytes);
+        }
+        return count;
+    }
+
+    /**
+     * Restore the checkpointed events into a store on the calling thread.
+     *
+     * @param store Event store
+     * @return Number of events stored
+     */
+    public long restoreEvents(EventStore store) throws IOException {
+        return restoreEvents(store, Runnable::run, new RecoveryProgress());
+    }
+
+    /**
+     * Restore the checkpointed events into a store.
+     *
+     * Event files are independent of each other, so each is read on the
+     * executor and inserted through the store's batch path. The removal
+     * records of all files are read first: an event is skipped if a removal
+     * in its own or a later file names it, whatever order the files load in,
+     * and the removals are then applied to the store's cold tier.
+     *
+     * @param store Event store
+     * @param executor Executor for the files
+     * @param progress Progress to report to
+     * @return Number of events stored
+     */
+    public long restoreEvents(EventStore store, Executor executor, RecoveryProgress progress) throws IOException {
+        List<DeltaFile> files = getEventFiles();
+        progress.addFiles(files.size(), totalBytes(files));
+
+        List<EventDelta.Removal> removals = new ArrayList<>();
+        Map<EventId, Integer> removedIn = new HashMap<>();
+        for (int i = 0; i < files.size(); i++) {
+            int index = i;
+            readRemovals(files.get(i), removal -> {
+                removals.add(removal);
+                removedIn.put(removal.getEventId(), index);
+            });
+        }
+
+        List<CompletableFuture<Long>> tasks = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            DeltaFile file = files.get(i);
+            int index = i;
+            tasks.add(CompletableFuture.supplyAsync(
+                    () -> restoreEventFile(store, file, index, removedIn, progress), executor));
+        }
+        long stored = await(tasks);
+
+        if (!removals.isEmpty()) {
+            store.replayRemovals(removals);
+        }
+        return stored;
+    }
+
+    /**
+     * Get the first write-ahead log segment not covered by the checkpoints.
+     *
+     * @return Segment ID, or 0 if no checkpoint recorded one
+     */
+    public synchronized long getWriteAheadLogSegmentId() {
+        return writeAheadLogSegmentId;
+    }
+
+    /**
+     * Get the number of live profile delta files.
+     *
+     * @return Number of files
+     */
+    public synchronized int getProfileFileCount() {
+        return profileFiles.size();
+    }
+
+    /**
+     * Get the number of live event delta files.
+     *
+     * @return Number of files
+     */
+    public synchronized int getEventFileCount() {
+        return eventFiles.size();
+    }
+
+    /**
+     * Back up the checkpoints by linking the live delta files into a directory.
+     *
+     * Delta files are never modified, so hard links to them are a consistent
+     * copy that costs neither space nor data I/O; merges that delete the
+     * originals later only drop one of the links. Files on another file system
+     * than the target are copied instead. The backup gets a manifest of its
+     * own that covers no write-ahead log segment, so the backup directory is a
+     * data directory that can be opened as it is.
+     *
+     * @param target Backup directory, created if needed; must not hold a checkpoint already
+     * @return Statistics of the backup: files, bytes and files copied rather than linked
+     */
+    public synchronized Map<String, Object> backup(File target) throws IOException {
+        return backup(target, Collections.emptyList());
+    }
+
+    /**
+     * Back up the checkpoints together with the segment files of the cold tier.
+     *
+     * The segment files are linked into {@code cold/} under the target before
+     * the manifest is written, so a backup with a manifest is complete.
+     *
+     * @param target Backup directory, created if needed; must not hold a checkpoint already
+     * @param coldFiles Segment files of the cold tier
+     * @return Statistics of the backup: files, bytes and files copied rather than linked
+     */
+    public synchronized Map<String, Object> backup(File target, List<File> coldFiles) throws IOException {
+        return linkCheckpoint(profileFiles, eventFiles, profilesDirectory, eventsDirectory, coldFiles,
+                nextFileId, target);
+    }
+
+    /**
+     * Restore a backup into a data directory by linking its delta files and
+     * cold tier segment files.
+     *
+     * The backup is left unchanged, so it can be restored again. Open a
+     * CheckpointStore on the directory afterwards to read the checkpoints.
+     *
+     * @param backup Backup directory written by {@link #backup(File)}
+     * @param target Data directory, created if needed; must not hold a checkpoint already
+     * @return Statistics of the restore: files, bytes and files copied rather than linked
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> restoreBackup(File backup, File target) throws IOException {
+        File file = new File(backup, MANIFEST_FILE);
+        if (!file.isFile()) {
+            throw new IOException("Not a checkpoint backup: " + backup);
+        }
+
+        Map<String, Object> manifest = objectMapper.readValue(file, Map.class);
+        List<DeltaFile> backupProfileFiles = new ArrayList<>();
+        for (Map<String, Object> entry : (List<Map<String, Object>>) manifest.get("profileFiles")) {
+            backupProfileFiles.add(DeltaFile.fromMap(entry));
+        }
+        List<DeltaFile> backupEventFiles = new ArrayList<>();
+        for (Map<String, Object> entry : (List<Map<String, Object>>) manifest.get("eventFiles")) {
+            backupEventFiles.add(DeltaFile.fromMap(entry));
+        }
+        List<File> backupColdFiles = new ArrayList<>();
+        File[] files = new File(backup, "cold").listFiles();
+        if (files != null) {
+            for (File coldFile : files) {
+                if (ColdSegment.isSegmentFile(coldFile)) {
+                    backupColdFiles.add(coldFile);
+                }
+            }
+        }
+        return linkCheckpoint(backupProfileFiles, backupEventFiles, new File(backup, "profiles"),
+                new File(backup, "events"), backupColdFiles, ((Number) manifest.get("nextFileId")).longValue(),
+                target);
+    }
+
+    /**
+     * Link delta files and cold tier segment files into another directory and
+     * list the delta files in a new manifest there.
+     */
+    private static Map<String, Object> linkCheckpoint(List<DeltaFile> linkedProfileFiles,
+                                                      List<DeltaFile> linkedEventFiles,
+                                                      File sourceProfilesDirectory, File sourceEventsDirectory,
+                                                      List<File> coldFiles, long nextFileId, File target)
+            throws IOException {
+        File targetProfilesDirectory = new File(target, "profiles");
+        File targetEventsDirectory = new File(target, "events");
+        File targetColdDirectory = new File(target, "cold");
+        if (new File(target, MANIFEST_FILE).exists()) {
+            throw new IOException("Directory already holds a checkpoint: " + target);
+        }
+        for (File dir : new File[] {target, targetProfilesDirectory, targetEventsDirectory, targetColdDirectory}) {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create checkpoint directory: " + dir);
+            }
+        }
+
+        long bytes = 0;
+        int copied = 0;
+        for (DeltaFile file : linkedProfileFiles) {
+            copied += linkOrCopy(new File(sourceProfilesDirectory, file.name),
+                    new File(targetProfilesDirectory, file.name)) ? 0 : 1;
+            bytes += file.bytes;
+        }
+        for (DeltaFile file : linkedEventFiles) {
+            copied += linkOrCopy(new File(sourceEventsDirectory, file.name),
+                    new File(targetEventsDirectory, file.name)) ? 0 : 1;
+            bytes += file.bytes;
+        }
+        for (File file : coldFiles) {
+            copied += linkOrCopy(file, new File(targetColdDirectory, file.getName())) ? 0 : 1;
+            bytes += file.length();
+        }
+        // Listed last, so an interrupted link leaves only unlisted files behind
+        writeManifestFile(target, nextFileId, linkedProfileFiles, linkedEventFiles, 0);
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("files", linkedProfileFiles.size() + linkedEventFiles.size() + coldFiles.size());
+        stats.put("bytes", bytes);
+        stats.put("copiedFiles", copied);
+        return stats;
+    }
+
+    /**
+     * Hard-link a file, or copy it where links are not possible.
+     *
+     * @return Whether the file was linked
+     */
+    private static boolean linkOrCopy(File source, File target) throws IOException {
+        // Left behind by an interrupted backup
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return true;
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            Files.copy(source.toPath(), target.toPath());
+            return false;
+        }
+    }
+
+    private synchronized List<DeltaFile> getProfileFiles() {
+        return new ArrayList<>(profileFiles);
+    }
+
+    private synchronized List<DeltaFile> getEventFiles() {
+        return new ArrayList<>(eventFiles);
+    }
+
+    private static CompletableFuture<Long> submitProfiles(UserProfileStore store, ProfileSnapshotFile.Reader reader,
+                                                         int from, int to, Executor executor,
+                                                         RecoveryProgress progress) {
+        return CompletableFuture.supplyAsync(() -> {
+            reader.read(from, to, record -> {
+                if (record.isDeleted()) {
+                    store.replayProfileDelete(record.getUserId());
+                } else {
+                    store.restoreProfile(record.getUserId(), record.getProperties(), record.getFirstSeenAt(),
+                            record.getLastSeenAt());
+                }
+            });
+            progress.addProfiles(to - from);
+            return (long) (to - from);
+        }, executor);
+    }
+
+    private long restoreEventFile(EventStore store, DeltaFile file, int index, Map<EventId, Integer> removedIn,
+                                  RecoveryProgress progress) {
+        List<Event> batch = new ArrayList<>(RESTORE_BATCH_SIZE);
+        long[] stored = {0};
+        try {
+            readEvents(file, event -> {
+                if (!removedIn.isEmpty() && removedIn.getOrDefault(event.getId(), -1) >= index) {
+                    return;
+                }
+                batch.add(event);
+                if (batch.size() == RESTORE_BATCH_SIZE) {
+                    stored[0] += store.replayEvents(batch);
+                    batch.clear();
+                }
+            }, removal -> { });
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read checkpoint file: " + file(file), e);
+        }
+        stored[0] += store.replayEvents(batch);
+
+        progress.addEvents(stored[0]);
+        progress.fileLoaded(file.bytes);
+        return stored[0];
+    }
+
+    /**
+     * Wait for all tasks, then sum their results or rethrow the first failure.
+     */
+    static long await(List<CompletableFuture<Long>> tasks) throws IOException {
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // Reported below, in task order
+        }
+
+        long total = 0;
+        for (CompletableFuture<Long> task : tasks) {
+            try {
+                total += task.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                throw e;
+            }
+        }
+        return total;
+    }
+
+    private static long totalBytes(List<DeltaFile> files) {
+        long bytes = 0;
+        for (DeltaFile file : files) {
+            bytes += file.bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Put a merged file in place of the run of files it replaces, keeping the files around it in order.
+     */
+    private static List<DeltaFile> replaceRun(List<DeltaFile> files, List<DeltaFile> run, DeltaFile merged) {
+        List<DeltaFile> result = new ArrayList<>();
+        boolean placed = false;
+        for (DeltaFile file : files) {
+            if (!run.contains(file)) {
+                result.add(file);
+            } else if (!placed) {
+                if (merged != null) {
+                    result.add(merged);
+                }
+                placed = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Find where the merged run of files starts, taking at least the newest two.
+     */
+    private static int mergeStart(List<DeltaFile> files) {
+        int start = files.size() - 1;
+        long taken = files.get(start).bytes;
+        while (start > 0 && files.get(start - 1).bytes <= taken) {
+            start--;
+            taken += files.get(start).bytes;
+        }
+        return Math.min(start, files.size() - 2);
+    }
+
+    private DeltaFile mergeProfileFiles(List<DeltaFile> files, boolean dropDeletions) throws IOException {
+        List<ProfileSnapshotFile.Reader> readers = new ArrayList<>();
+        try {
+            for (DeltaFile file : files) {
+                readers.add(new ProfileSnapshotFile.Reader(file(file)));
+            }
+            return writeProfileFile(ProfileSnapshotFile.merge(readers, dropDeletions));
+        } finally {
+            for (ProfileSnapshotFile.Reader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Write sorted profile records to a new profile delta file.
+     *
+     * @return Written file, or null if there were no records
+     */
+    private DeltaFile writeProfileFile(Iterator<ProfileSnapshotFile.Record> records) throws IOException {
+        String name = nextFileName(PROFILE_SUFFIX);
+        File file = new File(profilesDirectory, name);
+        if (ProfileSnapshotFile.write(file, records, throttle) == 0) {
+            file.delete();
+            return null;
+        }
+        return new DeltaFile(name, file.length(), Long.MAX_VALUE);
+    }
+
+    /**
+     * Write the events produced by a source, then removal records, to a new event delta file.
+     *
+     * A removal record has the event's ID, user and timestamp, no name or
+     * properties, and the removed flag set.
+     *
+     * @return Written file, or null if there were neither events nor removals
+     */
+    private DeltaFile writeEventFile(Consumer<Consumer<Event>> source, List<EventDelta.Removal> removals)
+            throws IOException {
+        NCF.Writer writer = new NCF.Writer("lz4");
+        writer.addColumn("eventId", DataType.STRING);
+        writer.addColumn("eventName", DataType.STRING);
+        writer.addColumn("userId", DataType.STRING);
+        writer.addColumn("timestamp", DataType.INTEGER);
+        writer.addColumn("properties", DataType.OBJECT);
+        writer.addColumn(REMOVED_COLUMN, DataType.BOOLEAN);
+
+        long[] count = {0};
+        long[] maxTimestamp = {Long.MIN_VALUE};
+        source.accept(event -> {
+            Map<String, Object> row = new HashMap<>();
+            row.put("eventId", event.getEventId());
+            row.put("eventName", event.getEventName());
+            row.put("userId", event.getUserId());
+            row.put("timestamp", event.getTimestamp());
+            row.put("properties", event.getProperties());
+            writer.addRow(row);
+
+            count[0]++;
+            maxTimestamp[0] = Math.max(maxTimestamp[0], event.getTimestamp());
+        });
+        for (EventDelta.Removal removal : removals) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("eventId", removal.getEventId().toString());
+            row.put("userId", removal.getUserId());
+            row.put("timestamp", removal.getTimestamp());
+            row.put(REMOVED_COLUMN, true);
+            writer.addRow(row);
+
+            count[0]++;
+            maxTimestamp[0] = Math.max(maxTimestamp[0], removal.getTimestamp());
+        }
+        if (count[0] == 0) {
+            return null;
+        }
+
+        String name = nextFileName(EVENT_SUFFIX);
+        File file = new File(eventsDirectory, name);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // The writer issues the whole file as one gathering write, so it is paced as a whole before the sync
+            throttle.acquire(writer.write(channel));
+            channel.force(true);
+        }
+        return new DeltaFile(name, file.length(), maxTimestamp[0]);
+    }
+
+    /**
+     * Read the events and removal records of an event delta file.
+     */
+    @SuppressWarnings("unchecked")
+    private void readEvents(DeltaFile file, Consumer<Event> consumer, Consumer<EventDelta.Removal> removals)
+            throws IOException {
+        try (NCF.Reader reader = new NCF.Reader(file(file))) {
+            // Files written before removal records have no removed column
+            List<String> names = new ArrayList<>(EVENT_COLUMNS);
+            boolean hasRemovals = reader.getColumns().containsKey(REMOVED_COLUMN);
+            if (hasRemovals) {
+                names.add(REMOVED_COLUMN);
+            }
+            Map<String, List<Object>> columns = reader.readColumns(names);
+            List<Object> eventIds = columns.get("eventId");
+            List<Object> eventNames = columns.get("eventName");
+            List<Object> users = columns.get("userId");
+            List<Object> timestamps = columns.get("timestamp");
+            List<Object> properties = columns.get("properties");
+            List<Object> removed = columns.get(REMOVED_COLUMN);
+
+            for (int i = 0; i < eventIds.size(); i++) {
+                if (hasRemovals && Boolean.TRUE.equals(removed.get(i))) {
+                    removals.accept(new EventDelta.Removal(EventId.fromString((String) eventIds.get(i)),
+                            (String) users.get(i), (Long) timestamps.get(i)));
+                    continue;
+                }
+                consumer.accept(new Event((String) eventNames.get(i), (String) users.get(i),
+                        (Map<String, Object>) properties.get(i), (Long) timestamps.get(i),
+                        (String) eventIds.get(i)));
+            }
+        }
+    }
+
+    /**
+     * Read only the removal records of an event delta file.
+     */
+    private void readRemovals(DeltaFile file, Consumer<EventDelta.Removal> removals) throws IOException {
+        try (NCF.Reader reader = new NCF.Reader(file(file))) {
+            if (!reader.getColumns().containsKey(REMOVED_COLUMN)) {
+                return;
+            }
+            List<Object> removed = reader.readColumn(REMOVED_COLUMN);
+            if (!removed.contains(Boolean.TRUE)) {
+                return;
+            }
+
+            Map<String, List<Object>> columns = reader.readColumns(Arrays.asList("eventId", "userId", "timestamp"));
+            List<Object> eventIds = columns.get("eventId");
+            List<Object> users = columns.get("userId");
+            List<Object> timestamps = columns.get("timestamp");
+            for (int i = 0; i < removed.size(); i++) {
+                if (Boolean.TRUE.equals(removed.get(i))) {
+                    removals.accept(new EventDelta.Removal(EventId.fromString((String) eventIds.get(i)),
+                            (String) users.get(i), (Long) timestamps.get(i)));
+                }
+            }
+        }
+    }
+
+    private synchronized String nextFileName(String suffix) {
+        return FILE_PREFIX + String.format("%06d", nextFileId++) + suffix;
+    }
+
+    private File file(DeltaFile file) {
+        return new File(file.name.endsWith(PROFILE_SUFFIX) ? profilesDirectory : eventsDirectory, file.name);
+    }
+
+    /**
+     * Replace the manifest, then adopt the new file lists.
+     */
+    private void writeManifest(List<DeltaFile> newProfileFiles, List<DeltaFile> newEventFiles,
+                               long newWriteAheadLogSegmentId) throws IOException {
+        writeManifestFile(directory, nextFileId, newProfileFiles, newEventFiles, newWriteAheadLogSegmentId);
+
+        profileFiles.clear();
+        profileFiles.addAll(newProfileFiles);
+        eventFiles.clear();
+        eventFiles.addAll(newEventFiles);
+        writeAheadLogSegmentId = newWriteAheadLogSegmentId;
+    }
+
+    /**
+     * Replace the manifest of a directory atomically.
+     */
+    private static void writeManifestFile(File directory, long nextFileId, List<DeltaFile> profileFiles,
+                                          List<DeltaFile> eventFiles, long writeAheadLogSegmentId)
+            throws IOException {
+        Map<String, Object> manifest = new LinkedHashMap<>();
+        manifest.put("nextFileId", nextFileId);
+        manifest.put("writeAheadLogSegmentId", writeAheadLogSegmentId);
+        manifest.put("profileFiles", toMaps(profileFiles));
+        manifest.put("eventFiles", toMaps(eventFiles));
+
+        File file = new File(directory, MANIFEST_FILE);
+        File tempFile = new File(directory, MANIFEST_FILE + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(objectMapper.writeValueAsBytes(manifest));
+            out.getFD().sync();
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void readManifest() throws IOException {
+        File file = new File(directory, MANIFEST_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        Map<String, Object> manifest = objectMapper.readValue(file, Map.class);
+        nextFileId = ((Number) manifest.get("nextFileId")).longValue();
+        writeAheadLogSegmentId = ((Number) manifest.get("writeAheadLogSegmentId")).longValue();
+        for (Map<String, Object> entry : (List<Map<String, Object>>) manifest.get("profileFiles")) {
+            profileFiles.add(DeltaFile.fromMap(entry));
+        }
+        for (Map<String, Object> entry : (List<Map<String, Object>>) manifest.get("eventFiles")) {
+            eventFiles.add(DeltaFile.fromMap(entry));
+        }
+    }
+
+    /**
+     * Delete delta files a crash left behind before they were listed.
+     */
+    private static void deleteUnlisted(File dir, String suffix, List<DeltaFile> listed) {
+        Set<String> names = new HashSet<>();
+        for (DeltaFile file : listed) {
+            names.add(file.name);
+        }
+
+        // Also matches the spooled index of a profile file that was being written
+        File[] files = dir.listFiles((d, name) -> name.startsWith(FILE_PREFIX) && name.contains(suffix));
+        if (files != null) {
+            for (File file : files) {
+                if (!names.contains(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private static List<Map<String, Object>> toMaps(List<DeltaFile> files) {
+        List<Map<String, Object>> maps = new ArrayList<>();
+        for (DeltaFile file : files) {
+            maps.add(file.toMap());
+        }
+        return maps;
+    }
+
+    /**
+     * Delta file listed in the manifest.
+     */
+    private static class DeltaFile {
+        private final String name;
+        private final long bytes;
+        private final long maxTimestamp;
+
+        DeltaFile(String name, long bytes, long maxTimestamp) {
+            this.name = name;
+            this.bytes = bytes;
+            this.maxTimestamp = maxTimestamp;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("name", name);
+            map.put("bytes", bytes);
+            map.put("maxTimestamp", maxTimestamp);
+            return map;
+        }
+
+        static DeltaFile fromMap(Map<String, Object> map) {
+            return new DeltaFile((String) map.get("name"), ((Number) map.get("bytes")).longValue(),
+                    ((Number) map.get("maxTimestamp")).longValue());
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.insightaxisdb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time segment sealed into an NCF file on disk.
+ *
+ * Only a summary stays in memory: the event count, the sets of user IDs and
+ * event names in the file, and the IDs that do not embed a timestamp within the
+ * segment, so lookups can skip segments that cannot match without touching
+ * disk. The events themselves are read back into a heap
+ * {@link EventSegment} on demand.
+ *
+ * Snapshots pin the segments they read; deleting a pinned segment's file is
+ * deferred until the last pin is dropped, and a pinned file that is about to
+ * be rewritten is first moved aside with {@link #retire()}.
+ */
+public class ColdSegment {
+
+    private static final String FILE_PREFIX = "segment-";
+    private static final String FILE_SUFFIX = ".ncf";
+    private static final String RETIRED_SUFFIX = ".retired";
+
+    private final long startTime;
+    private final long endTime;
+    private volatile File file;
+    private final int eventCount;
+    private final Set<String> userIds;
+    private final Set<String> eventNames;
+    private final Set<EventId> unplacedIds;
+    private final Set<EventId> removedIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger pins = new AtomicInteger();
+    private boolean deletePending = false;
+
+    /**
+     * Initialize cold segment.
+     *
+     * @param startTime Start of the segment (inclusive, Unix timestamp)
+     * @param endTime End of the segment (exclusive, Unix timestamp)
+     * @param file NCF file holding the segment's events
+     * @param eventCount Number of events in the file
+     * @param userIds IDs of the users with events in the file
+     * @param eventNames Names of the events in the file
+     * @param unplacedIds IDs in the file whose embedded timestamp does not lie in the segment
+     */
+    public ColdSegment(long startTime, long endTime, File file, int eventCount,
+                       Set<String> userIds, Set<String> eventNames, Set<EventId> unplacedIds) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.file = file;
+        this.eventCount = eventCount;
+        this.userIds = Collections.unmodifiableSet(userIds);
+        this.eventNames = Collections.unmodifiableSet(eventNames);
+        this.unplacedIds = Collections.unmodifiableSet(unplacedIds);
+    }
+
+    /**
+     * Write events to a segment file.
+     *
+     * The file is written next to its final name and moved into place, so a
+     * crash never leaves a partially written segment behind.
+     *
+     * @param directory Directory of the cold tier
+     * @param startTime Start of the segment (inclusive, Unix timestamp)
+     * @param endTime End of the segment (exclusive, Unix timestamp)
+     * @param events Events to write
+     * @return Cold segment for the written file
+     */
+    public static ColdSegment write(File directory, long startTime, long endTime, List<Event> events)
+            throws IOException {
+        return prepare(directory, startTime, endTime, events).install();
+    }
+
+    /**
+     * Write events next to a segment file without moving them into place yet.
+     *
+     * This lets the caller write without holding its locks and only take them
+     * for {@link Pending#install()}, which replaces any existing file for the
+     * segment.
+     *
+     * @param directory Directory of the cold tier
+     * @param startTime Start of the segment (inclusive, Unix timestamp)
+     * @param endTime End of the segment (exclusive, Unix timestamp)
+     * @param events Events to write
+     * @return Written file, to be installed or discarded
+     */
+    public static Pending prepare(File directory, long startTime, long endTime, List<Event> events)
+            throws IOException {
+        NCF.Writer writer = new NCF.Writer("lz4");
+        writer.addColumn("eventId", DataType.STRING);
+        writer.addColumn("eventName", DataType.STRING);
+        writer.addColumn("userId", DataType.STRING);
+        writer.addColumn("timestamp", DataType.INTEGER);
+        writer.addColumn("properties", DataType.OBJECT);
+
+        Set<String> userIds = new HashSet<>();
+        Set<String> eventNames = new HashSet<>();
+        Set<EventId> unplacedIds = new HashSet<>();
+        for (Event event : events) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("eventId", event.getEventId());
+            row.put("eventName", event.getEventName());
+            row.put("userId", event.getUserId());
+            row.put("timestamp", event.getTimestamp());
+            row.put("properties", event.getProperties());
+            writer.addRow(row);
+
+            userIds.add(event.getUserId());
+            eventNames.add(event.getEventName());
+            if (!isPlaced(event.getId(), startTime, endTime)) {
+                unplacedIds.add(event.getId());
+            }
+        }
+
+        File file = new File(directory, FILE_PREFIX + startTime + FILE_SUFFIX);
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+            raf.setLength(0);
+            writer.write(raf);
+            // Checkpoints leave out sealed segments, so the file must be on disk
+            raf.getFD().sync();
+        }
+
+        return new Pending(tempFile, new ColdSegment(startTime, endTime, file, events.size(),
+                userIds, eventNames, unplacedIds));
+    }
+
+    /**
+     * Open an existing segment file and rebuild its summary.
+     *
+     * @param file Segment file
+     * @param segmentDurationMillis Length of a segment in milliseconds
+     * @return Cold segment, or null if the file is not a segment file
+     */
+    public static ColdSegment open(File file, long segmentDurationMillis) throws IOException {
+        String name = file.getName();
+        if (!name.startsWith(FILE_PREFIX) || !name.endsWith(FILE_SUFFIX)) {
+            return null;
+        }
+
+        long startTime;
+        try {
+            startTime = Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             NCF.Reader reader = new NCF.Reader(raf)) {
+            // The summary needs only the user and name columns
+            Set<String> userIds = new HashSet<>();
+            for (Object userId : reader.readColumn("userId")) {
+                userIds.add((String) userId);
+            }
+            Set<String> eventNames = new HashSet<>();
+            for (Object eventName : reader.readColumn("eventName")) {
+                eventNames.add((String) eventName);
+            }
+            long endTime = startTime + segmentDurationMillis;
+            Set<EventId> unplacedIds = new HashSet<>();
+            for (Object eventId : reader.readColumn("eventId")) {
+                EventId id = EventId.fromString((String) eventId);
+                if (!isPlaced(id, startTime, endTime)) {
+                    unplacedIds.add(id);
+                }
+            }
+
+            return new ColdSegment(startTime, endTime, file, reader.getHeader().getRowCount(),
+                    userIds, eventNames, unplacedIds);
+        }
+    }
+
+    /**
+     * Read the segment's events back into memory.
+     *
+     * @return Heap segment holding the events
+     */
+    @SuppressWarnings("unchecked")
+    public EventSegment load() throws IOException {
+        EventSegment segment = new EventSegment(startTime, endTime);
+        if (eventCount == 0) {
+            return segment;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             NCF.Reader reader = new NCF.Reader(raf)) {
+            List<Object> eventIds = reader.readColumn("eventId");
+            List<Object> names = reader.readColumn("eventName");
+            List<Object> users = reader.readColumn("userId");
+            List<Object> timestamps = reader.readColumn("timestamp");
+            List<Object> properties = reader.readColumn("properties");
+
+            for (int i = 0; i < eventIds.size(); i++) {
+                Event event = new Event((String) names.get(i), (String) users.get(i),
+                        (Map<String, Object>) properties.get(i), (Long) timestamps.get(i),
+                        (String) eventIds.get(i));
+                if (!removedIds.contains(event.getId())) {
+                    segment.add(event);
+                }
+            }
+        }
+
+        return segment;
+    }
+
+    /**
+     * Visit the ID, user, name and timestamp of each event in the file that is
+     * not marked as removed, without reading the properties.
+     *
+     * @param visitor Visitor given each event
+     */
+    public void forEachEvent(EventVisitor visitor) throws IOException {
+        if (eventCount == 0) {
+            return;
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             NCF.Reader reader = new NCF.Reader(raf)) {
+            List<Object> eventIds = reader.readColumn("eventId");
+            List<Object> names = reader.readColumn("eventName");
+            List<Object> users = reader.readColumn("userId");
+            List<Object> timestamps = reader.readColumn("timestamp");
+
+            for (int i = 0; i < eventIds.size(); i++) {
+                EventId id = EventId.fromString((String) eventIds.get(i));
+                if (!removedIds.contains(id)) {
+                    visitor.visit(id, (String) users.get(i), (String) names.get(i), (Long) timestamps.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Visitor of the events in a segment file.
+     */
+    public interface EventVisitor {
+        void visit(EventId eventId, String userId, String eventName, long timestamp);
+    }
+
+    /**
+     * Mark an event as removed.
+     *
+     * The file is immutable, so the event is filtered out whenever the segment is loaded.
+     *
+     * @param eventId Event ID
+     */
+    public void remove(EventId eventId) {
+        removedIds.add(eventId);
+    }
+
+    /**
+     * Mark those of the given events that are in the file as removed.
+     *
+     * Only the ID column is read, so many removals cost one pass over it.
+     *
+     * @param eventIds Event IDs
+     * @return Number of events marked
+     */
+    public int removeAll(Collection<EventId> eventIds) throws IOException {
+        Set<EventId> wanted = new HashSet<>(eventIds);
+        int marked = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             NCF.Reader reader = new NCF.Reader(raf)) {
+            for (Object eventId : reader.readColumn("eventId")) {
+                EventId id = EventId.fromString((String) eventId);
+                if (wanted.contains(id) && removedIds.add(id)) {
+                    marked++;
+                }
+            }
+        }
+        return marked;
+    }
+
+    /**
+     * Get the number of events marked as removed.
+     *
+     * @return Number of removed events
+     */
+    public int getRemovedCount() {
+        return removedIds.size();
+    }
+
+    /**
+     * Check whether the segment may hold an event.
+     *
+     * Time-ordered IDs whose embedded timestamp lies in the segment may be in
+     * the file; any other ID only if the summary lists it.
+     *
+     * @param eventId Event ID
+     * @return Whether the event may be in the file
+     */
+    public boolean mayContainEvent(EventId eventId) {
+        return isPlaced(eventId, startTime, endTime) || unplacedIds.contains(eventId);
+    }
+
+    /**
+     * Check whether an ID embeds a timestamp within a segment.
+     */
+    private static boolean isPlaced(EventId eventId, long startTime, long endTime) {
+        long timestamp = eventId.getTimestamp();
+        return timestamp >= startTime && timestamp < endTime;
+    }
+
+    /**
+     * Check whether the segment may hold events for a user.
+     *
+     * @param userId User ID
+     * @return Whether the user has events in the file
+     */
+    public boolean mayContainUser(String userId) {
+        return userIds.contains(userId);
+    }
+
+    /**
+     * Check whether the segment may hold events with a name.
+     *
+     * @param eventName Event name
+     * @return Whether events with the name are in the file
+     */
+    public boolean mayContainEventName(String eventName) {
+        return eventNames.contains(eventName);
+    }
+
+    /**
+     * Delete the segment file, or mark it for deletion while the segment is pinned.
+     *
+     * @return Whether the file was deleted or marked
+     */
+    public synchronized boolean delete() {
+        if (pins.get() > 0) {
+            deletePending = true;
+            return true;
+        }
+        return file.delete();
+    }
+
+    /**
+     * Keep the segment's events under a separate name, so a new file for the
+     * same time range can take the segment's name while pinned readers keep
+     * reading this one.
+     *
+     * The retired file is a hard link where the file system supports it. It is
+     * deleted with the segment, and at startup if it was left behind.
+     */
+    public synchronized void retire() throws IOException {
+        File retired = new File(file.getParentFile(), file.getName() + "." + System.nanoTime() + RETIRED_SUFFIX);
+        try {
+            Files.createLink(retired.toPath(), file.toPath());
+        } catch (UnsupportedOperationException e) {
+            Files.copy(file.toPath(), retired.toPath());
+        }
+        file = retired;
+    }
+
+    /**
+     * Check whether the segment file has been retired.
+     *
+     * @return Whether the segment reads from a retired file
+     */
+    public boolean isRetired() {
+        return isRetiredFile(file);
+    }
+
+    /**
+     * Check whether a file in the cold tier directory holds a live segment.
+     *
+     * @param file File in the cold tier directory
+     * @return Whether the file is a segment file, neither retired nor partially written
+     */
+    public static boolean isSegmentFile(File file) {
+        String name = file.getName();
+        return name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX);
+    }
+
+    /**
+     * Check whether a file in the cold tier directory is left over from a retired segment.
+     *
+     * @param file File in the cold tier directory
+     * @return Whether the file is a retired segment file
+     */
+    public static boolean isRetiredFile(File file) {
+        return file.getName().endsWith(RETIRED_SUFFIX);
+    }
+
+    /**
+     * Pin the segment, so its file stays readable.
+     */
+    public void pin() {
+        pins.incrementAndGet();
+    }
+
+    /**
+     * Drop a pin, deleting the file if that was deferred.
+     */
+    public synchronized void unpin() {
+        if (pins.decrementAndGet() == 0 && deletePending) {
+            deletePending = false;
+            file.delete();
+        }
+    }
+
+    /**
+     * Check whether the segment is pinned.
+     *
+     * @return Whether any pin is held
+     */
+    public boolean isPinned() {
+        return pins.get() > 0;
+    }
+
+    // Getters
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getEventCount() {
+        return Math.max(0, eventCount - removedIds.size());
+    }
+
+    /**
+     * Segment file written next to its final name, not yet in place.
+     */
+    public static class Pending {
+        private final File tempFile;
+        private final ColdSegment segment;
+
+        private Pending(File tempFile, ColdSegment segment) {
+            this.tempFile = tempFile;
+            this.segment = segment;
+        }
+
+        /**
+         * Move the file into place, replacing any existing file for the segment.
+         *
+         * @return Cold segment for the installed file
+         */
+        public ColdSegment install() throws IOException {
+            Files.move(tempFile.toPath(), segment.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return segment;
+        }
+
+        /**
+         * Delete the file without installing it.
+         */
+        public void discard() {
+            tempFile.delete();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.insightaxisdb.storage;
+
+import java.util.Arrays;
+
+/**
+ * Bounded-memory filter of recently seen idempotency keys.
+ *
+ * Keys are recorded in one bloom filter per time window, and the filters form
+ * a ring: when a new window starts, the oldest filter is cleared and reused.
+ * Memory is fixed at construction and each check costs a constant number of
+ * bit probes. A positive answer only means the key may have been seen, so the
+ * caller confirms it with an exact lookup; a negative answer is definite for
+ * keys recorded within the horizon of {@code windowCount} windows.
+ */
+public class DeduplicationFilter {
+    private final long windowMillis;
+    private final int hashCount;
+    private final int bitsPerWindow;
+    private final long[][] windows;
+    private final long[] windowStarts;
+
+    /**
+     * Initialize deduplication filter.
+     *
+     * @param windowMillis Length of each time window in milliseconds
+     * @param windowCount Number of windows kept, so keys are remembered for windowMillis * windowCount
+     * @param expectedKeysPerWindow Number of keys each window is sized for
+     * @param falsePositiveRate Target false positive rate per window at the expected key count
+     */
+    public DeduplicationFilter(long windowMillis, int windowCount, int expectedKeysPerWindow,
+                               double falsePositiveRate) {
+        if (windowMillis <= 0 || windowCount <= 0 || expectedKeysPerWindow <= 0) {
+            throw new IllegalArgumentException("Window length, window count and expected keys must be positive");
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+
+        // Standard bloom filter sizing: m = -n ln p / (ln 2)^2, k = m / n ln 2
+        double bits = -expectedKeysPerWindow * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        this.bitsPerWindow = (int) Math.min(Integer.MAX_VALUE - 63, Math.max(64, Math.ceil(bits)));
+        this.hashCount = Math.max(1, (int) Math.round((double) bitsPerWindow / expectedKeysPerWindow * Math.log(2)));
+        this.windowMillis = windowMillis;
+        this.windows = new long[windowCount][(bitsPerWindow + 63) / 64];
+        this.windowStarts = new long[windowCount];
+        Arrays.fill(windowStarts, Long.MIN_VALUE);
+    }
+
+    /**
+     * Check whether a key may have been recorded within the horizon.
+     *
+     * @param key Key to check
+     * @param now Current time (Unix timestamp)
+     * @return False if the key was definitely not recorded, true if it may have been
+     */
+    public synchronized boolean mightContain(EventId key, long now) {
+        long oldestStart = windowStart(now) - (long) (windows.length - 1) * windowMillis;
+        for (int i = 0; i < windows.length; i++) {
+            if (windowStarts[i] >= oldestStart && contains(windows[i], key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Record a key in the current window.
+     *
+     * @param key Key to record
+     * @param now Current time (Unix timestamp)
+     */
+    public synchronized void put(EventId key, long now) {
+        long[] bits = currentWindow(now);
+        long h1 = mix(key.getMostSignificantBits());
+        long h2 = mix(key.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) Math.floorMod(h1 + i * h2, (long) bitsPerWindow);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Get the memory held by the filters.
+     *
+     * @return Size of the bit sets in bytes
+     */
+    public long getMemoryUsage() {
+        return (long) windows.length * windows[0].length * Long.BYTES;
+    }
+
+    /**
+     * Get the window for a time, clearing a stale filter if a new window starts.
+     */
+    private long[] currentWindow(long now) {
+        long start = windowStart(now);
+        int index = (int) Math.floorMod(Math.floorDiv(now, windowMillis), (long) windows.length);
+        if (windowStarts[index] != start) {
+            Arrays.fill(windows[index], 0L);
+            windowStarts[index] = start;
+        }
+        return windows[index];
+    }
+
+    private boolean contains(long[] bits, EventId key) {
+        long h1 = mix(key.getMostSignificantBits());
+        long h2 = mix(key.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (int) Math.floorMod(h1 + i * h2, (long) bitsPerWindow);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spread the bits of a 64-bit value (MurmurHash3 finalizer), since client
+     * keys are not always uniformly random.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb3f53fe1a85bL;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private long windowStart(long now) {
+        return Math.floorDiv(now, windowMillis) * windowMillis;
+    }
+}
@@ -1,14 +1,19 @@
 package com.insightaxisdb.storage;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 
 /**
  * Event class.
+ *
+ * The event ID is held as a compact {@link EventId}; its string form is only
+ * built when requested through {@link #getEventId()}.
  */
 public class Event {
-    private final String eventId;
+    private final EventId id;
+    private final String externalId;
     private final String eventName;
     private final String userId;
     private final Map<String, Object> properties;
@@ -28,7 +33,35 @@ public class Event {
         this.userId = userId;
         this.properties = properties != null ? properties : new HashMap<>();
         this.timestamp = timestamp != null ? timestamp : System.currentTimeMillis();
-        this.eventId = eventId != null ? eventId : UUID.randomUUID().toString();
+        
+        if (eventId == null) {
+            this.id = EventId.generate(this.timestamp);
+            this.externalId = null;
+        } else {
+            this.id = EventId.fromString(eventId);
+            // Keep the caller's spelling if it is not the canonical form of the ID
+            this.externalId = eventId.equals(id.toString()) ? null : eventId;
+        }
+    }
+    
+    /**
+     * Initialize event from its stored parts.
+     *
+     * @param id Event ID
+     * @param externalId Caller's spelling of the ID, or null if it is the canonical form
+     * @param eventName Name of the event
+     * @param userId ID of the user who triggered the event
+     * @param properties Event properties
+     * @param timestamp Event timestamp (Unix timestamp)
+     */
+    public Event(EventId id, String externalId, String eventName, String userId,
+                 Map<String, Object> properties, long timestamp) {
+        this.id = id;
+        this.externalId = externalId;
+        this.eventName = eventName;
+        this.userId = userId;
+        this.properties = properties != null ? properties : new HashMap<>();
+        this.timestamp = timestamp;
     }
     
     /**
@@ -36,7 +69,7 @@ public class Event {
      */
     public Map<String, Object> toMap() {
         Map<String, Object> map = new HashMap<>();
-        map.put("eventId", eventId);
+        map.put("eventId", getEventId());
         map.put("eventName", eventName);
         map.put("userId", userId);
         map.put("properties", properties);
@@ -63,7 +96,17 @@ public class Event {
     // Getters
     
     public String getEventId() {
-        return eventId;
+        return externalId != null ? externalId : id.toString();
+    }
+    
+    @JsonIgnore
+    public String getExternalId() {
+        return externalId;
+    }
+    
+    @JsonIgnore
+    public EventId getId() {
+        return id;
     }
     
     public String getEventName() {
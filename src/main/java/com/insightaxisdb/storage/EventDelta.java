@@ -0,0 +1,149 @@
+package com.insightaxisdb.storage;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Events stored in an {@link EventStore} since its last committed checkpoint,
+ * and the stored events removed since then.
+ *
+ * A delta pins the in-memory segments it reads instead of copying their events.
+ * Once the events are persisted it must be committed, which moves the store's
+ * checkpoint marks past them; otherwise it must be released, which leaves the
+ * marks where they were so the next delta covers the same events again.
+ *
+ * Events of segments moved to the cold tier before the delta was taken are
+ * left out: the cold tier already keeps them on disk. Removals are kept as
+ * {@link Removal} records, so a restore leaves out the events they name
+ * whether those are in earlier checkpoints or in the cold tier.
+ */
+public class EventDelta {
+    private final List<Range> ranges;
+    private final List<Removal> removals;
+    private final Map<EventSegment, Integer> checkpointMarks;
+    private final List<Removal> unpersistedRemovals;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    EventDelta(List<Range> ranges, List<Removal> removals, Map<EventSegment, Integer> checkpointMarks,
+               List<Removal> unpersistedRemovals) {
+        this.ranges = ranges;
+        this.removals = removals;
+        this.checkpointMarks = checkpointMarks;
+        this.unpersistedRemovals = unpersistedRemovals;
+    }
+
+    /**
+     * Visit the events of the delta, segment by segment in insertion order.
+     *
+     * @param action Action to apply to each event
+     */
+    public void forEach(Consumer<? super Event> action) {
+        if (finished.get()) {
+            throw new IllegalStateException("Delta is already committed or released");
+        }
+
+        for (Range range : ranges) {
+            EventSegment.Cursor cursor = range.version.appendedSince(range.fromSlot);
+            Event event;
+            while ((event = cursor.next()) != null) {
+                action.accept(event);
+            }
+        }
+    }
+
+    /**
+     * Get the events removed since the last checkpoint, in removal order.
+     *
+     * @return Removals
+     */
+    public List<Removal> getRemovals() {
+        return removals;
+    }
+
+    /**
+     * Check whether any segment received or lost events since the last checkpoint.
+     *
+     * @return Whether the delta is empty
+     */
+    public boolean isEmpty() {
+        return ranges.isEmpty() && removals.isEmpty();
+    }
+
+    /**
+     * Mark the events of the delta as persisted and release its segments.
+     */
+    public void commit() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        synchronized (checkpointMarks) {
+            for (Range range : ranges) {
+                checkpointMarks.merge(range.version.getSegment(), range.version.getSlotCount(), Math::max);
+            }
+        }
+        releaseVersions();
+    }
+
+    /**
+     * Release the segments of the delta without marking its events as persisted.
+     *
+     * The removals go back to the store, ahead of any made since.
+     */
+    public void release() {
+        if (finished.compareAndSet(false, true)) {
+            synchronized (checkpointMarks) {
+                unpersistedRemovals.addAll(0, removals);
+            }
+            releaseVersions();
+        }
+    }
+
+    private void releaseVersions() {
+        for (Range range : ranges) {
+            range.version.release();
+        }
+    }
+
+    /**
+     * Stored event removed by the per-user cap.
+     */
+    public static class Removal {
+        private final EventId eventId;
+        private final String userId;
+        private final long timestamp;
+
+        public Removal(EventId eventId, String userId, long timestamp) {
+            this.eventId = eventId;
+            this.userId = userId;
+            this.timestamp = timestamp;
+        }
+
+        public EventId getEventId() {
+            return eventId;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Slots of a pinned segment version added since the segment's checkpoint mark.
+     */
+    static class Range {
+        private final EventSegment.Version version;
+        private final int fromSlot;
+
+        Range(EventSegment.Version version, int fromSlot) {
+            this.version = version;
+            this.fromSlot = fromSlot;
+        }
+    }
+}
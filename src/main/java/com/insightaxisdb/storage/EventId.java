@@ -0,0 +1,195 @@
+package com.insightaxisdb.storage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compact 128-bit event identifier.
+ *
+ * Generated IDs follow the UUIDv7 layout: a 48-bit millisecond timestamp
+ * followed by random bits drawn from {@link ThreadLocalRandom}, so they are
+ * cheap to mint, sort by time and map straight to the segment that holds the
+ * event. The canonical UUID string is only produced at the API boundary.
+ */
+public final class EventId implements Comparable<EventId> {
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final long mostSignificantBits;
+    private final long leastSignificantBits;
+
+    /**
+     * Initialize event ID.
+     *
+     * @param mostSignificantBits Most significant 64 bits
+     * @param leastSignificantBits Least significant 64 bits
+     */
+    public EventId(long mostSignificantBits, long leastSignificantBits) {
+        this.mostSignificantBits = mostSignificantBits;
+        this.leastSignificantBits = leastSignificantBits;
+    }
+
+    /**
+     * Generate a time-ordered ID.
+     *
+     * @param timestamp Timestamp to embed (Unix timestamp)
+     * @return New event ID
+     */
+    public static EventId generate(long timestamp) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long msb = (timestamp << 16) | 0x7000L | (random.nextInt() & 0x0FFFL);
+        long lsb = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new EventId(msb, lsb);
+    }
+
+    /**
+     * Parse an ID from its string form.
+     *
+     * Canonical UUID strings are parsed directly. Any other string is mapped to a
+     * stable name-based ID, so client-supplied IDs still get a compact key.
+     *
+     * @param value String form of the ID
+     * @return Event ID
+     */
+    public static EventId fromString(String value) {
+        if (isCanonical(value)) {
+            long msb = parseHex(value, 0, 8) << 32 | parseHex(value, 9, 13) << 16 | parseHex(value, 14, 18);
+            long lsb = parseHex(value, 19, 23) << 48 | parseHex(value, 24, 36);
+            return new EventId(msb, lsb);
+        }
+
+        UUID uuid = UUID.nameUUIDFromBytes(value.getBytes(StandardCharsets.UTF_8));
+        return new EventId(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Derive the ID of an event added with an idempotency key.
+     *
+     * Keys are scoped to the user, so two users may use the same key. The ID is
+     * name-based but carries version 8 instead of 3, which tells keyed events
+     * apart from other client-supplied IDs.
+     *
+     * @param userId ID of the user who triggered the event
+     * @param idempotencyKey Client-supplied idempotency key
+     * @return Event ID
+     */
+    public static EventId fromIdempotencyKey(String userId, String idempotencyKey) {
+        // Prefix the user ID with its length, so ("ab", "c") and ("a", "bc") differ
+        String name = userId.length() + ":" + userId + idempotencyKey;
+        UUID uuid = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8));
+        return new EventId((uuid.getMostSignificantBits() & ~0xF000L) | 0x8000L, uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * Check whether this ID was derived from an idempotency key.
+     *
+     * @return True if the ID was built by {@link #fromIdempotencyKey(String, String)}
+     */
+    public boolean isIdempotencyKeyed() {
+        return ((mostSignificantBits >>> 12) & 0xF) == 8;
+    }
+
+    /**
+     * Check whether a string is a canonical (lowercase or uppercase) UUID.
+     */
+    private static boolean isCanonical(String value) {
+        if (value.length() != 36) {
+            return false;
+        }
+
+        for (int i = 0; i < 36; i++) {
+            char c = value.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-') {
+                    return false;
+                }
+            } else if (Character.digit(c, 16) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static long parseHex(String value, int start, int end) {
+        long result = 0;
+        for (int i = start; i < end; i++) {
+            result = (result << 4) | Character.digit(value.charAt(i), 16);
+        }
+        return result;
+    }
+
+    /**
+     * Get the embedded timestamp.
+     *
+     * @return Timestamp (Unix timestamp), or -1 if this is not a time-ordered ID
+     */
+    public long getTimestamp() {
+        if (((mostSignificantBits >>> 12) & 0xF) != 7) {
+            return -1;
+        }
+        return mostSignificantBits >>> 16;
+    }
+
+    public long getMostSignificantBits() {
+        return mostSignificantBits;
+    }
+
+    public long getLeastSignificantBits() {
+        return leastSignificantBits;
+    }
+
+    @Override
+    public int compareTo(EventId other) {
+        int comparison = Long.compareUnsigned(mostSignificantBits, other.mostSignificantBits);
+        if (comparison != 0) {
+            return comparison;
+        }
+        return Long.compareUnsigned(leastSignificantBits, other.leastSignificantBits);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof EventId)) {
+            return false;
+        }
+        EventId other = (EventId) obj;
+        return mostSignificantBits == other.mostSignificantBits
+                && leastSignificantBits == other.leastSignificantBits;
+    }
+
+    @Override
+    public int hashCode() {
+        long hash = mostSignificantBits ^ (leastSignificantBits * 0x9E3779B97F4A7C15L);
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * Format the ID as a canonical lowercase UUID string.
+     */
+    @Override
+    public String toString() {
+        char[] chars = new char[36];
+        formatHex(mostSignificantBits >>> 32, chars, 0, 8);
+        chars[8] = '-';
+        formatHex(mostSignificantBits >>> 16, chars, 9, 4);
+        chars[13] = '-';
+        formatHex(mostSignificantBits, chars, 14, 4);
+        chars[18] = '-';
+        formatHex(leastSignificantBits >>> 48, chars, 19, 4);
+        chars[23] = '-';
+        formatHex(leastSignificantBits, chars, 24, 12);
+        return new String(chars);
+    }
+
+    private static void formatHex(long value, char[] chars, int offset, int digits) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            chars[i] = HEX_DIGITS[(int) (value & 0xF)];
+            value >>>= 4;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.insightaxisdb.storage;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only properties of one event, stored in its {@link PropertySchema}'s
+ * typed slots.
+ *
+ * A lookup resolves the key to a slot once and reads the value by array
+ * index; keys are not stored per event. Values that did not fit a slot are
+ * kept in the overflow map.
+ */
+public class EventProperties extends AbstractMap<String, Object> {
+    private final PropertySchema schema;
+    private final long presence;
+    private final long[] primitives;
+    private final Object[] references;
+    private final Map<String, Object> overflow;
+
+    /**
+     * Initialize event properties.
+     *
+     * @param schema Schema that owns the slot layout
+     * @param presence Bit mask of the slots that hold a value
+     * @param primitives Values of boolean and numeric slots
+     * @param references Values of string and object slots
+     * @param overflow Values without a slot, or null if there are none
+     */
+    EventProperties(PropertySchema schema, long presence, long[] primitives, Object[] references,
+                    Map<String, Object> overflow) {
+        this.schema = schema;
+        this.presence = presence;
+        this.primitives = primitives;
+        this.references = references;
+        this.overflow = overflow != null ? overflow : Collections.emptyMap();
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = schema.slotOf(key);
+        if (slot >= 0 && (presence & (1L << slot)) != 0) {
+            return schema.read(slot, primitives, references);
+        }
+        return overflow.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        int slot = schema.slotOf(key);
+        return (slot >= 0 && (presence & (1L << slot)) != 0) || overflow.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return Long.bitCount(presence) + overflow.size();
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                Iterator<Entry<String, Object>> overflowIterator = overflow.entrySet().iterator();
+
+                return new Iterator<Entry<String, Object>>() {
+                    private long remaining = presence;
+
+                    @Override
+                    public boolean hasNext() {
+                        return remaining != 0 || overflowIterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (remaining != 0) {
+                            int slot = Long.numberOfTrailingZeros(remaining);
+                            remaining &= remaining - 1;
+                            return new SimpleImmutableEntry<>(schema.getName(slot),
+                                    schema.read(slot, primitives, references));
+                        }
+                        if (!overflowIterator.hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return overflowIterator.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return EventProperties.this.size();
+            }
+        };
+    }
+
+    /**
+     * Get the schema that owns the slot layout.
+     *
+     * @return Property schema
+     */
+    public PropertySchema getSchema() {
+        return schema;
+    }
+}
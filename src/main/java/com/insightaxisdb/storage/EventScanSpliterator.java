@@ -0,0 +1,107 @@
+package com.insightaxisdb.storage;
+
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Spliterator over the events of a range of segments.
+ *
+ * Events are pulled one at a time through {@link EventSegment.Cursor}s, with
+ * the name, user and time bounds applied against the segment indexes and the
+ * predicate applied before an event is handed out, so no intermediate lists
+ * are built. Segments are read through {@link EventSegment.Version}s, so the
+ * same spliterator serves live scans and scans of a pinned snapshot. Splitting hands half of the not yet visited segments to the new
+ * spliterator, which lets fork-join consumers scan segments in parallel.
+ */
+public class EventScanSpliterator implements Spliterator<Event> {
+    private final List<Supplier<EventSegment.Version>> segments;
+    private final String eventName;
+    private final String userId;
+    private final long fromTime;
+    private final long toTime;
+    private final Predicate<? super Event> predicate;
+    private final int end;
+    private int next;
+    private EventSegment.Cursor cursor;
+
+    /**
+     * Initialize event scan spliterator.
+     *
+     * @param segments Segment versions to scan, in time order; cold segments are loaded when reached
+     * @param eventName Event name to match, or null for any
+     * @param userId User ID to match, or null for any
+     * @param fromTime Start time (inclusive, Unix timestamp)
+     * @param toTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     */
+    public EventScanSpliterator(List<Supplier<EventSegment.Version>> segments, String eventName, String userId,
+                                long fromTime, long toTime, Predicate<? super Event> predicate) {
+        this(segments, 0, segments.size(), eventName, userId, fromTime, toTime, predicate);
+    }
+
+    private EventScanSpliterator(List<Supplier<EventSegment.Version>> segments, int next, int end,
+                                 String eventName, String userId, long fromTime, long toTime,
+                                 Predicate<? super Event> predicate) {
+        this.segments = segments;
+        this.next = next;
+        this.end = end;
+        this.eventName = eventName;
+        this.userId = userId;
+        this.fromTime = fromTime;
+        this.toTime = toTime;
+        this.predicate = predicate;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Event> action) {
+        while (true) {
+            if (cursor == null) {
+                if (next >= end) {
+                    return false;
+                }
+                cursor = segments.get(next++).get().cursor(eventName, userId, fromTime, toTime);
+            }
+
+            Event event = cursor.next();
+            if (event == null) {
+                cursor = null;
+                continue;
+            }
+            if (predicate == null || predicate.test(event)) {
+                action.accept(event);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public Spliterator<Event> trySplit() {
+        int remaining = end - next;
+        if (remaining < 2) {
+            return null;
+        }
+
+        // Hand the earlier half of the unvisited segments to the new spliterator
+        int middle = next + remaining / 2;
+        EventScanSpliterator prefix = new EventScanSpliterator(segments, next, middle,
+                eventName, userId, fromTime, toTime, predicate);
+        prefix.cursor = cursor;
+        cursor = null;
+        next = middle;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        // Segment sizes are not known without loading cold segments
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
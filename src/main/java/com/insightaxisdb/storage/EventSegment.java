@@ -0,0 +1,566 @@
+package com.insightaxisdb.storage;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Time partition of the event store.
+ *
+ * A segment owns every event whose timestamp falls in [startTime, endTime),
+ * together with the name and user index slices for those events. Events are
+ * appended to slots and the indexes refer to slot numbers, so expiring a
+ * segment drops its events and index slices in one step.
+ *
+ * The slots themselves are pluggable: {@link HeapEventSlots} keeps event
+ * objects, {@link OffHeapEventArena} keeps packed records in direct memory.
+ *
+ * Slots are append-only, which makes point-in-time reads cheap: a
+ * {@link Version} pinned with {@link #pin()} records the number of slots and
+ * the removal sequence at that moment, and reads through it ignore later
+ * appends and removals. While a segment is pinned, removals are recorded
+ * instead of clearing slots and releasing its storage is deferred.
+ */
+public class EventSegment {
+    private final long startTime;
+    private final long endTime;
+    private final EventSlots slots;
+    private final IdSlotTable slotsById = new IdSlotTable();
+    private final Map<String, IntList> eventIndex = new HashMap<>();
+    private final Map<String, IntList> userEvents = new HashMap<>();
+    private final AtomicInteger pins = new AtomicInteger();
+    private final Map<Integer, Integer> pendingRemovals = new HashMap<>();
+    private volatile int committedSlots = 0;
+    private volatile int removalSequence = 0;
+    private int eventCount = 0;
+    private int modificationCount = 0;
+    private boolean sealed = false;
+    private boolean released = false;
+    private boolean releasePending = false;
+
+    /**
+     * Initialize event segment.
+     *
+     * @param startTime Start of the segment (inclusive, Unix timestamp)
+     * @param endTime End of the segment (exclusive, Unix timestamp)
+     */
+    public EventSegment(long startTime, long endTime) {
+        this(startTime, endTime, new HeapEventSlots());
+    }
+
+    /**
+     * Initialize event segment with custom slot storage.
+     *
+     * @param startTime Start of the segment (inclusive, Unix timestamp)
+     * @param endTime End of the segment (exclusive, Unix timestamp)
+     * @param slots Slot storage for the segment's events
+     */
+    public EventSegment(long startTime, long endTime, EventSlots slots) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.slots = slots;
+    }
+
+    /**
+     * Add an event to the segment.
+     *
+     * @param event Event to add
+     * @return Whether the event was added, false if the segment has been sealed
+     */
+    public synchronized boolean add(Event event) {
+        if (sealed) {
+            return false;
+        }
+
+        append(event);
+        return true;
+    }
+
+    /**
+     * Add a batch of events to the segment under a single lock acquisition.
+     *
+     * @param events Events to add
+     * @return Whether the events were added, false if the segment has been sealed
+     */
+    public synchronized boolean addAll(List<Event> events) {
+        if (sealed) {
+            return false;
+        }
+
+        for (Event event : events) {
+            append(event);
+        }
+        return true;
+    }
+
+    private void append(Event event) {
+        int slot = slots.append(event);
+        slotsById.put(event.getId(), slot);
+        eventIndex.computeIfAbsent(event.getEventName(), k -> new IntList()).add(slot);
+        userEvents.computeIfAbsent(event.getUserId(), k -> new IntList()).add(slot);
+        eventCount++;
+        modificationCount++;
+        committedSlots = slot + 1;
+    }
+
+    /**
+     * Get an event.
+     *
+     * @param eventId Event ID
+     * @return Event or null if not in this segment, or if the segment has been sealed or released
+     */
+    public synchronized Event get(EventId eventId) {
+        if (isUnlinked()) {
+            return null;
+        }
+        int slot = slotsById.get(eventId);
+        return slot >= 0 ? slots.get(slot) : null;
+    }
+
+    /**
+     * Remove a single event from the segment.
+     *
+     * The slot is cleared rather than compacted so that index slices stay valid.
+     *
+     * @param eventId Event ID
+     * @return Removed event or null if not in this segment, or if the segment has been sealed or released
+     */
+    public synchronized Event remove(EventId eventId) {
+        if (isUnlinked()) {
+            // The events have moved elsewhere or expired, so callers look them up there
+            return null;
+        }
+        int slot = slotsById.remove(eventId);
+        if (slot < 0) {
+            return null;
+        }
+
+        Event event = slots.get(slot);
+        if (pins.get() > 0) {
+            // Pinned versions may still read the event, so only record the removal
+            removalSequence++;
+            pendingRemovals.put(slot, removalSequence);
+        } else {
+            slots.remove(slot);
+        }
+        eventCount--;
+        modificationCount++;
+        return event;
+    }
+
+    /**
+     * Collect all events in the segment.
+     *
+     * @param result List to add the events to
+     */
+    public synchronized void collectAll(List<Event> result) {
+        for (int slot = 0; slot < slots.size(); slot++) {
+            if (isLive(slot)) {
+                result.add(slots.get(slot));
+            }
+        }
+    }
+
+    /**
+     * Collect events with the given name.
+     *
+     * @param eventName Event name
+     * @param result List to add the events to
+     */
+    public synchronized void collectByName(String eventName, List<Event> result) {
+        collectSlots(eventIndex.get(eventName), Long.MIN_VALUE, Long.MAX_VALUE, result);
+    }
+
+    /**
+     * Collect events for a user.
+     *
+     * @param userId User ID
+     * @param result List to add the events to
+     */
+    public synchronized void collectByUser(String userId, List<Event> result) {
+        collectSlots(userEvents.get(userId), Long.MIN_VALUE, Long.MAX_VALUE, result);
+    }
+
+    /**
+     * Collect events for a user in a time range.
+     *
+     * @param userId User ID
+     * @param fromTime Start time (inclusive, Unix timestamp)
+     * @param toTime End time (inclusive, Unix timestamp)
+     * @param result List to add the events to
+     */
+    public synchronized void collectByUser(String userId, long fromTime, long toTime, List<Event> result) {
+        collectSlots(userEvents.get(userId), fromTime, toTime, result);
+    }
+
+    /**
+     * Collect the IDs of a user's events.
+     *
+     * @param userId User ID
+     * @param result List to add the event IDs to
+     */
+    public synchronized void collectUserEventIds(String userId, List<String> result) {
+        IntList slotList = userEvents.get(userId);
+        if (slotList == null) {
+            return;
+        }
+
+        for (int i = 0; i < slotList.size(); i++) {
+            int slot = slotList.get(i);
+            if (isLive(slot)) {
+                result.add(slots.get(slot).getEventId());
+            }
+        }
+    }
+
+    /**
+     * Get the number of events for a user.
+     *
+     * @param userId User ID
+     * @return Number of events for the user in this segment
+     */
+    public synchronized int getUserEventCount(String userId) {
+        IntList slotList = userEvents.get(userId);
+        if (slotList == null) {
+            return 0;
+        }
+
+        int count = 0;
+        for (int i = 0; i < slotList.size(); i++) {
+            if (isLive(slotList.get(i))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Collect events in a time range.
+     *
+     * @param fromTime Start time (inclusive, Unix timestamp)
+     * @param toTime End time (inclusive, Unix timestamp)
+     * @param result List to add the events to
+     */
+    public synchronized void collectInTimerange(long fromTime, long toTime, List<Event> result) {
+        for (int slot = 0; slot < slots.size(); slot++) {
+            if (isLive(slot) && inRange(slots.getTimestamp(slot), fromTime, toTime)) {
+                result.add(slots.get(slot));
+            }
+        }
+    }
+
+    /**
+     * Open a cursor over the segment's events.
+     *
+     * The cursor covers the events present when it is opened and takes the
+     * segment lock only for each step, so consumers never hold it while they
+     * process an event.
+     *
+     * @param eventName Event name to match, or null for any
+     * @param userId User ID to match, or null for any
+     * @param fromTime Start time (inclusive, Unix timestamp)
+     * @param toTime End time (inclusive, Unix timestamp)
+     * @return Cursor over the matching events
+     */
+    public Cursor cursor(String eventName, String userId, long fromTime, long toTime) {
+        return cursor(eventName, userId, fromTime, toTime, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Pin the current state of the segment for point-in-time reads.
+     *
+     * The returned version must be released once the reads are done.
+     *
+     * @return Pinned version
+     */
+    public Version pin() {
+        // Count the pin before reading the marks, so removals after them are deferred
+        pins.incrementAndGet();
+        return new Version(committedSlots, removalSequence, true);
+    }
+
+    /**
+     * Get a version that reads the segment's current state.
+     *
+     * @return Unpinned version equivalent to reading the segment directly
+     */
+    public Version latest() {
+        return new Version(Integer.MAX_VALUE, Integer.MAX_VALUE, false);
+    }
+
+    /**
+     * Seal the segment and release its storage.
+     *
+     * Called once the events have moved elsewhere; later adds are refused so
+     * the caller can retry against the segment that replaces this one.
+     */
+    public synchronized void seal() {
+        sealed = true;
+        release();
+    }
+
+    /**
+     * Release the storage held by the segment once it has been unlinked.
+     */
+    public synchronized void release() {
+        if (pins.get() > 0) {
+            releasePending = true;
+            return;
+        }
+
+        slots.release();
+        slotsById.clear();
+        eventIndex.clear();
+        userEvents.clear();
+        pendingRemovals.clear();
+        eventCount = 0;
+        released = true;
+    }
+
+    /**
+     * Drop a pin, applying deferred removals and release once no pins remain.
+     */
+    private void unpin() {
+        if (pins.decrementAndGet() > 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (pins.get() > 0) {
+                return;
+            }
+            for (int slot : pendingRemovals.keySet()) {
+                slots.remove(slot);
+            }
+            pendingRemovals.clear();
+            if (releasePending) {
+                releasePending = false;
+                release();
+            }
+        }
+    }
+
+    private synchronized Cursor cursor(String eventName, String userId, long fromTime, long toTime,
+                                       int slotLimit, int removalLimit) {
+        // Walk the narrower index when one applies
+        IntList slotList = null;
+        if (userId != null) {
+            slotList = userEvents.get(userId);
+            if (slotList == null) {
+                return new Cursor(null, 0, null, fromTime, toTime, slotLimit, removalLimit);
+            }
+        } else if (eventName != null) {
+            slotList = eventIndex.get(eventName);
+            if (slotList == null) {
+                return new Cursor(null, 0, null, fromTime, toTime, slotLimit, removalLimit);
+            }
+        }
+
+        int bound = slotList != null ? slotList.size() : Math.min(slots.size(), slotLimit);
+        String nameFilter = userId != null ? eventName : null;
+        return new Cursor(slotList, bound, nameFilter, fromTime, toTime, slotLimit, removalLimit);
+    }
+
+    /**
+     * Check whether the segment has been sealed or released, pinned versions aside.
+     */
+    private boolean isUnlinked() {
+        return sealed || released || releasePending;
+    }
+
+    /**
+     * Check whether a slot holds an event that has not been removed.
+     */
+    private boolean isLive(int slot) {
+        return !slots.isRemoved(slot) && (pendingRemovals.isEmpty() || !pendingRemovals.containsKey(slot));
+    }
+
+    /**
+     * Check whether a slot's event was present for a version with the given removal sequence.
+     */
+    private boolean isVisible(int slot, int removalLimit) {
+        if (slots.isRemoved(slot)) {
+            return false;
+        }
+        if (pendingRemovals.isEmpty()) {
+            return true;
+        }
+        Integer removedAt = pendingRemovals.get(slot);
+        return removedAt == null || removedAt > removalLimit;
+    }
+
+    private void collectSlots(IntList slotList, long fromTime, long toTime, List<Event> result) {
+        if (slotList == null) {
+            return;
+        }
+
+        for (int i = 0; i < slotList.size(); i++) {
+            int slot = slotList.get(i);
+            if (isLive(slot) && inRange(slots.getTimestamp(slot), fromTime, toTime)) {
+                result.add(slots.get(slot));
+            }
+        }
+    }
+
+    private static boolean inRange(long timestamp, long fromTime, long toTime) {
+        return fromTime <= timestamp && timestamp <= toTime;
+    }
+
+    // Getters
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getEndTime() {
+        return endTime;
+    }
+
+    public synchronized int getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Get the number of adds and removals so far, to tell whether the segment
+     * changed between two reads.
+     *
+     * @return Modification count
+     */
+    public synchronized int getModificationCount() {
+        return modificationCount;
+    }
+
+    public synchronized long getMemoryUsage() {
+        return slots.getMemoryUsage();
+    }
+
+    public synchronized boolean isSealed() {
+        return sealed;
+    }
+
+    /**
+     * State of the segment as of a point in time.
+     */
+    public class Version {
+        private final int slotLimit;
+        private final int removalLimit;
+        private final boolean pinned;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Version(int slotLimit, int removalLimit, boolean pinned) {
+            this.slotLimit = slotLimit;
+            this.removalLimit = removalLimit;
+            this.pinned = pinned;
+        }
+
+        /**
+         * Open a cursor over the events of this version.
+         *
+         * @param eventName Event name to match, or null for any
+         * @param userId User ID to match, or null for any
+         * @param fromTime Start time (inclusive, Unix timestamp)
+         * @param toTime End time (inclusive, Unix timestamp)
+         * @return Cursor over the matching events
+         */
+        public Cursor cursor(String eventName, String userId, long fromTime, long toTime) {
+            return EventSegment.this.cursor(eventName, userId, fromTime, toTime, slotLimit, removalLimit);
+        }
+
+        /**
+         * Open a cursor over the events of this version stored at or after a slot.
+         *
+         * Slots are assigned in insertion order, so this yields the events added
+         * since a version whose {@link #getSlotCount()} was the given slot.
+         *
+         * @param fromSlot First slot to read
+         * @return Cursor over the events
+         */
+        public Cursor appendedSince(int fromSlot) {
+            synchronized (EventSegment.this) {
+                Cursor cursor = new Cursor(null, Math.min(slots.size(), slotLimit), null,
+                        Long.MIN_VALUE, Long.MAX_VALUE, slotLimit, removalLimit);
+                cursor.position = Math.max(fromSlot, 0);
+                return cursor;
+            }
+        }
+
+        /**
+         * Get the number of slots this version covers.
+         *
+         * @return Number of slots
+         */
+        public int getSlotCount() {
+            return slotLimit;
+        }
+
+        /**
+         * Release the pin held by this version. Releasing more than once has no effect.
+         */
+        public void release() {
+            if (pinned && released.compareAndSet(false, true)) {
+                unpin();
+            }
+        }
+
+        public EventSegment getSegment() {
+            return EventSegment.this;
+        }
+    }
+
+    /**
+     * Forward-only cursor over a segment's events.
+     */
+    public class Cursor {
+        private final IntList slotList;
+        private final int bound;
+        private final String eventName;
+        private final long fromTime;
+        private final long toTime;
+        private final int slotLimit;
+        private final int removalLimit;
+        private int position = 0;
+
+        private Cursor(IntList slotList, int bound, String eventName, long fromTime, long toTime,
+                       int slotLimit, int removalLimit) {
+            this.slotList = slotList;
+            this.bound = bound;
+            this.eventName = eventName;
+            this.fromTime = fromTime;
+            this.toTime = toTime;
+            this.slotLimit = slotLimit;
+            this.removalLimit = removalLimit;
+        }
+
+        /**
+         * Get the next matching event.
+         *
+         * @return Next event, or null once the cursor is exhausted
+         */
+        public Event next() {
+            synchronized (EventSegment.this) {
+                while (position < bound) {
+                    int slot = slotList != null ? slotList.get(position) : position;
+                    position++;
+
+                    // A released segment has no slots left to read, and index
+                    // slices are in slot order, so later slots are past the version too
+                    if (slot >= slots.size() || slot >= slotLimit) {
+                        position = bound;
+                        return null;
+                    }
+                    if (!isVisible(slot, removalLimit) || !inRange(slots.getTimestamp(slot), fromTime, toTime)) {
+                        continue;
+                    }
+
+                    Event event = slots.get(slot);
+                    if (eventName == null || eventName.equals(event.getEventName())) {
+                        return event;
+                    }
+                }
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.insightaxisdb.storage;
+
+/**
+ * Slot storage for the events of one segment.
+ *
+ * Slots are assigned in append order and never reused, so the segment indexes
+ * can refer to events by slot number regardless of where the events live.
+ */
+public interface EventSlots {
+
+    /**
+     * Append an event.
+     *
+     * @param event Event to append
+     * @return Slot number of the event
+     */
+    int append(Event event);
+
+    /**
+     * Get the event in a slot.
+     *
+     * @param slot Slot number
+     * @return Event or null if the slot was removed
+     */
+    Event get(int slot);
+
+    /**
+     * Get the timestamp of the event in a slot without materializing it.
+     *
+     * @param slot Slot number
+     * @return Event timestamp (Unix timestamp)
+     */
+    long getTimestamp(int slot);
+
+    /**
+     * Check whether a slot was removed.
+     *
+     * @param slot Slot number
+     * @return Whether the slot was removed
+     */
+    boolean isRemoved(int slot);
+
+    /**
+     * Remove the event in a slot.
+     *
+     * @param slot Slot number
+     */
+    void remove(int slot);
+
+    /**
+     * Get the number of slots, including removed ones.
+     */
+    int size();
+
+    /**
+     * Get the memory held by the slots.
+     *
+     * @return Memory usage in bytes (estimated for heap objects)
+     */
+    long getMemoryUsage();
+
+    /**
+     * Release the storage held by the slots.
+     */
+    void release();
+}
@@ -1,26 +1,172 @@
 package com.insightaxisdb.storage;
 
+import com.insightaxisdb.core.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Storage for events.
+ *
+ * Events are partitioned into time segments of {@link Config#SEGMENT_DURATION_MILLIS}.
+ * Each segment carries its own name and user index slices, so retention drops
+ * whole segments and time-range scans skip segments outside the range.
+ *
+ * Ingest enforces a per-user monthly cap ({@link Config#MAX_DATA_POINTS_PER_USER_PER_MONTH}
+ * by default) according to a {@link UserEventQuota.CapPolicy}.
+ *
+ * Event properties are stored in the typed layout of a per-event-name
+ * {@link PropertySchema} rather than a map per event.
+ *
+ * In {@link StorageMode#OFF_HEAP} mode each segment keeps its events as packed
+ * records in direct memory, leaving only the indexes on the Java heap.
+ *
+ * Once a cold tier is enabled, segments older than the hot tier age, or the
+ * oldest segments while the hot tier is over its memory budget, are sealed into
+ * NCF files and dropped from memory. Every read method covers both tiers; cold
+ * segments are skipped by their user and event-name summaries where possible
+ * and a few recently read ones are cached.
+ *
+ * With a {@link WriteAheadLog} attached, every stored event and every
+ * eviction by the cap is logged and {@code addEvent} returns only once the log
+ * is synced. Replayed events are not capped again; their evictions are
+ * replayed instead. Incremental checkpoints take the events stored since the
+ * previous one with {@link #captureChanges()}.
+ *
+ * Long reads can go through an {@link EventStoreSnapshot} from {@link #snapshot()},
+ * which pins the segments as of that moment instead of copying events, so
+ * ingestion carries on while the snapshot is read.
  */
 public class EventStore {
+
+    /**
+     * Where segment events are kept.
+     */
+    public enum StorageMode {
+        /** Event objects on the Java heap. */
+        HEAP,
+        /** Packed records in direct buffers outside the Java heap. */
+        OFF_HEAP
+    }
+
+    private static final int LOAD_BATCH_SIZE = 1024;
+    private static final int SEAL_ATTEMPTS = 3;
+    private static final long DEDUP_HORIZON_MILLIS = Config.DEDUP_WINDOW_MILLIS * Config.DEDUP_WINDOW_COUNT;
+
     private final UserProfileStore userProfileStore;
-    private final Map<String, Event> events = new HashMap<>();
-    private final Map<String, Set<String>> eventIndex = new HashMap<>();
-    private final Map<String, List<String>> userEvents = new HashMap<>();
-    
+    private final long segmentDurationMillis;
+    private final ConcurrentNavigableMap<Long, EventSegment> segments = new ConcurrentSkipListMap<>();
+    private final int maxEventsPerUserPerMonth;
+    private final UserEventQuota.CapPolicy capPolicy;
+    private final int maxTrackedMonths;
+    private final int quotaHistoryMonths;
+    private final StorageMode storageMode;
+    private final PropertySchemaRegistry schemaRegistry = new PropertySchemaRegistry();
+    private final ConcurrentNavigableMap<Long, ColdSegment> coldSegments = new ConcurrentSkipListMap<>();
+    private final Map<ColdSegment, EventSegment> coldCache = Collections.synchronizedMap(
+            new LinkedHashMap<ColdSegment, EventSegment>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ColdSegment, EventSegment> eldest) {
+                    return size() > Config.COLD_SEGMENT_CACHE_SIZE;
+                }
+            });
+    private final DeduplicationFilter deduplicationFilter = new DeduplicationFilter(
+            Config.DEDUP_WINDOW_MILLIS, Config.DEDUP_WINDOW_COUNT,
+            Config.DEDUP_EXPECTED_KEYS_PER_WINDOW, Config.DEDUP_FALSE_POSITIVE_RATE);
+    private final Object[] deduplicationLocks = new Object[64];
+    private final AtomicLong duplicateEvents = new AtomicLong();
+    private final Object tierLock = new Object();
+    private final Object sealLock = new Object();
+    private final Map<EventSegment, Integer> checkpointMarks = new HashMap<>();
+    private final List<EventDelta.Removal> unpersistedRemovals = new ArrayList<>();
+    private volatile File coldDirectory;
+    private volatile WriteAheadLog writeAheadLog;
+    private volatile long hotTierAgeMillis;
+    private volatile long hotTierMemoryBudgetBytes;
+    private final ConcurrentMap<String, UserEventQuota> userQuotas = new ConcurrentHashMap<>();
+    private final AtomicLong rejectedEvents = new AtomicLong();
+    private final AtomicLong evictedEvents = new AtomicLong();
+
     /**
      * Initialize event store.
      *
      * @param userProfileStore User profile store
      */
     public EventStore(UserProfileStore userProfileStore) {
+        this(userProfileStore, Config.SEGMENT_DURATION_MILLIS);
+    }
+
+    /**
+     * Initialize event store with a custom segment duration.
+     *
+     * @param userProfileStore User profile store
+     * @param segmentDurationMillis Length of each time segment in milliseconds
+     */
+    public EventStore(UserProfileStore userProfileStore, long segmentDurationMillis) {
+        this(userProfileStore, segmentDurationMillis,
+                Config.getInt("maxEventsPerUserPerMonth", Config.MAX_DATA_POINTS_PER_USER_PER_MONTH),
+                UserEventQuota.CapPolicy.valueOf(
+                        Config.getString("eventCapPolicy", Config.DEFAULT_EVENT_CAP_POLICY).toUpperCase()));
+    }
+
+    /**
+     * Initialize event store with a custom segment duration and per-user cap.
+     *
+     * @param userProfileStore User profile store
+     * @param segmentDurationMillis Length of each time segment in milliseconds
+     * @param maxEventsPerUserPerMonth Maximum events kept per user per month, or 0 for no cap
+     * @param capPolicy Policy to apply when a user reaches the cap
+     */
+    public EventStore(UserProfileStore userProfileStore, long segmentDurationMillis,
+                      int maxEventsPerUserPerMonth, UserEventQuota.CapPolicy capPolicy) {
+        this(userProfileStore, segmentDurationMillis, maxEventsPerUserPerMonth, capPolicy,
+                StorageMode.valueOf(
+                        Config.getString("eventStorageMode", Config.DEFAULT_EVENT_STORAGE_MODE).toUpperCase()));
+    }
+
+    /**
+     * Initialize event store with a custom segment duration, per-user cap and storage mode.
+     *
+     * @param userProfileStore User profile store
+     * @param segmentDurationMillis Length of each time segment in milliseconds
+     * @param maxEventsPerUserPerMonth Maximum events kept per user per month, or 0 for no cap
+     * @param capPolicy Policy to apply when a user reaches the cap
+     * @param storageMode Where segment events are kept
+     */
+    public EventStore(UserProfileStore userProfileStore, long segmentDurationMillis,
+                      int maxEventsPerUserPerMonth, UserEventQuota.CapPolicy capPolicy,
+                      StorageMode storageMode) {
+        if (segmentDurationMillis <= 0) {
+            throw new IllegalArgumentException("Segment duration must be positive: " + segmentDurationMillis);
+        }
+
         this.userProfileStore = userProfileStore;
+        this.segmentDurationMillis = segmentDurationMillis;
+        this.maxEventsPerUserPerMonth = maxEventsPerUserPerMonth;
+        this.capPolicy = capPolicy;
+        this.maxTrackedMonths = Config.DEFAULT_LOOKBACK_PERIOD_DAYS / 30 + 2;
+        this.quotaHistoryMonths = Config.getInt("quotaHistoryMonths", Config.QUOTA_HISTORY_MONTHS);
+        this.storageMode = storageMode;
+
+        for (int i = 0; i < deduplicationLocks.length; i++) {
+            deduplicationLocks[i] = new Object();
+        }
     }
-    
+
     /**
      * Add an event.
      *
@@ -28,28 +174,274 @@ public class EventStore {
      * @param userId ID of the user who triggered the event
      * @param properties Event properties
      * @param timestamp Event timestamp (Unix timestamp)
-     * @return Created event
+     * @return Created event, or null if it was rejected by the per-user cap
      */
     public Event addEvent(String eventName, String userId, Map<String, Object> properties, Long timestamp) {
-        // Create event
-        Event event = new Event(eventName, userId, properties, timestamp, null);
-        
-        // Store event
-        events.put(event.getEventId(), event);
-        
-        // Update event index
-        eventIndex.computeIfAbsent(eventName, k -> new HashSet<>()).add(event.getEventId());
-        
-        // Update user events
-        userEvents.computeIfAbsent(userId, k -> new ArrayList<>()).add(event.getEventId());
-        
-        // Update user profile
-        UserProfileStore.ProfileResult result = userProfileStore.getOrCreateProfile(userId, null);
-        result.getProfile().addEvent(event.getEventId());
-        
-        return event;
+        // Create event with properties in the event name's typed layout
+        return insertEvent(new Event(eventName, userId, schemaRegistry.encode(eventName, properties), timestamp, null),
+                true);
+    }
+
+    /**
+     * Add an event, suppressing retries of one already added with the same idempotency key.
+     *
+     * The event ID is derived from the user ID and the key, so keys only need to
+     * be unique per user. Keys are remembered for
+     * {@link Config#DEDUP_WINDOW_MILLIS} * {@link Config#DEDUP_WINDOW_COUNT} in a
+     * {@link DeduplicationFilter}; a possible match is confirmed by looking the
+     * event up in the segment of its timestamp, or in the segments of that
+     * horizon if no timestamp is given, so a filter false positive never drops
+     * an event.
+     *
+     * @param eventName Name of the event
+     * @param userId ID of the user who triggered the event
+     * @param properties Event properties
+     * @param timestamp Event timestamp (Unix timestamp)
+     * @param idempotencyKey Client-supplied key that identifies the event across retries, or null
+     * @return Created event, the earlier event if the key was already added, or null if it was
+     *         rejected by the per-user cap
+     */
+    public Event addEvent(String eventName, String userId, Map<String, Object> properties, Long timestamp,
+                          String idempotencyKey) {
+        if (idempotencyKey == null) {
+            return addEvent(eventName, userId, properties, timestamp);
+        }
+
+        EventId id = EventId.fromIdempotencyKey(userId, idempotencyKey);
+        long now = System.currentTimeMillis();
+
+        // Retries of one key serialize on the same lock, so only one of them inserts
+        synchronized (deduplicationLocks[Math.floorMod(id.hashCode(), deduplicationLocks.length)]) {
+            if (deduplicationFilter.mightContain(id, now)) {
+                Event existing = timestamp != null
+                        ? findStoredEvent(id, userId, timestamp, timestamp)
+                        : findStoredEvent(id, userId, now - DEDUP_HORIZON_MILLIS, now);
+                if (existing != null) {
+                    duplicateEvents.incrementAndGet();
+                    return existing;
+                }
+            }
+
+            Event event = insertEvent(new Event(id, null, eventName, userId,
+                    schemaRegistry.encode(eventName, properties), timestamp != null ? timestamp : now), true);
+            if (event != null) {
+                deduplicationFilter.put(id, now);
+            }
+            return event;
+        }
+    }
+
+    /**
+     * Store an event read back from a checkpoint or the write-ahead log, without
+     * logging it again.
+     *
+     * An event that is already stored is skipped, so checkpoints and the log may
+     * overlap. The user profile counts the event as of its timestamp. The event
+     * was admitted by the per-user cap when it was first added, and the
+     * evictions that made room for it are replayed from their own records, so
+     * the cap is not applied again.
+     *
+     * @param event Persisted event
+     * @return Stored event, or null if it was already stored
+     */
+    Event replayEvent(Event event) {
+        if (isStored(event)) {
+            return null;
+        }
+
+        Event stored = insertEvent(reencode(event), false);
+        if (stored != null) {
+            rememberReplayedKey(stored);
+        }
+        return stored;
+    }
+
+    /**
+     * Store a batch of events read back from a checkpoint, without logging them.
+     *
+     * Each event is handled like in {@link #replayEvent(Event)}, but the events
+     * of one segment are added under a single acquisition of its lock.
+     *
+     * @param events Persisted events
+     * @return Number of events stored
+     */
+    int replayEvents(List<Event> events) {
+        List<Event> encoded = new ArrayList<>(events.size());
+        for (Event persisted : events) {
+            if (!isStored(persisted)) {
+                encoded.add(reencode(persisted));
+            }
+        }
+        return storeReplayed(encoded);
+    }
+
+    /**
+     * Apply an eviction read back from the write-ahead log, without logging it again.
+     *
+     * The event is removed from the hot or cold tier and no longer counts in
+     * its profile or quota, and the removal is kept for the next checkpoint.
+     *
+     * @param removal Persisted removal
+     * @return Whether the event was stored
+     */
+    boolean replayRemoval(EventDelta.Removal removal) {
+        Event removed = removeEvent(removal.getEventId(), removal.getUserId(), removal.getTimestamp(), false);
+        if (removed == null) {
+            return false;
+        }
+
+        if (maxEventsPerUserPerMonth > 0) {
+            quotaFor(removal.getUserId()).remove(removal.getEventId(), removal.getTimestamp());
+        }
+        UserProfile profile = userProfileStore.getProfile(removal.getUserId());
+        if (profile != null) {
+            profile.removeEvent(removed.getEventName());
+        }
+        return true;
+    }
+
+    /**
+     * Apply removals read back from a checkpoint to the cold tier.
+     *
+     * Checkpoint restores skip the events that later removals name, so only
+     * events sealed into the cold tier before their removal are left to drop.
+     * Each cold segment reads its ID column once for all of its removals.
+     *
+     * @param removals Persisted removals
+     * @return Number of cold events removed
+     */
+    int replayRemovals(List<EventDelta.Removal> removals) throws IOException {
+        Map<Long, List<EventId>> byKey = new HashMap<>();
+        for (EventDelta.Removal removal : removals) {
+            byKey.computeIfAbsent(segmentStart(removal.getTimestamp()), k -> new ArrayList<>())
+                    .add(removal.getEventId());
+        }
+
+        int removed = 0;
+        synchronized (tierLock) {
+            for (Map.Entry<Long, List<EventId>> entry : byKey.entrySet()) {
+                ColdSegment cold = coldSegments.get(entry.getKey());
+                if (cold == null) {
+                    continue;
+                }
+                removed += cold.removeAll(entry.getValue());
+                coldCache.remove(cold);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Count the events of the cold tier in their users' profiles and quotas.
+     *
+     * Restores skip events already sealed into the cold tier, and profile
+     * checkpoints do not keep event counts, so the counts of those events are
+     * rebuilt from the ID, user, name and timestamp columns of each segment
+     * file. Call it once, after the checkpoint removals are applied, so the
+     * removed events are left out.
+     *
+     * @param executor Executor for the segments
+     * @return Number of events counted
+     */
+    long restoreColdTier(Executor executor) throws IOException {
+        List<CompletableFuture<Long>> tasks = new ArrayList<>();
+        for (ColdSegment cold : new ArrayList<>(coldSegments.values())) {
+            tasks.add(CompletableFuture.supplyAsync(() -> {
+                long[] counted = new long[1];
+                try {
+                    cold.forEachEvent((eventId, userId, eventName, timestamp) -> {
+                        if (maxEventsPerUserPerMonth > 0) {
+                            quotaFor(userId).restore(eventId, timestamp);
+                        }
+                        userProfileStore.getOrRestoreProfile(userId, timestamp).restoreEvent(eventName, timestamp);
+                        counted[0]++;
+                    });
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to read cold segment: " + cold.getFile(), e);
+                }
+                return counted[0];
+            }, executor));
+        }
+
+        return CheckpointStore.await(tasks);
+    }
+
+    /**
+     * Bulk load events from column vectors, such as the columns of an NCF file,
+     * without logging them.
+     *
+     * Each row's properties are encoded straight from the property columns
+     * into the typed slots of its event name, so no map is built per row.
+     * Rows whose event is already stored are skipped, and the rest are added
+     * through the batch path of {@link #replayEvents(List)}.
+     *
+     * @param eventIds Event ID column
+     * @param eventNames Event name column
+     * @param userIds User ID column
+     * @param timestamps Timestamp column (Unix timestamps)
+     * @param propertyColumns Property columns by key; null values are absent properties
+     * @return Number of events stored
+     */
+    int loadColumns(List<Object> eventIds, List<Object> eventNames, List<Object> userIds, List<Object> timestamps,
+                    Map<String, List<Object>> propertyColumns) {
+        String[] keys = propertyColumns.keySet().toArray(new String[0]);
+        List<?>[] columns = new List<?>[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            columns[i] = propertyColumns.get(keys[i]);
+        }
+        Object[] values = new Object[keys.length];
+
+        int stored = 0;
+        List<Event> batch = new ArrayList<>(LOAD_BATCH_SIZE);
+        for (int row = 0; row < eventIds.size(); row++) {
+            String eventId = (String) eventIds.get(row);
+            EventId id = EventId.fromString(eventId);
+            String userId = (String) userIds.get(row);
+            long timestamp = ((Number) timestamps.get(row)).longValue();
+            if (isStored(id, userId, timestamp)) {
+                continue;
+            }
+
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = columns[i].get(row);
+            }
+            String eventName = (String) eventNames.get(row);
+            // Keep the stored spelling of the ID if it is not the canonical form, like the Event constructor
+            batch.add(new Event(id, eventId.equals(id.toString()) ? null : eventId, eventName, userId,
+                    schemaRegistry.getSchema(eventName).encode(keys, values), timestamp));
+            if (batch.size() == LOAD_BATCH_SIZE) {
+                stored += storeReplayed(batch);
+                batch.clear();
+            }
+        }
+        return stored + storeReplayed(batch);
+    }
+
+    /**
+     * Add encoded events that are not stored yet, grouped by segment.
+     */
+    private int storeReplayed(List<Event> events) {
+        Map<Long, List<Event>> batches = new LinkedHashMap<>();
+        for (Event event : events) {
+            restoreQuota(event);
+            batches.computeIfAbsent(segmentStart(event.getTimestamp()), k -> new ArrayList<>()).add(event);
+        }
+
+        int stored = 0;
+        for (List<Event> batch : batches.values()) {
+            while (!segmentFor(batch.get(0).getTimestamp()).addAll(batch)) {
+                Thread.yield();
+            }
+            for (Event event : batch) {
+                userProfileStore.getOrRestoreProfile(event.getUserId(), event.getTimestamp())
+                        .restoreEvent(event.getEventName(), event.getTimestamp());
+                rememberReplayedKey(event);
+            }
+            stored += batch.size();
+        }
+        return stored;
     }
-    
+
     /**
      * Get an event.
      *
@@ -57,9 +449,56 @@ public class EventStore {
      * @return Event or null if not found
      */
     public Event getEvent(String eventId) {
-        return events.get(eventId);
+        EventId id = EventId.fromString(eventId);
+
+        // Time-ordered IDs carry the event timestamp, which names the segment
+        long timestamp = id.getTimestamp();
+        if (timestamp >= 0) {
+            long key = segmentStart(timestamp);
+            Iterator<EventSegment> candidates = segmentIterator(key, key, cold -> true);
+            while (candidates.hasNext()) {
+                Event event = candidates.next().get(id);
+                if (event != null) {
+                    return event;
+                }
+            }
+        }
+
+        // Other IDs, such as client-supplied ones, may be in any segment; cold
+        // segments are only read if their summary lists the ID
+        for (EventSegment segment : segments.descendingMap().values()) {
+            Event event = segment.get(id);
+            if (event != null) {
+                return event;
+            }
+        }
+        for (ColdSegment cold : coldSegments.descendingMap().values()) {
+            if (!cold.mayContainEvent(id)) {
+                continue;
+            }
+            Event event = loadCold(cold).get(id);
+            if (event != null) {
+                return event;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Get all events, ordered by segment.
+     *
+     * @return List of all events
+     */
+    public List<Event> getAllEvents() {
+        List<Event> result = new ArrayList<>();
+        Iterator<EventSegment> it = segmentIterator(Long.MIN_VALUE, Long.MAX_VALUE, cold -> true);
+        while (it.hasNext()) {
+            it.next().collectAll(result);
+        }
+        return result;
     }
-    
+
     /**
      * Get events by name.
      *
@@ -67,15 +506,31 @@ public class EventStore {
      * @return List of events with the given name
      */
     public List<Event> getEventsByName(String eventName) {
-        if (!eventIndex.containsKey(eventName)) {
-            return Collections.emptyList();
+        List<Event> result = new ArrayList<>();
+        Iterator<EventSegment> it = segmentIterator(Long.MIN_VALUE, Long.MAX_VALUE,
+                cold -> cold.mayContainEventName(eventName));
+        while (it.hasNext()) {
+            it.next().collectByName(eventName, result);
         }
-        
-        return eventIndex.get(eventName).stream()
-                .map(events::get)
-                .collect(Collectors.toList());
+        return result;
+    }
+
+    /**
+     * Get events in a time range.
+     *
+     * @param startTime Start time (Unix timestamp)
+     * @param endTime End time (Unix timestamp)
+     * @return List of events in the given time range
+     */
+    public List<Event> getEventsInTimerange(long startTime, long endTime) {
+        List<Event> result = new ArrayList<>();
+        Iterator<EventSegment> it = segmentsInRange(startTime, endTime, cold -> true);
+        while (it.hasNext()) {
+            it.next().collectInTimerange(startTime, endTime, result);
+        }
+        return result;
     }
-    
+
     /**
      * Get events for a user.
      *
@@ -83,15 +538,67 @@ public class EventStore {
      * @return List of events for the user
      */
     public List<Event> getUserEvents(String userId) {
-        if (!userEvents.containsKey(userId)) {
-            return Collections.emptyList();
+        List<Event> result = new ArrayList<>();
+        Iterator<EventSegment> it = segmentIterator(Long.MIN_VALUE, Long.MAX_VALUE,
+                cold -> cold.mayContainUser(userId));
+        while (it.hasNext()) {
+            it.next().collectByUser(userId, result);
         }
-        
-        return userEvents.get(userId).stream()
-                .map(events::get)
-                .collect(Collectors.toList());
+        return result;
+    }
+
+    /**
+     * Get the IDs of a user's events.
+     *
+     * The returned collection is a lazy view over the store's user index: it
+     * walks the segments one at a time when iterated and reflects later changes.
+     *
+     * @param userId User ID
+     * @return View of the user's event IDs, ordered by segment
+     */
+    public Collection<String> getUserEventIds(String userId) {
+        return new AbstractCollection<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                Iterator<EventSegment> segmentIterator = segmentIterator(Long.MIN_VALUE, Long.MAX_VALUE,
+                        cold -> cold.mayContainUser(userId));
+
+                return new Iterator<String>() {
+                    private Iterator<String> current = Collections.emptyIterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while (!current.hasNext() && segmentIterator.hasNext()) {
+                            List<String> ids = new ArrayList<>();
+                            segmentIterator.next().collectUserEventIds(userId, ids);
+                            current = ids.iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return current.next();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                int size = 0;
+                Iterator<EventSegment> it = segmentIterator(Long.MIN_VALUE, Long.MAX_VALUE,
+                        cold -> cold.mayContainUser(userId));
+                while (it.hasNext()) {
+                    size += it.next().getUserEventCount(userId);
+                }
+                return size;
+            }
+        };
     }
-    
+
     /**
      * Get events for a user with a specific name.
      *
@@ -100,11 +607,77 @@ public class EventStore {
      * @return List of events for the user with the given name
      */
     public List<Event> getUserEventsByName(String userId, String eventName) {
-        return getUserEvents(userId).stream()
-                .filter(event -> event.getEventName().equals(eventName))
+        return streamUserEvents(userId, eventName, Long.MIN_VALUE, Long.MAX_VALUE, null, false)
                 .collect(Collectors.toList());
     }
-    
+
+    /**
+     * Scan events without building intermediate lists.
+     *
+     * Name and time bounds are applied against the segment indexes before an
+     * event is read, and the predicate before it is handed out. The spliterator
+     * splits by segment for parallel consumers.
+     *
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @return Spliterator over the matching events, ordered by segment
+     */
+    public Spliterator<Event> scanEvents(String eventName, long startTime, long endTime,
+                                         Predicate<? super Event> predicate) {
+        Predicate<ColdSegment> coldFilter = eventName != null ? cold -> cold.mayContainEventName(eventName) : cold -> true;
+        return new EventScanSpliterator(scanSegments(startTime, endTime, coldFilter),
+                eventName, null, startTime, endTime, predicate);
+    }
+
+    /**
+     * Scan a user's events without building intermediate lists.
+     *
+     * @param userId User ID
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @return Spliterator over the matching events, ordered by segment
+     */
+    public Spliterator<Event> scanUserEvents(String userId, String eventName, long startTime, long endTime,
+                                             Predicate<? super Event> predicate) {
+        return new EventScanSpliterator(scanSegments(startTime, endTime, cold -> cold.mayContainUser(userId)),
+                eventName, userId, startTime, endTime, predicate);
+    }
+
+    /**
+     * Stream events without building intermediate lists.
+     *
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @param parallel Whether the stream may scan segments in parallel
+     * @return Stream of the matching events
+     */
+    public Stream<Event> streamEvents(String eventName, long startTime, long endTime,
+                                      Predicate<? super Event> predicate, boolean parallel) {
+        return StreamSupport.stream(scanEvents(eventName, startTime, endTime, predicate), parallel);
+    }
+
+    /**
+     * Stream a user's events without building intermediate lists.
+     *
+     * @param userId User ID
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @param parallel Whether the stream may scan segments in parallel
+     * @return Stream of the matching events
+     */
+    public Stream<Event> streamUserEvents(String userId, String eventName, long startTime, long endTime,
+                                          Predicate<? super Event> predicate, boolean parallel) {
+        return StreamSupport.stream(scanUserEvents(userId, eventName, startTime, endTime, predicate), parallel);
+    }
+
     /**
      * Get events for a user in a time range.
      *
@@ -114,8 +687,747 @@ public class EventStore {
      * @return List of events for the user in the given time range
      */
     public List<Event> getUserEventsInTimerange(String userId, long startTime, long endTime) {
-        return getUserEvents(userId).stream()
-                .filter(event -> startTime <= event.getTimestamp() && event.getTimestamp() <= endTime)
-                .collect(Collectors.toList());
+        List<Event> result = new ArrayList<>();
+        Iterator<EventSegment> it = segmentsInRange(startTime, endTime, cold -> cold.mayContainUser(userId));
+        while (it.hasNext()) {
+            it.next().collectByUser(userId, startTime, endTime, result);
+        }
+        return result;
+    }
+
+    /**
+     * Take a point-in-time snapshot of the store.
+     *
+     * Segments are pinned rather than copied. Retention and tiering wait while
+     * the segments are pinned; ingestion does not.
+     *
+     * @return Snapshot, which must be closed once read
+     */
+    public EventStoreSnapshot snapshot() {
+        List<EventStoreSnapshot.Part> parts = new ArrayList<>();
+
+        // Holding the tier lock keeps segments from moving between the maps meanwhile
+        synchronized (tierLock) {
+            for (EventSegment segment : segments.values()) {
+                parts.add(new EventStoreSnapshot.Part(segment.pin()));
+            }
+            for (ColdSegment cold : coldSegments.values()) {
+                cold.pin();
+                parts.add(new EventStoreSnapshot.Part(cold, this::loadPinnedCold));
+            }
+        }
+
+        // Order by start time; when both tiers hold a time range, the hot segment comes first
+        parts.sort(Comparator.comparingLong(EventStoreSnapshot.Part::getStartTime));
+        return new EventStoreSnapshot(parts);
+    }
+
+    /**
+     * Capture the events stored since the last committed checkpoint.
+     *
+     * Each in-memory segment keeps a checkpoint mark, the number of its slots
+     * already persisted; the delta covers the slots past the mark, so its size
+     * follows the ingest volume rather than the store size. Only one delta
+     * should be outstanding at a time.
+     *
+     * @return Delta, which must be committed once persisted or released otherwise
+     */
+    public EventDelta captureChanges() {
+        List<EventDelta.Range> ranges = new ArrayList<>();
+        synchronized (checkpointMarks) {
+            // Segments that were sealed or dropped no longer need a mark
+            checkpointMarks.keySet().removeIf(segment -> segments.get(segment.getStartTime()) != segment);
+
+            for (EventSegment segment : segments.values()) {
+                int mark = checkpointMarks.getOrDefault(segment, 0);
+                EventSegment.Version version = segment.pin();
+                if (version.getSlotCount() > mark) {
+                    ranges.add(new EventDelta.Range(version, mark));
+                } else {
+                    version.release();
+                }
+            }
+
+            List<EventDelta.Removal> removals = new ArrayList<>(unpersistedRemovals);
+            unpersistedRemovals.clear();
+            return new EventDelta(ranges, removals, checkpointMarks, unpersistedRemovals);
+        }
+    }
+
+    /**
+     * Drop every segment that ends at or before the cutoff time.
+     *
+     * Whole segments are unlinked together with their index slices; no events
+     * are removed one at a time. Events in the segment that straddles the cutoff
+     * are kept until that segment expires as a whole.
+     *
+     * @param cutoffTime Cutoff time (Unix timestamp)
+     * @return Number of events dropped
+     */
+    public long dropSegmentsBefore(long cutoffTime) {
+        synchronized (tierLock) {
+            return dropExpiredSegments(cutoffTime);
+        }
+    }
+
+    /**
+     * Unlink and release the expired segments of both tiers.
+     */
+    private long dropExpiredSegments(long cutoffTime) {
+        long dropped = 0;
+
+        // A segment keyed at k covers [k, k + duration), so it is fully expired
+        // when k + duration <= cutoffTime
+        Map<Long, EventSegment> expired = segments.headMap(cutoffTime - segmentDurationMillis, true);
+        List<EventSegment> dropping = new ArrayList<>(expired.values());
+        expired.clear();
+
+        for (EventSegment segment : dropping) {
+            dropped += segment.getEventCount();
+            segment.release();
+        }
+
+        // Expired cold segments go with their files
+        Map<Long, ColdSegment> expiredCold = coldSegments.headMap(cutoffTime - segmentDurationMillis, true);
+        List<ColdSegment> droppingCold = new ArrayList<>(expiredCold.values());
+        expiredCold.clear();
+
+        for (ColdSegment cold : droppingCold) {
+            dropped += cold.getEventCount();
+            coldCache.remove(cold);
+            cold.delete();
+        }
+
+        return dropped;
+    }
+
+    /**
+     * Enable the cold tier.
+     *
+     * Segment files already in the directory are registered, so events sealed
+     * by an earlier run stay readable.
+     *
+     * @param directory Directory for sealed segment files
+     * @param hotTierAgeMillis Age after which a segment moves to the cold tier
+     * @param hotTierMemoryBudgetBytes Memory the hot tier may use before its oldest segments move
+     */
+    public void enableColdTier(File directory, long hotTierAgeMillis, long hotTierMemoryBudgetBytes)
+            throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create cold tier directory: " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    // Left over from an interrupted seal; the segment is still in its old file or in memory
+                    file.delete();
+                    continue;
+                }
+                if (ColdSegment.isRetiredFile(file)) {
+                    // Replaced while a snapshot was reading it
+                    file.delete();
+                    continue;
+                }
+
+                ColdSegment cold = ColdSegment.open(file, segmentDurationMillis);
+                if (cold != null) {
+                    coldSegments.put(cold.getStartTime(), cold);
+                }
+            }
+        }
+
+        this.hotTierAgeMillis = hotTierAgeMillis;
+        this.hotTierMemoryBudgetBytes = hotTierMemoryBudgetBytes;
+        this.coldDirectory = directory;
+    }
+
+    /**
+     * Run a step on the segment files of the cold tier, such as linking them into a backup.
+     *
+     * No segment is sealed, merged or dropped until the step returns. Events
+     * that checkpoints leave out because their segment was sealed are in these
+     * files, so checkpoints the step links as well cover every stored event.
+     *
+     * @param step Step given the files of the cold segments
+     * @return Result of the step
+     */
+    public <T> T withColdTierFiles(ColdTierStep<T> step) throws IOException {
+        synchronized (tierLock) {
+            List<File> files = new ArrayList<>();
+            for (ColdSegment cold : coldSegments.values()) {
+                files.add(cold.getFile());
+            }
+            return step.run(files);
+        }
+    }
+
+    /**
+     * Step run on the segment files of the cold tier.
+     */
+    public interface ColdTierStep<T> {
+        T run(List<File> files) throws IOException;
+    }
+
+    /**
+     * Move segments from memory to the cold tier.
+     *
+     * Segments that ended before the hot tier age are sealed first. Then, while
+     * the hot tier is over its memory budget, the oldest segments are sealed;
+     * the newest segment always stays in memory.
+     *
+     * @param now Current time (Unix timestamp)
+     * @return Number of segments moved
+     */
+    public int moveSegmentsToColdTier(long now) throws IOException {
+        if (coldDirectory == null) {
+            return 0;
+        }
+
+        int moved = 0;
+
+        // Age boundary: segments that ended at or before the cutoff
+        long cutoffTime = now - hotTierAgeMillis;
+        for (EventSegment segment : new ArrayList<>(segments.headMap(cutoffTime - segmentDurationMillis, true).values())) {
+            if (sealSegment(segment)) {
+                moved++;
+            }
+        }
+
+        // Memory boundary: oldest segments first
+        List<EventSegment> hot = new ArrayList<>(segments.values());
+        long usage = 0;
+        for (EventSegment segment : hot) {
+            usage += segment.getMemoryUsage();
+        }
+        for (int i = 0; i < hot.size() - 1 && usage > hotTierMemoryBudgetBytes; i++) {
+            EventSegment segment = hot.get(i);
+            long segmentUsage = segment.getMemoryUsage();
+            if (sealSegment(segment)) {
+                usage -= segmentUsage;
+                moved++;
+            }
+        }
+
+        return moved;
+    }
+
+    /**
+     * Attach a write-ahead log that every stored event is written to.
+     *
+     * @param writeAheadLog Log, or null to stop logging
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+
+    /**
+     * Get the number of events rejected by the per-user cap.
+     *
+     * @return Number of rejected events
+     */
+    public long getRejectedEventCount() {
+        return rejectedEvents.get();
+    }
+
+    /**
+     * Get the number of retried events suppressed by their idempotency key.
+     *
+     * @return Number of duplicate events
+     */
+    public long getDuplicateEventCount() {
+        return duplicateEvents.get();
+    }
+
+    /**
+     * Get the number of stored events evicted to make room under the per-user cap.
+     *
+     * @return Number of evicted events
+     */
+    public long getEvictedEventCount() {
+        return evictedEvents.get();
+    }
+
+    /**
+     * Get the cap policy applied at ingest.
+     *
+     * @return Cap policy
+     */
+    public UserEventQuota.CapPolicy getCapPolicy() {
+        return capPolicy;
+    }
+
+    /**
+     * Get the property schemas inferred from ingested events.
+     *
+     * @return Property schema registry
+     */
+    public PropertySchemaRegistry getSchemaRegistry() {
+        return schemaRegistry;
+    }
+
+    /**
+     * Get where segment events are kept.
+     *
+     * @return Storage mode
+     */
+    public StorageMode getStorageMode() {
+        return storageMode;
+    }
+
+    /**
+     * Get the number of time segments currently held in memory.
+     *
+     * @return Number of segments
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Get the number of time segments sealed into the cold tier.
+     *
+     * @return Number of cold segments
+     */
+    public int getColdSegmentCount() {
+        return coldSegments.size();
+    }
+
+    /**
+     * Get the memory held by the in-memory segments.
+     *
+     * @return Memory usage in bytes (estimated for heap storage)
+     */
+    public long getHotMemoryUsage() {
+        long usage = 0;
+        for (EventSegment segment : segments.values()) {
+            usage += segment.getMemoryUsage();
+        }
+        return usage;
+    }
+
+    /**
+     * Get the segment length in milliseconds.
+     *
+     * @return Segment duration in milliseconds
+     */
+    public long getSegmentDurationMillis() {
+        return segmentDurationMillis;
+    }
+
+    /**
+     * Store an event, applying the per-user cap and updating the user profile.
+     *
+     * A logged event is written to the write-ahead log once it is stored, so
+     * every record logged before a log rotation is already in memory when the
+     * rotation returns, and the call waits for the log sync. An event that is
+     * not logged is being restored and counts in its profile as of its timestamp.
+     */
+    private Event insertEvent(Event event, boolean log) {
+        String userId = event.getUserId();
+
+        // Enforce the per-user monthly cap on new events only
+        if (log) {
+            UserEventQuota.Admission admission = admit(event);
+            if (admission != null && !admission.isAdmitted()) {
+                return null;
+            }
+        } else {
+            restoreQuota(event);
+        }
+
+        // Store event and update the segment's indexes; a segment sealed into the
+        // cold tier meanwhile refuses the add and is replaced by a fresh one
+        while (!segmentFor(event.getTimestamp()).add(event)) {
+            Thread.yield();
+        }
+
+        // Update user profile
+        if (log) {
+            userProfileStore.getOrCreateProfile(userId, null).getProfile().addEvent(event.getEventName());
+        } else {
+            userProfileStore.getOrRestoreProfile(userId, event.getTimestamp())
+                    .restoreEvent(event.getEventName(), event.getTimestamp());
+        }
+
+        WriteAheadLog wal = log ? writeAheadLog : null;
+        if (wal != null) {
+            wal.awaitDurable(wal.appendEvent(event));
+        }
+        return event;
+    }
+
+    /**
+     * Apply the per-user monthly cap to an event about to be stored, removing
+     * the stored event it evicts, if any.
+     *
+     * @return Admission, or null if there is no cap
+     */
+    private UserEventQuota.Admission admit(Event event) {
+        if (maxEventsPerUserPerMonth <= 0) {
+            return null;
+        }
+
+        UserEventQuota.Admission admission = quotaFor(event.getUserId()).admit(event.getId(), event.getTimestamp());
+
+        if (!admission.isAdmitted()) {
+            rejectedEvents.incrementAndGet();
+        } else if (admission.getEvictedEventId() != null) {
+            Event evicted = removeEvent(admission.getEvictedEventId(), event.getUserId(),
+                    admission.getEvictedTimestamp(), true);
+            UserProfile profile = evicted != null ? userProfileStore.getProfile(event.getUserId()) : null;
+            if (profile != null) {
+                profile.removeEvent(evicted.getEventName());
+            }
+            evictedEvents.incrementAndGet();
+        }
+        return admission;
+    }
+
+    /**
+     * Count a replayed or restored event in its user's quota, without applying the cap.
+     */
+    private void restoreQuota(Event event) {
+        if (maxEventsPerUserPerMonth > 0) {
+            quotaFor(event.getUserId()).restore(event.getId(), event.getTimestamp());
+        }
+    }
+
+    /**
+     * Get the quota of a user, creating it on first use.
+     */
+    private UserEventQuota quotaFor(String userId) {
+        return userQuotas.computeIfAbsent(userId,
+                k -> new UserEventQuota(maxEventsPerUserPerMonth, capPolicy, maxTrackedMonths, quotaHistoryMonths));
+    }
+
+    /**
+     * Rebuild a persisted event with its properties in the event name's typed layout.
+     */
+    private Event reencode(Event event) {
+        return new Event(event.getId(), event.getExternalId(), event.getEventName(), event.getUserId(),
+                schemaRegistry.encode(event.getEventName(), event.getProperties()), event.getTimestamp());
+    }
+
+    /**
+     * Check whether an event is already stored in the segment of its timestamp.
+     */
+    private boolean isStored(Event event) {
+        return isStored(event.getId(), event.getUserId(), event.getTimestamp());
+    }
+
+    private boolean isStored(EventId id, String userId, long timestamp) {
+        long key = segmentStart(timestamp);
+        EventSegment segment = segments.get(key);
+        if (segment != null && segment.get(id) != null) {
+            return true;
+        }
+
+        ColdSegment cold = coldSegments.get(key);
+        return cold != null && cold.mayContainUser(userId) && loadCold(cold).get(id) != null;
+    }
+
+    /**
+     * Remove a single event evicted by the per-user cap, and keep the removal
+     * for the next checkpoint.
+     *
+     * A logged removal is appended to the write-ahead log without waiting; the
+     * event that caused the eviction is logged after it and waits for both.
+     *
+     * @return Removed event, or null if it is not stored
+     */
+    private Event removeEvent(EventId eventId, String userId, long timestamp, boolean log) {
+        EventDelta.Removal removal = new EventDelta.Removal(eventId, userId, timestamp);
+        synchronized (checkpointMarks) {
+            unpersistedRemovals.add(removal);
+        }
+        WriteAheadLog wal = log ? writeAheadLog : null;
+        if (wal != null) {
+            wal.appendRemoval(removal);
+        }
+
+        long key = segmentStart(timestamp);
+        EventSegment segment = segments.get(key);
+        Event removed = segment != null ? segment.remove(eventId) : null;
+        if (removed != null) {
+            return removed;
+        }
+
+        ColdSegment cold = coldSegments.get(key);
+        if (cold != null && cold.mayContainUser(userId)) {
+            // The file is immutable, so read the event before marking it removed
+            removed = loadCold(cold).get(eventId);
+            cold.remove(eventId);
+            EventSegment cached = coldCache.get(cold);
+            if (cached != null) {
+                cached.remove(eventId);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Find a stored event among the segments of a time range, skipping cold
+     * segments whose summary rules out the user.
+     */
+    private Event findStoredEvent(EventId eventId, String userId, long startTime, long endTime) {
+        Iterator<EventSegment> candidates = segmentsInRange(startTime, endTime, cold -> cold.mayContainUser(userId));
+        while (candidates.hasNext()) {
+            Event event = candidates.next().get(eventId);
+            if (event != null) {
+                return event;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Record the key of a replayed event added with an idempotency key, so
+     * retries are still suppressed after a restart.
+     *
+     * The time it was first added is not persisted, so events whose timestamp
+     * lies within the horizon are remembered as of now.
+     */
+    private void rememberReplayedKey(Event event) {
+        long now = System.currentTimeMillis();
+        if (event.getId().isIdempotencyKeyed() && event.getTimestamp() >= now - DEDUP_HORIZON_MILLIS) {
+            deduplicationFilter.put(event.getId(), now);
+        }
+    }
+
+    /**
+     * Seal a segment into the cold tier.
+     *
+     * The file is written without holding the tier lock or the segment's lock,
+     * so reads, adds and snapshots carry on meanwhile; late events for a time
+     * range already in the cold tier are merged with the existing file. Both
+     * locks are only taken to install the file, once the segment and the
+     * existing file are known to be unchanged since they were read. A segment
+     * that keeps changing is written under the locks after
+     * {@link #SEAL_ATTEMPTS} tries.
+     *
+     * @return Whether the segment was sealed by this call
+     */
+    private boolean sealSegment(EventSegment segment) throws IOException {
+        long key = segment.getStartTime();
+
+        // One seal at a time, since the file is written to a fixed temporary name
+        synchronized (sealLock) {
+            for (int attempt = 1; attempt < SEAL_ATTEMPTS; attempt++) {
+                int modifications = segment.getModificationCount();
+                ColdSegment existing = coldSegments.get(key);
+                int existingRemovals = existing != null ? existing.getRemovedCount() : 0;
+                if (segment.isSealed()) {
+                    return false;
+                }
+
+                ColdSegment.Pending pending = writeSealed(segment, existing);
+                synchronized (tierLock) {
+                    synchronized (segment) {
+                        if (segment.isSealed() || segments.get(key) != segment) {
+                            // Sealed by another path or dropped by retention meanwhile
+                            pending.discard();
+                            return false;
+                        }
+                        if (segment.getModificationCount() == modifications && coldSegments.get(key) == existing
+                                && (existing == null || existing.getRemovedCount() == existingRemovals)) {
+                            installSealed(segment, existing, pending);
+                            return true;
+                        }
+                    }
+                }
+                pending.discard();
+            }
+
+            synchronized (tierLock) {
+                synchronized (segment) {
+                    if (segment.isSealed() || segments.get(key) != segment) {
+                        return false;
+                    }
+                    ColdSegment existing = coldSegments.get(key);
+                    installSealed(segment, existing, writeSealed(segment, existing));
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the events of a segment, merged with those of the existing cold
+     * file for its time range, next to the segment file.
+     */
+    private ColdSegment.Pending writeSealed(EventSegment segment, ColdSegment existing) throws IOException {
+        List<Event> events = new ArrayList<>();
+        segment.collectAll(events);
+        if (existing != null) {
+            // Keep retention from deleting the file while it is read
+            existing.pin();
+            try {
+                existing.load().collectAll(events);
+            } finally {
+                existing.unpin();
+            }
+        }
+        return ColdSegment.prepare(coldDirectory, segment.getStartTime(), segment.getEndTime(), events);
+    }
+
+    /**
+     * Install a sealed segment's file and unlink the segment from memory.
+     *
+     * Called with the tier lock and the segment's lock held.
+     */
+    private void installSealed(EventSegment segment, ColdSegment existing, ColdSegment.Pending pending)
+            throws IOException {
+        if (existing != null && existing.isPinned()) {
+            // Snapshots keep reading the old file until they are closed
+            existing.retire();
+        }
+
+        ColdSegment cold = pending.install();
+        coldSegments.put(cold.getStartTime(), cold);
+        if (existing != null) {
+            coldCache.remove(existing);
+            if (existing.isRetired()) {
+                existing.delete();
+            }
+        }
+
+        segments.remove(segment.getStartTime(), segment);
+        segment.seal();
+    }
+
+    /**
+     * Read a cold segment, going through the cache.
+     */
+    private EventSegment loadCold(ColdSegment cold) {
+        EventSegment segment = coldCache.get(cold);
+        if (segment != null) {
+            return segment;
+        }
+
+        try {
+            segment = cold.load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read cold segment: " + cold.getFile(), e);
+        }
+        coldCache.put(cold, segment);
+        return segment;
+    }
+
+    /**
+     * Read a cold segment pinned by a snapshot, bypassing the cache once the
+     * segment has been replaced or dropped.
+     */
+    private EventSegment loadPinnedCold(ColdSegment cold) {
+        if (coldSegments.get(cold.getStartTime()) == cold) {
+            return loadCold(cold);
+        }
+
+        try {
+            return cold.load();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read cold segment: " + cold.getFile(), e);
+        }
+    }
+
+    /**
+     * Get the segment that holds the given timestamp, creating it if needed.
+     */
+    private EventSegment segmentFor(long timestamp) {
+        return segments.computeIfAbsent(segmentStart(timestamp), k -> {
+            EventSlots slots = storageMode == StorageMode.OFF_HEAP
+                    ? new OffHeapEventArena(Config.OFF_HEAP_CHUNK_SIZE_BYTES)
+                    : new HeapEventSlots();
+            return new EventSegment(k, k + segmentDurationMillis, slots);
+        });
+    }
+
+    /**
+     * Get the start time of the segment that holds the given timestamp.
+     */
+    private long segmentStart(long timestamp) {
+        return Math.floorDiv(timestamp, segmentDurationMillis) * segmentDurationMillis;
+    }
+
+    /**
+     * Get the first segment key that may hold events at or after a start time,
+     * without overflowing for open-ended ranges.
+     */
+    private long rangeStart(long startTime) {
+        if (startTime < Long.MIN_VALUE + segmentDurationMillis) {
+            return Long.MIN_VALUE;
+        }
+        return segmentStart(startTime);
+    }
+
+    /**
+     * Get the segments that may hold events in the given time range.
+     */
+    private Iterator<EventSegment> segmentsInRange(long startTime, long endTime, Predicate<ColdSegment> coldFilter) {
+        if (startTime > endTime) {
+            return Collections.emptyIterator();
+        }
+
+        return segmentIterator(rangeStart(startTime), endTime, coldFilter);
+    }
+
+    /**
+     * Iterate over the hot and cold segments whose start lies in [fromKey, toKey],
+     * ordered by start time.
+     *
+     * Cold segments are loaded lazily, and only if the filter accepts their summary.
+     */
+    private Iterator<EventSegment> segmentIterator(long fromKey, long toKey, Predicate<ColdSegment> coldFilter) {
+        if (coldSegments.isEmpty()) {
+            return segments.subMap(fromKey, true, toKey, true).values().iterator();
+        }
+        return segmentSuppliers(fromKey, toKey, coldFilter).stream().map(Supplier::get).iterator();
+    }
+
+    /**
+     * Get the segments that may hold events in the given time range, for a scan.
+     */
+    private List<Supplier<EventSegment.Version>> scanSegments(long startTime, long endTime,
+                                                              Predicate<ColdSegment> coldFilter) {
+        if (startTime > endTime) {
+            return Collections.emptyList();
+        }
+
+        List<Supplier<EventSegment.Version>> result = new ArrayList<>();
+        for (Supplier<EventSegment> supplier : segmentSuppliers(rangeStart(startTime), endTime, coldFilter)) {
+            result.add(() -> supplier.get().latest());
+        }
+        return result;
+    }
+
+    /**
+     * List the hot and cold segments whose start lies in [fromKey, toKey], ordered
+     * by start time, without loading the cold ones.
+     *
+     * When both tiers hold a segment for the same time range, the hot one comes first.
+     */
+    private List<Supplier<EventSegment>> segmentSuppliers(long fromKey, long toKey, Predicate<ColdSegment> coldFilter) {
+        List<Supplier<EventSegment>> result = new ArrayList<>();
+        Iterator<EventSegment> hot = segments.subMap(fromKey, true, toKey, true).values().iterator();
+        Iterator<ColdSegment> cold = coldSegments.subMap(fromKey, true, toKey, true).values().iterator();
+        EventSegment nextHot = hot.hasNext() ? hot.next() : null;
+        ColdSegment nextCold = cold.hasNext() ? cold.next() : null;
+
+        while (nextHot != null || nextCold != null) {
+            if (nextHot != null && (nextCold == null || nextHot.getStartTime() <= nextCold.getStartTime())) {
+                EventSegment segment = nextHot;
+                result.add(() -> segment);
+                nextHot = hot.hasNext() ? hot.next() : null;
+            } else {
+                ColdSegment segment = nextCold;
+                if (coldFilter.test(segment)) {
+                    result.add(() -> loadCold(segment));
+                }
+                nextCold = cold.hasNext() ? cold.next() : null;
+            }
+        }
+
+        return result;
     }
 }
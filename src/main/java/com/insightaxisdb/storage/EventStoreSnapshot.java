@@ -0,0 +1,245 @@
+package com.insightaxisdb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Point-in-time view of an {@link EventStore}.
+ *
+ * Taking a snapshot copies no events: it pins a {@link EventSegment.Version}
+ * of every in-memory segment and the file of every cold segment. Reads through
+ * the snapshot see the events stored when it was taken, however many events
+ * are added, evicted or expired meanwhile, and neither side waits for the
+ * other beyond the per-step segment lock.
+ *
+ * Cold segments are read from their pinned files; an event evicted from a
+ * cold segment by the per-user cap after the snapshot was taken may be
+ * missing from it.
+ *
+ * A snapshot must be closed once the reads are done. Until then, segments
+ * dropped by retention or moved to the cold tier keep their memory and files.
+ */
+public class EventStoreSnapshot implements AutoCloseable {
+    private final List<Part> parts;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    EventStoreSnapshot(List<Part> parts) {
+        this.parts = parts;
+    }
+
+    /**
+     * Get all events, ordered by segment.
+     *
+     * @return List of all events
+     */
+    public List<Event> getAllEvents() {
+        return streamEvents(null, Long.MIN_VALUE, Long.MAX_VALUE, null, false).collect(Collectors.toList());
+    }
+
+    /**
+     * Get events by name.
+     *
+     * @param eventName Event name
+     * @return List of events with the given name
+     */
+    public List<Event> getEventsByName(String eventName) {
+        return streamEvents(eventName, Long.MIN_VALUE, Long.MAX_VALUE, null, false).collect(Collectors.toList());
+    }
+
+    /**
+     * Get events in a time range.
+     *
+     * @param startTime Start time (Unix timestamp)
+     * @param endTime End time (Unix timestamp)
+     * @return List of events in the given time range
+     */
+    public List<Event> getEventsInTimerange(long startTime, long endTime) {
+        return streamEvents(null, startTime, endTime, null, false).collect(Collectors.toList());
+    }
+
+    /**
+     * Get events for a user.
+     *
+     * @param userId User ID
+     * @return List of events for the user
+     */
+    public List<Event> getUserEvents(String userId) {
+        return streamUserEvents(userId, null, Long.MIN_VALUE, Long.MAX_VALUE, null, false)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get events for a user with a specific name.
+     *
+     * @param userId User ID
+     * @param eventName Event name
+     * @return List of events for the user with the given name
+     */
+    public List<Event> getUserEventsByName(String userId, String eventName) {
+        return streamUserEvents(userId, eventName, Long.MIN_VALUE, Long.MAX_VALUE, null, false)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Get events for a user in a time range.
+     *
+     * @param userId User ID
+     * @param startTime Start time (Unix timestamp)
+     * @param endTime End time (Unix timestamp)
+     * @return List of events for the user in the given time range
+     */
+    public List<Event> getUserEventsInTimerange(String userId, long startTime, long endTime) {
+        return streamUserEvents(userId, null, startTime, endTime, null, false).collect(Collectors.toList());
+    }
+
+    /**
+     * Scan events without building intermediate lists.
+     *
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @return Spliterator over the matching events, ordered by segment
+     */
+    public Spliterator<Event> scanEvents(String eventName, long startTime, long endTime,
+                                         Predicate<? super Event> predicate) {
+        Predicate<ColdSegment> coldFilter = eventName != null ? cold -> cold.mayContainEventName(eventName) : cold -> true;
+        return new EventScanSpliterator(versions(startTime, endTime, coldFilter),
+                eventName, null, startTime, endTime, predicate);
+    }
+
+    /**
+     * Scan a user's events without building intermediate lists.
+     *
+     * @param userId User ID
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @return Spliterator over the matching events, ordered by segment
+     */
+    public Spliterator<Event> scanUserEvents(String userId, String eventName, long startTime, long endTime,
+                                             Predicate<? super Event> predicate) {
+        return new EventScanSpliterator(versions(startTime, endTime, cold -> cold.mayContainUser(userId)),
+                eventName, userId, startTime, endTime, predicate);
+    }
+
+    /**
+     * Stream events without building intermediate lists.
+     *
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @param parallel Whether the stream may scan segments in parallel
+     * @return Stream of the matching events
+     */
+    public Stream<Event> streamEvents(String eventName, long startTime, long endTime,
+                                      Predicate<? super Event> predicate, boolean parallel) {
+        return StreamSupport.stream(scanEvents(eventName, startTime, endTime, predicate), parallel);
+    }
+
+    /**
+     * Stream a user's events without building intermediate lists.
+     *
+     * @param userId User ID
+     * @param eventName Event name to match, or null for any
+     * @param startTime Start time (inclusive, Unix timestamp)
+     * @param endTime End time (inclusive, Unix timestamp)
+     * @param predicate Additional filter, or null for none
+     * @param parallel Whether the stream may scan segments in parallel
+     * @return Stream of the matching events
+     */
+    public Stream<Event> streamUserEvents(String userId, String eventName, long startTime, long endTime,
+                                          Predicate<? super Event> predicate, boolean parallel) {
+        return StreamSupport.stream(scanUserEvents(userId, eventName, startTime, endTime, predicate), parallel);
+    }
+
+    /**
+     * Release the segments pinned by the snapshot. Closing more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        for (Part part : parts) {
+            if (part.hot != null) {
+                part.hot.release();
+            } else {
+                part.cold.unpin();
+            }
+        }
+    }
+
+    /**
+     * Get the versions of the segments that may hold events in the given time range.
+     */
+    private List<Supplier<EventSegment.Version>> versions(long startTime, long endTime,
+                                                          Predicate<ColdSegment> coldFilter) {
+        if (closed.get()) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+
+        List<Supplier<EventSegment.Version>> result = new ArrayList<>();
+        if (startTime > endTime) {
+            return result;
+        }
+
+        for (Part part : parts) {
+            // A segment covers [start, end), the range is inclusive on both sides
+            if (part.endTime <= startTime || part.startTime > endTime) {
+                continue;
+            }
+            if (part.hot != null) {
+                EventSegment.Version version = part.hot;
+                result.add(() -> version);
+            } else if (coldFilter.test(part.cold)) {
+                Part coldPart = part;
+                result.add(() -> coldPart.loader.apply(coldPart.cold).latest());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Segment pinned by a snapshot: either a version of an in-memory segment or
+     * a cold segment with the function that reads it.
+     */
+    static class Part {
+        private final long startTime;
+        private final long endTime;
+        private final EventSegment.Version hot;
+        private final ColdSegment cold;
+        private final Function<ColdSegment, EventSegment> loader;
+
+        Part(EventSegment.Version hot) {
+            this.startTime = hot.getSegment().getStartTime();
+            this.endTime = hot.getSegment().getEndTime();
+            this.hot = hot;
+            this.cold = null;
+            this.loader = null;
+        }
+
+        Part(ColdSegment cold, Function<ColdSegment, EventSegment> loader) {
+            this.startTime = cold.getStartTime();
+            this.endTime = cold.getEndTime();
+            this.hot = null;
+            this.cold = cold;
+            this.loader = loader;
+        }
+
+        long getStartTime() {
+            return startTime;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.insightaxisdb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Event slots kept as objects on the Java heap.
+ */
+public class HeapEventSlots implements EventSlots {
+
+    // Rough per-object sizes used to estimate heap usage
+    private static final int EVENT_BYTES = 160;
+    private static final int PROPERTY_BYTES = 48;
+
+    private final List<Event> events = new ArrayList<>();
+    private long memoryUsage = 0;
+
+    @Override
+    public int append(Event event) {
+        events.add(event);
+        memoryUsage += EVENT_BYTES + (long) PROPERTY_BYTES * event.getProperties().size();
+        return events.size() - 1;
+    }
+
+    @Override
+    public Event get(int slot) {
+        return events.get(slot);
+    }
+
+    @Override
+    public long getTimestamp(int slot) {
+        return events.get(slot).getTimestamp();
+    }
+
+    @Override
+    public boolean isRemoved(int slot) {
+        return events.get(slot) == null;
+    }
+
+    @Override
+    public void remove(int slot) {
+        events.set(slot, null);
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+    @Override
+    public long getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    @Override
+    public void release() {
+        events.clear();
+        memoryUsage = 0;
+    }
+}
@@ -0,0 +1,140 @@
+package com.insightaxisdb.storage;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from event ID to slot number.
+ *
+ * Keys and values live in primitive arrays, so the table adds no per-event
+ * objects for the garbage collector to trace.
+ */
+public class IdSlotTable {
+    private static final int EMPTY = -1;
+    private static final int DELETED = -2;
+
+    private long[] mostSignificantBits;
+    private long[] leastSignificantBits;
+    private int[] slots;
+    private int size = 0;
+    private int used = 0;
+
+    /**
+     * Create an empty table.
+     */
+    public IdSlotTable() {
+        allocate(16);
+    }
+
+    /**
+     * Map an ID to a slot.
+     *
+     * @param id Event ID
+     * @param slot Slot number
+     */
+    public void put(EventId id, int slot) {
+        if ((used + 1) * 2 > slots.length) {
+            rehash(size * 2 >= slots.length / 2 ? slots.length * 2 : slots.length);
+        }
+
+        int index = find(id);
+        if (slots[index] < 0) {
+            if (slots[index] == EMPTY) {
+                used++;
+            }
+            size++;
+            mostSignificantBits[index] = id.getMostSignificantBits();
+            leastSignificantBits[index] = id.getLeastSignificantBits();
+        }
+        slots[index] = slot;
+    }
+
+    /**
+     * Get the slot for an ID.
+     *
+     * @param id Event ID
+     * @return Slot number, or -1 if not present
+     */
+    public int get(EventId id) {
+        int slot = slots[find(id)];
+        return slot >= 0 ? slot : -1;
+    }
+
+    /**
+     * Remove an ID.
+     *
+     * @param id Event ID
+     * @return Slot number that was mapped, or -1 if not present
+     */
+    public int remove(EventId id) {
+        int index = find(id);
+        int slot = slots[index];
+        if (slot < 0) {
+            return -1;
+        }
+        slots[index] = DELETED;
+        size--;
+        return slot;
+    }
+
+    /**
+     * Remove all IDs and shrink the table back to its initial capacity.
+     */
+    public void clear() {
+        allocate(16);
+    }
+
+    /**
+     * Get the number of mapped IDs.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the index holding an ID, or the first free index for it.
+     */
+    private int find(EventId id) {
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        int mask = slots.length - 1;
+        int index = id.hashCode() & mask;
+        int firstDeleted = -1;
+
+        while (true) {
+            int slot = slots[index];
+            if (slot == EMPTY) {
+                return firstDeleted >= 0 ? firstDeleted : index;
+            }
+            if (slot == DELETED) {
+                if (firstDeleted < 0) {
+                    firstDeleted = index;
+                }
+            } else if (mostSignificantBits[index] == msb && leastSignificantBits[index] == lsb) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+    }
+
+    private void allocate(int capacity) {
+        mostSignificantBits = new long[capacity];
+        leastSignificantBits = new long[capacity];
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        used = 0;
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldMostSignificantBits = mostSignificantBits;
+        long[] oldLeastSignificantBits = leastSignificantBits;
+        int[] oldSlots = slots;
+
+        allocate(capacity);
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] >= 0) {
+                put(new EventId(oldMostSignificantBits[i], oldLeastSignificantBits[i]), oldSlots[i]);
+            }
+        }
+    }
+}
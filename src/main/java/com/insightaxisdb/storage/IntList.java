@@ -0,0 +1,69 @@
+package com.insightaxisdb.storage;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints.
+ *
+ * Used for the per-segment event indexes, which hold slot numbers rather than
+ * boxed integers or event ID strings.
+ */
+public class IntList {
+    private int[] values;
+    private int size;
+
+    /**
+     * Create an empty list.
+     */
+    public IntList() {
+        this(4);
+    }
+
+    /**
+     * Create an empty list with the given initial capacity.
+     *
+     * @param initialCapacity Initial capacity
+     */
+    public IntList(int initialCapacity) {
+        this.values = new int[Math.max(1, initialCapacity)];
+    }
+
+    /**
+     * Append a value.
+     *
+     * @param value Value to append
+     */
+    public void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Get a value.
+     *
+     * @param index Index of the value
+     * @return Value at the index
+     */
+    public int get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return values[index];
+    }
+
+    /**
+     * Get the number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Check whether the list is empty.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,95 @@
+package com.insightaxisdb.storage;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of background disk writes.
+ *
+ * The bucket holds up to one second of the rate. A caller that takes more
+ * than the bucket holds goes into debt and sleeps it off, and so do the
+ * callers after it, so the average rate over any second stays at the limit.
+ */
+public class IoThrottle {
+
+    /**
+     * Throttle that never waits.
+     */
+    public static final IoThrottle UNLIMITED = new IoThrottle(0);
+
+    private final long bytesPerSecond;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Initialize the throttle with a full bucket.
+     *
+     * @param bytesPerSecond Maximum write rate, or 0 for no limit
+     */
+    public IoThrottle(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Rate must not be negative: " + bytesPerSecond);
+        }
+        this.bytesPerSecond = bytesPerSecond;
+        this.tokens = bytesPerSecond;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Take tokens for a write, sleeping until the rate allows it.
+     *
+     * @param bytes Number of bytes about to be written
+     */
+    public void acquire(long bytes) {
+        if (bytesPerSecond == 0 || bytes <= 0) {
+            return;
+        }
+
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(bytesPerSecond, tokens + (now - refilledAt) * (double) bytesPerSecond / 1e9);
+            refilledAt = now;
+            tokens -= bytes;
+            waitNanos = tokens < 0 ? (long) (-tokens * 1e9 / bytesPerSecond) : 0;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wrap a stream so that every write is throttled.
+     *
+     * @param out Stream to wrap
+     * @return Throttled stream
+     */
+    public OutputStream wrap(OutputStream out) {
+        if (bytesPerSecond == 0) {
+            return out;
+        }
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+}
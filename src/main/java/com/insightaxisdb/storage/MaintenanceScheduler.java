@@ -0,0 +1,321 @@
+package com.insightaxisdb.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Scheduler for background storage maintenance: checkpoints, checkpoint
+ * merges, tiering and retention.
+ *
+ * Jobs are named and run on a fixed number of worker threads, highest
+ * priority first. Requests for a job that is already waiting to run share that
+ * run, and a job never runs concurrently with itself. While at least the
+ * configured number of queries is running, jobs below {@link Priority#HIGH}
+ * wait for the load to drop, for at most the configured pause. Disk writes of
+ * the jobs go through a shared {@link IoThrottle}.
+ */
+public class MaintenanceScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(MaintenanceScheduler.class);
+    private static final long LOAD_CHECK_MILLIS = 100;
+
+    /**
+     * Priority of a job. HIGH jobs are never paused for query load.
+     */
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final IoThrottle throttle;
+    private final int pauseQueryThreshold;
+    private final long maxPauseMillis;
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Run> queue = new PriorityBlockingQueue<>(16,
+            Comparator.comparing((Run run) -> run.job.priority).thenComparingLong(run -> run.sequence));
+    private final AtomicLong sequence = new AtomicLong();
+    private final ScheduledExecutorService timer;
+    private final Thread[] workers;
+    private volatile IntSupplier activeQueries = () -> 0;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Initialize the scheduler and start its worker threads.
+     *
+     * @param maxConcurrentJobs Number of jobs that may run at the same time
+     * @param throttle Throttle for the disk writes of the jobs
+     * @param pauseQueryThreshold Number of running queries at which jobs below HIGH wait, or 0 to never wait
+     * @param maxPauseMillis Longest time a job waits for the query load to drop
+     */
+    public MaintenanceScheduler(int maxConcurrentJobs, IoThrottle throttle, int pauseQueryThreshold,
+                                long maxPauseMillis) {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("Concurrency limit must be positive: " + maxConcurrentJobs);
+        }
+
+        this.throttle = throttle;
+        this.pauseQueryThreshold = pauseQueryThreshold;
+        this.maxPauseMillis = maxPauseMillis;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "maintenance-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.workers = new Thread[maxConcurrentJobs];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(this::work, "maintenance-" + (i + 1));
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Set the source of the number of queries currently running.
+     *
+     * @param activeQueries Supplier of the running query count
+     */
+    public void setQueryLoad(IntSupplier activeQueries) {
+        this.activeQueries = activeQueries != null ? activeQueries : () -> 0;
+    }
+
+    public IoThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Register a job.
+     *
+     * @param name Job name
+     * @param priority Job priority
+     * @param task Work of the job
+     */
+    public void register(String name, Priority priority, Runnable task) {
+        if (jobs.putIfAbsent(name, new Job(name, priority, task)) != null) {
+            throw new IllegalArgumentException("Job already registered: " + name);
+        }
+    }
+
+    /**
+     * Request a job at a fixed interval.
+     *
+     * @param name Job name
+     * @param intervalMillis Interval between requests in milliseconds
+     */
+    public void schedule(String name, long intervalMillis) {
+        job(name);
+        timer.scheduleAtFixedRate(() -> request(name), intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Request a run of a job.
+     *
+     * @param name Job name
+     * @return Future completed when a run that started after this request finishes
+     */
+    public CompletableFuture<Void> request(String name) {
+        Job job = job(name);
+        synchronized (job) {
+            if (shutdown) {
+                CompletableFuture<Void> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(new IllegalStateException("Maintenance scheduler is shut down"));
+                return rejected;
+            }
+            if (job.waiting == null) {
+                job.waiting = new Run(job, sequence.incrementAndGet());
+                queue.add(job.waiting);
+            }
+            return job.waiting.future;
+        }
+    }
+
+    /**
+     * Get the statistics of the scheduler and its jobs.
+     *
+     * @return Statistics by name
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("workers", workers.length);
+        stats.put("queued", queue.size());
+        stats.put("activeQueries", activeQueries.getAsInt());
+        stats.put("bytesPerSecond", throttle.getBytesPerSecond());
+
+        Map<String, Object> jobStats = new LinkedHashMap<>();
+        for (Job job : jobs.values()) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("priority", job.priority.name());
+            entry.put("running", job.running);
+            entry.put("runs", job.runs.get());
+            entry.put("failures", job.failures.get());
+            entry.put("pausedMillis", job.pausedMillis.get());
+            entry.put("lastDurationMillis", job.lastDurationMillis);
+            entry.put("lastFinishedAt", job.lastFinishedAt);
+            jobStats.put(job.name, entry);
+        }
+        stats.put("jobs", jobStats);
+        return stats;
+    }
+
+    /**
+     * Stop requesting jobs, let the running ones finish and stop the workers.
+     *
+     * Running jobs are not interrupted, since that would close the files they
+     * write; runs still waiting are cancelled.
+     *
+     * @param timeoutMillis Longest time to wait for running jobs
+     */
+    public void shutdown(long timeoutMillis) {
+        timer.shutdownNow();
+        shutdown = true;
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try {
+            for (Thread worker : workers) {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Requests check the flag under the job's lock, so none is added after this
+        for (Job job : jobs.values()) {
+            synchronized (job) {
+                if (job.deferred != null) {
+                    job.deferred.future.cancel(false);
+                    job.deferred = null;
+                }
+            }
+        }
+        Run run;
+        while ((run = queue.poll()) != null) {
+            run.future.cancel(false);
+        }
+    }
+
+    private Job job(String name) {
+        Job job = jobs.get(name);
+        if (job == null) {
+            throw new IllegalArgumentException("Unknown job: " + name);
+        }
+        return job;
+    }
+
+    private void work() {
+        while (!shutdown) {
+            Run run;
+            try {
+                run = queue.poll(LOAD_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (run == null) {
+                continue;
+            }
+
+            Job job = run.job;
+            if (shouldPause(run)) {
+                // Put it back so that HIGH jobs queued meanwhile are taken first
+                queue.add(run);
+                try {
+                    Thread.sleep(LOAD_CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                job.pausedMillis.addAndGet(LOAD_CHECK_MILLIS);
+                continue;
+            }
+
+            synchronized (job) {
+                if (job.running) {
+                    // Requeued when the current run finishes
+                    job.deferred = run;
+                    continue;
+                }
+                job.running = true;
+                if (job.waiting == run) {
+                    job.waiting = null;
+                }
+            }
+
+            long startedAt = System.currentTimeMillis();
+            try {
+                job.task.run();
+                run.future.complete(null);
+            } catch (RuntimeException e) {
+                job.failures.incrementAndGet();
+                logger.error("Maintenance job {} failed", job.name, e);
+                run.future.completeExceptionally(e);
+            } finally {
+                job.lastFinishedAt = System.currentTimeMillis();
+                job.lastDurationMillis = job.lastFinishedAt - startedAt;
+                job.runs.incrementAndGet();
+                synchronized (job) {
+                    job.running = false;
+                    if (job.deferred != null) {
+                        queue.add(job.deferred);
+                        job.deferred = null;
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean shouldPause(Run run) {
+        return pauseQueryThreshold > 0
+                && run.job.priority != Priority.HIGH
+                && System.currentTimeMillis() - run.requestedAt < maxPauseMillis
+                && activeQueries.getAsInt() >= pauseQueryThreshold;
+    }
+
+    /**
+     * Named unit of maintenance work.
+     */
+    private static class Job {
+        private final String name;
+        private final Priority priority;
+        private final Runnable task;
+        private final AtomicLong runs = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final AtomicLong pausedMillis = new AtomicLong();
+        private volatile boolean running = false;
+        private volatile long lastDurationMillis = 0;
+        private volatile long lastFinishedAt = 0;
+        private Run waiting;
+        private Run deferred;
+
+        Job(String name, Priority priority, Runnable task) {
+            this.name = name;
+            this.priority = priority;
+            this.task = task;
+        }
+    }
+
+    /**
+     * Requested run of a job.
+     */
+    private static class Run {
+        private final Job job;
+        private final long sequence;
+        private final long requestedAt = System.currentTimeMillis();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Run(Job job, long sequence) {
+            this.job = job;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -4,11 +4,18 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -66,6 +73,15 @@ public class NCF {
                 if (!columns.containsKey(colName)) {
                     DataType dataType = inferDataType(value);
                     addColumn(colName, dataType);
+                    // Earlier rows did not have the column
+                    List<Object> values = columns.get(colName).values;
+                    for (int i = 0; i < rowCount; i++) {
+                        values.add(null);
+                    }
+                } else if (value != null && columns.get(colName).dataType == DataType.NULL) {
+                    // Column so far held only nulls; type it by its first real value
+                    ColumnData columnData = columns.get(colName);
+                    columns.put(colName, new ColumnData(inferDataType(value), columnData.values));
                 }
             }
 
@@ -109,178 +125,127 @@ public class NCF {
         }
 
         /**
-         * Compress a column of values.
+         * Serialize a column of values.
          */
-        private byte[] compressColumn(List<Object> values, DataType dataType) throws IOException {
-            // This is a simplified implementation
+        private void serializeColumn(List<Object> values, DataType dataType, DataOutputStream out) throws IOException {
             // In a real implementation, we would use the specified compression algorithm
 
-            // Serialize values based on data type
-            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            // Write null bitmap; every column is nullable, so the reader always expects one
+            int bitmapSize = (values.size() + 7) / 8;
+            byte[] nullBitmap = new byte[bitmapSize];
 
-            // Write null bitmap if needed
-            boolean hasNulls = values.stream().anyMatch(Objects::isNull);
-            if (hasNulls) {
-                int bitmapSize = (values.size() + 7) / 8;
-                byte[] nullBitmap = new byte[bitmapSize];
-
-                for (int i = 0; i < values.size(); i++) {
-                    if (values.get(i) == null) {
-                        int byteIndex = i / 8;
-                        int bitIndex = i % 8;
-                        nullBitmap[byteIndex] |= (1 << bitIndex);
-                    }
+            for (int i = 0; i < values.size(); i++) {
+                if (values.get(i) == null) {
+                    int byteIndex = i / 8;
+                    int bitIndex = i % 8;
+                    nullBitmap[byteIndex] |= (1 << bitIndex);
                 }
-
-                serialized.write(nullBitmap);
             }
 
+            out.write(nullBitmap);
+
             // Write non-null values
-            for (int i = 0; i < values.size(); i++) {
-                Object value = values.get(i);
+            for (Object value : values) {
                 if (value == null) {
                     continue;
                 }
 
                 switch (dataType) {
                     case BOOLEAN:
-                        serialized.write(((Boolean) value) ? 1 : 0);
+                        out.writeByte(((Boolean) value) ? 1 : 0);
                         break;
                     case INTEGER:
-                        ByteBuffer intBuffer = ByteBuffer.allocate(8);
-                        if (value instanceof Integer) {
-                            intBuffer.putLong(((Integer) value).longValue());
-                        } else {
-                            intBuffer.putLong((Long) value);
-                        }
-                        serialized.write(intBuffer.array());
+                        out.writeLong(((Number) value).longValue());
                         break;
                     case FLOAT:
-                        ByteBuffer floatBuffer = ByteBuffer.allocate(8);
-                        if (value instanceof Float) {
-                            floatBuffer.putDouble(((Float) value).doubleValue());
-                        } else {
-                            floatBuffer.putDouble((Double) value);
-                        }
-                        serialized.write(floatBuffer.array());
+                        out.writeDouble(((Number) value).doubleValue());
                         break;
                     case STRING:
                         byte[] stringBytes = ((String) value).getBytes(StandardCharsets.UTF_8);
-                        ByteBuffer stringLenBuffer = ByteBuffer.allocate(4);
-                        stringLenBuffer.putInt(stringBytes.length);
-                        serialized.write(stringLenBuffer.array());
-                        serialized.write(stringBytes);
+                        out.writeInt(stringBytes.length);
+                        out.write(stringBytes);
                         break;
                     case ARRAY:
                     case OBJECT:
                         byte[] jsonBytes = objectMapper.writeValueAsBytes(value);
-                        ByteBuffer jsonLenBuffer = ByteBuffer.allocate(4);
-                        jsonLenBuffer.putInt(jsonBytes.length);
-                        serialized.write(jsonLenBuffer.array());
-                        serialized.write(jsonBytes);
+                        out.writeInt(jsonBytes.length);
+                        out.write(jsonBytes);
                         break;
                     case TIMESTAMP:
-                        ByteBuffer timestampBuffer = ByteBuffer.allocate(8);
-                        timestampBuffer.putLong((Long) value);
-                        serialized.write(timestampBuffer.array());
+                        out.writeLong((Long) value);
                         break;
                 }
             }
-
-            // In a real implementation, we would compress the serialized data here
-            // For simplicity, we're just returning the serialized data
-            return serialized.toByteArray();
+            out.flush();
         }
 
         /**
-         * Write NCF data to a file.
+         * Write NCF data to a file at its current position.
          */
         public void write(RandomAccessFile file) throws IOException {
-            // Write placeholder for header (we'll come back and fill this in)
-            long headerPos = file.getFilePointer();
-            file.write(new byte[28]); // Placeholder for header
-
-            // Write column metadata
-            List<ColumnMetadataInfo> columnMetadataList = new ArrayList<>();
-            long currentOffset = file.getFilePointer();
-
-            // Write placeholder for column metadata size
-            long metadataSizePos = currentOffset;
-            file.write(new byte[4]); // Placeholder for metadata size
-            currentOffset += 4;
-
-            // Write column count
-            ByteBuffer columnCountBuffer = ByteBuffer.allocate(4);
-            columnCountBuffer.putInt(columns.size());
-            file.write(columnCountBuffer.array());
-            currentOffset += 4;
-
-            // Write each column's metadata
-            for (Map.Entry<String, ColumnData> entry : columns.entrySet()) {
-                String colName = entry.getKey();
-                ColumnData columnData = entry.getValue();
-
-                // For now, just record the metadata; we'll fill in offsets later
-                columnMetadataList.add(new ColumnMetadataInfo(colName, columnData.dataType, columnData.values));
+            write(file.getChannel());
+        }
 
-                // Write placeholder for this column's metadata
-                file.write(new byte[100]); // Generous placeholder
-                currentOffset += 100;
-            }
+        /**
+         * Write NCF data to a channel at its current position.
+         *
+         * The columns are serialized into pooled direct buffers and written
+         * together with the header and column metadata in one gathering write,
+         * after which the channel is positioned at the end of the data.
+         *
+         * @param channel Channel to write to
+         * @return Number of bytes written
+         */
+        public long write(FileChannel channel) throws IOException {
+            PersistenceIO.BufferPool pool = PersistenceIO.sharedPool();
+            List<String> names = new ArrayList<>(columns.keySet());
+            List<PersistenceIO.ChunkOutput> outputs = new ArrayList<>(names.size() + 1);
+            try {
+                // Serialize each column's data
+                for (String name : names) {
+                    PersistenceIO.ChunkOutput out = new PersistenceIO.ChunkOutput(pool);
+                    outputs.add(out);
+                    ColumnData columnData = columns.get(name);
+                    serializeColumn(columnData.values, columnData.dataType, new DataOutputStream(out));
+                }
 
-            // Remember where column data starts
-            long columnDataStart = file.getFilePointer();
-
-            // Write each column's data and update metadata
-            List<ColumnMetadata> realColumnMetadata = new ArrayList<>();
-            for (ColumnMetadataInfo info : columnMetadataList) {
-                long columnOffset = file.getFilePointer();
-                byte[] columnData = compressColumn(info.values, info.dataType);
-                file.write(columnData);
-                long columnLength = columnData.length;
-
-                realColumnMetadata.add(new ColumnMetadata(
-                    info.name,
-                    info.dataType,
-                    columnOffset,
-                    columnLength,
-                    true // For simplicity, all columns are nullable
-                ));
-            }
+                // Metadata entries have a fixed size per name, so the data offsets are known up front
+                int metadataSize = 0;
+                for (String name : names) {
+                    metadataSize += new ColumnMetadata(name, DataType.NULL, 0, 0, true).serialize().length;
+                }
+                long start = channel.position();
+                long columnOffset = start + NCFHeader.SIZE + 8 + metadataSize;
+
+                // Header, metadata size, column count and column metadata
+                PersistenceIO.ChunkOutput head = new PersistenceIO.ChunkOutput(pool);
+                outputs.add(0, head);
+                DataOutputStream headData = new DataOutputStream(head);
+                headData.write(new NCFHeader(columns.size(), rowCount, System.currentTimeMillis(), compression)
+                        .serialize());
+                headData.writeInt(metadataSize);
+                headData.writeInt(columns.size());
+                for (int i = 0; i < names.size(); i++) {
+                    ColumnData columnData = columns.get(names.get(i));
+                    long columnLength = outputs.get(i + 1).size();
+                    headData.write(new ColumnMetadata(names.get(i), columnData.dataType, columnOffset,
+                            columnLength, true).serialize()); // For simplicity, all columns are nullable
+                    columnOffset += columnLength;
+                }
+                headData.flush();
 
-            // Go back and write the real header
-            file.seek(headerPos);
-            NCFHeader header = new NCFHeader(
-                columns.size(),
-                rowCount,
-                System.currentTimeMillis(),
-                compression
-            );
-            file.write(header.serialize());
-
-            // Go back and write the real column metadata
-            file.seek(metadataSizePos);
-
-            // Calculate metadata size
-            ByteArrayOutputStream metadataBuffer = new ByteArrayOutputStream();
-            for (ColumnMetadata metadata : realColumnMetadata) {
-                metadataBuffer.write(metadata.serialize());
+                List<ByteBuffer> buffers = new ArrayList<>();
+                for (PersistenceIO.ChunkOutput out : outputs) {
+                    buffers.addAll(out.chunks());
+                }
+                long written = PersistenceIO.write(channel, start, buffers.toArray(new ByteBuffer[0]));
+                channel.position(start + written);
+                return written;
+            } finally {
+                for (PersistenceIO.ChunkOutput out : outputs) {
+                    out.close();
+                }
             }
-            byte[] metadataBytes = metadataBuffer.toByteArray();
-
-            // Write metadata size
-            ByteBuffer metadataSizeBuffer = ByteBuffer.allocate(4);
-            metadataSizeBuffer.putInt(metadataBytes.length);
-            file.write(metadataSizeBuffer.array());
-
-            // Skip column count, which we already wrote
-            file.skipBytes(4);
-
-            // Write actual column metadata
-            file.write(metadataBytes);
-
-            // Return to the end of the file
-            file.seek(file.length());
         }
 
         /**
@@ -295,68 +260,69 @@ public class NCF {
                 this.values = values;
             }
         }
-
-        /**
-         * Column metadata info class.
-         */
-        private static class ColumnMetadataInfo {
-            private final String name;
-            private final DataType dataType;
-            private final List<Object> values;
-
-            public ColumnMetadataInfo(String name, DataType dataType, List<Object> values) {
-                this.name = name;
-                this.dataType = dataType;
-                this.values = values;
-            }
-        }
     }
 
     /**
      * Reader for NCF files.
      */
     public static class Reader implements AutoCloseable {
-        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final Closeable resource;
+        private final Path path;
         private NCFHeader header;
         private Map<String, ColumnMetadata> columns = new HashMap<>();
 
         /**
          * Initialize NCF reader.
          *
-         * @param file File to read from
+         * @param file File to read from, positioned at the start of the NCF data
          */
         public Reader(RandomAccessFile file) throws IOException {
-            this.file = file;
-            readHeader();
-            readColumnMetadata();
+            this(file.getChannel(), file, null);
+        }
+
+        /**
+         * Initialize NCF reader for a whole file. Unlike a reader over a
+         * {@link RandomAccessFile}, it reads ahead in {@link #readColumns}.
+         *
+         * @param file File to read from
+         */
+        public Reader(File file) throws IOException {
+            this(FileChannel.open(file.toPath(), StandardOpenOption.READ), null, file.toPath());
+        }
+
+        private Reader(FileChannel channel, Closeable resource, Path path) throws IOException {
+            this.channel = channel;
+            this.resource = resource != null ? resource : channel;
+            this.path = path;
+            try {
+                long position = channel.position();
+                readHeader(position);
+                readColumnMetadata(position + NCFHeader.SIZE);
+            } catch (IOException | RuntimeException e) {
+                this.resource.close();
+                throw e;
+            }
         }
 
         /**
          * Read NCF header from file.
          */
-        private void readHeader() throws IOException {
-            byte[] headerData = new byte[28];
-            file.readFully(headerData);
-            header = NCFHeader.deserialize(headerData);
+        private void readHeader(long position) throws IOException {
+            header = NCFHeader.deserialize(readFully(position, NCFHeader.SIZE));
         }
 
         /**
          * Read column metadata from file.
          */
-        private void readColumnMetadata() throws IOException {
-            // Read metadata size
-            byte[] metadataSizeBytes = new byte[4];
-            file.readFully(metadataSizeBytes);
-            int metadataSize = ByteBuffer.wrap(metadataSizeBytes).getInt();
-
-            // Read column count
-            byte[] columnCountBytes = new byte[4];
-            file.readFully(columnCountBytes);
-            int columnCount = ByteBuffer.wrap(columnCountBytes).getInt();
+        private void readColumnMetadata(long position) throws IOException {
+            // Read metadata size and column count
+            ByteBuffer sizes = ByteBuffer.wrap(readFully(position, 8));
+            int metadataSize = sizes.getInt();
+            int columnCount = sizes.getInt();
 
             // Read column metadata
-            byte[] metadataData = new byte[metadataSize];
-            file.readFully(metadataData);
+            byte[] metadataData = readFully(position + 8, metadataSize);
 
             columns = new HashMap<>();
             int offset = 0;
@@ -369,16 +335,22 @@ public class NCF {
         }
 
         /**
-         * Decompress a column of values.
+         * Read bytes at a file position.
          */
-        private List<Object> decompressColumn(ColumnMetadata columnMetadata) throws IOException {
-            // Seek to column data
-            file.seek(columnMetadata.getOffset());
-
-            // Read compressed data
-            byte[] compressedData = new byte[(int) columnMetadata.getLength()];
-            file.readFully(compressedData);
+        private byte[] readFully(long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new EOFException("Unexpected end of NCF file");
+                }
+            }
+            return buffer.array();
+        }
 
+        /**
+         * Decompress a column of values.
+         */
+        private List<Object> decompressColumn(ColumnMetadata columnMetadata, byte[] compressedData) {
             // In a real implementation, we would decompress the data here
             // For simplicity, we're just parsing the serialized data
 
@@ -469,7 +441,62 @@ public class NCF {
             }
 
             ColumnMetadata columnMetadata = columns.get(columnName);
-            return decompressColumn(columnMetadata);
+            return decompressColumn(columnMetadata,
+                    readFully(columnMetadata.getOffset(), (int) columnMetadata.getLength()));
+        }
+
+        /**
+         * Read several columns in one sequential scan.
+         *
+         * The columns are read in file order through a
+         * {@link PersistenceIO.ReadAhead}, so the next part of the file is
+         * already being read while a column is decoded.
+         *
+         * @param columnNames Names of the columns to read
+         * @return Values by column name
+         */
+        public Map<String, List<Object>> readColumns(Collection<String> columnNames) throws IOException {
+            List<ColumnMetadata> selected = new ArrayList<>(columnNames.size());
+            for (String columnName : columnNames) {
+                if (!columns.containsKey(columnName)) {
+                    throw new IllegalArgumentException("Column '" + columnName + "' does not exist");
+                }
+                selected.add(columns.get(columnName));
+            }
+            selected.sort(Comparator.comparingLong(ColumnMetadata::getOffset));
+
+            Map<String, List<Object>> result = new HashMap<>();
+            if (selected.isEmpty()) {
+                return result;
+            }
+            if (path == null) {
+                // Reading ahead needs a channel of its own
+                for (ColumnMetadata columnMetadata : selected) {
+                    result.put(columnMetadata.getName(), readColumn(columnMetadata.getName()));
+                }
+                return result;
+            }
+
+            long start = selected.get(0).getOffset();
+            long end = start;
+            for (ColumnMetadata columnMetadata : selected) {
+                end = Math.max(end, columnMetadata.getOffset() + columnMetadata.getLength());
+            }
+            try (AsynchronousFileChannel scanChannel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+                 PersistenceIO.ReadAhead in = new PersistenceIO.ReadAhead(scanChannel, start, end - start,
+                         PersistenceIO.sharedPool(), PersistenceIO.readAheadBuffers())) {
+                long position = start;
+                for (ColumnMetadata columnMetadata : selected) {
+                    long gap = columnMetadata.getOffset() - position;
+                    if (gap < 0 || in.skip(gap) != gap) {
+                        throw new IOException("Overlapping column data in NCF file: " + columnMetadata.getName());
+                    }
+                    byte[] data = in.readFully((int) columnMetadata.getLength());
+                    position = columnMetadata.getOffset() + columnMetadata.getLength();
+                    result.put(columnMetadata.getName(), decompressColumn(columnMetadata, data));
+                }
+            }
+            return result;
         }
 
         /**
@@ -529,7 +556,7 @@ public class NCF {
          * Close the reader.
          */
         public void close() throws IOException {
-            file.close();
+            resource.close();
         }
     }
 }
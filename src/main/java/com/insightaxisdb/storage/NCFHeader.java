@@ -11,6 +11,9 @@ public class NCFHeader {
     
     private static final byte[] MAGIC = "NCF1".getBytes(StandardCharsets.UTF_8);
     
+    /** Serialized header size: magic, counts, created at and the padded compression name. */
+    public static final int SIZE = 32;
+    
     private final int columnCount;
     private final int rowCount;
     private final long createdAt;
@@ -35,7 +38,7 @@ public class NCFHeader {
      * Serialize header to bytes.
      */
     public byte[] serialize() {
-        ByteBuffer buffer = ByteBuffer.allocate(28);
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
         
         // Magic bytes
         buffer.put(MAGIC);
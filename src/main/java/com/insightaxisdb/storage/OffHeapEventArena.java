@@ -0,0 +1,241 @@
+package com.insightaxisdb.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Event slots kept outside the Java heap.
+ *
+ * Every event is a fixed-width record in direct buffer chunks; a record is
+ * found by multiplying its slot number by the record size. Properties and
+ * client-supplied IDs live in a separate variable-length data area that the
+ * record points into by offset. Event names and user IDs are stored as
+ * references into a small dictionary whose strings are already held by the
+ * segment's index keys. Events are materialized only when read.
+ *
+ * Buffers start small and double up to the chunk size, so sparse segments do
+ * not pin a full chunk of direct memory each.
+ */
+public class OffHeapEventArena implements EventSlots {
+
+    /** Size of one fixed-width record in bytes. */
+    public static final int RECORD_SIZE = 48;
+
+    private static final int ID_MSB = 0;
+    private static final int ID_LSB = 8;
+    private static final int TIMESTAMP = 16;
+    private static final int NAME_REF = 24;
+    private static final int USER_REF = 28;
+    private static final int DATA_OFFSET = 32;
+    private static final int DATA_LENGTH = 40;
+    private static final int FLAGS = 44;
+
+    private static final int FLAG_REMOVED = 1;
+    private static final int INITIAL_RECORDS = 64;
+    private static final int INITIAL_DATA_BYTES = 4096;
+
+    private final int chunkSize;
+    private final int recordsPerChunk;
+    private final List<ByteBuffer> recordChunks = new ArrayList<>();
+    private final List<ByteBuffer> dataChunks = new ArrayList<>();
+    private final List<String> strings = new ArrayList<>();
+    private final Map<String, Integer> stringRefs = new HashMap<>();
+    private int dataPosition = 0;
+    private int size = 0;
+    private long allocatedBytes = 0;
+
+    /**
+     * Initialize off-heap event arena.
+     *
+     * @param chunkSize Size of each direct buffer chunk in bytes
+     */
+    public OffHeapEventArena(int chunkSize) {
+        if (chunkSize < RECORD_SIZE) {
+            throw new IllegalArgumentException("Chunk size must hold at least one record: " + chunkSize);
+        }
+
+        this.chunkSize = chunkSize;
+        this.recordsPerChunk = chunkSize / RECORD_SIZE;
+    }
+
+    @Override
+    public int append(Event event) {
+        // Write the variable-length part first so the record can point at it
+        byte[] externalId = event.getExternalId() != null
+                ? event.getExternalId().getBytes(StandardCharsets.UTF_8) : null;
+        byte[] properties = PropertyCodec.encode(event.getProperties());
+        int dataLength = 4 + (externalId != null ? externalId.length : 0) + properties.length;
+        long dataOffset = reserveData(dataLength);
+
+        ByteBuffer data = dataChunks.get((int) (dataOffset >>> 32));
+        int position = (int) dataOffset;
+        data.putInt(position, externalId != null ? externalId.length : -1);
+        position += 4;
+        if (externalId != null) {
+            putBytes(data, position, externalId);
+            position += externalId.length;
+        }
+        putBytes(data, position, properties);
+
+        // Write the fixed-width record
+        int slot = size;
+        ByteBuffer records = recordChunkForAppend(slot);
+        int record = (slot % recordsPerChunk) * RECORD_SIZE;
+        records.putLong(record + ID_MSB, event.getId().getMostSignificantBits());
+        records.putLong(record + ID_LSB, event.getId().getLeastSignificantBits());
+        records.putLong(record + TIMESTAMP, event.getTimestamp());
+        records.putInt(record + NAME_REF, stringRef(event.getEventName()));
+        records.putInt(record + USER_REF, stringRef(event.getUserId()));
+        records.putLong(record + DATA_OFFSET, dataOffset);
+        records.putInt(record + DATA_LENGTH, dataLength);
+        records.putInt(record + FLAGS, 0);
+
+        size++;
+        return slot;
+    }
+
+    @Override
+    public Event get(int slot) {
+        ByteBuffer records = recordChunk(slot);
+        int record = (slot % recordsPerChunk) * RECORD_SIZE;
+        if ((records.getInt(record + FLAGS) & FLAG_REMOVED) != 0) {
+            return null;
+        }
+
+        long dataOffset = records.getLong(record + DATA_OFFSET);
+        ByteBuffer data = dataChunks.get((int) (dataOffset >>> 32)).duplicate();
+        data.position((int) dataOffset);
+
+        String externalId = null;
+        int externalIdLength = data.getInt();
+        if (externalIdLength >= 0) {
+            byte[] bytes = new byte[externalIdLength];
+            data.get(bytes);
+            externalId = new String(bytes, StandardCharsets.UTF_8);
+        }
+        Map<String, Object> properties = PropertyCodec.decode(data);
+
+        return new Event(
+                new EventId(records.getLong(record + ID_MSB), records.getLong(record + ID_LSB)),
+                externalId,
+                strings.get(records.getInt(record + NAME_REF)),
+                strings.get(records.getInt(record + USER_REF)),
+                properties,
+                records.getLong(record + TIMESTAMP));
+    }
+
+    @Override
+    public long getTimestamp(int slot) {
+        return recordChunk(slot).getLong((slot % recordsPerChunk) * RECORD_SIZE + TIMESTAMP);
+    }
+
+    @Override
+    public boolean isRemoved(int slot) {
+        return (recordChunk(slot).getInt((slot % recordsPerChunk) * RECORD_SIZE + FLAGS) & FLAG_REMOVED) != 0;
+    }
+
+    @Override
+    public void remove(int slot) {
+        ByteBuffer records = recordChunk(slot);
+        int record = (slot % recordsPerChunk) * RECORD_SIZE;
+        records.putInt(record + FLAGS, records.getInt(record + FLAGS) | FLAG_REMOVED);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void release() {
+        // Direct memory is returned once the buffers become unreachable
+        recordChunks.clear();
+        dataChunks.clear();
+        strings.clear();
+        stringRefs.clear();
+        size = 0;
+        allocatedBytes = 0;
+    }
+
+    /**
+     * Get the number of bytes of direct memory held by the arena.
+     *
+     * @return Allocated bytes
+     */
+    @Override
+    public long getMemoryUsage() {
+        return allocatedBytes;
+    }
+
+    private ByteBuffer recordChunk(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("Slot " + slot + " out of bounds for size " + size);
+        }
+        return recordChunks.get(slot / recordsPerChunk);
+    }
+
+    /**
+     * Get the record chunk for a new slot, growing the first chunk by copying
+     * until it reaches full size.
+     */
+    private ByteBuffer recordChunkForAppend(int slot) {
+        int chunk = slot / recordsPerChunk;
+        if (chunk == recordChunks.size()) {
+            int records = chunk == 0 ? Math.min(INITIAL_RECORDS, recordsPerChunk) : recordsPerChunk;
+            recordChunks.add(allocate(records * RECORD_SIZE));
+        } else if (chunk == 0 && slot * RECORD_SIZE == recordChunks.get(0).capacity()) {
+            ByteBuffer previous = recordChunks.get(0);
+            ByteBuffer grown = allocate(Math.min(slot * 2, recordsPerChunk) * RECORD_SIZE);
+            ByteBuffer source = previous.duplicate();
+            source.clear();
+            grown.put(source);
+            recordChunks.set(0, grown);
+            allocatedBytes -= previous.capacity();
+        }
+        return recordChunks.get(chunk);
+    }
+
+    /**
+     * Reserve space in the data area.
+     *
+     * @return Chunk index in the high 32 bits and position in the low 32 bits
+     */
+    private long reserveData(int length) {
+        if (dataChunks.isEmpty() || dataPosition + length > dataChunks.get(dataChunks.size() - 1).capacity()) {
+            int capacity = dataChunks.isEmpty()
+                    ? INITIAL_DATA_BYTES
+                    : Math.min(chunkSize, dataChunks.get(dataChunks.size() - 1).capacity() * 2);
+            dataChunks.add(allocate(Math.max(capacity, length)));
+            dataPosition = 0;
+        }
+
+        long offset = ((long) (dataChunks.size() - 1) << 32) | dataPosition;
+        dataPosition += length;
+        return offset;
+    }
+
+    private int stringRef(String value) {
+        Integer ref = stringRefs.get(value);
+        if (ref == null) {
+            ref = strings.size();
+            strings.add(value);
+            stringRefs.put(value, ref);
+        }
+        return ref;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        allocatedBytes += capacity;
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static void putBytes(ByteBuffer buffer, int position, byte[] bytes) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.put(bytes);
+    }
+}
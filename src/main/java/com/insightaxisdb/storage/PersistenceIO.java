@@ -0,0 +1,444 @@
+package com.insightaxisdb.storage;
+
+import com.insightaxisdb.core.Config;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * NIO file I/O for persistence.
+ *
+ * Data is staged in pooled direct buffers, so channel reads and writes need no
+ * extra copy through a temporary buffer. {@link ChunkOutput} collects a file
+ * section in such buffers and {@link #write} writes any number of sections in
+ * one gathering call. {@link ReadAhead} scans a file range sequentially while
+ * the next buffers are already being read by an {@link AsynchronousFileChannel},
+ * so a scan does not wait for the disk between buffers and needs no thread of
+ * its own.
+ */
+public final class PersistenceIO {
+
+    private static volatile BufferPool sharedPool;
+
+    private PersistenceIO() {
+    }
+
+    /**
+     * Get the buffer pool shared by the persistence code, sized by
+     * {@link Config#IO_BUFFER_SIZE_BYTES} and {@link Config#IO_POOLED_BUFFERS}.
+     *
+     * @return Shared pool
+     */
+    public static BufferPool sharedPool() {
+        BufferPool pool = sharedPool;
+        if (pool == null) {
+            synchronized (PersistenceIO.class) {
+                pool = sharedPool;
+                if (pool == null) {
+                    pool = new BufferPool(
+                            Math.max(4096, Config.getInt("ioBufferSizeBytes", Config.IO_BUFFER_SIZE_BYTES)),
+                            Math.max(0, Config.getInt("ioPooledBuffers", Config.IO_POOLED_BUFFERS)));
+                    sharedPool = pool;
+                }
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Get the number of buffers sequential scans read ahead, from
+     * {@link Config#IO_READ_AHEAD_BUFFERS}.
+     *
+     * @return Read-ahead depth
+     */
+    public static int readAheadBuffers() {
+        return Math.max(1, Config.getInt("ioReadAheadBuffers", Config.IO_READ_AHEAD_BUFFERS));
+    }
+
+    /**
+     * Write buffers to a channel at a position with gathering writes.
+     *
+     * The buffers are written in order, back to back, and are consumed.
+     *
+     * @param channel Channel to write to
+     * @param position File position of the first byte
+     * @param buffers Buffers to write
+     * @return Number of bytes written
+     */
+    public static long write(FileChannel channel, long position, ByteBuffer... buffers) throws IOException {
+        channel.position(position);
+        long written = 0;
+        int first = 0;
+        while (first < buffers.length) {
+            written += channel.write(buffers, first, buffers.length - first);
+            while (first < buffers.length && !buffers[first].hasRemaining()) {
+                first++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Pool of direct buffers of one size.
+     *
+     * Buffers beyond the pool's capacity are still handed out, but are left to
+     * the garbage collector when released.
+     */
+    public static class BufferPool {
+        private final int bufferSize;
+        private final int maxPooled;
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pooled = new AtomicInteger();
+
+        /**
+         * Initialize an empty pool.
+         *
+         * @param bufferSize Size of each buffer in bytes
+         * @param maxPooled Number of released buffers kept for reuse
+         */
+        public BufferPool(int bufferSize, int maxPooled) {
+            if (bufferSize <= 0) {
+                throw new IllegalArgumentException("Buffer size must be positive: " + bufferSize);
+            }
+            this.bufferSize = bufferSize;
+            this.maxPooled = maxPooled;
+        }
+
+        public int getBufferSize() {
+            return bufferSize;
+        }
+
+        /**
+         * Get the number of buffers waiting for reuse.
+         *
+         * @return Pooled buffer count
+         */
+        public int getPooledCount() {
+            return pooled.get();
+        }
+
+        /**
+         * Take a cleared buffer from the pool, allocating one if it is empty.
+         *
+         * @return Direct buffer of the pool's size
+         */
+        public ByteBuffer acquire() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+            pooled.decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+
+        /**
+         * Return a buffer to the pool. The caller must not use it afterwards.
+         *
+         * @param buffer Buffer taken from this pool
+         */
+        public void release(ByteBuffer buffer) {
+            if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+                throw new IllegalArgumentException("Buffer does not belong to this pool");
+            }
+            if (pooled.incrementAndGet() <= maxPooled) {
+                buffers.add(buffer);
+            } else {
+                pooled.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Output stream collecting its bytes in pooled buffers, to be written with
+     * {@link PersistenceIO#write}.
+     */
+    public static class ChunkOutput extends OutputStream {
+        private final BufferPool pool;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+        private ByteBuffer current;
+        private long size = 0;
+
+        /**
+         * Initialize an empty output.
+         *
+         * @param pool Pool to take buffers from
+         */
+        public ChunkOutput(BufferPool pool) {
+            this.pool = pool;
+        }
+
+        /**
+         * Get the number of bytes written so far.
+         *
+         * @return Size in bytes
+         */
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public void write(int b) {
+            if (current == null || !current.hasRemaining()) {
+                nextChunk();
+            }
+            current.put((byte) b);
+            size++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            while (len > 0) {
+                if (current == null || !current.hasRemaining()) {
+                    nextChunk();
+                }
+                int n = Math.min(len, current.remaining());
+                current.put(b, off, n);
+                off += n;
+                len -= n;
+                size += n;
+            }
+        }
+
+        /**
+         * Get the written bytes, ready to be written to a channel. The output
+         * must not be written to afterwards.
+         *
+         * @return Buffers holding the bytes in order
+         */
+        public List<ByteBuffer> chunks() {
+            List<ByteBuffer> flipped = new ArrayList<>(chunks.size());
+            for (ByteBuffer chunk : chunks) {
+                ByteBuffer view = chunk.duplicate();
+                view.flip();
+                flipped.add(view);
+            }
+            return flipped;
+        }
+
+        /**
+         * Return the buffers to the pool.
+         */
+        @Override
+        public void close() {
+            for (ByteBuffer chunk : chunks) {
+                pool.release(chunk);
+            }
+            chunks.clear();
+            current = null;
+        }
+
+        private void nextChunk() {
+            current = pool.acquire();
+            chunks.add(current);
+        }
+    }
+
+    /**
+     * Input stream over a file range that keeps the next buffers being read
+     * while the current one is consumed.
+     *
+     * Closing the stream waits for the reads still in flight and returns their
+     * buffers to the pool; it does not close the channel. If the wait is
+     * interrupted, the buffers of reads that may still be running are dropped
+     * instead.
+     */
+    public static class ReadAhead extends InputStream {
+        private final AsynchronousFileChannel channel;
+        private final BufferPool pool;
+        private final long end;
+        private final ArrayDeque<PendingRead> pending = new ArrayDeque<>();
+        private long nextPosition;
+        private ByteBuffer current;
+
+        /**
+         * Initialize the stream and start the first reads.
+         *
+         * @param channel Channel to read from
+         * @param position File position of the first byte
+         * @param length Number of bytes in the range
+         * @param pool Pool to take buffers from
+         * @param depth Number of buffers read ahead
+         */
+        public ReadAhead(AsynchronousFileChannel channel, long position, long length, BufferPool pool, int depth) {
+            this.channel = channel;
+            this.pool = pool;
+            this.nextPosition = position;
+            this.end = position + length;
+            for (int i = 0; i < Math.max(1, depth); i++) {
+                startRead();
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return current.get() & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, current.remaining());
+            current.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = 0;
+            while (skipped < n && fill()) {
+                int step = (int) Math.min(n - skipped, current.remaining());
+                current.position(current.position() + step);
+                skipped += step;
+            }
+            return skipped;
+        }
+
+        /**
+         * Read exactly the given number of bytes.
+         *
+         * @param length Number of bytes
+         * @return The bytes
+         */
+        public byte[] readFully(int length) throws IOException {
+            byte[] bytes = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int n = read(bytes, offset, length - offset);
+                if (n < 0) {
+                    throw new EOFException("Read past the end of the range");
+                }
+                offset += n;
+            }
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                pool.release(current);
+                current = null;
+            }
+            IOException failure = null;
+            while (!pending.isEmpty()) {
+                PendingRead read = pending.poll();
+                try {
+                    // The channel still fills the buffer, so it must not be reused before the read ends
+                    read.await();
+                } catch (InterruptedIOException e) {
+                    // The read may still be in flight, so the buffer is dropped rather than reused
+                    failure = e;
+                    continue;
+                } catch (IOException e) {
+                    failure = e;
+                }
+                pool.release(read.buffer);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+
+        private boolean fill() throws IOException {
+            while (current == null || !current.hasRemaining()) {
+                if (current != null) {
+                    pool.release(current);
+                    current = null;
+                }
+                PendingRead read = pending.poll();
+                if (read == null) {
+                    return false;
+                }
+                try {
+                    read.complete(channel);
+                } catch (InterruptedIOException e) {
+                    // The read may still be in flight, so the buffer is dropped rather than reused
+                    throw e;
+                } catch (IOException e) {
+                    pool.release(read.buffer);
+                    throw e;
+                }
+                current = read.buffer;
+                startRead();
+            }
+            return true;
+        }
+
+        private void startRead() {
+            if (nextPosition >= end) {
+                return;
+            }
+            ByteBuffer buffer = pool.acquire();
+            buffer.limit((int) Math.min(buffer.capacity(), end - nextPosition));
+            pending.add(new PendingRead(buffer, nextPosition, channel.read(buffer, nextPosition)));
+            nextPosition += buffer.limit();
+        }
+    }
+
+    /**
+     * Read issued by a {@link ReadAhead}.
+     */
+    private static class PendingRead {
+        private final ByteBuffer buffer;
+        private final long position;
+        private final Future<Integer> future;
+
+        PendingRead(ByteBuffer buffer, long position, Future<Integer> future) {
+            this.buffer = buffer;
+            this.position = position;
+            this.future = future;
+        }
+
+        /**
+         * Wait for the read to end.
+         */
+        void await() throws IOException {
+            result(future);
+        }
+
+        /**
+         * Wait for the read, finish a short read and flip the buffer for consuming.
+         */
+        void complete(AsynchronousFileChannel channel) throws IOException {
+            await();
+            while (buffer.hasRemaining()) {
+                if (result(channel.read(buffer, position + buffer.position())) < 0) {
+                    throw new EOFException("File ends before the end of the range");
+                }
+            }
+            buffer.flip();
+        }
+
+        private static int result(Future<Integer> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while reading");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+    }
+}
@@ -1,36 +1,68 @@
 package com.insightaxisdb.storage;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.insightaxisdb.core.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
 import java.util.stream.Collectors;
 
 /**
  * Manager for persisting InsightAxisDB data to disk.
+ *
+ * Saves are incremental checkpoints kept by a {@link CheckpointStore}: each
+ * writes only the profiles changed and the events stored since the previous
+ * one, so its cost follows the change volume rather than the data size.
+ *
+ * Unless disabled, ingestion is made durable by a {@link WriteAheadLog} under
+ * {@code <data>/wal}, which {@link #loadAll()} replays after restoring the
+ * checkpoints. Each checkpoint rotates the log first and drops the segments
+ * it covers once written.
+ *
+ * Checkpoints, checkpoint merges, tiering and retention run as jobs of a
+ * {@link MaintenanceScheduler}, which pauses all but the checkpoints while
+ * queries are busy and limits their writes to
+ * {@link Config#MAINTENANCE_MAX_BYTES_PER_SECOND}. Taking a checkpoint only
+ * pins the current event segment versions and copies the changed profiles,
+ * which share their immutable property maps, so ingestion keeps going while
+ * the files are written.
  */
 public class PersistenceManager {
     
     private static final Logger logger = LoggerFactory.getLogger(PersistenceManager.class);
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final String CHECKPOINT_JOB = "checkpoint";
+    private static final String MERGE_JOB = "checkpoint-merge";
+    private static final String TIERING_JOB = "tiering";
+    private static final String RETENTION_JOB = "retention";
     
     private final String dataDirectory;
     private final UserProfileStore userProfileStore;
     private final EventStore eventStore;
-    private final ScheduledExecutorService scheduler;
-    private final Map<String, Long> lastSavedTimestamps = new ConcurrentHashMap<>();
+    private final MaintenanceScheduler maintenance;
     private final long saveIntervalMillis;
+    private final CheckpointStore checkpointStore;
+    private final WriteAheadLog writeAheadLog;
+    private volatile long retentionCutoffTime = Long.MIN_VALUE;
+    private volatile RecoveryProgress recoveryProgress = new RecoveryProgress();
+    private boolean loaded = false;
     
     /**
      * Create a new persistence manager.
@@ -55,106 +87,218 @@ public class PersistenceManager {
             }
         }
         
-        // Initialize scheduler for automatic saving
-        this.scheduler = Executors.newScheduledThreadPool(1);
-        this.scheduler.scheduleAtFixedRate(this::saveAll, saveIntervalMillis, saveIntervalMillis, 
-                TimeUnit.MILLISECONDS);
+        this.maintenance = new MaintenanceScheduler(
+                Math.max(1, Config.getInt("maintenanceThreads", Config.MAINTENANCE_THREADS)),
+                new IoThrottle(Config.getLong("maintenanceMaxBytesPerSecond", Config.MAINTENANCE_MAX_BYTES_PER_SECOND)),
+                Config.getInt("maintenancePauseQueryThreshold", Config.MAINTENANCE_PAUSE_QUERY_THRESHOLD),
+                Config.getLong("maintenanceMaxPauseMillis", Config.MAINTENANCE_MAX_PAUSE_MILLIS));
+        
+        // Keep checkpoints under the data directory
+        try {
+            this.checkpointStore = new CheckpointStore(directory,
+                    Config.getInt("checkpointMergeThreshold", Config.CHECKPOINT_MERGE_THRESHOLD),
+                    maintenance.getThrottle());
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open checkpoints in: " + dataDirectory, e);
+        }
+        
+        // Keep older segments in NCF files under the data directory
+        if (Config.COLD_TIER_ENABLED) {
+            try {
+                eventStore.enableColdTier(new File(dataDirectory, "cold"),
+                        Config.getInt("hotTierDays", Config.HOT_TIER_DAYS) * 24 * 60 * 60 * 1000L,
+                        Config.getLong("hotTierMemoryBudgetBytes", Config.HOT_TIER_MEMORY_BUDGET_BYTES));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open cold tier in: " + dataDirectory, e);
+            }
+        }
+        
+        // Log ingestion so changes since the last save survive a crash
+        if (Config.WAL_ENABLED) {
+            try {
+                this.writeAheadLog = new WriteAheadLog(new File(dataDirectory, "wal"),
+                        Config.getLong("walSegmentSizeBytes", Config.WAL_SEGMENT_SIZE_BYTES),
+                        Config.getLong("walGroupCommitMillis", Config.WAL_GROUP_COMMIT_MILLIS));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open write-ahead log in: " + dataDirectory, e);
+            }
+            userProfileStore.setWriteAheadLog(writeAheadLog);
+            eventStore.setWriteAheadLog(writeAheadLog);
+        } else {
+            this.writeAheadLog = null;
+        }
+        
+        // Checkpoints bound the log and the work lost in a crash, so they go first and never pause
+        maintenance.register(CHECKPOINT_JOB, MaintenanceScheduler.Priority.HIGH, this::checkpoint);
+        maintenance.register(TIERING_JOB, MaintenanceScheduler.Priority.NORMAL, this::applyTieringPolicy);
+        maintenance.register(MERGE_JOB, MaintenanceScheduler.Priority.LOW, this::mergeCheckpoints);
+        maintenance.schedule(CHECKPOINT_JOB, saveIntervalMillis);
+        maintenance.schedule(TIERING_JOB, saveIntervalMillis);
+        
+        int retentionDays = Config.getInt("retentionDays", Config.RETENTION_DAYS);
+        if (retentionDays > 0) {
+            maintenance.register(RETENTION_JOB, MaintenanceScheduler.Priority.LOW,
+                    () -> applyRetentionPolicy(retentionDays));
+            maintenance.schedule(RETENTION_JOB, 60 * 60 * 1000L);
+        }
     }
     
     /**
-     * Save all data to disk.
+     * Save all data to disk, waiting for the checkpoint to be written.
      */
-    public synchronized void saveAll() {
+    public void saveAll() {
         try {
-            saveUserProfiles();
-            saveEvents();
-            logger.info("Saved all data to disk");
-        } catch (IOException e) {
-            logger.error("Failed to save data to disk", e);
+            maintenance.request(CHECKPOINT_JOB).join();
+        } catch (CompletionException e) {
+            // Already logged by the scheduler
+        } catch (CancellationException e) {
+            logger.warn("Save cancelled by shutdown");
         }
     }
     
     /**
-     * Save user profiles to disk.
+     * Take a point-in-time backup of the data into a directory.
+     *
+     * A checkpoint is written first, so every change applied so far is in
+     * immutable checkpoint files or in the cold tier's segment files; these
+     * are then hard-linked into the backup directory rather than copied, which
+     * takes neither time nor space in proportion to the data. No segment is
+     * sealed while the files are linked, so the two sets agree. The backup
+     * directory is a data directory of its own: it can be opened as it is, or
+     * restored with {@link #restoreBackup(String, String)} to keep it unchanged.
+     *
+     * @param backupDirectory Directory for the backup, which must not hold one already
+     * @return Statistics of the backup
      */
-    private void saveUserProfiles() throws IOException {
-        // Create profiles directory if it doesn't exist
-        File profilesDir = new File(dataDirectory, "profiles");
-        if (!profilesDir.exists()) {
-            if (!profilesDir.mkdirs()) {
-                throw new IOException("Failed to create profiles directory: " + profilesDir);
-            }
+    public Map<String, Object> backup(String backupDirectory) throws IOException {
+        long startedAt = System.currentTimeMillis();
+        try {
+            maintenance.request(CHECKPOINT_JOB).join();
+        } catch (CompletionException | CancellationException e) {
+            throw new IOException("Failed to write checkpoint for backup", e);
         }
         
-        // Get all user profiles
-        // In a real implementation, we would need a way to get all profiles from the store
-        // For now, we'll just use a placeholder
-        List<UserProfile> profiles = new ArrayList<>();
-        
-        // Save each profile to a separate file
-        for (UserProfile profile : profiles) {
-            String userId = profile.getUserId();
-            File profileFile = new File(profilesDir, userId + ".json");
-            
-            // Check if the profile has been modified since last save
-            long lastModified = profile.getLastSeenAt();
-            Long lastSaved = lastSavedTimestamps.get("profile:" + userId);
-            
-            if (lastSaved == null || lastModified > lastSaved) {
-                // Save profile to file
-                objectMapper.writeValue(profileFile, profile.toMap());
-                
-                // Update last saved timestamp
-                lastSavedTimestamps.put("profile:" + userId, System.currentTimeMillis());
-            }
+        File target = new File(backupDirectory);
+        Map<String, Object> stats = eventStore.withColdTierFiles(coldFiles -> checkpointStore.backup(target, coldFiles));
+        logger.info("Backed up {} files to {} in {} ms", stats.get("files"), backupDirectory,
+                System.currentTimeMillis() - startedAt);
+        if (((Number) stats.get("copiedFiles")).intValue() > 0) {
+            logger.warn("Backup directory {} is on another file system; {} files were copied instead of linked",
+                    backupDirectory, stats.get("copiedFiles"));
         }
+        return stats;
     }
     
     /**
-     * Save events to disk.
+     * Restore a backup into a new data directory by hard-linking its files.
+     *
+     * Open a persistence manager on the data directory and call
+     * {@link #loadAll()} afterwards. The backup itself is left unchanged.
+     *
+     * @param backupDirectory Directory written by {@link #backup(String)}
+     * @param dataDirectory Data directory, which must not hold data already
+     * @return Statistics of the restore
      */
-    private void saveEvents() throws IOException {
-        // Create events directory if it doesn't exist
-        File eventsDir = new File(dataDirectory, "events");
-        if (!eventsDir.exists()) {
-            if (!eventsDir.mkdirs()) {
-                throw new IOException("Failed to create events directory: " + eventsDir);
-            }
+    public static Map<String, Object> restoreBackup(String backupDirectory, String dataDirectory)
+            throws IOException {
+        // Log records left in the directory would be replayed on top of the backup
+        String[] logFiles = new File(dataDirectory, "wal").list();
+        if (logFiles != null && logFiles.length > 0) {
+            throw new IOException("Data directory holds a write-ahead log: " + dataDirectory);
+        }
+        // Restored segment files would replace the ones there
+        String[] coldFiles = new File(dataDirectory, "cold").list();
+        if (coldFiles != null && coldFiles.length > 0) {
+            throw new IOException("Data directory holds cold tier segments: " + dataDirectory);
         }
         
-        // Get all events
-        // In a real implementation, we would need a way to get all events from the store
-        // For now, we'll just use a placeholder
-        List<Event> events = new ArrayList<>();
-        
-        // Group events by user ID
-        Map<String, List<Event>> eventsByUser = events.stream()
-                .collect(Collectors.groupingBy(Event::getUserId));
+        Map<String, Object> stats = CheckpointStore.restoreBackup(new File(backupDirectory), new File(dataDirectory));
+        logger.info("Restored {} files from {} to {}", stats.get("files"), backupDirectory,
+                dataDirectory);
+        return stats;
+    }
+    
+    /**
+     * Start a background checkpoint unless one is already waiting to run.
+     */
+    public void requestCheckpoint() {
+        maintenance.request(CHECKPOINT_JOB);
+    }
+    
+    /**
+     * Set the source of the number of running queries, which pauses maintenance at peak load.
+     *
+     * @param activeQueries Supplier of the running query count
+     */
+    public void setQueryLoad(IntSupplier activeQueries) {
+        maintenance.setQueryLoad(activeQueries);
+    }
+    
+    /**
+     * Get the statistics of the maintenance jobs.
+     *
+     * @return Statistics of the scheduler and its jobs
+     */
+    public Map<String, Object> getMaintenanceStats() {
+        return maintenance.getStats();
+    }
+    
+    /**
+     * Write a checkpoint of the changes since the last one, then request a merge of the checkpoints.
+     */
+    private void checkpoint() {
+        try {
+            writeCheckpoint();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to write checkpoint", e);
+        }
+        maintenance.request(MERGE_JOB);
+    }
+    
+    private void writeCheckpoint() throws IOException {
+        long startedAt = System.currentTimeMillis();
+        // Every change logged before the rotation is already applied, so the deltas taken next cover it
+        long writeAheadLogSegmentId = writeAheadLog != null ? writeAheadLog.rotate() : 0;
+        ProfileDelta profiles = userProfileStore.captureChanges();
+        EventDelta events = eventStore.captureChanges();
+        try {
+            if (checkpointStore.write(profiles, events, writeAheadLogSegmentId)) {
+                logger.info("Saved changes since the last checkpoint to disk in {} ms",
+                        System.currentTimeMillis() - startedAt);
+            }
+            profiles.commit();
+            events.commit();
+        } finally {
+            // No effect once committed; otherwise the changes go into the next checkpoint
+            profiles.release();
+            events.release();
+        }
         
-        // Save events for each user
-        for (Map.Entry<String, List<Event>> entry : eventsByUser.entrySet()) {
-            String userId = entry.getKey();
-            List<Event> userEvents = entry.getValue();
-            
-            // Sort events by timestamp
-            userEvents.sort(Comparator.comparingLong(Event::getTimestamp));
-            
-            // Convert events to maps
-            List<Map<String, Object>> eventMaps = userEvents.stream()
-                    .map(Event::toMap)
-                    .collect(Collectors.toList());
-            
-            // Save events to file
-            File eventsFile = new File(eventsDir, userId + ".json");
-            objectMapper.writeValue(eventsFile, eventMaps);
-            
-            // Update last saved timestamp
-            lastSavedTimestamps.put("events:" + userId, System.currentTimeMillis());
+        if (writeAheadLog != null) {
+            writeAheadLog.deleteSegmentsBefore(writeAheadLogSegmentId);
+        }
+    }
+    
+    /**
+     * Merge checkpoint files and drop the expired ones.
+     */
+    private void mergeCheckpoints() {
+        try {
+            int merged = checkpointStore.merge(retentionCutoffTime);
+            if (merged > 0) {
+                logger.info("Merged {} checkpoint files", merged);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to merge checkpoint files", e);
         }
     }
     
     /**
-     * Save events in NCF format.
+     * Save events in NCF format, one file per day under {@code <data>/ncf}.
+     *
+     * Properties are stored as columns of their own next to the eventId,
+     * eventName, userId and timestamp columns, which
+     * {@link #loadEventsNCF()} reads back.
      */
     public void saveEventsNCF() throws IOException {
         // Create NCF directory if it doesn't exist
@@ -166,9 +310,7 @@ public class PersistenceManager {
         }
         
         // Get all events
-        // In a real implementation, we would need a way to get all events from the store
-        // For now, we'll just use a placeholder
-        List<Event> events = new ArrayList<>();
+        List<Event> events = eventStore.getAllEvents();
         
         // Group events by day
         Map<String, List<Event>> eventsByDay = events.stream()
@@ -203,137 +345,146 @@ public class PersistenceManager {
             
             // Write to file
             File ncfFile = new File(ncfDir, "events-" + day + ".ncf");
-            try (RandomAccessFile raf = new RandomAccessFile(ncfFile, "rw")) {
-                writer.write(raf);
+            try (FileChannel channel = FileChannel.open(ncfFile.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writer.write(channel);
             }
         }
     }
     
     /**
-     * Load all data from disk.
+     * Load all data from disk, once.
+     *
+     * Checkpoint files are restored on a pool of {@link Config#RECOVERY_THREADS}
+     * threads and progress is logged periodically; {@link #getRecoveryProgress()}
+     * reports it meanwhile, including whether the load failed. Once a load has
+     * succeeded, further calls do nothing, since the cold tier would be counted
+     * in the profiles again.
+     *
+     * @return False if the data was already loaded
      */
-    public synchronized void loadAll() {
+    public synchronized boolean loadAll() {
+        if (loaded) {
+            return false;
+        }
+        
+        RecoveryProgress progress = new RecoveryProgress();
+        recoveryProgress = progress;
+        progress.start();
+        
+        int threads = Math.max(1, Config.getInt("recoveryThreads", Config.RECOVERY_THREADS));
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "recovery-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "recovery-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> logger.info("Recovery progress: {}", progress), 10, 10, TimeUnit.SECONDS);
         try {
-            loadUserProfiles();
-            loadEvents();
-            logger.info("Loaded all data from disk");
-        } catch (IOException e) {
+            progress.enter(RecoveryProgress.Phase.PROFILES);
+            checkpointStore.restoreProfiles(userProfileStore, pool, progress);
+            progress.enter(RecoveryProgress.Phase.EVENTS);
+            checkpointStore.restoreEvents(eventStore, pool, progress);
+            // Sealed events are not restored, so count them in their profiles and quotas from the cold tier
+            eventStore.restoreColdTier(pool);
+            
+            // What was just restored is on disk already; the log replay below is not
+            userProfileStore.captureChanges().commit();
+            eventStore.captureChanges().commit();
+            
+            progress.enter(RecoveryProgress.Phase.WRITE_AHEAD_LOG);
+            replayWriteAheadLog(progress);
+            progress.enter(RecoveryProgress.Phase.DONE);
+            loaded = true;
+            logger.info("Loaded all data from disk: {}", progress);
+        } catch (IOException | RuntimeException e) {
+            progress.enter(RecoveryProgress.Phase.FAILED);
             logger.error("Failed to load data from disk", e);
+        } finally {
+            reporter.shutdownNow();
+            pool.shutdown();
         }
+        return true;
     }
     
     /**
-     * Load user profiles from disk.
+     * Get the progress of the current or last {@link #loadAll()}.
+     *
+     * @return Recovery progress
      */
-    private void loadUserProfiles() throws IOException {
-        File profilesDir = new File(dataDirectory, "profiles");
-        if (!profilesDir.exists()) {
-            return;
-        }
-        
-        // Load each profile file
-        File[] profileFiles = profilesDir.listFiles((dir, name) -> name.endsWith(".json"));
-        if (profileFiles != null) {
-            for (File profileFile : profileFiles) {
-                try {
-                    // Read profile from file
-                    @SuppressWarnings("unchecked")
-                    Map<String, Object> profileMap = objectMapper.readValue(profileFile, Map.class);
-                    
-                    // Create profile
-                    UserProfile profile = UserProfile.fromMap(profileMap);
-                    
-                    // Add profile to store
-                    // In a real implementation, we would need a way to add the profile to the store
-                    // For now, we'll just log it
-                    logger.info("Loaded profile: {}", profile.getUserId());
-                } catch (IOException e) {
-                    logger.error("Failed to load profile from file: " + profileFile, e);
-                }
-            }
-        }
+    public RecoveryProgress getRecoveryProgress() {
+        return recoveryProgress;
     }
     
     /**
-     * Load events from disk.
+     * Apply the changes logged by earlier runs after the last checkpoint.
      */
-    private void loadEvents() throws IOException {
-        File eventsDir = new File(dataDirectory, "events");
-        if (!eventsDir.exists()) {
+    private void replayWriteAheadLog(RecoveryProgress progress) throws IOException {
+        if (writeAheadLog == null) {
             return;
         }
         
-        // Load each events file
-        File[] eventsFiles = eventsDir.listFiles((dir, name) -> name.endsWith(".json"));
-        if (eventsFiles != null) {
-            for (File eventsFile : eventsFiles) {
-                try {
-                    // Read events from file
-                    @SuppressWarnings("unchecked")
-                    List<Map<String, Object>> eventMaps = objectMapper.readValue(eventsFile, List.class);
-                    
-                    // Create events
-                    for (Map<String, Object> eventMap : eventMaps) {
-                        Event event = Event.fromMap(eventMap);
-                        
-                        // Add event to store
-                        // In a real implementation, we would need a way to add the event to the store
-                        // For now, we'll just log it
-                        logger.info("Loaded event: {}", event.getEventId());
-                    }
-                } catch (IOException e) {
-                    logger.error("Failed to load events from file: " + eventsFile, e);
-                }
+        writeAheadLog.replay(checkpointStore.getWriteAheadLogSegmentId(), record -> {
+            switch (record.getType()) {
+                case EVENT:
+                    eventStore.replayEvent(record.getEvent());
+                    break;
+                case PROFILE_UPDATE:
+                    userProfileStore.replayProfileUpdate(record.getUserId(), record.getProperties());
+                    break;
+                case PROFILE_DELETE:
+                    userProfileStore.replayProfileDelete(record.getUserId());
+                    break;
+                case REMOVAL:
+                    eventStore.replayRemoval(record.getRemoval());
+                    break;
             }
-        }
+            progress.addLogRecords(1);
+        });
     }
     
     /**
-     * Load events from NCF files.
+     * Load events from NCF files into the event store.
+     *
+     * Each file is read column by column and bulk loaded through
+     * {@link EventStore#loadColumns}, so no map is built per row. Events that
+     * are already stored are skipped, and the loaded events are not logged.
+     *
+     * @return Number of events loaded
      */
-    public void loadEventsNCF() throws IOException {
+    public int loadEventsNCF() throws IOException {
         File ncfDir = new File(dataDirectory, "ncf");
         if (!ncfDir.exists()) {
-            return;
+            return 0;
         }
         
-        // Load each NCF file
+        int loaded = 0;
         File[] ncfFiles = ncfDir.listFiles((dir, name) -> name.endsWith(".ncf"));
         if (ncfFiles != null) {
+            Arrays.sort(ncfFiles);
             for (File ncfFile : ncfFiles) {
-                try (RandomAccessFile raf = new RandomAccessFile(ncfFile, "r");
-                     NCF.Reader reader = new NCF.Reader(raf)) {
-                    
-                    // Read all rows
-                    List<Map<String, Object>> rows = reader.readRows(0, null);
+                try (NCF.Reader reader = new NCF.Reader(ncfFile)) {
+                    // Read the file in one scan; every column that is not event metadata holds a property
+                    Map<String, List<Object>> propertyColumns = reader.readColumns(reader.getColumns().keySet());
+                    List<Object> eventIds = propertyColumns.remove("eventId");
+                    List<Object> eventNames = propertyColumns.remove("eventName");
+                    List<Object> userIds = propertyColumns.remove("userId");
+                    List<Object> timestamps = propertyColumns.remove("timestamp");
                     
-                    // Create events
-                    for (Map<String, Object> row : rows) {
-                        String eventId = (String) row.get("eventId");
-                        String eventName = (String) row.get("eventName");
-                        String userId = (String) row.get("userId");
-                        Long timestamp = (Long) row.get("timestamp");
-                        
-                        // Remove metadata fields
-                        Map<String, Object> properties = new HashMap<>(row);
-                        properties.remove("eventId");
-                        properties.remove("eventName");
-                        properties.remove("userId");
-                        properties.remove("timestamp");
-                        
-                        // Create event
-                        Event event = new Event(eventName, userId, properties, timestamp, eventId);
-                        
-                        // Add event to store
-                        // In a real implementation, we would need a way to add the event to the store
-                        // For now, we'll just log it
-                        logger.info("Loaded event from NCF: {}", event.getEventId());
-                    }
-                } catch (IOException e) {
+                    int count = eventStore.loadColumns(eventIds, eventNames, userIds, timestamps, propertyColumns);
+                    loaded += count;
+                    logger.info("Loaded {} events from NCF file: {}", count, ncfFile);
+                } catch (IOException | RuntimeException e) {
                     logger.error("Failed to load events from NCF file: " + ncfFile, e);
                 }
             }
         }
+        return loaded;
     }
     
     /**
@@ -344,6 +495,9 @@ public class PersistenceManager {
     public void applyRetentionPolicy(int retentionDays) {
         long cutoffTime = System.currentTimeMillis() - (retentionDays * 24 * 60 * 60 * 1000L);
         
+        // Checkpointed events past the cutoff are dropped when the checkpoints are next compacted
+        retentionCutoffTime = cutoffTime;
+        
         try {
             // Delete old NCF files
             File ncfDir = new File(dataDirectory, "ncf");
@@ -379,14 +533,30 @@ public class PersistenceManager {
                 }
             }
             
-            // In a real implementation, we would also need to delete old events and profiles
-            // from the in-memory stores
-            
+            // Drop expired in-memory segments
+            long droppedEvents = eventStore.dropSegmentsBefore(cutoffTime);
+            if (droppedEvents > 0) {
+                logger.info("Dropped {} expired events from memory", droppedEvents);
+            }
         } catch (Exception e) {
             logger.error("Failed to apply retention policy", e);
         }
     }
     
+    /**
+     * Move segments past the hot tier's age or memory budget to the cold tier.
+     */
+    public void applyTieringPolicy() {
+        try {
+            int moved = eventStore.moveSegmentsToColdTier(System.currentTimeMillis());
+            if (moved > 0) {
+                logger.info("Moved {} segments to the cold tier", moved);
+            }
+        } catch (IOException e) {
+            logger.error("Failed to move segments to the cold tier", e);
+        }
+    }
+    
     /**
      * Shut down the persistence manager.
      */
@@ -394,15 +564,18 @@ public class PersistenceManager {
         // Save all data before shutting down
         saveAll();
         
-        // Shut down scheduler
-        scheduler.shutdown();
-        try {
-            if (!scheduler.awaitTermination(30, TimeUnit.SECONDS)) {
-                scheduler.shutdownNow();
+        // Stop background maintenance, letting running jobs finish
+        maintenance.shutdown(30000);
+        
+        // Stop logging and sync what is left
+        if (writeAheadLog != null) {
+            userProfileStore.setWriteAheadLog(null);
+            eventStore.setWriteAheadLog(null);
+            try {
+                writeAheadLog.close();
+            } catch (IOException e) {
+                logger.error("Failed to close write-ahead log", e);
             }
-        } catch (InterruptedException e) {
-            scheduler.shutdownNow();
-            Thread.currentThread().interrupt();
         }
     }
 }
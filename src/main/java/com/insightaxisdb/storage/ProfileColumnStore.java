@@ -0,0 +1,667 @@
+package com.insightaxisdb.storage;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Columnar mirror of the profile properties in a {@link UserProfileStore}.
+ *
+ * Every profile gets a dense integer ID, and every property is a column of
+ * values indexed by that ID. Columns are typed by their first value like
+ * {@link PropertySchema} slots: numbers and booleans are held in primitive
+ * arrays and strings are dictionary-encoded, so scans over a property walk one
+ * array sequentially instead of visiting a map per profile. A column that sees
+ * values of more than one type falls back to boxed values. String codes are
+ * reference counted, so the codes of values no profile holds any more are
+ * freed and reused.
+ *
+ * Each column has its own lock, and the table of dense IDs another. Scans and
+ * summaries read a copy-on-write snapshot of a column without holding any
+ * lock: the first update after a snapshot copies the column's arrays, so
+ * copying costs at most one pass per scan. Point reads keep using the profile
+ * objects.
+ */
+public class ProfileColumnStore {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Test applied to the values of a column during a scan.
+     *
+     * Primitive values are passed unboxed together with the column type, so
+     * the test can honor type-sensitive equality without boxing every value.
+     */
+    public interface ColumnPredicate {
+
+        /**
+         * Test a profile that does not have the property.
+         */
+        boolean matchesMissing();
+
+        /**
+         * Test a boolean, int or long value.
+         *
+         * @param value Value; booleans are 1 or 0
+         * @param type Column type, one of BOOLEAN, INT and LONG
+         */
+        boolean matches(long value, PropertySchema.SlotType type);
+
+        /**
+         * Test a double value.
+         */
+        boolean matches(double value);
+
+        /**
+         * Test any other value, including null. String columns call this once per distinct value.
+         */
+        boolean matches(Object value);
+    }
+
+    // Guards the dense ID table: denseIds, freeIds, live, userIds and highWater
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> denseIds = new HashMap<>();
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+    private final ConcurrentMap<String, Column> columns = new ConcurrentHashMap<>();
+    private final BitSet live = new BitSet();
+    private String[] userIds = new String[INITIAL_CAPACITY];
+    private int highWater = 0;
+
+    /**
+     * Update the columns for a change of a user's properties.
+     *
+     * @param userId User ID
+     * @param oldProperties Properties before the change, or null if the profile is new
+     * @param newProperties Properties after the change
+     */
+    public void update(String userId, Map<String, Object> oldProperties, Map<String, Object> newProperties) {
+        int id;
+        lock.writeLock().lock();
+        try {
+            id = denseIdFor(userId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Map.Entry<String, Object> entry : newProperties.entrySet()) {
+            // Unchanged values are skipped, which leaves most columns untouched on small updates
+            if (oldProperties != null && oldProperties.containsKey(entry.getKey())
+                    && oldProperties.get(entry.getKey()) == entry.getValue()) {
+                continue;
+            }
+            columns.computeIfAbsent(entry.getKey(), k -> new Column()).set(id, entry.getValue());
+        }
+        if (oldProperties != null) {
+            for (String key : oldProperties.keySet()) {
+                if (!newProperties.containsKey(key)) {
+                    Column column = columns.get(key);
+                    if (column != null) {
+                        column.clear(id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a user from the columns.
+     *
+     * @param userId User ID
+     */
+    public void remove(String userId) {
+        Integer id;
+        lock.writeLock().lock();
+        try {
+            id = denseIds.remove(userId);
+            if (id == null) {
+                return;
+            }
+            live.clear(id);
+            userIds[id] = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        for (Column column : columns.values()) {
+            column.clear(id);
+        }
+
+        // The ID is only reused once no column holds a value for it
+        lock.writeLock().lock();
+        try {
+            freeIds.push(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the dense IDs of all users.
+     *
+     * @return Set bits for every user
+     */
+    public BitSet all() {
+        lock.readLock().lock();
+        try {
+            return (BitSet) live.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Scan a column and select the users whose value passes a test.
+     *
+     * @param property Property name
+     * @param predicate Test for the values
+     * @return Dense IDs of the matching users
+     */
+    public BitSet scan(String property, ColumnPredicate predicate) {
+        Column column = columns.get(property);
+        ColumnData data = column != null ? column.snapshot() : null;
+        BitSet result = new BitSet();
+        if (predicate.matchesMissing()) {
+            result.or(all());
+            if (data != null) {
+                result.andNot(data.present);
+            }
+        }
+        if (data != null) {
+            data.scan(predicate, result);
+        }
+        return result;
+    }
+
+    /**
+     * Summarize the numeric values of a column for a set of users.
+     *
+     * @param property Property name
+     * @param rows Dense IDs of the users
+     * @return Count, sum, minimum and maximum of the numeric values
+     */
+    public DoubleSummaryStatistics summarize(String property, BitSet rows) {
+        DoubleSummaryStatistics statistics = new DoubleSummaryStatistics();
+        Column column = columns.get(property);
+        if (column != null) {
+            column.snapshot().summarize(rows, statistics);
+        }
+        return statistics;
+    }
+
+    /**
+     * Count the distinct non-null values of a column for a set of users.
+     *
+     * @param property Property name
+     * @param rows Dense IDs of the users
+     * @return Number of distinct values
+     */
+    public long countDistinct(String property, BitSet rows) {
+        Column column = columns.get(property);
+        return column != null ? column.snapshot().countDistinct(rows) : 0;
+    }
+
+    /**
+     * Resolve dense IDs to user IDs.
+     *
+     * @param rows Dense IDs
+     * @return User IDs of the users that still exist
+     */
+    public List<String> getUserIds(BitSet rows) {
+        lock.readLock().lock();
+        try {
+            List<String> result = new ArrayList<>(rows.cardinality());
+            for (int id = rows.nextSetBit(0); id >= 0 && id < highWater; id = rows.nextSetBit(id + 1)) {
+                if (userIds[id] != null) {
+                    result.add(userIds[id]);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the type of a column.
+     *
+     * @param property Property name
+     * @return Column type, or null if no profile has had the property
+     */
+    public PropertySchema.SlotType getColumnType(String property) {
+        Column column = columns.get(property);
+        return column != null ? column.getType() : null;
+    }
+
+    /**
+     * Get the number of string codes in use by a column.
+     *
+     * @param property Property name
+     * @return Number of distinct strings held, or 0 if the column does not hold strings
+     */
+    public int getDictionarySize(String property) {
+        Column column = columns.get(property);
+        return column != null ? column.snapshot().dictionarySize() : 0;
+    }
+
+    /**
+     * Get the number of users in the columns.
+     *
+     * @return Number of users
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return denseIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int denseIdFor(String userId) {
+        Integer id = denseIds.get(userId);
+        if (id != null) {
+            return id;
+        }
+
+        // Reuse the IDs of deleted users so the columns stay dense
+        id = freeIds.isEmpty() ? highWater++ : freeIds.pop();
+        if (id >= userIds.length) {
+            userIds = Arrays.copyOf(userIds, userIds.length * 2);
+        }
+        userIds[id] = userId;
+        denseIds.put(userId, id);
+        live.set(id);
+        return id;
+    }
+
+    /**
+     * Column of one property, swapping in a copy of its data on the first
+     * update after a snapshot.
+     */
+    private static class Column {
+        private ColumnData data = new ColumnData();
+        private boolean shared = false;
+
+        synchronized void set(int id, Object value) {
+            writable().set(id, value);
+        }
+
+        synchronized void clear(int id) {
+            if (data.present.get(id)) {
+                writable().clear(id);
+            }
+        }
+
+        /**
+         * Get the current data for reading without a lock; it is not modified afterwards.
+         */
+        synchronized ColumnData snapshot() {
+            shared = true;
+            return data;
+        }
+
+        synchronized PropertySchema.SlotType getType() {
+            return data.type;
+        }
+
+        private ColumnData writable() {
+            if (shared) {
+                data = data.copy();
+                shared = false;
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Values of one property for all users.
+     */
+    private static class ColumnData {
+        private PropertySchema.SlotType type;
+        private final BitSet present = new BitSet();
+        private final BitSet nulls = new BitSet();
+        private long[] longs;
+        private double[] doubles;
+        private int[] codes;
+        private List<String> dictionary;
+        private Map<String, Integer> dictionaryCodes;
+        private int[] codeReferences;
+        private Deque<Integer> freeCodes;
+        private Object[] objects;
+
+        void set(int id, Object value) {
+            // The string code held before, released once the new value is stored
+            int oldCode = type == PropertySchema.SlotType.STRING && present.get(id) && !nulls.get(id)
+                    ? codes[id] : -1;
+            if (value == null) {
+                present.set(id);
+                nulls.set(id);
+                releaseCode(oldCode);
+                return;
+            }
+
+            PropertySchema.SlotType valueType = typeOf(value);
+            if (type == null) {
+                type = valueType;
+                allocate(INITIAL_CAPACITY);
+            } else if (type != valueType && type != PropertySchema.SlotType.OBJECT) {
+                promoteToObject();
+            }
+            ensureCapacity(id + 1);
+
+            switch (type) {
+                case BOOLEAN:
+                    longs[id] = (Boolean) value ? 1 : 0;
+                    break;
+                case INT:
+                case LONG:
+                    longs[id] = ((Number) value).longValue();
+                    break;
+                case DOUBLE:
+                    doubles[id] = (Double) value;
+                    break;
+                case STRING:
+                    codes[id] = codeFor((String) value);
+                    break;
+                default:
+                    objects[id] = value;
+                    break;
+            }
+            present.set(id);
+            nulls.clear(id);
+            if (type == PropertySchema.SlotType.STRING) {
+                releaseCode(oldCode);
+            }
+        }
+
+        void clear(int id) {
+            if (type == PropertySchema.SlotType.STRING && present.get(id) && !nulls.get(id)) {
+                releaseCode(codes[id]);
+            }
+            present.clear(id);
+            nulls.clear(id);
+            if (objects != null && id < objects.length) {
+                objects[id] = null;
+            }
+        }
+
+        Object get(int id) {
+            if (nulls.get(id)) {
+                return null;
+            }
+            switch (type) {
+                case BOOLEAN:
+                    return longs[id] != 0;
+                case INT:
+                    return (int) longs[id];
+                case LONG:
+                    return longs[id];
+                case DOUBLE:
+                    return doubles[id];
+                case STRING:
+                    return dictionary.get(codes[id]);
+                default:
+                    return objects[id];
+            }
+        }
+
+        void scan(ColumnPredicate predicate, BitSet result) {
+            // Null values are tested once, like a single distinct value
+            if (!nulls.isEmpty() && predicate.matches((Object) null)) {
+                result.or(nulls);
+            }
+            if (type == null) {
+                return;
+            }
+
+            switch (type) {
+                case BOOLEAN:
+                case INT:
+                case LONG:
+                    for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+                        if (!nulls.get(id) && predicate.matches(longs[id], type)) {
+                            result.set(id);
+                        }
+                    }
+                    break;
+                case DOUBLE:
+                    for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+                        if (!nulls.get(id) && predicate.matches(doubles[id])) {
+                            result.set(id);
+                        }
+                    }
+                    break;
+                case STRING:
+                    // Test each distinct string once, then select rows by code
+                    boolean[] matchingCodes = new boolean[dictionary.size()];
+                    for (int code = 0; code < matchingCodes.length; code++) {
+                        // Freed codes are held by no row
+                        matchingCodes[code] = dictionary.get(code) != null && predicate.matches(dictionary.get(code));
+                    }
+                    for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+                        if (!nulls.get(id) && matchingCodes[codes[id]]) {
+                            result.set(id);
+                        }
+                    }
+                    break;
+                default:
+                    for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+                        if (!nulls.get(id) && predicate.matches(objects[id])) {
+                            result.set(id);
+                        }
+                    }
+                    break;
+            }
+        }
+
+        void summarize(BitSet rows, DoubleSummaryStatistics statistics) {
+            if (type == null || type == PropertySchema.SlotType.BOOLEAN || type == PropertySchema.SlotType.STRING) {
+                return;
+            }
+
+            BitSet selected = selected(rows);
+            for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1)) {
+                switch (type) {
+                    case INT:
+                    case LONG:
+                        statistics.accept(longs[id]);
+                        break;
+                    case DOUBLE:
+                        statistics.accept(doubles[id]);
+                        break;
+                    default:
+                        if (objects[id] instanceof Number) {
+                            statistics.accept(((Number) objects[id]).doubleValue());
+                        }
+                        break;
+                }
+            }
+        }
+
+        long countDistinct(BitSet rows) {
+            if (type == null) {
+                return 0;
+            }
+
+            BitSet selected = selected(rows);
+            if (type == PropertySchema.SlotType.STRING) {
+                BitSet seen = new BitSet(dictionary.size());
+                for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1)) {
+                    seen.set(codes[id]);
+                }
+                return seen.cardinality();
+            }
+
+            Set<Object> seen = new HashSet<>();
+            for (int id = selected.nextSetBit(0); id >= 0; id = selected.nextSetBit(id + 1)) {
+                seen.add(get(id));
+            }
+            return seen.size();
+        }
+
+        /**
+         * Get the rows that hold a non-null value of this column.
+         */
+        private BitSet selected(BitSet rows) {
+            BitSet selected = (BitSet) rows.clone();
+            selected.and(present);
+            selected.andNot(nulls);
+            return selected;
+        }
+
+        int dictionarySize() {
+            return dictionaryCodes != null ? dictionaryCodes.size() : 0;
+        }
+
+        /**
+         * Copy the data, so the copy can be updated while this one is read.
+         */
+        ColumnData copy() {
+            ColumnData copy = new ColumnData();
+            copy.type = type;
+            copy.present.or(present);
+            copy.nulls.or(nulls);
+            copy.longs = longs != null ? longs.clone() : null;
+            copy.doubles = doubles != null ? doubles.clone() : null;
+            copy.codes = codes != null ? codes.clone() : null;
+            copy.dictionary = dictionary != null ? new ArrayList<>(dictionary) : null;
+            copy.dictionaryCodes = dictionaryCodes != null ? new HashMap<>(dictionaryCodes) : null;
+            copy.codeReferences = codeReferences != null ? codeReferences.clone() : null;
+            copy.freeCodes = freeCodes != null ? new ArrayDeque<>(freeCodes) : null;
+            copy.objects = objects != null ? objects.clone() : null;
+            return copy;
+        }
+
+        /**
+         * Get the code of a string, taking a reference to it.
+         */
+        private int codeFor(String value) {
+            Integer code = dictionaryCodes.get(value);
+            if (code == null) {
+                if (freeCodes.isEmpty()) {
+                    code = dictionary.size();
+                    dictionary.add(value);
+                } else {
+                    code = freeCodes.pop();
+                    dictionary.set(code, value);
+                }
+                dictionaryCodes.put(value, code);
+                if (code >= codeReferences.length) {
+                    codeReferences = Arrays.copyOf(codeReferences, codeReferences.length * 2);
+                }
+            }
+            codeReferences[code]++;
+            return code;
+        }
+
+        /**
+         * Drop a reference to a string code, freeing the code with its last reference.
+         */
+        private void releaseCode(int code) {
+            if (code < 0 || --codeReferences[code] > 0) {
+                return;
+            }
+            dictionaryCodes.remove(dictionary.get(code));
+            dictionary.set(code, null);
+            freeCodes.push(code);
+        }
+
+        private void allocate(int capacity) {
+            switch (type) {
+                case BOOLEAN:
+                case INT:
+                case LONG:
+                    longs = new long[capacity];
+                    break;
+                case DOUBLE:
+                    doubles = new double[capacity];
+                    break;
+                case STRING:
+                    codes = new int[capacity];
+                    dictionary = new ArrayList<>();
+                    dictionaryCodes = new HashMap<>();
+                    codeReferences = new int[16];
+                    freeCodes = new ArrayDeque<>();
+                    break;
+                default:
+                    objects = new Object[capacity];
+                    break;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            int current = longs != null ? longs.length
+                    : doubles != null ? doubles.length
+                    : codes != null ? codes.length
+                    : objects.length;
+            if (capacity <= current) {
+                return;
+            }
+
+            int grown = Math.max(capacity, current * 2);
+            if (longs != null) {
+                longs = Arrays.copyOf(longs, grown);
+            } else if (doubles != null) {
+                doubles = Arrays.copyOf(doubles, grown);
+            } else if (codes != null) {
+                codes = Arrays.copyOf(codes, grown);
+            } else {
+                objects = Arrays.copyOf(objects, grown);
+            }
+        }
+
+        /**
+         * Box the existing values once the column holds more than one type.
+         */
+        private void promoteToObject() {
+            int capacity = longs != null ? longs.length
+                    : doubles != null ? doubles.length
+                    : codes.length;
+            Object[] boxed = new Object[capacity];
+            for (int id = present.nextSetBit(0); id >= 0; id = present.nextSetBit(id + 1)) {
+                boxed[id] = get(id);
+            }
+
+            type = PropertySchema.SlotType.OBJECT;
+            objects = boxed;
+            longs = null;
+            doubles = null;
+            codes = null;
+            dictionary = null;
+            dictionaryCodes = null;
+            codeReferences = null;
+            freeCodes = null;
+        }
+
+        private static PropertySchema.SlotType typeOf(Object value) {
+            if (value instanceof Boolean) {
+                return PropertySchema.SlotType.BOOLEAN;
+            }
+            if (value instanceof Integer) {
+                return PropertySchema.SlotType.INT;
+            }
+            if (value instanceof Long) {
+                return PropertySchema.SlotType.LONG;
+            }
+            if (value instanceof Double) {
+                return PropertySchema.SlotType.DOUBLE;
+            }
+            if (value instanceof String) {
+                return PropertySchema.SlotType.STRING;
+            }
+            return PropertySchema.SlotType.OBJECT;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.insightaxisdb.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Profiles changed in a {@link UserProfileStore} since its last committed checkpoint.
+ *
+ * Changed profiles are copied when the delta is taken; profiles deleted
+ * meanwhile are listed by user ID. The delta must be committed once persisted,
+ * or released, which marks its profiles as changed again so the next delta
+ * covers them.
+ */
+public class ProfileDelta {
+    private final List<UserProfile> profiles;
+    private final List<String> deletedUserIds;
+    private final Set<String> dirtyUserIds;
+    private final AtomicBoolean finished = new AtomicBoolean();
+
+    ProfileDelta(List<UserProfile> profiles, List<String> deletedUserIds, Set<String> dirtyUserIds) {
+        this.profiles = profiles;
+        this.deletedUserIds = deletedUserIds;
+        this.dirtyUserIds = dirtyUserIds;
+    }
+
+    /**
+     * Get copies of the changed profiles.
+     *
+     * @return Changed profiles
+     */
+    public List<UserProfile> getProfiles() {
+        return profiles;
+    }
+
+    /**
+     * Get the IDs of the deleted profiles.
+     *
+     * @return Deleted user IDs
+     */
+    public List<String> getDeletedUserIds() {
+        return deletedUserIds;
+    }
+
+    /**
+     * Check whether any profile changed since the last checkpoint.
+     *
+     * @return Whether the delta is empty
+     */
+    public boolean isEmpty() {
+        return profiles.isEmpty() && deletedUserIds.isEmpty();
+    }
+
+    /**
+     * Mark the profiles of the delta as persisted.
+     */
+    public void commit() {
+        finished.set(true);
+    }
+
+    /**
+     * Give up on the delta, marking its profiles as changed again.
+     */
+    public void release() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+
+        List<String> userIds = new ArrayList<>(deletedUserIds);
+        for (UserProfile profile : profiles) {
+            userIds.add(profile.getUserId());
+        }
+        dirtyUserIds.addAll(userIds);
+    }
+}
@@ -0,0 +1,242 @@
+package com.insightaxisdb.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Secondary index from the values of one profile property to user IDs.
+ *
+ * A hash index answers equality and IN lookups on any value. A sorted index
+ * keeps numbers and strings in skip lists, ordered the way query conditions
+ * compare them (numbers by double value, strings lexicographically), and also
+ * answers range lookups. Lookups return candidate user IDs; callers still
+ * evaluate their conditions on the candidates, so a numeric equality lookup on
+ * a sorted index may include values of other numeric types.
+ *
+ * Reads are lock-free. Writers for the same value are serialized on a striped
+ * lock, so empty value entries can be removed without losing a concurrent add.
+ */
+public class ProfileIndex {
+
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Kind of index.
+     */
+    public enum IndexType {
+        HASH,
+        SORTED
+    }
+
+    private final String property;
+    private final IndexType type;
+    private final Map<Object, Set<String>> values = new ConcurrentHashMap<>();
+    private final NavigableMap<Double, Set<String>> numbers = new ConcurrentSkipListMap<>();
+    private final NavigableMap<String, Set<String>> strings = new ConcurrentSkipListMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    /**
+     * Initialize profile index.
+     *
+     * @param property Name of the indexed property
+     * @param type Kind of index
+     */
+    public ProfileIndex(String property, IndexType type) {
+        this.property = property;
+        this.type = type;
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Update the index for a change of a user's properties.
+     *
+     * @param userId User ID
+     * @param oldProperties Properties before the change, or null if the profile is new
+     * @param newProperties Properties after the change, or null if the profile was deleted
+     */
+    public void update(String userId, Map<String, Object> oldProperties, Map<String, Object> newProperties) {
+        Object oldValue = oldProperties != null ? oldProperties.get(property) : null;
+        Object newValue = newProperties != null ? newProperties.get(property) : null;
+        if (oldValue != null && oldValue.equals(newValue)) {
+            return;
+        }
+
+        if (oldValue != null) {
+            remove(userId, oldValue);
+        }
+        if (newValue != null) {
+            add(userId, newValue);
+        }
+    }
+
+    /**
+     * Find users whose property equals a value.
+     *
+     * @param value Value to look up
+     * @return Candidate user IDs, or null if the index cannot answer the lookup
+     */
+    public Set<String> lookupEquals(Object value) {
+        if (value == null) {
+            return null;
+        }
+
+        if (type == IndexType.HASH) {
+            return snapshot(values.get(value));
+        }
+        if (value instanceof Number) {
+            return snapshot(numbers.get(((Number) value).doubleValue()));
+        }
+        if (value instanceof String) {
+            return snapshot(strings.get(value));
+        }
+        return null;
+    }
+
+    /**
+     * Find users whose property equals any of several values.
+     *
+     * @param candidates Values to look up
+     * @return Candidate user IDs, or null if the index cannot answer the lookup
+     */
+    public Set<String> lookupIn(Collection<?> candidates) {
+        Set<String> userIds = new HashSet<>();
+        for (Object value : candidates) {
+            Set<String> matches = lookupEquals(value);
+            if (matches == null) {
+                return null;
+            }
+            userIds.addAll(matches);
+        }
+        return userIds;
+    }
+
+    /**
+     * Find users whose property lies in a range.
+     *
+     * Both bounds must be numbers or both strings, matching how query
+     * conditions compare values; values of the other kind never match.
+     *
+     * @param from Lower bound, or null for none
+     * @param fromInclusive Whether the lower bound is included
+     * @param to Upper bound, or null for none
+     * @param toInclusive Whether the upper bound is included
+     * @return Candidate user IDs, or null if the index cannot answer the lookup
+     */
+    public Set<String> lookupRange(Object from, boolean fromInclusive, Object to, boolean toInclusive) {
+        if (type != IndexType.SORTED || (from == null && to == null)) {
+            return null;
+        }
+
+        Object bound = from != null ? from : to;
+        if (bound instanceof Number) {
+            if ((from != null && !(from instanceof Number)) || (to != null && !(to instanceof Number))) {
+                return Collections.emptySet();
+            }
+            return collect(range(numbers,
+                    from != null ? ((Number) from).doubleValue() : null, fromInclusive,
+                    to != null ? ((Number) to).doubleValue() : null, toInclusive));
+        }
+        if (bound instanceof String) {
+            if ((from != null && !(from instanceof String)) || (to != null && !(to instanceof String))) {
+                return Collections.emptySet();
+            }
+            return collect(range(strings, (String) from, fromInclusive, (String) to, toInclusive));
+        }
+        return Collections.emptySet();
+    }
+
+    // Getters
+
+    public String getProperty() {
+        return property;
+    }
+
+    public IndexType getType() {
+        return type;
+    }
+
+    /**
+     * Get the number of distinct indexed values.
+     *
+     * @return Number of values
+     */
+    public int getValueCount() {
+        return type == IndexType.HASH ? values.size() : numbers.size() + strings.size();
+    }
+
+    private void add(String userId, Object value) {
+        if (type == IndexType.HASH) {
+            add(values, value, userId);
+        } else if (value instanceof Number) {
+            add(numbers, ((Number) value).doubleValue(), userId);
+        } else if (value instanceof String) {
+            add(strings, (String) value, userId);
+        }
+    }
+
+    private void remove(String userId, Object value) {
+        if (type == IndexType.HASH) {
+            remove(values, value, userId);
+        } else if (value instanceof Number) {
+            remove(numbers, ((Number) value).doubleValue(), userId);
+        } else if (value instanceof String) {
+            remove(strings, (String) value, userId);
+        }
+    }
+
+    private <K> void add(Map<K, Set<String>> map, K key, String userId) {
+        synchronized (lockFor(key)) {
+            map.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(userId);
+        }
+    }
+
+    private <K> void remove(Map<K, Set<String>> map, K key, String userId) {
+        synchronized (lockFor(key)) {
+            Set<String> userIds = map.get(key);
+            if (userIds != null && userIds.remove(userId) && userIds.isEmpty()) {
+                map.remove(key);
+            }
+        }
+    }
+
+    private Object lockFor(Object key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    private static <K> NavigableMap<K, Set<String>> range(NavigableMap<K, Set<String>> map,
+                                                       K from, boolean fromInclusive, K to, boolean toInclusive) {
+        if (from != null && to != null) {
+            // subMap rejects inverted bounds, which simply match nothing here
+            if (compare(from, to) > 0) {
+                return Collections.emptyNavigableMap();
+            }
+            return map.subMap(from, fromInclusive, to, toInclusive);
+        }
+        return from != null ? map.tailMap(from, fromInclusive) : map.headMap(to, toInclusive);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K> int compare(K a, K b) {
+        return ((Comparable<K>) a).compareTo(b);
+    }
+
+    private static Set<String> collect(Map<?, Set<String>> matches) {
+        Set<String> userIds = new HashSet<>();
+        for (Set<String> users : matches.values()) {
+            userIds.addAll(users);
+        }
+        return userIds;
+    }
+
+    private static Set<String> snapshot(Set<String> userIds) {
+        return userIds != null ? new HashSet<>(userIds) : Collections.emptySet();
+    }
+}
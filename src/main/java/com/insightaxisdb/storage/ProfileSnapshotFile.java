@@ -0,0 +1,473 @@
+package com.insightaxisdb.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+/**
+ * Binary file of profile records sorted by user ID, with an offset index.
+ *
+ * Layout, big-endian:
+ * <pre>
+ * header   magic (int), version (int)
+ * records  length (int), flags (byte), user ID (length-prefixed UTF-8), and
+ *          unless the record is a deletion, the first-seen and last-seen
+ *          times (long) and the properties in {@link PropertyCodec} encoding
+ * index    offset of each record (long), in record order
+ * footer   index offset (long), record count (int), magic (int)
+ * </pre>
+ *
+ * Files are written in one sequential pass and read through memory mappings,
+ * so saving or loading millions of profiles takes a few large I/Os rather than
+ * a syscall per profile. The index gives direct access to every record:
+ * readers split a file into ranges that are decoded in parallel, and find a
+ * user by binary search.
+ */
+public final class ProfileSnapshotFile {
+
+    private static final int MAGIC = 0x49415850; // "IAXP"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+    private static final int FOOTER_BYTES = 16;
+    private static final long MAX_WINDOW_BYTES = 1L << 30;
+    private static final byte FLAG_DELETED = 1;
+
+    private ProfileSnapshotFile() {
+    }
+
+    /**
+     * Write records to a file in one sequential pass and sync it.
+     *
+     * @param file File to write
+     * @param records Records sorted by user ID, at most one per user
+     * @return Number of records written
+     */
+    public static int write(File file, Iterator<Record> records) throws IOException {
+        return write(file, records, IoThrottle.UNLIMITED);
+    }
+
+    /**
+     * Write records to a file in one sequential pass at a limited rate and sync it.
+     *
+     * @param file File to write
+     * @param records Records sorted by user ID, at most one per user
+     * @param throttle Throttle for the writes
+     * @return Number of records written
+     */
+    public static int write(File file, Iterator<Record> records, IoThrottle throttle) throws IOException {
+        // Offsets are spooled next to the file, so the index never has to fit in memory
+        File indexFile = new File(file.getPath() + ".index");
+        int count = 0;
+        try (FileOutputStream out = new FileOutputStream(file);
+             DataOutputStream data = new DataOutputStream(new BufferedOutputStream(throttle.wrap(out), 1 << 20))) {
+            try (DataOutputStream index = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(indexFile), 1 << 16))) {
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+
+                ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(256);
+                DataOutputStream record = new DataOutputStream(recordBytes);
+                long offset = HEADER_BYTES;
+                String previous = null;
+                while (records.hasNext()) {
+                    Record next = records.next();
+                    if (previous != null && previous.compareTo(next.userId) >= 0) {
+                        throw new IllegalArgumentException("Records must be sorted by user ID: " + next.userId);
+                    }
+
+                    recordBytes.reset();
+                    next.writeTo(record);
+                    index.writeLong(offset);
+                    data.writeInt(recordBytes.size());
+                    recordBytes.writeTo(data);
+
+                    offset += 4 + recordBytes.size();
+                    previous = next.userId;
+                    count++;
+                }
+            }
+
+            data.flush();
+            long indexOffset = out.getChannel().position();
+            try (FileInputStream index = new FileInputStream(indexFile)) {
+                index.transferTo(data);
+            }
+            data.writeLong(indexOffset);
+            data.writeInt(count);
+            data.writeInt(MAGIC);
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            indexFile.delete();
+        }
+        return count;
+    }
+
+    /**
+     * Merge snapshot files in one pass over their sorted records.
+     *
+     * Only the current record of each input is held in memory, so files of any
+     * size are merged in constant space.
+     *
+     * @param readers Readers, oldest file first; for a user in several files the newest record wins
+     * @param dropDeletions Whether to leave out deletion records
+     * @return Iterator over the merged records, sorted by user ID
+     */
+    public static Iterator<Record> merge(List<Reader> readers, boolean dropDeletions) {
+        // Ties on the user ID put the newest file first
+        PriorityQueue<MergeCursor> queue = new PriorityQueue<>(Comparator
+                .comparing((MergeCursor cursor) -> cursor.current.userId)
+                .thenComparing(cursor -> -cursor.source));
+        for (int i = 0; i < readers.size(); i++) {
+            MergeCursor cursor = new MergeCursor(i, readers.get(i).iterator());
+            if (cursor.advance()) {
+                queue.add(cursor);
+            }
+        }
+
+        return new Iterator<Record>() {
+            private Record next = findNext();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Record next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Record record = next;
+                next = findNext();
+                return record;
+            }
+
+            private Record findNext() {
+                while (!queue.isEmpty()) {
+                    MergeCursor newest = queue.poll();
+                    Record record = newest.current;
+                    if (newest.advance()) {
+                        queue.add(newest);
+                    }
+
+                    // Skip the older records of the same user
+                    while (!queue.isEmpty() && queue.peek().current.userId.equals(record.userId)) {
+                        MergeCursor older = queue.poll();
+                        if (older.advance()) {
+                            queue.add(older);
+                        }
+                    }
+
+                    if (!dropDeletions || !record.deleted) {
+                        return record;
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private static class MergeCursor {
+        private final int source;
+        private final Iterator<Record> records;
+        private Record current;
+
+        MergeCursor(int source, Iterator<Record> records) {
+            this.source = source;
+            this.records = records;
+        }
+
+        boolean advance() {
+            current = records.hasNext() ? records.next() : null;
+            return current != null;
+        }
+    }
+
+    /**
+     * Profile state saved by a checkpoint, or the deletion of a profile.
+     */
+    public static class Record {
+        private final String userId;
+        private final boolean deleted;
+        private final long firstSeenAt;
+        private final long lastSeenAt;
+        private final Map<String, Object> properties;
+
+        private Record(String userId, boolean deleted, long firstSeenAt, long lastSeenAt,
+                       Map<String, Object> properties) {
+            this.userId = userId;
+            this.deleted = deleted;
+            this.firstSeenAt = firstSeenAt;
+            this.lastSeenAt = lastSeenAt;
+            this.properties = properties;
+        }
+
+        /**
+         * Create a record of a profile's properties and first-seen and last-seen times.
+         *
+         * Event counts are not saved; they are rebuilt from the restored events.
+         *
+         * @param profile User profile
+         * @return Record
+         */
+        public static Record of(UserProfile profile) {
+            return new Record(profile.getUserId(), false, profile.getFirstSeenAt(), profile.getLastSeenAt(),
+                    profile.getProperties());
+        }
+
+        /**
+         * Create a record of a deleted profile.
+         *
+         * @param userId User ID
+         * @return Record
+         */
+        public static Record deletion(String userId) {
+            return new Record(userId, true, 0, 0, Collections.emptyMap());
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+
+        public long getFirstSeenAt() {
+            return firstSeenAt;
+        }
+
+        public long getLastSeenAt() {
+            return lastSeenAt;
+        }
+
+        public Map<String, Object> getProperties() {
+            return properties;
+        }
+
+        private void writeTo(DataOutputStream out) throws IOException {
+            out.writeByte(deleted ? FLAG_DELETED : 0);
+            PropertyCodec.writeString(out, userId);
+            if (!deleted) {
+                out.writeLong(firstSeenAt);
+                out.writeLong(lastSeenAt);
+                out.write(PropertyCodec.encode(properties));
+            }
+        }
+
+        private static Record read(ByteBuffer buffer) {
+            buffer.getInt();
+            boolean deleted = (buffer.get() & FLAG_DELETED) != 0;
+            String userId = PropertyCodec.readString(buffer);
+            if (deleted) {
+                return deletion(userId);
+            }
+            long firstSeenAt = buffer.getLong();
+            long lastSeenAt = buffer.getLong();
+            return new Record(userId, false, firstSeenAt, lastSeenAt, PropertyCodec.decode(buffer));
+        }
+    }
+
+    /**
+     * Memory-mapped reader of a profile snapshot file.
+     *
+     * The records are mapped in windows of at most 1 GiB that end on record
+     * boundaries. Reads do not move shared buffer positions, so one reader may
+     * be used from several threads.
+     */
+    public static class Reader implements Closeable {
+        private final File file;
+        private final FileChannel channel;
+        private final int recordCount;
+        private final MappedByteBuffer index;
+        private final int[] windowStarts;
+        private final List<MappedByteBuffer> windows = new ArrayList<>();
+        private final long[] windowOffsets;
+
+        /**
+         * Open a snapshot file.
+         *
+         * @param file Snapshot file
+         */
+        public Reader(File file) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if (size < HEADER_BYTES + FOOTER_BYTES) {
+                    throw new IOException("Not a profile snapshot file: " + file);
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                readFully(header, 0);
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_BYTES);
+                readFully(footer, size - FOOTER_BYTES);
+                long indexOffset = footer.getLong();
+                this.recordCount = footer.getInt();
+                if (header.getInt() != MAGIC || footer.getInt() != MAGIC
+                        || indexOffset + recordCount * 8L != size - FOOTER_BYTES) {
+                    throw new IOException("Not a profile snapshot file: " + file);
+                }
+                if (header.getInt() != VERSION) {
+                    throw new IOException("Unsupported profile snapshot version in: " + file);
+                }
+
+                this.index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, recordCount * 8L);
+
+                // Cut the records into windows that end on record boundaries
+                List<Integer> starts = new ArrayList<>();
+                List<Long> offsets = new ArrayList<>();
+                int start = 0;
+                while (start < recordCount) {
+                    long startOffset = offset(start);
+                    int end = start + 1;
+                    while (end < recordCount && endOffset(end, indexOffset) - startOffset <= MAX_WINDOW_BYTES) {
+                        end++;
+                    }
+                    long endOffset = endOffset(end - 1, indexOffset);
+                    starts.add(start);
+                    offsets.add(startOffset);
+                    windows.add(channel.map(FileChannel.MapMode.READ_ONLY, startOffset, endOffset - startOffset));
+                    start = end;
+                }
+                this.windowStarts = starts.stream().mapToInt(Integer::intValue).toArray();
+                this.windowOffsets = offsets.stream().mapToLong(Long::longValue).toArray();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int getRecordCount() {
+            return recordCount;
+        }
+
+        /**
+         * Decode a record.
+         *
+         * @param position Record position, in user ID order
+         * @return Record
+         */
+        public Record get(int position) {
+            return Record.read(slice(position));
+        }
+
+        /**
+         * Decode a range of records.
+         *
+         * @param from First record position (inclusive)
+         * @param to Last record position (exclusive)
+         * @param consumer Consumer of the records
+         */
+        public void read(int from, int to, Consumer<Record> consumer) {
+            for (int position = from; position < to; position++) {
+                consumer.accept(get(position));
+            }
+        }
+
+        /**
+         * Find the record of a user by binary search.
+         *
+         * @param userId User ID
+         * @return Record, or null if the file has none for the user
+         */
+        public Record find(String userId) {
+            int low = 0;
+            int high = recordCount - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                ByteBuffer buffer = slice(middle);
+                buffer.position(buffer.position() + 5);
+                int comparison = PropertyCodec.readString(buffer).compareTo(userId);
+                if (comparison < 0) {
+                    low = middle + 1;
+                } else if (comparison > 0) {
+                    high = middle - 1;
+                } else {
+                    return get(middle);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get an iterator over all records, in user ID order.
+         *
+         * @return Iterator over the records
+         */
+        public Iterator<Record> iterator() {
+            return new Iterator<Record>() {
+                private int position = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return position < recordCount;
+                }
+
+                @Override
+                public Record next() {
+                    return get(position++);
+                }
+            };
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private long offset(int position) {
+            return index.getLong(position * 8);
+        }
+
+        private long endOffset(int position, long indexOffset) {
+            return position + 1 < recordCount ? offset(position + 1) : indexOffset;
+        }
+
+        /**
+         * Get a buffer positioned at a record, independent of other readers.
+         */
+        private ByteBuffer slice(int position) {
+            if (position < 0 || position >= recordCount) {
+                throw new IndexOutOfBoundsException("Record " + position + " of " + recordCount + " in " + file);
+            }
+
+            int window = Arrays.binarySearch(windowStarts, position);
+            if (window < 0) {
+                window = -window - 2;
+            }
+            ByteBuffer buffer = windows.get(window).duplicate();
+            buffer.position((int) (offset(position) - windowOffsets[window]));
+            return buffer;
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file: " + file);
+                }
+            }
+            buffer.flip();
+        }
+    }
+}
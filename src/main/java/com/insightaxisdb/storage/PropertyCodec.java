@@ -0,0 +1,171 @@
+package com.insightaxisdb.storage;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of property maps.
+ *
+ * Each entry is written as a length-prefixed UTF-8 key, a one-byte type tag and
+ * the value. Integer and Long are kept apart so decoded maps compare equal to
+ * the originals; lists and nested maps are stored as JSON.
+ */
+public final class PropertyCodec {
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_BOOLEAN = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_FLOAT = 4;
+    private static final byte TAG_DOUBLE = 5;
+    private static final byte TAG_STRING = 6;
+    private static final byte TAG_ARRAY = 7;
+    private static final byte TAG_OBJECT = 8;
+
+    private PropertyCodec() {
+    }
+
+    /**
+     * Encode a property map.
+     *
+     * @param properties Properties to encode
+     * @return Encoded bytes
+     */
+    public static byte[] encode(Map<String, Object> properties) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + properties.size() * 24);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(properties.size());
+            for (Map.Entry<String, Object> entry : properties.entrySet()) {
+                writeString(out, entry.getKey());
+                writeValue(out, entry.getValue());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode properties", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decode a property map starting at the buffer's position.
+     *
+     * @param buffer Buffer to read from; its position is advanced past the map
+     * @return Decoded properties
+     */
+    public static Map<String, Object> decode(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        Map<String, Object> properties = new HashMap<>(Math.max(4, count * 2));
+        for (int i = 0; i < count; i++) {
+            String key = readString(buffer);
+            properties.put(key, readValue(buffer));
+        }
+        return properties;
+    }
+
+    /**
+     * Write a single tagged value.
+     */
+    static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TAG_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TAG_FLOAT);
+            out.writeFloat((Float) value);
+        } else if (value instanceof Double) {
+            out.writeByte(TAG_DOUBLE);
+            out.writeDouble((Double) value);
+        } else if (value instanceof List) {
+            out.writeByte(TAG_ARRAY);
+            writeBytes(out, objectMapper.writeValueAsBytes(value));
+        } else if (value instanceof Map) {
+            out.writeByte(TAG_OBJECT);
+            writeBytes(out, objectMapper.writeValueAsBytes(value));
+        } else {
+            // Strings and any other type are stored by their string form
+            out.writeByte(TAG_STRING);
+            writeString(out, value.toString());
+        }
+    }
+
+    /**
+     * Read a single tagged value.
+     */
+    static Object readValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_BOOLEAN:
+                return buffer.get() != 0;
+            case TAG_INT:
+                return buffer.getInt();
+            case TAG_LONG:
+                return buffer.getLong();
+            case TAG_FLOAT:
+                return buffer.getFloat();
+            case TAG_DOUBLE:
+                return buffer.getDouble();
+            case TAG_STRING:
+                return readString(buffer);
+            case TAG_ARRAY:
+            case TAG_OBJECT:
+                byte[] json = new byte[buffer.getInt()];
+                buffer.get(json);
+                try {
+                    Class<?> type = tag == TAG_ARRAY ? List.class : Map.class;
+                    return objectMapper.readValue(json, type);
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Failed to decode property value", e);
+                }
+            default:
+                throw new IllegalArgumentException("Unknown property tag: " + tag);
+        }
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     */
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (buffer.hasArray()) {
+            String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return value;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
@@ -0,0 +1,283 @@
+package com.insightaxisdb.storage;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Property layout shared by all events with the same name.
+ *
+ * Each property key seen for the event name is assigned a slot on first use,
+ * and the slot's type is inferred from that first value. Events then store
+ * their values positionally in typed arrays instead of a map per event, so
+ * keys are held once per schema and numbers are not boxed. Values whose type
+ * does not match the slot, nulls, and keys beyond {@link #MAX_SLOTS} go to a
+ * small per-event overflow map.
+ */
+public class PropertySchema {
+
+    /** Maximum number of typed slots per schema (one presence bit each). */
+    public static final int MAX_SLOTS = 64;
+
+    /**
+     * Storage type of a slot.
+     */
+    public enum SlotType {
+        BOOLEAN,
+        INT,
+        LONG,
+        DOUBLE,
+        STRING,
+        OBJECT
+    }
+
+    private final String eventName;
+    private final Map<String, Integer> slotsByName = new ConcurrentHashMap<>();
+    private final String[] names = new String[MAX_SLOTS];
+    private final SlotType[] types = new SlotType[MAX_SLOTS];
+    private final int[] positions = new int[MAX_SLOTS];
+    private volatile int slotCount = 0;
+    private volatile int primitiveCount = 0;
+    private volatile int referenceCount = 0;
+
+    /**
+     * Initialize property schema.
+     *
+     * @param eventName Name of the events that share this schema
+     */
+    public PropertySchema(String eventName) {
+        this.eventName = eventName;
+    }
+
+    /**
+     * Store a property map in this schema's typed layout.
+     *
+     * @param properties Event properties
+     * @return Typed, read-only view of the properties
+     */
+    public EventProperties encode(Map<String, Object> properties) {
+        // Resolve slots first so the value arrays can be sized once
+        int[] slots = new int[properties.size()];
+        int index = 0;
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            slots[index++] = slotFor(entry.getKey(), entry.getValue());
+        }
+
+        long presence = 0;
+        long[] primitives = new long[primitiveCount];
+        Object[] references = new Object[referenceCount];
+        Map<String, Object> overflow = null;
+
+        index = 0;
+        for (Map.Entry<String, Object> entry : properties.entrySet()) {
+            int slot = slots[index++];
+            if (slot < 0) {
+                if (overflow == null) {
+                    overflow = new HashMap<>();
+                }
+                overflow.put(entry.getKey(), entry.getValue());
+                continue;
+            }
+
+            presence |= 1L << slot;
+            store(slot, entry.getValue(), primitives, references);
+        }
+
+        return new EventProperties(this, presence, primitives, references, overflow);
+    }
+
+    /**
+     * Store one row of property columns in this schema's typed layout.
+     *
+     * Null values are absent properties. The arrays are only read, so bulk
+     * loads can reuse them for every row instead of building a map per event.
+     *
+     * @param keys Property keys
+     * @param values Values of the row, by key position
+     * @return Typed, read-only view of the properties
+     */
+    public EventProperties encode(String[] keys, Object[] values) {
+        int[] slots = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            slots[i] = values[i] != null ? slotFor(keys[i], values[i]) : -1;
+        }
+
+        long presence = 0;
+        long[] primitives = new long[primitiveCount];
+        Object[] references = new Object[referenceCount];
+        Map<String, Object> overflow = null;
+
+        for (int i = 0; i < keys.length; i++) {
+            if (values[i] == null) {
+                continue;
+            }
+            int slot = slots[i];
+            if (slot < 0) {
+                if (overflow == null) {
+                    overflow = new HashMap<>();
+                }
+                overflow.put(keys[i], values[i]);
+                continue;
+            }
+
+            presence |= 1L << slot;
+            store(slot, values[i], primitives, references);
+        }
+
+        return new EventProperties(this, presence, primitives, references, overflow);
+    }
+
+    /**
+     * Write a value into its slot of an event's arrays.
+     */
+    private void store(int slot, Object value, long[] primitives, Object[] references) {
+        switch (types[slot]) {
+            case BOOLEAN:
+                primitives[positions[slot]] = (Boolean) value ? 1 : 0;
+                break;
+            case INT:
+            case LONG:
+                primitives[positions[slot]] = ((Number) value).longValue();
+                break;
+            case DOUBLE:
+                primitives[positions[slot]] = Double.doubleToRawLongBits((Double) value);
+                break;
+            default:
+                references[positions[slot]] = value;
+                break;
+        }
+    }
+
+    /**
+     * Get the slot for a property key.
+     *
+     * @param name Property key
+     * @return Slot number, or -1 if the key has no slot
+     */
+    public int slotOf(Object name) {
+        if (name == null) {
+            return -1;
+        }
+        Integer slot = slotsByName.get(name);
+        return slot != null ? slot : -1;
+    }
+
+    /**
+     * Read a slot's value from an event's arrays.
+     */
+    Object read(int slot, long[] primitives, Object[] references) {
+        int position = positions[slot];
+        switch (types[slot]) {
+            case BOOLEAN:
+                return primitives[position] != 0;
+            case INT:
+                return (int) primitives[position];
+            case LONG:
+                return primitives[position];
+            case DOUBLE:
+                return Double.longBitsToDouble(primitives[position]);
+            default:
+                return references[position];
+        }
+    }
+
+    /**
+     * Get the slot for a value, assigning a new one if the key is unseen.
+     *
+     * @return Slot number, or -1 if the value belongs in the overflow map
+     */
+    private int slotFor(String name, Object value) {
+        SlotType type = typeOf(value);
+        if (name == null || type == null) {
+            return -1;
+        }
+
+        int slot = slotOf(name);
+        if (slot < 0) {
+            slot = assignSlot(name, type);
+            if (slot < 0) {
+                return -1;
+            }
+        }
+
+        return types[slot] == type || (types[slot] == SlotType.OBJECT && type == SlotType.STRING) ? slot : -1;
+    }
+
+    private synchronized int assignSlot(String name, SlotType type) {
+        Integer existing = slotsByName.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        if (slotCount == MAX_SLOTS) {
+            return -1;
+        }
+
+        int slot = slotCount;
+        names[slot] = name;
+        types[slot] = type;
+        if (type == SlotType.STRING || type == SlotType.OBJECT) {
+            positions[slot] = referenceCount;
+            referenceCount++;
+        } else {
+            positions[slot] = primitiveCount;
+            primitiveCount++;
+        }
+        slotCount = slot + 1;
+
+        // Publish last, so readers that find the slot also see its layout
+        slotsByName.put(name, slot);
+        return slot;
+    }
+
+    private static SlotType typeOf(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Boolean) {
+            return SlotType.BOOLEAN;
+        }
+        if (value instanceof Integer) {
+            return SlotType.INT;
+        }
+        if (value instanceof Long) {
+            return SlotType.LONG;
+        }
+        if (value instanceof Double) {
+            return SlotType.DOUBLE;
+        }
+        if (value instanceof String) {
+            return SlotType.STRING;
+        }
+        return SlotType.OBJECT;
+    }
+
+    // Getters
+
+    public String getEventName() {
+        return eventName;
+    }
+
+    /**
+     * Get the property key of a slot.
+     *
+     * @param slot Slot number
+     * @return Property key
+     */
+    public String getName(int slot) {
+        return names[slot];
+    }
+
+    /**
+     * Get the type of a slot.
+     *
+     * @param slot Slot number
+     * @return Slot type
+     */
+    public SlotType getType(int slot) {
+        return types[slot];
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+}
@@ -0,0 +1,46 @@
+package com.insightaxisdb.storage;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of property schemas, one per event name.
+ */
+public class PropertySchemaRegistry {
+    private final Map<String, PropertySchema> schemas = new ConcurrentHashMap<>();
+
+    /**
+     * Get the schema for an event name, creating it if needed.
+     *
+     * @param eventName Event name
+     * @return Property schema
+     */
+    public PropertySchema getSchema(String eventName) {
+        return schemas.computeIfAbsent(eventName, PropertySchema::new);
+    }
+
+    /**
+     * Store a property map in the typed layout of its event name.
+     *
+     * @param eventName Event name
+     * @param properties Event properties, may be null
+     * @return Typed, read-only view of the properties, or null if none were given
+     */
+    public Map<String, Object> encode(String eventName, Map<String, Object> properties) {
+        if (properties == null) {
+            return null;
+        }
+        return getSchema(eventName).encode(properties);
+    }
+
+    /**
+     * Get all schemas.
+     *
+     * @return Collection of schemas
+     */
+    public Collection<PropertySchema> getSchemas() {
+        return Collections.unmodifiableCollection(schemas.values());
+    }
+}
@@ -0,0 +1,141 @@
+package com.insightaxisdb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Progress of restoring the stores from disk at startup.
+ *
+ * Counters are updated by the loader threads as files and batches complete,
+ * so the progress can be polled while recovery runs.
+ */
+public class RecoveryProgress {
+
+    /**
+     * Stage of the recovery.
+     */
+    public enum Phase {
+        NOT_STARTED,
+        PROFILES,
+        EVENTS,
+        WRITE_AHEAD_LOG,
+        DONE,
+        FAILED
+    }
+
+    private final AtomicLong filesTotal = new AtomicLong();
+    private final AtomicLong filesLoaded = new AtomicLong();
+    private final AtomicLong bytesTotal = new AtomicLong();
+    private final AtomicLong bytesLoaded = new AtomicLong();
+    private final AtomicLong profilesRestored = new AtomicLong();
+    private final AtomicLong eventsRestored = new AtomicLong();
+    private final AtomicLong logRecordsReplayed = new AtomicLong();
+    private volatile Phase phase = Phase.NOT_STARTED;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+
+    void start() {
+        startedAt = System.currentTimeMillis();
+    }
+
+    void enter(Phase phase) {
+        this.phase = phase;
+        if (phase == Phase.DONE || phase == Phase.FAILED) {
+            finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    void addFiles(int count, long bytes) {
+        filesTotal.addAndGet(count);
+        bytesTotal.addAndGet(bytes);
+    }
+
+    void fileLoaded(long bytes) {
+        filesLoaded.incrementAndGet();
+        bytesLoaded.addAndGet(bytes);
+    }
+
+    void addProfiles(long count) {
+        profilesRestored.addAndGet(count);
+    }
+
+    void addEvents(long count) {
+        eventsRestored.addAndGet(count);
+    }
+
+    void addLogRecords(long count) {
+        logRecordsReplayed.addAndGet(count);
+    }
+
+    public Phase getPhase() {
+        return phase;
+    }
+
+    public long getFilesTotal() {
+        return filesTotal.get();
+    }
+
+    public long getFilesLoaded() {
+        return filesLoaded.get();
+    }
+
+    public long getBytesTotal() {
+        return bytesTotal.get();
+    }
+
+    public long getBytesLoaded() {
+        return bytesLoaded.get();
+    }
+
+    public long getProfilesRestored() {
+        return profilesRestored.get();
+    }
+
+    public long getEventsRestored() {
+        return eventsRestored.get();
+    }
+
+    public long getLogRecordsReplayed() {
+        return logRecordsReplayed.get();
+    }
+
+    /**
+     * Get the time spent so far, or in total once recovery has finished.
+     *
+     * @return Elapsed time in milliseconds
+     */
+    public long getElapsedMillis() {
+        if (startedAt == 0) {
+            return 0;
+        }
+        long end = finishedAt != 0 ? finishedAt : System.currentTimeMillis();
+        return end - startedAt;
+    }
+
+    /**
+     * Convert the progress to a map.
+     */
+    public Map<String, Object> toMap() {
+        long elapsedMillis = getElapsedMillis();
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("phase", phase.name());
+        map.put("filesLoaded", getFilesLoaded());
+        map.put("filesTotal", getFilesTotal());
+        map.put("bytesLoaded", getBytesLoaded());
+        map.put("bytesTotal", getBytesTotal());
+        map.put("profilesRestored", getProfilesRestored());
+        map.put("eventsRestored", getEventsRestored());
+        map.put("logRecordsReplayed", getLogRecordsReplayed());
+        map.put("elapsedMillis", elapsedMillis);
+        map.put("eventsPerSecond", elapsedMillis > 0 ? getEventsRestored() * 1000 / elapsedMillis : 0);
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d/%d files, %d/%d bytes, %d profiles, %d events, %d log records in %d ms",
+                phase, getFilesLoaded(), getFilesTotal(), getBytesLoaded(), getBytesTotal(),
+                getProfilesRestored(), getEventsRestored(), getLogRecordsReplayed(), getElapsedMillis());
+    }
+}
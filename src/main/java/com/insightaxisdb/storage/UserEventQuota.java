@@ -0,0 +1,343 @@
+package com.insightaxisdb.storage;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Per-user monthly event budget.
+ *
+ * Each calendar month (UTC) of a user's events is counted, and only the most
+ * recent months are kept. {@link CapPolicy#DROP_NEWEST} needs nothing more. The
+ * other policies evict stored events, so the most recent history months also
+ * keep the IDs of their events in a ring buffer that never grows beyond the
+ * monthly cap; older months keep counts only and reject new events once full.
+ * The bookkeeping for one user thus has a hard upper bound.
+ */
+public class UserEventQuota {
+
+    /**
+     * Policy applied when a user's monthly cap is reached.
+     */
+    public enum CapPolicy {
+        /** Reject new events once the month is full. */
+        DROP_NEWEST,
+        /** Evict the oldest event of the month to make room. */
+        DROP_OLDEST,
+        /** Keep a uniform sample of the month (reservoir sampling). */
+        DOWNSAMPLE
+    }
+
+    private final int maxEventsPerMonth;
+    private final CapPolicy policy;
+    private final int maxTrackedMonths;
+    private final int historyMonths;
+    private final TreeMap<Integer, MonthBuffer> months = new TreeMap<>();
+
+    /**
+     * Initialize user event quota.
+     *
+     * @param maxEventsPerMonth Maximum number of events kept per month
+     * @param policy Policy to apply when the cap is reached
+     * @param maxTrackedMonths Number of most recent months to track
+     * @param historyMonths Number of most recent months that keep event IDs to evict
+     */
+    public UserEventQuota(int maxEventsPerMonth, CapPolicy policy, int maxTrackedMonths, int historyMonths) {
+        this.maxEventsPerMonth = maxEventsPerMonth;
+        this.policy = policy;
+        this.maxTrackedMonths = Math.max(1, maxTrackedMonths);
+        this.historyMonths = policy == CapPolicy.DROP_NEWEST ? 0 : Math.max(1, historyMonths);
+    }
+
+    /**
+     * Decide whether an event fits in the user's budget for its month.
+     *
+     * @param eventId Event ID
+     * @param timestamp Event timestamp (Unix timestamp)
+     * @return Admission decision, including the event to evict if any
+     */
+    public synchronized Admission admit(EventId eventId, long timestamp) {
+        MonthBuffer buffer = monthBuffer(timestamp);
+        if (buffer == null) {
+            // Older than every tracked month; nothing left to count against
+            return Admission.ADMITTED;
+        }
+
+        buffer.seen++;
+
+        if (buffer.size < maxEventsPerMonth) {
+            buffer.append(eventId, timestamp);
+            return Admission.ADMITTED;
+        }
+        if (!buffer.hasHistory()) {
+            // No stored event is known to evict
+            return Admission.REJECTED;
+        }
+
+        switch (policy) {
+            case DROP_OLDEST: {
+                Admission admission = Admission.evicting(buffer.idAt(0), buffer.timestampAt(0));
+                buffer.removeFirst();
+                buffer.append(eventId, timestamp);
+                return admission;
+            }
+            case DOWNSAMPLE: {
+                // Keep each of the month's events with probability cap / seen
+                long pick = ThreadLocalRandom.current().nextLong(buffer.seen);
+                if (pick >= maxEventsPerMonth) {
+                    return Admission.REJECTED;
+                }
+                int index = (int) pick;
+                Admission admission = Admission.evicting(buffer.idAt(index), buffer.timestampAt(index));
+                buffer.replace(index, eventId, timestamp);
+                return admission;
+            }
+            case DROP_NEWEST:
+            default:
+                return Admission.REJECTED;
+        }
+    }
+
+    /**
+     * Count an event that is already stored, such as one restored from disk.
+     *
+     * The event was admitted when it was first added, so it is never rejected
+     * and evicts nothing. A month already at the cap only counts it as seen.
+     *
+     * @param eventId Event ID
+     * @param timestamp Event timestamp (Unix timestamp)
+     */
+    public synchronized void restore(EventId eventId, long timestamp) {
+        MonthBuffer buffer = monthBuffer(timestamp);
+        if (buffer == null) {
+            return;
+        }
+
+        buffer.seen++;
+        if (buffer.size < maxEventsPerMonth) {
+            buffer.append(eventId, timestamp);
+        }
+    }
+
+    /**
+     * Stop counting an event that was removed, such as an eviction replayed
+     * from the write-ahead log.
+     *
+     * @param eventId Event ID
+     * @param timestamp Event timestamp (Unix timestamp)
+     */
+    public synchronized void remove(EventId eventId, long timestamp) {
+        MonthBuffer buffer = months.get(monthKey(timestamp));
+        if (buffer == null || buffer.size == 0) {
+            return;
+        }
+        if (!buffer.hasHistory()) {
+            buffer.size--;
+            return;
+        }
+        for (int i = 0; i < buffer.size; i++) {
+            if (buffer.idAt(i).equals(eventId)) {
+                buffer.removeAt(i);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the buffer for the month of a timestamp, tracking the month if it is new.
+     *
+     * @return Month buffer, or null if the month is older than every tracked month
+     */
+    private MonthBuffer monthBuffer(long timestamp) {
+        int monthKey = monthKey(timestamp);
+
+        MonthBuffer buffer = months.get(monthKey);
+        if (buffer == null) {
+            if (months.size() >= maxTrackedMonths && monthKey < months.firstKey()) {
+                return null;
+            }
+
+            buffer = new MonthBuffer(maxEventsPerMonth);
+            months.put(monthKey, buffer);
+
+            // Forget the oldest months so the per-user state stays bounded
+            Iterator<Map.Entry<Integer, MonthBuffer>> it = months.entrySet().iterator();
+            while (months.size() > maxTrackedMonths && it.hasNext()) {
+                it.next();
+                it.remove();
+            }
+
+            // Only the newest months keep event IDs; the rest fall back to counts
+            int rank = 0;
+            for (MonthBuffer month : months.descendingMap().values()) {
+                if (rank++ >= historyMonths) {
+                    month.dropHistory();
+                } else if (month == buffer) {
+                    month.keepHistory();
+                }
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the number of events currently counted for the month of a timestamp.
+     *
+     * @param timestamp Timestamp within the month (Unix timestamp)
+     * @return Number of events kept for that month
+     */
+    public synchronized int getMonthEventCount(long timestamp) {
+        MonthBuffer buffer = months.get(monthKey(timestamp));
+        return buffer != null ? buffer.size : 0;
+    }
+
+    /**
+     * Get the month key (years * 12 + month, UTC) for a timestamp.
+     */
+    static int monthKey(long timestamp) {
+        ZonedDateTime time = Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC);
+        return time.getYear() * 12 + time.getMonthValue() - 1;
+    }
+
+    /**
+     * Result of an admission check.
+     */
+    public static class Admission {
+        static final Admission ADMITTED = new Admission(true, null, 0);
+        static final Admission REJECTED = new Admission(false, null, 0);
+
+        private final boolean admitted;
+        private final EventId evictedEventId;
+        private final long evictedTimestamp;
+
+        private Admission(boolean admitted, EventId evictedEventId, long evictedTimestamp) {
+            this.admitted = admitted;
+            this.evictedEventId = evictedEventId;
+            this.evictedTimestamp = evictedTimestamp;
+        }
+
+        static Admission evicting(EventId eventId, long timestamp) {
+            return new Admission(true, eventId, timestamp);
+        }
+
+        public boolean isAdmitted() {
+            return admitted;
+        }
+
+        public EventId getEvictedEventId() {
+            return evictedEventId;
+        }
+
+        public long getEvictedTimestamp() {
+            return evictedTimestamp;
+        }
+    }
+
+    /**
+     * Count of the events kept for one month, with a ring buffer of their IDs
+     * while the month keeps history.
+     *
+     * The ring starts small and grows on demand, but never beyond the monthly cap.
+     */
+    private static class MonthBuffer {
+        private final int capacity;
+        private long[] mostSignificantBits;
+        private long[] leastSignificantBits;
+        private long[] timestamps;
+        private int head = 0;
+        private int size = 0;
+        private long seen = 0;
+
+        MonthBuffer(int capacity) {
+            this.capacity = capacity;
+        }
+
+        boolean hasHistory() {
+            return timestamps != null;
+        }
+
+        /**
+         * Start keeping event IDs; only called on a new, empty month.
+         */
+        void keepHistory() {
+            int initial = Math.min(capacity, 16);
+            mostSignificantBits = new long[initial];
+            leastSignificantBits = new long[initial];
+            timestamps = new long[initial];
+        }
+
+        /**
+         * Stop keeping event IDs, keeping only the counts.
+         */
+        void dropHistory() {
+            mostSignificantBits = null;
+            leastSignificantBits = null;
+            timestamps = null;
+            head = 0;
+        }
+
+        void append(EventId eventId, long timestamp) {
+            if (timestamps != null) {
+                if (size == timestamps.length) {
+                    grow();
+                }
+                set((head + size) % timestamps.length, eventId, timestamp);
+            }
+            size++;
+        }
+
+        void removeFirst() {
+            head = (head + 1) % timestamps.length;
+            size--;
+        }
+
+        void removeAt(int index) {
+            for (int i = index; i < size - 1; i++) {
+                int next = (head + i + 1) % timestamps.length;
+                set((head + i) % timestamps.length,
+                        new EventId(mostSignificantBits[next], leastSignificantBits[next]), timestamps[next]);
+            }
+            size--;
+        }
+
+        void replace(int index, EventId eventId, long timestamp) {
+            set((head + index) % timestamps.length, eventId, timestamp);
+        }
+
+        EventId idAt(int index) {
+            int physical = (head + index) % timestamps.length;
+            return new EventId(mostSignificantBits[physical], leastSignificantBits[physical]);
+        }
+
+        long timestampAt(int index) {
+            return timestamps[(head + index) % timestamps.length];
+        }
+
+        private void set(int physical, EventId eventId, long timestamp) {
+            mostSignificantBits[physical] = eventId.getMostSignificantBits();
+            leastSignificantBits[physical] = eventId.getLeastSignificantBits();
+            timestamps[physical] = timestamp;
+        }
+
+        private void grow() {
+            int newLength = Math.min(capacity, timestamps.length * 2);
+            long[] newMostSignificantBits = new long[newLength];
+            long[] newLeastSignificantBits = new long[newLength];
+            long[] newTimestamps = new long[newLength];
+            for (int i = 0; i < size; i++) {
+                int physical = (head + i) % timestamps.length;
+                newMostSignificantBits[i] = mostSignificantBits[physical];
+                newLeastSignificantBits[i] = leastSignificantBits[physical];
+                newTimestamps[i] = timestamps[physical];
+            }
+            mostSignificantBits = newMostSignificantBits;
+            leastSignificantBits = newLeastSignificantBits;
+            timestamps = newTimestamps;
+            head = 0;
+        }
+    }
+}
@@ -1,20 +1,33 @@
 package com.insightaxisdb.storage;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * User profile class.
+ *
+ * A profile only holds aggregates about the user's events. The events
+ * themselves are indexed by the {@link EventStore}; use
+ * {@link EventStore#getUserEventIds(String)} to enumerate them.
+ *
+ * Profiles are updated concurrently by ingest threads without locking.
+ * Counters are {@link LongAdder}s, so hot users do not contend on a single
+ * field, and properties are an immutable map replaced by compare-and-set on
+ * every update. Readers therefore always see a complete property snapshot,
+ * which is safe to serialize while writers keep updating the profile.
  */
 public class UserProfile {
     private final String userId;
-    private final Map<String, Object> properties;
-    private long firstSeenAt;
-    private long lastSeenAt;
-    private final List<String> events;
-    private int eventCount;
+    private final AtomicReference<Map<String, Object>> properties;
+    private final AtomicLong firstSeenAt;
+    private final AtomicLong lastSeenAt;
+    private final ConcurrentHashMap<String, LongAdder> eventNameCounts;
+    private final LongAdder eventCount;
     
     /**
      * Initialize user profile.
@@ -23,12 +36,32 @@ public class UserProfile {
      * @param properties User properties
      */
     public UserProfile(String userId, Map<String, Object> properties) {
+        this(userId, properties, System.currentTimeMillis());
+    }
+    
+    /**
+     * Initialize user profile first seen at a given time.
+     *
+     * @param userId Unique identifier for the user
+     * @param properties User properties
+     * @param seenAt First-seen and last-seen time (Unix timestamp)
+     */
+    UserProfile(String userId, Map<String, Object> properties, long seenAt) {
         this.userId = userId;
-        this.properties = properties != null ? properties : new HashMap<>();
-        this.firstSeenAt = System.currentTimeMillis();
-        this.lastSeenAt = this.firstSeenAt;
-        this.events = new ArrayList<>();
-        this.eventCount = 0;
+        this.properties = new AtomicReference<>(freeze(properties != null ? new HashMap<>(properties) : new HashMap<>()));
+        this.firstSeenAt = new AtomicLong(seenAt);
+        this.lastSeenAt = new AtomicLong(seenAt);
+        this.eventNameCounts = new ConcurrentHashMap<>();
+        this.eventCount = new LongAdder();
+    }
+    
+    private UserProfile(String userId, Map<String, Object> frozenProperties, long firstSeenAt, long lastSeenAt) {
+        this.userId = userId;
+        this.properties = new AtomicReference<>(frozenProperties);
+        this.firstSeenAt = new AtomicLong(firstSeenAt);
+        this.lastSeenAt = new AtomicLong(lastSeenAt);
+        this.eventNameCounts = new ConcurrentHashMap<>();
+        this.eventCount = new LongAdder();
     }
     
     /**
@@ -38,8 +71,7 @@ public class UserProfile {
      * @param value Property value
      */
     public void updateProperty(String key, Object value) {
-        properties.put(key, value);
-        lastSeenAt = System.currentTimeMillis();
+        updateProperties(Collections.singletonMap(key, value));
     }
     
     /**
@@ -48,32 +80,107 @@ public class UserProfile {
      * @param properties Map of property name to value
      */
     public void updateProperties(Map<String, Object> properties) {
-        this.properties.putAll(properties);
-        lastSeenAt = System.currentTimeMillis();
+        // Copy on write, retrying if another thread replaced the map meanwhile
+        Map<String, Object> current;
+        Map<String, Object> updated;
+        do {
+            current = this.properties.get();
+            updated = new HashMap<>(current);
+            updated.putAll(properties);
+        } while (!this.properties.compareAndSet(current, freeze(updated)));
+        
+        touch();
     }
     
     /**
-     * Add an event to the user profile.
+     * Record an event in the user profile's aggregates.
      *
-     * @param eventId ID of the event
+     * @param eventName Name of the event
      */
-    public void addEvent(String eventId) {
-        events.add(eventId);
-        eventCount++;
-        lastSeenAt = System.currentTimeMillis();
+    public void addEvent(String eventName) {
+        eventNameCounts.computeIfAbsent(eventName, k -> new LongAdder()).increment();
+        eventCount.increment();
+        touch();
+    }
+    
+    /**
+     * Take an event evicted by the per-user cap out of the user profile's aggregates.
+     *
+     * @param eventName Name of the event
+     */
+    void removeEvent(String eventName) {
+        LongAdder count = eventNameCounts.get(eventName);
+        if (count != null) {
+            count.decrement();
+        }
+        eventCount.decrement();
+    }
+    
+    /**
+     * Record a restored event in the user profile's aggregates.
+     *
+     * The first-seen and last-seen times widen to the event's timestamp rather
+     * than moving to the current time.
+     *
+     * @param eventName Name of the event
+     * @param timestamp Event timestamp (Unix timestamp)
+     */
+    void restoreEvent(String eventName, long timestamp) {
+        eventNameCounts.computeIfAbsent(eventName, k -> new LongAdder()).increment();
+        eventCount.increment();
+        firstSeenAt.accumulateAndGet(timestamp, Math::min);
+        lastSeenAt.accumulateAndGet(timestamp, Math::max);
+    }
+    
+    /**
+     * Restore the properties and first-seen and last-seen times saved by a checkpoint.
+     *
+     * Properties are replaced as a whole; the times only widen, so events
+     * restored before the profile keep their effect.
+     *
+     * @param properties Saved properties
+     * @param firstSeenAt Saved first-seen time
+     * @param lastSeenAt Saved last-seen time
+     */
+    void restore(Map<String, Object> properties, long firstSeenAt, long lastSeenAt) {
+        this.properties.set(freeze(new HashMap<>(properties)));
+        this.firstSeenAt.accumulateAndGet(firstSeenAt, Math::min);
+        this.lastSeenAt.accumulateAndGet(lastSeenAt, Math::max);
+    }
+    
+    /**
+     * Copy the profile as it is now.
+     *
+     * The property map is immutable and shared with the copy; counters are
+     * read individually, like in {@link #toMap()}.
+     *
+     * @return Profile that later updates of this one do not change
+     */
+    UserProfile copy() {
+        UserProfile copy = new UserProfile(userId, this.properties.get(), getFirstSeenAt(), getLastSeenAt());
+        copy.eventCount.add(eventCount.sum());
+        for (Map.Entry<String, LongAdder> entry : eventNameCounts.entrySet()) {
+            LongAdder count = new LongAdder();
+            count.add(entry.getValue().sum());
+            copy.eventNameCounts.put(entry.getKey(), count);
+        }
+        return copy;
     }
     
     /**
      * Convert user profile to map.
+     *
+     * Properties are a consistent snapshot; counters are read individually, so
+     * events recorded during the call may be reflected in some counts only.
      */
     public Map<String, Object> toMap() {
         Map<String, Object> map = new HashMap<>();
         map.put("userId", userId);
-        map.put("properties", properties);
-        map.put("firstSeenAt", firstSeenAt);
-        map.put("lastSeenAt", lastSeenAt);
-        map.put("eventCount", eventCount);
-        map.put("events", events);
+        map.put("properties", getProperties());
+        map.put("firstSeenAt", getFirstSeenAt());
+        map.put("lastSeenAt", getLastSeenAt());
+        map.put("eventCount", getEventCount());
+        map.put("eventNameCounts", getEventNameCounts());
         return map;
     }
     
@@ -86,14 +193,20 @@ public class UserProfile {
         Map<String, Object> properties = (Map<String, Object>) map.get("properties");
         
         UserProfile profile = new UserProfile(userId, properties);
-        profile.firstSeenAt = (Long) map.get("firstSeenAt");
-        profile.lastSeenAt = (Long) map.get("lastSeenAt");
+        profile.firstSeenAt.set(((Number) map.get("firstSeenAt")).longValue());
+        profile.lastSeenAt.set(((Number) map.get("lastSeenAt")).longValue());
+        profile.eventCount.add(((Number) map.get("eventCount")).intValue());
         
+        // Older profile files carried an "events" ID list instead, which is ignored
         @SuppressWarnings("unchecked")
-        List<String> events = (List<String>) map.get("events");
-        profile.events.addAll(events);
-        
-        profile.eventCount = (Integer) map.get("eventCount");
+        Map<String, Object> eventNameCounts = (Map<String, Object>) map.get("eventNameCounts");
+        if (eventNameCounts != null) {
+            for (Map.Entry<String, Object> entry : eventNameCounts.entrySet()) {
+                LongAdder count = new LongAdder();
+                count.add(((Number) entry.getValue()).intValue());
+                profile.eventNameCounts.put(entry.getKey(), count);
+            }
+        }
         
         return profile;
     }
@@ -104,23 +217,59 @@ public class UserProfile {
         return userId;
     }
     
+    /**
+     * Get a snapshot of the user properties.
+     *
+     * @return Read-only map that later updates do not change
+     */
     public Map<String, Object> getProperties() {
-        return properties;
+        return properties.get();
     }
     
     public long getFirstSeenAt() {
-        return firstSeenAt;
+        return firstSeenAt.get();
     }
     
     public long getLastSeenAt() {
-        return lastSeenAt;
+        return lastSeenAt.get();
     }
     
-    public List<String> getEvents() {
-        return events;
+    /**
+     * Get a snapshot of the event counts by name.
+     *
+     * @return Read-only map of event name to count
+     */
+    public Map<String, Integer> getEventNameCounts() {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Map.Entry<String, LongAdder> entry : eventNameCounts.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().intValue());
+        }
+        return Collections.unmodifiableMap(counts);
     }
     
     public int getEventCount() {
-        return eventCount;
+        return eventCount.intValue();
+    }
+    
+    /**
+     * Get the number of events with the given name.
+     *
+     * @param eventName Event name
+     * @return Number of events recorded with that name
+     */
+    public int getEventCount(String eventName) {
+        LongAdder count = eventNameCounts.get(eventName);
+        return count != null ? count.intValue() : 0;
+    }
+    
+    /**
+     * Advance the last-seen time, never moving it backwards.
+     */
+    private void touch() {
+        lastSeenAt.accumulateAndGet(System.currentTimeMillis(), Math::max);
+    }
+    
+    private static Map<String, Object> freeze(Map<String, Object> properties) {
+        return Collections.unmodifiableMap(properties);
     }
 }
@@ -1,13 +1,69 @@
 package com.insightaxisdb.storage;
 
+import com.insightaxisdb.core.Config;
+
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Storage for user profiles.
+ *
+ * Safe for concurrent use: profiles are created atomically, so concurrent
+ * ingest threads for a new user all end up updating the same profile.
+ *
+ * Properties can be indexed with {@link #createIndex(String, ProfileIndex.IndexType)}.
+ * Indexes are maintained by {@link #createProfile}, {@link #updateProfile} and
+ * {@link #deleteProfile}, so indexed properties should be changed through the
+ * store rather than on the profile directly. The same holds for the
+ * {@link ProfileColumnStore} that mirrors all properties for scans.
+ *
+ * With a {@link WriteAheadLog} attached, profile creations, updates and
+ * deletions are logged and the calls return once the log is synced.
+ *
+ * Long reads that must not see updates made while they run can work on a
+ * {@link UserProfileStoreSnapshot} from {@link #snapshot()}.
+ *
+ * Changed profiles are tracked for incremental checkpoints, which take them
+ * with {@link #captureChanges()}.
  */
 public class UserProfileStore {
-    private final Map<String, UserProfile> profiles = new HashMap<>();
+    private final Map<String, UserProfile> profiles = new ConcurrentHashMap<>();
+    private final Map<String, ProfileIndex> indexes = new ConcurrentHashMap<>();
+    private final ProfileColumnStore columnStore = new ProfileColumnStore();
+    private final Set<String> dirtyUserIds = ConcurrentHashMap.newKeySet();
+    private volatile WriteAheadLog writeAheadLog;
+    
+    /**
+     * Initialize user profile store with the indexes declared in the configuration.
+     */
+    public UserProfileStore() {
+        this(Config.getString("profileIndexes", Config.PROFILE_INDEXES));
+    }
+    
+    /**
+     * Initialize user profile store.
+     *
+     * @param indexSpec Comma-separated property:type pairs to index, e.g. "plan:HASH,age:SORTED"
+     */
+    public UserProfileStore(String indexSpec) {
+        if (indexSpec == null || indexSpec.trim().isEmpty()) {
+            return;
+        }
+        
+        for (String entry : indexSpec.split(",")) {
+            String[] parts = entry.trim().split(":");
+            if (parts.length != 2 || parts[0].trim().isEmpty()) {
+                throw new IllegalArgumentException("Invalid profile index declaration: " + entry);
+            }
+            createIndex(parts[0].trim(), ProfileIndex.IndexType.valueOf(parts[1].trim().toUpperCase()));
+        }
+    }
     
     /**
      * Get a user profile.
@@ -19,6 +75,40 @@ public class UserProfileStore {
         return profiles.get(userId);
     }
     
+    /**
+     * Get all user profiles.
+     *
+     * @return List of all user profiles
+     */
+    public List<UserProfile> getAllProfiles() {
+        return new ArrayList<>(profiles.values());
+    }
+    
+    /**
+     * Get the number of user profiles.
+     *
+     * @return Number of profiles
+     */
+    public int getProfileCount() {
+        return profiles.size();
+    }
+    
+    /**
+     * Take a point-in-time snapshot of the profiles.
+     *
+     * Each profile is copied as a whole; profiles are copied one after another
+     * without blocking writers.
+     *
+     * @return Snapshot of the profiles
+     */
+    public UserProfileStoreSnapshot snapshot() {
+        Map<String, UserProfile> copies = new HashMap<>();
+        for (UserProfile profile : profiles.values()) {
+            copies.put(profile.getUserId(), profile.copy());
+        }
+        return new UserProfileStoreSnapshot(copies);
+    }
+    
     /**
      * Create a new user profile.
      *
@@ -27,12 +117,23 @@ public class UserProfileStore {
      * @return Created user profile
      */
     public UserProfile createProfile(String userId, Map<String, Object> properties) {
-        if (profiles.containsKey(userId)) {
-            throw new IllegalArgumentException("User profile already exists: " + userId);
+        WriteAheadLog wal = writeAheadLog;
+        long logSequence = 0;
+        UserProfile profile = new UserProfile(userId, properties);
+        synchronized (profile) {
+            if (profiles.putIfAbsent(userId, profile) != null) {
+                throw new IllegalArgumentException("User profile already exists: " + userId);
+            }
+            updateIndexesAndColumns(userId, null, profile.getProperties());
+            dirtyUserIds.add(userId);
+            if (wal != null) {
+                logSequence = wal.appendProfileUpdate(userId, profile.getProperties());
+            }
         }
         
-        UserProfile profile = new UserProfile(userId, properties);
-        profiles.put(userId, profile);
+        if (wal != null) {
+            wal.awaitDurable(logSequence);
+        }
         return profile;
     }
     
@@ -44,13 +145,39 @@ public class UserProfileStore {
      * @return User profile and whether it was created
      */
     public ProfileResult getOrCreateProfile(String userId, Map<String, Object> properties) {
+        return getOrCreateProfile(userId, properties, writeAheadLog, System.currentTimeMillis());
+    }
+    
+    private ProfileResult getOrCreateProfile(String userId, Map<String, Object> properties, WriteAheadLog wal,
+                                             long seenAt) {
         UserProfile profile = getProfile(userId);
         if (profile != null) {
             return new ProfileResult(profile, false);
         }
         
-        profile = createProfile(userId, properties);
-        return new ProfileResult(profile, true);
+        // Only the thread whose profile was installed reports it as created
+        UserProfile created = new UserProfile(userId, properties, seenAt);
+        long logSequence = 0;
+        synchronized (created) {
+            profile = profiles.putIfAbsent(userId, created);
+            if (profile != null) {
+                return new ProfileResult(profile, false);
+            }
+            updateIndexesAndColumns(userId, null, created.getProperties());
+            
+            // Profiles created without properties are recreated by their events on replay
+            if (!created.getProperties().isEmpty()) {
+                dirtyUserIds.add(userId);
+                if (wal != null) {
+                    logSequence = wal.appendProfileUpdate(userId, created.getProperties());
+                }
+            }
+        }
+        
+        if (logSequence > 0) {
+            wal.awaitDurable(logSequence);
+        }
+        return new ProfileResult(created, true);
     }
     
     /**
@@ -61,12 +188,32 @@ public class UserProfileStore {
      * @return Updated user profile or null if not found
      */
     public UserProfile updateProfile(String userId, Map<String, Object> properties) {
+        return updateProfile(userId, properties, writeAheadLog);
+    }
+    
+    private UserProfile updateProfile(String userId, Map<String, Object> properties, WriteAheadLog wal) {
         UserProfile profile = getProfile(userId);
         if (profile == null) {
             return null;
         }
         
-        profile.updateProperties(properties);
+        // Updates of one profile are serialized so index changes and log records apply in order
+        long logSequence = 0;
+        synchronized (profile) {
+            Map<String, Object> previous = profile.getProperties();
+            profile.updateProperties(properties);
+            if (profiles.get(userId) == profile) {
+                updateIndexesAndColumns(userId, previous, profile.getProperties());
+                dirtyUserIds.add(userId);
+                if (wal != null) {
+                    logSequence = wal.appendProfileUpdate(userId, properties);
+                }
+            }
+        }
+        
+        if (logSequence > 0) {
+            wal.awaitDurable(logSequence);
+        }
         return profile;
     }
     
@@ -77,14 +224,195 @@ public class UserProfileStore {
      * @return Whether the profile was deleted
      */
     public boolean deleteProfile(String userId) {
-        if (!profiles.containsKey(userId)) {
+        return deleteProfile(userId, writeAheadLog);
+    }
+    
+    private boolean deleteProfile(String userId, WriteAheadLog wal) {
+        UserProfile profile = profiles.remove(userId);
+        if (profile == null) {
             return false;
         }
         
-        profiles.remove(userId);
+        long logSequence = 0;
+        synchronized (profile) {
+            updateIndexesAndColumns(userId, profile.getProperties(), null);
+            dirtyUserIds.add(userId);
+            if (wal != null) {
+                logSequence = wal.appendProfileDelete(userId);
+            }
+        }
+        
+        if (wal != null) {
+            wal.awaitDurable(logSequence);
+        }
         return true;
     }
     
+    /**
+     * Apply a profile update read back from the write-ahead log, without logging it again.
+     *
+     * @param userId User ID
+     * @param properties Logged properties
+     */
+    void replayProfileUpdate(String userId, Map<String, Object> properties) {
+        if (!getOrCreateProfile(userId, properties, null, System.currentTimeMillis()).isCreated()) {
+            updateProfile(userId, properties, null);
+        }
+    }
+    
+    /**
+     * Apply a profile deletion read back from the write-ahead log, without logging it again.
+     *
+     * @param userId User ID
+     */
+    void replayProfileDelete(String userId) {
+        deleteProfile(userId, null);
+    }
+    
+    /**
+     * Restore a profile saved by a checkpoint, without logging or tracking it as changed.
+     *
+     * @param userId User ID
+     * @param properties Saved properties, replacing the current ones
+     * @param firstSeenAt Saved first-seen time
+     * @param lastSeenAt Saved last-seen time
+     */
+    void restoreProfile(String userId, Map<String, Object> properties, long firstSeenAt, long lastSeenAt) {
+        UserProfile profile = getOrCreateProfile(userId, null, null, firstSeenAt).getProfile();
+        synchronized (profile) {
+            Map<String, Object> previous = profile.getProperties();
+            profile.restore(properties, firstSeenAt, lastSeenAt);
+            if (profiles.get(userId) == profile) {
+                updateIndexesAndColumns(userId, previous, profile.getProperties());
+            }
+        }
+    }
+    
+    /**
+     * Get the profile of a user whose event is being restored, creating it
+     * without logging if needed.
+     *
+     * @param userId User ID
+     * @param seenAt Event timestamp, which dates a created profile
+     * @return User profile
+     */
+    UserProfile getOrRestoreProfile(String userId, long seenAt) {
+        return getOrCreateProfile(userId, null, null, seenAt).getProfile();
+    }
+    
+    /**
+     * Capture the profiles changed since the last committed checkpoint.
+     *
+     * A change is marked before it is logged and each mark is cleared before
+     * its profile is copied, so the delta covers every change logged before
+     * the call, and a change racing with it is covered again by the next one.
+     *
+     * @return Delta, which must be committed once persisted or released otherwise
+     */
+    public ProfileDelta captureChanges() {
+        List<UserProfile> changed = new ArrayList<>();
+        List<String> deleted = new ArrayList<>();
+        Iterator<String> userIds = dirtyUserIds.iterator();
+        while (userIds.hasNext()) {
+            String userId = userIds.next();
+            userIds.remove();
+            
+            UserProfile profile = profiles.get(userId);
+            if (profile != null) {
+                changed.add(profile.copy());
+            } else {
+                deleted.add(userId);
+            }
+        }
+        return new ProfileDelta(changed, deleted, dirtyUserIds);
+    }
+    
+    /**
+     * Attach a write-ahead log that profile changes are written to.
+     *
+     * @param writeAheadLog Log, or null to stop logging
+     */
+    public void setWriteAheadLog(WriteAheadLog writeAheadLog) {
+        this.writeAheadLog = writeAheadLog;
+    }
+    
+    /**
+     * Index a profile property, indexing existing profiles as well.
+     *
+     * @param property Property name
+     * @param type Kind of index
+     * @return Index for the property
+     */
+    public ProfileIndex createIndex(String property, ProfileIndex.IndexType type) {
+        ProfileIndex index = new ProfileIndex(property, type);
+        ProfileIndex existing = indexes.putIfAbsent(property, index);
+        if (existing != null) {
+            if (existing.getType() != type) {
+                throw new IllegalArgumentException("Property already indexed as " + existing.getType() + ": " + property);
+            }
+            return existing;
+        }
+        
+        // The index is registered first, so updates racing with the backfill maintain it too
+        for (UserProfile profile : profiles.values()) {
+            synchronized (profile) {
+                if (profiles.get(profile.getUserId()) == profile) {
+                    index.update(profile.getUserId(), null, profile.getProperties());
+                }
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Drop the index of a profile property.
+     *
+     * @param property Property name
+     * @return Whether an index was dropped
+     */
+    public boolean dropIndex(String property) {
+        return indexes.remove(property) != null;
+    }
+    
+    /**
+     * Get the index of a profile property.
+     *
+     * @param property Property name
+     * @return Index, or null if the property is not indexed
+     */
+    public ProfileIndex getIndex(String property) {
+        return indexes.get(property);
+    }
+    
+    /**
+     * Get all profile indexes.
+     *
+     * @return Indexes
+     */
+    public Collection<ProfileIndex> getIndexes() {
+        return indexes.values();
+    }
+    
+    /**
+     * Get the columnar mirror of the profile properties.
+     *
+     * @return Column store
+     */
+    public ProfileColumnStore getColumnStore() {
+        return columnStore;
+    }
+    
+    private void updateIndexesAndColumns(String userId, Map<String, Object> oldProperties, Map<String, Object> newProperties) {
+        for (ProfileIndex index : indexes.values()) {
+            index.update(userId, oldProperties, newProperties);
+        }
+        if (newProperties != null) {
+            columnStore.update(userId, oldProperties, newProperties);
+        } else {
+            columnStore.remove(userId);
+        }
+    }
+    
     /**
      * Result of getting or creating a profile.
      */
@@ -0,0 +1,50 @@
+package com.insightaxisdb.storage;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point-in-time view of a {@link UserProfileStore}.
+ *
+ * Holds a copy of every profile taken while the store keeps accepting
+ * updates. Property maps are immutable and shared with the live profiles, so
+ * a copy costs one small object plus the event counters per user. Profiles
+ * created, updated or deleted after the snapshot was taken are not seen.
+ */
+public class UserProfileStoreSnapshot {
+    private final Map<String, UserProfile> profiles;
+
+    UserProfileStoreSnapshot(Map<String, UserProfile> profiles) {
+        this.profiles = Collections.unmodifiableMap(profiles);
+    }
+
+    /**
+     * Get a user profile.
+     *
+     * @param userId User ID
+     * @return User profile or null if not in the snapshot
+     */
+    public UserProfile getProfile(String userId) {
+        return profiles.get(userId);
+    }
+
+    /**
+     * Get all user profiles.
+     *
+     * @return List of all user profiles in the snapshot
+     */
+    public List<UserProfile> getAllProfiles() {
+        return new ArrayList<>(profiles.values());
+    }
+
+    /**
+     * Get the number of user profiles.
+     *
+     * @return Number of profiles in the snapshot
+     */
+    public int getProfileCount() {
+        return profiles.size();
+    }
+}
@@ -0,0 +1,563 @@
+package com.insightaxisdb.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary append-only write-ahead log for ingestion.
+ *
+ * Writers append records to an in-memory batch and wait until the batch is on
+ * disk. A single flusher thread writes each batch with one write call and one
+ * fsync, so concurrent writers share the cost of a sync (group commit). After
+ * the first record of a batch arrives, the flusher waits up to the group
+ * commit latency budget for more records before syncing.
+ *
+ * The log is split into segment files named {@code wal-<id>.log}. A new
+ * segment is started when the current one exceeds the segment size, on
+ * {@link #rotate()}, and every time the log is opened, so records of an
+ * earlier run are never appended to. Each record is framed as
+ * {@code [length][crc32][type][payload]}; replay stops at the first torn or
+ * corrupt record of a segment.
+ */
+public class WriteAheadLog implements Closeable {
+
+    /**
+     * Kind of logged change.
+     */
+    public enum RecordType {
+        /** Event added to the event store. */
+        EVENT,
+        /** Profile properties created or updated. */
+        PROFILE_UPDATE,
+        /** Profile deleted. */
+        PROFILE_DELETE,
+        /** Event evicted by the per-user cap. */
+        REMOVAL
+    }
+
+    private static final String FILE_PREFIX = "wal-";
+    private static final String FILE_SUFFIX = ".log";
+    private static final int HEADER_BYTES = 8;
+
+    private final File directory;
+    private final long segmentSizeBytes;
+    private final long groupCommitMillis;
+    private final Object lock = new Object();
+    private final long firstSegmentId;
+    private final Thread flusher;
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+    private long batchStartedAt;
+    private long appendedSequence = 0;
+    private long durableSequence = 0;
+    private long segmentId;
+    private long rotationsRequested = 0;
+    private long rotationsDone = 0;
+    private IOException failure;
+    private boolean closed = false;
+    private FileChannel channel;
+
+    /**
+     * Open a write-ahead log, starting a new segment after any existing ones.
+     *
+     * @param directory Directory of the log segments
+     * @param segmentSizeBytes Size after which a new segment is started
+     * @param groupCommitMillis Longest time a record waits for others to share its sync
+     */
+    public WriteAheadLog(File directory, long segmentSizeBytes, long groupCommitMillis) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create write-ahead log directory: " + directory);
+        }
+        if (segmentSizeBytes <= 0 || groupCommitMillis < 0) {
+            throw new IllegalArgumentException("Segment size must be positive and group commit time non-negative");
+        }
+
+        this.directory = directory;
+        this.segmentSizeBytes = segmentSizeBytes;
+        this.groupCommitMillis = groupCommitMillis;
+
+        List<Long> existing = listSegments();
+        this.segmentId = existing.isEmpty() ? 1 : existing.get(existing.size() - 1) + 1;
+        this.firstSegmentId = segmentId;
+        this.channel = openSegment(segmentId);
+
+        this.flusher = new Thread(this::runFlusher, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Log an added event.
+     *
+     * @param event Event
+     * @return Sequence number to wait for with {@link #awaitDurable(long)}
+     */
+    public long appendEvent(Event event) {
+        return append(RecordType.EVENT, out -> {
+            PropertyCodec.writeString(out, event.getEventId());
+            PropertyCodec.writeString(out, event.getEventName());
+            PropertyCodec.writeString(out, event.getUserId());
+            out.writeLong(event.getTimestamp());
+            out.write(PropertyCodec.encode(event.getProperties()));
+        });
+    }
+
+    /**
+     * Log a profile creation or property update.
+     *
+     * @param userId User ID
+     * @param properties Properties set on the profile
+     * @return Sequence number to wait for with {@link #awaitDurable(long)}
+     */
+    public long appendProfileUpdate(String userId, Map<String, Object> properties) {
+        return append(RecordType.PROFILE_UPDATE, out -> {
+            PropertyCodec.writeString(out, userId);
+            out.write(PropertyCodec.encode(properties != null ? properties : Collections.emptyMap()));
+        });
+    }
+
+    /**
+     * Log a profile deletion.
+     *
+     * @param userId User ID
+     * @return Sequence number to wait for with {@link #awaitDurable(long)}
+     */
+    public long appendProfileDelete(String userId) {
+        return append(RecordType.PROFILE_DELETE, out -> PropertyCodec.writeString(out, userId));
+    }
+
+    /**
+     * Log an event evicted by the per-user cap.
+     *
+     * @param removal Removed event
+     * @return Sequence number to wait for with {@link #awaitDurable(long)}
+     */
+    public long appendRemoval(EventDelta.Removal removal) {
+        return append(RecordType.REMOVAL, out -> {
+            PropertyCodec.writeString(out, removal.getEventId().toString());
+            PropertyCodec.writeString(out, removal.getUserId());
+            out.writeLong(removal.getTimestamp());
+        });
+    }
+
+    /**
+     * Wait until a record is on disk.
+     *
+     * @param sequence Sequence number returned when the record was appended
+     */
+    public void awaitDurable(long sequence) {
+        synchronized (lock) {
+            boolean interrupted = false;
+            while (durableSequence < sequence && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (durableSequence < sequence) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+        }
+    }
+
+    /**
+     * Start a new segment once the records appended so far are on disk.
+     *
+     * Every record appended after the call is in the returned segment or a
+     * newer one, so the older segments hold only records appended before it
+     * and can be dropped once those are persisted elsewhere.
+     *
+     * @return ID of the new segment
+     */
+    public long rotate() {
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            // A size rotation may start newer segments before the waiter wakes,
+            // so the boundary is fixed here
+            long boundary = segmentId + 1;
+            long target = ++rotationsRequested;
+            lock.notifyAll();
+            boolean interrupted = false;
+            while (rotationsDone < target && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (rotationsDone < target) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+            return boundary;
+        }
+    }
+
+    /**
+     * Delete the segments older than the given one.
+     *
+     * @param segmentId ID of the oldest segment to keep
+     * @return Number of segments deleted
+     */
+    public int deleteSegmentsBefore(long segmentId) {
+        int deleted = 0;
+        for (long id : listSegments()) {
+            if (id < segmentId && segmentFile(id).delete()) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Read back the records logged before this log was opened, oldest first.
+     *
+     * @param consumer Consumer of the records
+     * @return Number of records read
+     */
+    public long replay(Consumer<Record> consumer) throws IOException {
+        return replay(0, consumer);
+    }
+
+    /**
+     * Read back the records logged before this log was opened, starting at a segment.
+     *
+     * Segments before it are skipped even if they still exist, e.g. when they
+     * are covered by a checkpoint but could not be deleted.
+     *
+     * @param fromSegmentId First segment to read
+     * @param consumer Consumer of the records
+     * @return Number of records read
+     */
+    public long replay(long fromSegmentId, Consumer<Record> consumer) throws IOException {
+        long count = 0;
+        for (long id : listSegments()) {
+            if (id >= firstSegmentId) {
+                break;
+            }
+            if (id < fromSegmentId) {
+                continue;
+            }
+
+            try (FileChannel in = FileChannel.open(segmentFile(id).toPath(), StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(Integer.MAX_VALUE, in.size()));
+                while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                    // Read the whole segment
+                }
+                buffer.flip();
+
+                Record record;
+                while ((record = readRecord(buffer)) != null) {
+                    consumer.accept(record);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the ID of the segment currently written to.
+     *
+     * @return Segment ID
+     */
+    public long getCurrentSegmentId() {
+        synchronized (lock) {
+            return segmentId;
+        }
+    }
+
+    /**
+     * Sync outstanding records and close the log.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            channel.close();
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    private long append(RecordType type, RecordWriter writer) {
+        // Encode outside the lock, so only the copy into the batch is serialized
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(payload)) {
+            out.writeByte(type.ordinal());
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to encode write-ahead log record", e);
+        }
+        byte[] bytes = payload.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("Write-ahead log is closed");
+            }
+            if (failure != null) {
+                throw new UncheckedIOException("Write-ahead log failed", failure);
+            }
+
+            if (batch.size() == 0) {
+                batchStartedAt = System.currentTimeMillis();
+                lock.notifyAll();
+            }
+            writeInt(batch, bytes.length);
+            writeInt(batch, (int) crc.getValue());
+            batch.write(bytes, 0, bytes.length);
+            return ++appendedSequence;
+        }
+    }
+
+    private void runFlusher() {
+        while (true) {
+            ByteArrayOutputStream pending;
+            long target;
+            boolean rotate;
+            synchronized (lock) {
+                try {
+                    // Wait for records or a rotation request
+                    while (batch.size() == 0 && rotationsDone == rotationsRequested && !closed) {
+                        lock.wait();
+                    }
+
+                    // Give other writers the latency budget to join the batch
+                    long deadline = batchStartedAt + groupCommitMillis;
+                    long now = System.currentTimeMillis();
+                    while (batch.size() > 0 && now < deadline && !closed && rotationsDone == rotationsRequested) {
+                        lock.wait(deadline - now);
+                        now = System.currentTimeMillis();
+                    }
+                } catch (InterruptedException e) {
+                    // Only close stops the flusher
+                }
+
+                if (closed && batch.size() == 0 && rotationsDone == rotationsRequested) {
+                    return;
+                }
+
+                pending = batch;
+                batch = new ByteArrayOutputStream(64 * 1024);
+                target = appendedSequence;
+                rotate = rotationsDone < rotationsRequested;
+            }
+
+            try {
+                if (pending.size() > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+
+                long nextSegment = 0;
+                if (rotate || channel.size() >= segmentSizeBytes) {
+                    nextSegment = segmentId + 1;
+                    FileChannel next = openSegment(nextSegment);
+                    channel.close();
+                    channel = next;
+                }
+
+                synchronized (lock) {
+                    durableSequence = target;
+                    if (nextSegment > 0) {
+                        segmentId = nextSegment;
+                    }
+                    if (rotate) {
+                        rotationsDone = rotationsRequested;
+                    }
+                    lock.notifyAll();
+                }
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+        }
+    }
+
+    private Record readRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < HEADER_BYTES) {
+            return null;
+        }
+        int length = buffer.getInt();
+        int checksum = buffer.getInt();
+        if (length <= 0 || length > buffer.remaining()) {
+            // Torn write at the end of the segment
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+
+        ByteBuffer payload = buffer.slice();
+        payload.limit(length);
+        buffer.position(buffer.position() + length);
+
+        RecordType type = RecordType.values()[payload.get()];
+        switch (type) {
+            case EVENT: {
+                String eventId = PropertyCodec.readString(payload);
+                String eventName = PropertyCodec.readString(payload);
+                String userId = PropertyCodec.readString(payload);
+                long timestamp = payload.getLong();
+                Map<String, Object> properties = PropertyCodec.decode(payload);
+                return new Record(type, userId, properties,
+                        new Event(eventName, userId, properties, timestamp, eventId), null);
+            }
+            case PROFILE_UPDATE: {
+                String userId = PropertyCodec.readString(payload);
+                return new Record(type, userId, PropertyCodec.decode(payload), null, null);
+            }
+            case REMOVAL: {
+                EventId eventId = EventId.fromString(PropertyCodec.readString(payload));
+                String userId = PropertyCodec.readString(payload);
+                return new Record(type, userId, null, null,
+                        new EventDelta.Removal(eventId, userId, payload.getLong()));
+            }
+            default:
+                return new Record(type, PropertyCodec.readString(payload), null, null, null);
+        }
+    }
+
+    private List<Long> listSegments() {
+        List<Long> ids = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(FILE_PREFIX.length(),
+                                name.length() - FILE_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not a log segment
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%s%020d%s", FILE_PREFIX, id, FILE_SUFFIX));
+    }
+
+    private FileChannel openSegment(long id) throws IOException {
+        return FileChannel.open(segmentFile(id).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    /**
+     * Writes the payload of a record.
+     */
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Change read back from the log.
+     */
+    public static class Record {
+        private final RecordType type;
+        private final String userId;
+        private final Map<String, Object> properties;
+        private final Event event;
+        private final EventDelta.Removal removal;
+
+        private Record(RecordType type, String userId, Map<String, Object> properties, Event event,
+                       EventDelta.Removal removal) {
+            this.type = type;
+            this.userId = userId;
+            this.properties = properties;
+            this.event = event;
+            this.removal = removal;
+        }
+
+        public RecordType getType() {
+            return type;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        /**
+         * Get the properties of the event or profile update.
+         *
+         * @return Properties, or null for a profile deletion or a removal
+         */
+        public Map<String, Object> getProperties() {
+            return properties;
+        }
+
+        /**
+         * Get the logged event.
+         *
+         * @return Event, or null for other records
+         */
+        public Event getEvent() {
+            return event;
+        }
+
+        /**
+         * Get the logged removal.
+         *
+         * @return Removal, or null for other records
+         */
+        public EventDelta.Removal getRemoval() {
+            return removal;
+        }
+    }
+}
@@ -2,15 +2,26 @@ package com.insightaxisdb;
 
 import com.insightaxisdb.ml.PredictiveModelTest;
 import com.insightaxisdb.ml.RecommendationEngineTest;
+import com.insightaxisdb.query.CompiledConditionTest;
 import com.insightaxisdb.query.QueryConditionTest;
 import com.insightaxisdb.query.QueryEngineTest;
 import com.insightaxisdb.query.QueryTest;
 import com.insightaxisdb.segmentation.CohortAnalysisTest;
 import com.insightaxisdb.segmentation.RFMAnalysisTest;
+import com.insightaxisdb.storage.CheckpointStoreTest;
+import com.insightaxisdb.storage.DeduplicationFilterTest;
+import com.insightaxisdb.storage.EventIdTest;
 import com.insightaxisdb.storage.EventStoreTest;
+import com.insightaxisdb.storage.IoThrottleTest;
+import com.insightaxisdb.storage.MaintenanceSchedulerTest;
 import com.insightaxisdb.storage.NCFTest;
+import com.insightaxisdb.storage.PersistenceIOTest;
 import com.insightaxisdb.storage.PersistenceManagerTest;
+import com.insightaxisdb.storage.ProfileColumnStoreTest;
+import com.insightaxisdb.storage.ProfileSnapshotFileTest;
+import com.insightaxisdb.storage.PropertySchemaTest;
 import com.insightaxisdb.storage.UserProfileStoreTest;
+import com.insightaxisdb.storage.WriteAheadLogTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
@@ -23,10 +34,21 @@ import org.junit.runners.Suite;
         NCFTest.class,
         UserProfileStoreTest.class,
         EventStoreTest.class,
+        EventIdTest.class,
+        PropertySchemaTest.class,
+        DeduplicationFilterTest.class,
+        ProfileColumnStoreTest.class,
+        WriteAheadLogTest.class,
+        ProfileSnapshotFileTest.class,
+        IoThrottleTest.class,
+        PersistenceIOTest.class,
+        MaintenanceSchedulerTest.class,
+        CheckpointStoreTest.class,
         PersistenceManagerTest.class,
         
         // Query tests
         QueryConditionTest.class,
+        CompiledConditionTest.class,
         QueryTest.class,
         QueryEngineTest.class,
         
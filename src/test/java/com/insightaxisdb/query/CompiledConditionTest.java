@@ -0,0 +1,80 @@
+package com.insightaxisdb.query;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the CompiledCondition class.
+ */
+public class CompiledConditionTest {
+
+    private static final List<Object> VALUES = Arrays.asList(
+            null, 5, 5L, 7, 7L, 5.0, 6.5, Double.NaN, "b", "abc", "c", "", true,
+            Arrays.asList("a", "b"), Arrays.asList(5, 7L), Collections.emptyList(),
+            Arrays.asList(5L, 7L, 3L), Arrays.asList(5, 9), Arrays.asList("b", 5, null));
+
+    private List<Map<String, Object>> rows() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        rows.add(new HashMap<>());
+        for (Object value : VALUES) {
+            if (value instanceof List) {
+                continue;
+            }
+            Map<String, Object> row = new HashMap<>();
+            row.put("field", value);
+            rows.add(row);
+        }
+        Map<String, Object> listRow = new HashMap<>();
+        listRow.put("field", Arrays.asList("b", 5L));
+        rows.add(listRow);
+        return rows;
+    }
+
+    @Test
+    public void testMatchesInterpretedConditions() {
+        List<Map<String, Object>> rows = rows();
+        for (QueryCondition.Operator operator : QueryCondition.Operator.values()) {
+            for (Object value : VALUES) {
+                QueryCondition condition = new QueryCondition("field", operator, value);
+                CompiledCondition compiled = CompiledCondition.compile(condition);
+                for (Map<String, Object> row : rows) {
+                    assertEquals(operator + " " + value + " on " + row,
+                            condition.matches(row), compiled.test(row));
+                    if (row.containsKey("field")) {
+                        assertEquals(condition.matches(row), compiled.matches(row.get("field")));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompileAll() {
+        List<QueryCondition> conditions = Arrays.asList(
+                QueryCondition.ne("country", "US"),
+                QueryCondition.gte("age", 18),
+                QueryCondition.in("plan", Arrays.asList("pro", "team")));
+        Predicate<Map<String, Object>> predicate = CompiledCondition.compileAll(conditions);
+
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("country", i % 3 == 0 ? "US" : "DE");
+            row.put("age", i % 40);
+            row.put("plan", i % 4 == 0 ? "pro" : "free");
+
+            boolean expected = conditions.stream().allMatch(condition -> condition.matches(row));
+            assertEquals(expected, predicate.test(row));
+        }
+
+        assertTrue(CompiledCondition.compileAll(Collections.emptyList()).test(new HashMap<>()));
+    }
+}
@@ -1,10 +1,12 @@
 package com.insightaxisdb.query;
 
 import com.insightaxisdb.storage.EventStore;
+import com.insightaxisdb.storage.ProfileIndex;
 import com.insightaxisdb.storage.UserProfileStore;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
@@ -168,4 +170,103 @@ public class QueryEngineTest {
         // In a real implementation, we would need more control over event timestamps
         assertNotNull(result);
     }
+
+    @Test
+    public void testQueryUserProfilesWithIndexes() {
+        // Index properties of the existing profiles
+        userProfileStore.createIndex("name", ProfileIndex.IndexType.HASH);
+        userProfileStore.createIndex("age", ProfileIndex.IndexType.SORTED);
+
+        // Query with an equality and a range condition
+        Query query = new Query()
+                .where(Arrays.asList(
+                        QueryCondition.in("name", Arrays.asList("User 1", "User 3")),
+                        QueryCondition.gte("age", 22),
+                        QueryCondition.exists("email")
+                ))
+                .select("userId", "age");
+
+        QueryResult result = queryEngine.queryUserProfiles(query);
+
+        // Check result
+        assertEquals(1, result.getRowCount());
+        assertEquals("user3", result.getRows().get(0).get("userId"));
+
+        // Query by user ID
+        result = queryEngine.queryUserProfiles(new Query().where(QueryCondition.eq("userId", "user2")));
+        assertEquals(1, result.getRowCount());
+        assertEquals("User 2", result.getRows().get(0).get("name"));
+    }
+
+    @Test
+    public void testColumnarProfileFilters() {
+        // Conditions evaluated on the columns must match row evaluation
+        List<List<QueryCondition>> conditionSets = Arrays.asList(
+                Arrays.asList(QueryCondition.gt("age", 21)),
+                Arrays.asList(QueryCondition.eq("age", 22L)),
+                Arrays.asList(QueryCondition.ne("age", 22)),
+                Arrays.asList(QueryCondition.startsWith("email", "user1")),
+                Arrays.asList(QueryCondition.in("name", Arrays.asList("User 1", "User 2")), QueryCondition.lte("age", 21)),
+                Arrays.asList(QueryCondition.notExists("plan")),
+                Arrays.asList(QueryCondition.gte("eventCount", 4), QueryCondition.exists("name"))
+        );
+
+        for (List<QueryCondition> conditions : conditionSets) {
+            Query query = new Query().where(conditions).orderBy("userId", Query.SortOrder.ASCENDING);
+            List<Map<String, Object>> expected = new ArrayList<>();
+            for (int i = 1; i <= 3; i++) {
+                Map<String, Object> row = new HashMap<>(userProfileStore.getProfile("user" + i).getProperties());
+                row.put("userId", "user" + i);
+                row.put("eventCount", userProfileStore.getProfile("user" + i).getEventCount());
+                row.put("firstSeenAt", userProfileStore.getProfile("user" + i).getFirstSeenAt());
+                row.put("lastSeenAt", userProfileStore.getProfile("user" + i).getLastSeenAt());
+                expected.add(row);
+            }
+
+            assertEquals(query.execute(expected).getRows(), queryEngine.queryUserProfiles(query).getRows());
+        }
+    }
+
+    @Test
+    public void testAggregateUserProfiles() {
+        // Aggregate on the columns
+        Query query = new Query()
+                .where(QueryCondition.gte("age", 22))
+                .aggregate("age", Query.AggregationType.AVG, "averageAge")
+                .aggregate("age", Query.AggregationType.MAX, "maxAge")
+                .aggregate("name", Query.AggregationType.COUNT_DISTINCT, "names")
+                .aggregate("userId", Query.AggregationType.COUNT, "users");
+
+        QueryResult result = queryEngine.aggregateUserProfiles(query);
+
+        // Check result
+        assertTrue(result.isEmpty());
+        assertEquals(22.5, (Double) result.getAggregations().get("averageAge"), 0.0001);
+        assertEquals(23.0, (Double) result.getAggregations().get("maxAge"), 0.0001);
+        assertEquals(2L, result.getAggregations().get("names"));
+        assertEquals(2L, result.getAggregations().get("users"));
+
+        // Aggregations over profile fields use the profile objects
+        query = new Query().aggregate("eventCount", Query.AggregationType.SUM, "events");
+        assertEquals(12.0, (Double) queryEngine.aggregateUserProfiles(query).getAggregations().get("events"), 0.0001);
+    }
+
+    @Test
+    public void testActiveQueryCount() {
+        // Record the active queries while the rows are evaluated
+        List<Integer> activeCounts = new ArrayList<>();
+        Query query = new Query() {
+            @Override
+            public QueryResult execute(List<Map<String, Object>> rows) {
+                activeCounts.add(queryEngine.getActiveQueryCount());
+                return super.execute(rows);
+            }
+        }.aggregate("eventCount", Query.AggregationType.SUM, "events");
+
+        // An aggregation that falls back to the profile objects counts as one query
+        queryEngine.aggregateUserProfiles(query);
+        queryEngine.queryEvents(query);
+        assertEquals(Arrays.asList(1, 1), activeCounts);
+        assertEquals(0, queryEngine.getActiveQueryCount());
+    }
 }
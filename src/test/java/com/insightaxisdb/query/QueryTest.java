@@ -241,4 +241,144 @@ public class QueryTest {
         assertTrue(result.isEmpty());
         assertEquals(0, result.getRowCount());
     }
+    
+    @Test
+    public void testSortWithLimitMatchesFullSort() {
+        // Enough rows to split the search over threads, with ties and missing values
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 150000; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("plan", random.nextInt(3) == 0 ? "pro" : "free");
+            if (i % 10 != 0) {
+                row.put("ltv", (double) random.nextInt(1000));
+            }
+            rows.add(row);
+        }
+        
+        for (Query.SortOrder order : Query.SortOrder.values()) {
+            Query query = new Query()
+                    .where(QueryCondition.eq("plan", "pro"))
+                    .orderBy("ltv", order)
+                    .offset(5)
+                    .limit(20);
+            
+            // Reference: every matching row sorted stably
+            List<Map<String, Object>> expected = new ArrayList<>(new Query()
+                    .where(QueryCondition.eq("plan", "pro"))
+                    .orderBy("ltv", order)
+                    .execute(rows)
+                    .getRows());
+            
+            List<Map<String, Object>> result = query.execute(rows).getRows();
+            assertEquals(20, result.size());
+            assertEquals(expected.subList(5, 25), result);
+        }
+        
+        // Fewer matching rows than the limit
+        List<Map<String, Object>> result = new Query()
+                .where(QueryCondition.eq("id", 7))
+                .orderBy("ltv", Query.SortOrder.DESCENDING)
+                .limit(10)
+                .execute(rows)
+                .getRows();
+        assertEquals(1, result.size());
+        assertEquals(7, result.get(0).get("id"));
+        
+        // A limit of zero returns no rows
+        assertTrue(new Query().orderBy("id", Query.SortOrder.ASCENDING).limit(0).execute(rows).getRows().isEmpty());
+    }
+    
+    @Test
+    public void testGroupByMatchesWholeResultAggregations() {
+        // Events over three days, some without a numeric amount
+        long day = 24L * 60 * 60 * 1000;
+        String[] names = {"view", "click", "purchase"};
+        List<Map<String, Object>> rows = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 3000; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("eventName", names[random.nextInt(names.length)]);
+            row.put("timestamp", 1700000000000L + random.nextInt(3) * day + random.nextInt(1000));
+            row.put("userId", "user" + random.nextInt(50));
+            if (i % 4 != 0) {
+                row.put("amount", (double) random.nextInt(100));
+            }
+            rows.add(row);
+        }
+        
+        QueryResult result = aggregateAll(new Query()
+                .where(QueryCondition.ne("eventName", "view"))
+                .groupBy("eventName")
+                .groupByInterval("timestamp", day))
+                .execute(rows);
+        assertTrue(result.getAggregations().isEmpty());
+        assertEquals(6, result.getRowCount());
+        
+        // Each group equals the whole-result aggregates of its rows
+        for (Map<String, Object> group : result.getRows()) {
+            long dayStart = (Long) group.get("timestamp");
+            assertEquals(0, dayStart % day);
+            Map<String, Object> expected = aggregateAll(new Query()
+                    .where(QueryCondition.eq("eventName", group.get("eventName")))
+                    .where(QueryCondition.gte("timestamp", dayStart))
+                    .where(QueryCondition.lt("timestamp", dayStart + day)))
+                    .execute(rows)
+                    .getAggregations();
+            for (Map.Entry<String, Object> entry : expected.entrySet()) {
+                assertEquals(entry.getKey(), entry.getValue(), group.get(entry.getKey()));
+            }
+        }
+    }
+    
+    @Test
+    public void testGroupByOverflowAndOrder() {
+        List<Map<String, Object>> rows = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("userId", "user" + (i % 10));
+            row.put("amount", i);
+            rows.add(row);
+        }
+        
+        // Keys beyond the first four share the overflow group
+        List<Map<String, Object>> groups = new Query()
+                .groupBy("userId")
+                .aggregate("amount", Query.AggregationType.COUNT, "count")
+                .maxGroups(4)
+                .execute(rows)
+                .getRows();
+        assertEquals(5, groups.size());
+        assertEquals("user0", groups.get(0).get("userId"));
+        assertEquals(10L, groups.get(0).get("count"));
+        Map<String, Object> overflow = groups.get(4);
+        assertEquals(true, overflow.get(Query.OVERFLOW_GROUP_FIELD));
+        assertNull(overflow.get("userId"));
+        assertEquals(60L, overflow.get("count"));
+        
+        // Sort order, limit and select apply to the groups
+        List<Map<String, Object>> top = new Query()
+                .groupBy("userId")
+                .aggregate("amount", Query.AggregationType.SUM, "total")
+                .orderBy("total", Query.SortOrder.DESCENDING)
+                .limit(2)
+                .select("userId")
+                .execute(rows)
+                .getRows();
+        assertEquals(2, top.size());
+        assertEquals("user9", top.get(0).get("userId"));
+        assertEquals("user8", top.get(1).get("userId"));
+        assertFalse(top.get(0).containsKey("total"));
+    }
+    
+    private Query aggregateAll(Query query) {
+        return query
+                .aggregate("amount", Query.AggregationType.COUNT, "count")
+                .aggregate("userId", Query.AggregationType.COUNT_DISTINCT, "users")
+                .aggregate("amount", Query.AggregationType.SUM, "total")
+                .aggregate("amount", Query.AggregationType.AVG, "average")
+                .aggregate("amount", Query.AggregationType.MIN, "lowest")
+                .aggregate("amount", Query.AggregationType.MAX, "highest");
+    }
 }
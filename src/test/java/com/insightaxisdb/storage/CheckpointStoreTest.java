@@ -0,0 +1,347 @@
+package com.insightaxisdb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the CheckpointStore.
+ */
+public class CheckpointStoreTest {
+
+    private File dataDir;
+    private UserProfileStore userProfileStore;
+    private EventStore eventStore;
+
+    @Before
+    public void setUp() throws IOException {
+        dataDir = Files.createTempDirectory("checkpoint-test").toFile();
+        userProfileStore = new UserProfileStore();
+        eventStore = new EventStore(userProfileStore);
+    }
+
+    @After
+    public void tearDown() {
+        deleteDirectory(dataDir);
+    }
+
+    private void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+        directory.delete();
+    }
+
+    private boolean checkpoint(CheckpointStore checkpoints) throws IOException {
+        return checkpoint(checkpoints, eventStore);
+    }
+
+    private boolean checkpoint(CheckpointStore checkpoints, EventStore eventStore) throws IOException {
+        ProfileDelta profiles = userProfileStore.captureChanges();
+        EventDelta events = eventStore.captureChanges();
+        boolean written = checkpoints.write(profiles, events, 0);
+        profiles.commit();
+        events.commit();
+        return written;
+    }
+
+    @Test
+    public void testWriteAndRestore() throws IOException {
+        long now = System.currentTimeMillis();
+        userProfileStore.createProfile("user1", Collections.singletonMap("plan", "pro"));
+        userProfileStore.createProfile("user2", Collections.singletonMap("plan", "free"));
+        eventStore.addEvent("login", "user1", new HashMap<>(), now - 2000);
+        eventStore.addEvent("purchase", "user1", Collections.singletonMap("price", 9.5), now - 1000);
+        eventStore.addEvent("login", "user3", new HashMap<>(), now);
+        userProfileStore.deleteProfile("user2");
+
+        assertTrue(checkpoint(new CheckpointStore(dataDir, 8)));
+
+        // Restore into fresh stores from a reopened checkpoint directory
+        UserProfileStore restoredProfiles = new UserProfileStore();
+        EventStore restoredEvents = new EventStore(restoredProfiles);
+        CheckpointStore checkpoints = new CheckpointStore(dataDir, 8);
+        checkpoints.restoreProfiles(restoredProfiles);
+        assertEquals(3, checkpoints.restoreEvents(restoredEvents));
+
+        assertEquals("pro", restoredProfiles.getProfile("user1").getProperties().get("plan"));
+        assertNull(restoredProfiles.getProfile("user2"));
+        assertEquals(3, restoredEvents.getAllEvents().size());
+        assertEquals(9.5, ((Number) restoredEvents.getUserEventsByName("user1", "purchase").get(0)
+                .getProperties().get("price")).doubleValue(), 0.0);
+
+        // Event counts are rebuilt from the restored events
+        UserProfile user1 = restoredProfiles.getProfile("user1");
+        assertEquals(2, user1.getEventCount());
+        assertEquals(1, user1.getEventCount("purchase"));
+        assertEquals(now, restoredProfiles.getProfile("user3").getLastSeenAt());
+    }
+
+    @Test
+    public void testOnlyChangesAreWritten() throws IOException {
+        CheckpointStore checkpoints = new CheckpointStore(dataDir, 8);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 100; i++) {
+            userProfileStore.createProfile("user" + i, Collections.singletonMap("plan", "free"));
+            eventStore.addEvent("login", "user" + i, new HashMap<>(), now + i);
+        }
+        assertTrue(checkpoint(checkpoints));
+
+        // Nothing changed since
+        assertFalse(checkpoint(checkpoints));
+
+        userProfileStore.updateProfile("user7", Collections.singletonMap("plan", "pro"));
+        eventStore.addEvent("purchase", "user7", new HashMap<>(), now + 500);
+
+        ProfileDelta profiles = userProfileStore.captureChanges();
+        EventDelta events = eventStore.captureChanges();
+        List<Event> newEvents = new ArrayList<>();
+        events.forEach(newEvents::add);
+        assertEquals(1, profiles.getProfiles().size());
+        assertEquals("user7", profiles.getProfiles().get(0).getUserId());
+        assertEquals(1, newEvents.size());
+        assertEquals("purchase", newEvents.get(0).getEventName());
+
+        assertTrue(checkpoints.write(profiles, events, 0));
+        profiles.commit();
+        events.commit();
+        assertEquals(2, checkpoints.getProfileFileCount());
+        assertEquals(2, checkpoints.getEventFileCount());
+
+        UserProfileStore restoredProfiles = new UserProfileStore();
+        EventStore restoredEvents = new EventStore(restoredProfiles);
+        checkpoints.restoreProfiles(restoredProfiles);
+        assertEquals(101, checkpoints.restoreEvents(restoredEvents));
+        assertEquals(100, restoredProfiles.getProfileCount());
+        assertEquals("pro", restoredProfiles.getProfile("user7").getProperties().get("plan"));
+    }
+
+    @Test
+    public void testReleasedChangesAreCapturedAgain() {
+        userProfileStore.createProfile("user1", Collections.singletonMap("plan", "pro"));
+        eventStore.addEvent("login", "user1", new HashMap<>(), System.currentTimeMillis());
+
+        ProfileDelta profiles = userProfileStore.captureChanges();
+        EventDelta events = eventStore.captureChanges();
+        profiles.release();
+        events.release();
+
+        profiles = userProfileStore.captureChanges();
+        events = eventStore.captureChanges();
+        List<Event> newEvents = new ArrayList<>();
+        events.forEach(newEvents::add);
+        assertEquals(1, profiles.getProfiles().size());
+        assertEquals(1, newEvents.size());
+        profiles.commit();
+        events.commit();
+
+        assertTrue(userProfileStore.captureChanges().isEmpty());
+        assertTrue(eventStore.captureChanges().isEmpty());
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        CheckpointStore checkpoints = new CheckpointStore(dataDir, 2);
+        long now = System.currentTimeMillis();
+        userProfileStore.createProfile("user1", Collections.singletonMap("plan", "free"));
+        userProfileStore.createProfile("user2", Collections.singletonMap("plan", "free"));
+
+        for (int i = 0; i < 10; i++) {
+            userProfileStore.updateProfile("user1", Collections.singletonMap("visits", i));
+            eventStore.addEvent("login", "user1", new HashMap<>(), now + i);
+            if (i == 5) {
+                userProfileStore.deleteProfile("user2");
+            }
+            checkpoint(checkpoints);
+            checkpoints.merge(Long.MIN_VALUE);
+
+            assertTrue(checkpoints.getProfileFileCount() <= 2);
+            assertTrue(checkpoints.getEventFileCount() <= 2);
+        }
+
+        // Merged files replace the originals on disk
+        File[] profileFiles = new File(dataDir, "profiles").listFiles();
+        assertNotNull(profileFiles);
+        assertEquals(checkpoints.getProfileFileCount(), profileFiles.length);
+
+        UserProfileStore restoredProfiles = new UserProfileStore();
+        EventStore restoredEvents = new EventStore(restoredProfiles);
+        CheckpointStore reopened = new CheckpointStore(dataDir, 2);
+        reopened.restoreProfiles(restoredProfiles);
+        assertEquals(10, reopened.restoreEvents(restoredEvents));
+
+        Map<String, Object> properties = restoredProfiles.getProfile("user1").getProperties();
+        assertEquals("free", properties.get("plan"));
+        assertEquals(9, ((Number) properties.get("visits")).intValue());
+        assertNull(restoredProfiles.getProfile("user2"));
+
+        // Expired events are dropped when the checkpoints are compacted
+        reopened.merge(now + 100);
+        assertEquals(0, reopened.getEventFileCount());
+    }
+
+    @Test
+    public void testParallelRestore() throws IOException {
+        CheckpointStore checkpoints = new CheckpointStore(dataDir, 100);
+        long now = System.currentTimeMillis();
+        for (int file = 0; file < 6; file++) {
+            for (int i = 0; i < 3000; i++) {
+                String userId = "user" + (i % 500);
+                if (file == 0 && i < 500) {
+                    userProfileStore.createProfile(userId, Collections.singletonMap("plan", "free"));
+                }
+                eventStore.addEvent("login", userId, new HashMap<>(), now + file * 3000 + i);
+            }
+            userProfileStore.updateProfile("user1", Collections.singletonMap("plan", "plan" + file));
+            checkpoint(checkpoints);
+        }
+
+        UserProfileStore restoredProfiles = new UserProfileStore();
+        EventStore restoredEvents = new EventStore(restoredProfiles, 60 * 60 * 1000L, 0,
+                UserEventQuota.CapPolicy.DROP_NEWEST);
+        RecoveryProgress progress = new RecoveryProgress();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(505, checkpoints.restoreProfiles(restoredProfiles, pool, progress));
+            assertEquals(18000, checkpoints.restoreEvents(restoredEvents, pool, progress));
+        } finally {
+            pool.shutdown();
+        }
+
+        assertEquals(12, progress.getFilesLoaded());
+        assertEquals(progress.getBytesTotal(), progress.getBytesLoaded());
+        assertEquals(505, progress.getProfilesRestored());
+        assertEquals(18000, progress.getEventsRestored());
+
+        // Later files win, and event counts add up across files
+        assertEquals("plan5", restoredProfiles.getProfile("user1").getProperties().get("plan"));
+        assertEquals(500, restoredProfiles.getProfileCount());
+        assertEquals(36, restoredProfiles.getProfile("user7").getEventCount());
+        assertEquals(18000, restoredEvents.getAllEvents().size());
+    }
+
+    @Test
+    public void testRestoreSkipsStoredEvents() throws IOException {
+        CheckpointStore checkpoints = new CheckpointStore(dataDir, 8);
+        eventStore.addEvent("login", "user1", new HashMap<>(), System.currentTimeMillis());
+        checkpoint(checkpoints);
+
+        // Restoring into a store that already holds the events adds nothing
+        assertEquals(0, checkpoints.restoreEvents(eventStore));
+        assertEquals(1, eventStore.getAllEvents().size());
+        assertEquals(1, userProfileStore.getProfile("user1").getEventCount());
+    }
+
+    @Test
+    public void testRemovalsAreRestored() throws IOException {
+        long hour = 60 * 60 * 1000L;
+        long day = 24 * hour;
+        long base = 1710028800000L; // 2024-03-10T00:00:00Z
+        File coldDir = new File(dataDir, "cold");
+        EventStore capped = new EventStore(userProfileStore, hour, 3, UserEventQuota.CapPolicy.DROP_OLDEST);
+        capped.enableColdTier(coldDir, day, Long.MAX_VALUE);
+        CheckpointStore checkpoints = new CheckpointStore(dataDir, 8);
+
+        // Two events checkpointed, then sealed into the cold tier
+        Event first = capped.addEvent("view", "user1", new HashMap<>(), base);
+        Event second = capped.addEvent("view", "user1", new HashMap<>(), base + 1);
+        checkpoint(checkpoints, capped);
+        assertEquals(1, capped.moveSegmentsToColdTier(base + 10 * day));
+
+        // One checkpointed in memory, then all three evicted by newer events
+        Event third = capped.addEvent("view", "user1", new HashMap<>(), base + 2 * day);
+        checkpoint(checkpoints, capped);
+        for (int i = 1; i <= 3; i++) {
+            capped.addEvent("view", "user1", new HashMap<>(), base + 2 * day + i);
+        }
+        checkpoint(checkpoints, capped);
+        assertEquals(3, capped.getAllEvents().size());
+
+        // Restored without a cap, so nothing depends on evicting the events again
+        for (int threshold : new int[] {8, 1}) {
+            CheckpointStore reopened = new CheckpointStore(dataDir, threshold);
+            reopened.merge(Long.MIN_VALUE);
+            EventStore restored = new EventStore(new UserProfileStore(), hour, 0, UserEventQuota.CapPolicy.DROP_NEWEST);
+            restored.enableColdTier(coldDir, day, Long.MAX_VALUE);
+            assertEquals(3, reopened.restoreEvents(restored));
+
+            assertEquals(3, restored.getAllEvents().size());
+            for (Event removed : new Event[] {first, second, third}) {
+                assertNull(restored.getEvent(removed.getEventId()));
+            }
+        }
+    }
+
+    @Test
+    public void testBackupAndRestore() throws IOException {
+        File backupDir = Files.createTempDirectory("checkpoint-backup-test").toFile();
+        File restoredDir = Files.createTempDirectory("checkpoint-restore-test").toFile();
+        try {
+            CheckpointStore checkpoints = new CheckpointStore(dataDir, 2);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 3; i++) {
+                userProfileStore.createProfile("user" + i, Collections.singletonMap("plan", "pro"));
+                eventStore.addEvent("login", "user" + i, new HashMap<>(), now + i);
+                checkpoint(checkpoints);
+            }
+
+            Map<String, Object> stats = checkpoints.backup(backupDir);
+            assertEquals(6, stats.get("files"));
+            assertEquals(0, stats.get("copiedFiles"));
+            File linked = new File(backupDir, "events").listFiles()[0];
+            assertTrue(Files.isSameFile(linked.toPath(), new File(new File(dataDir, "events"),
+                    linked.getName()).toPath()));
+
+            // Merging deletes the original files, but not the backup's links to them
+            assertEquals(6, checkpoints.merge(Long.MIN_VALUE));
+            userProfileStore.createProfile("user9", Collections.singletonMap("plan", "free"));
+            checkpoint(checkpoints);
+
+            try {
+                checkpoints.backup(backupDir);
+                fail("Expected IOException");
+            } catch (IOException e) {
+                // Expected
+            }
+
+            // The backup opens as a data directory of its own
+            CheckpointStore backup = new CheckpointStore(backupDir, 2);
+            assertEquals(0, backup.getWriteAheadLogSegmentId());
+            UserProfileStore backupProfiles = new UserProfileStore();
+            assertEquals(3, backup.restoreProfiles(backupProfiles));
+            assertNull(backupProfiles.getProfile("user9"));
+
+            // Restoring links the backup into a new directory
+            assertEquals(6, CheckpointStore.restoreBackup(backupDir, restoredDir).get("files"));
+            UserProfileStore restoredProfiles = new UserProfileStore();
+            EventStore restoredEvents = new EventStore(restoredProfiles);
+            CheckpointStore restored = new CheckpointStore(restoredDir, 2);
+            restored.restoreProfiles(restoredProfiles);
+            assertEquals(3, restored.restoreEvents(restoredEvents));
+            assertEquals("pro", restoredProfiles.getProfile("user2").getProperties().get("plan"));
+        } finally {
+            deleteDirectory(backupDir);
+            deleteDirectory(restoredDir);
+        }
+    }
+}
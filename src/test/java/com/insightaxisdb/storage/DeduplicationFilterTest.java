@@ -0,0 +1,56 @@
+package com.insightaxisdb.storage;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the DeduplicationFilter.
+ */
+public class DeduplicationFilterTest {
+    
+    private static final long HOUR = 60 * 60 * 1000L;
+    
+    @Test
+    public void testRecordedKeys() {
+        DeduplicationFilter filter = new DeduplicationFilter(HOUR, 4, 1000, 0.01);
+        long now = 1700000000000L;
+        EventId key = EventId.fromString("order-1");
+        
+        // Check that a key is only reported once recorded
+        assertFalse(filter.mightContain(key, now));
+        filter.put(key, now);
+        assertTrue(filter.mightContain(key, now));
+        assertTrue(filter.mightContain(key, now + 3 * HOUR));
+    }
+    
+    @Test
+    public void testWindowsRotate() {
+        DeduplicationFilter filter = new DeduplicationFilter(HOUR, 4, 1000, 0.01);
+        long now = 1700000000000L;
+        EventId key = EventId.fromString("order-1");
+        filter.put(key, now);
+        
+        // Check that the key is forgotten once its window leaves the horizon
+        filter.put(EventId.fromString("order-2"), now + 4 * HOUR);
+        assertFalse(filter.mightContain(key, now + 4 * HOUR));
+    }
+    
+    @Test
+    public void testFalsePositiveRate() {
+        DeduplicationFilter filter = new DeduplicationFilter(HOUR, 1, 1000, 0.01);
+        long now = 1700000000000L;
+        for (int i = 0; i < 1000; i++) {
+            filter.put(EventId.fromString("key-" + i), now);
+        }
+        
+        // Check that unseen keys are rarely reported at the expected load
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(EventId.fromString("other-" + i), now)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("False positives: " + falsePositives, falsePositives < 300);
+    }
+}
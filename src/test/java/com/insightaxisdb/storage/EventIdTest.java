@@ -0,0 +1,67 @@
+package com.insightaxisdb.storage;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for EventId.
+ */
+public class EventIdTest {
+    
+    @Test
+    public void testGenerateEmbedsTimestamp() {
+        long timestamp = 1700000000000L;
+        EventId id = EventId.generate(timestamp);
+        
+        // Check embedded timestamp
+        assertEquals(timestamp, id.getTimestamp());
+    }
+    
+    @Test
+    public void testStringRoundTrip() {
+        EventId id = EventId.generate(System.currentTimeMillis());
+        String value = id.toString();
+        
+        // Check canonical UUID form
+        assertEquals(36, value.length());
+        assertEquals(7, UUID.fromString(value).version());
+        
+        // Check parsing back
+        EventId parsed = EventId.fromString(value);
+        assertEquals(id, parsed);
+        assertEquals(id.hashCode(), parsed.hashCode());
+        assertEquals(value, parsed.toString());
+    }
+    
+    @Test
+    public void testTimeOrdering() {
+        EventId earlier = EventId.generate(1000L);
+        EventId later = EventId.generate(2000L);
+        
+        // Check that IDs sort by time
+        assertTrue(earlier.compareTo(later) < 0);
+        assertTrue(earlier.toString().compareTo(later.toString()) < 0);
+    }
+    
+    @Test
+    public void testNonCanonicalString() {
+        // Arbitrary strings map to a stable, non time-ordered ID
+        EventId id = EventId.fromString("event1");
+        
+        assertEquals(id, EventId.fromString("event1"));
+        assertNotEquals(id, EventId.fromString("event2"));
+        assertEquals(-1, id.getTimestamp());
+    }
+    
+    @Test
+    public void testEventKeepsClientSuppliedId() {
+        Event event = new Event("login", "user1", null, 1000L, "event1");
+        
+        // Check that the client's ID is returned unchanged
+        assertEquals("event1", event.getEventId());
+        assertEquals(EventId.fromString("event1"), event.getId());
+    }
+}
@@ -1,8 +1,13 @@
 package com.insightaxisdb.storage;
 
+import com.insightaxisdb.core.Config;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,8 +56,12 @@ public class EventStoreTest {
         // Check user profile
         UserProfile profile = userProfileStore.getProfile(userId);
         assertEquals(1, profile.getEventCount());
-        assertEquals(1, profile.getEvents().size());
-        assertEquals(event.getEventId(), profile.getEvents().get(0));
+        assertEquals(1, profile.getEventCount(eventName));
+        
+        // Check that membership is served by the store's index
+        Collection<String> eventIds = eventStore.getUserEventIds(userId);
+        assertEquals(1, eventIds.size());
+        assertEquals(event.getEventId(), eventIds.iterator().next());
     }
     
     @Test
@@ -89,8 +98,12 @@ public class EventStoreTest {
         UserProfile profile = userProfileStore.getProfile(userId);
         assertNotNull(profile);
         assertEquals(1, profile.getEventCount());
-        assertEquals(1, profile.getEvents().size());
-        assertEquals(event.getEventId(), profile.getEvents().get(0));
+        assertEquals(1, profile.getEventCount(eventName));
+        
+        // Check that membership is served by the store's index
+        Collection<String> eventIds = eventStore.getUserEventIds(userId);
+        assertEquals(1, eventIds.size());
+        assertEquals(event.getEventId(), eventIds.iterator().next());
     }
     
     @Test
@@ -205,6 +218,422 @@ public class EventStoreTest {
         assertEquals(2, events.size());
     }
     
+    @Test
+    public void testGetEventsInTimerange() {
+        // Add events on different days
+        long day = 24 * 60 * 60 * 1000L;
+        long now = System.currentTimeMillis();
+        eventStore.addEvent("login", "user1", null, now - 5 * day);
+        eventStore.addEvent("login", "user1", null, now - 2 * day);
+        eventStore.addEvent("purchase", "user2", null, now);
+        
+        // Get events in timerange
+        List<Event> events = eventStore.getEventsInTimerange(now - 3 * day, now);
+        
+        // Check events
+        assertEquals(2, events.size());
+        assertEquals(now - 2 * day, events.get(0).getTimestamp());
+        assertEquals(now, events.get(1).getTimestamp());
+    }
+    
+    @Test
+    public void testDropSegmentsBefore() {
+        // Add events on different days
+        long day = 24 * 60 * 60 * 1000L;
+        long now = System.currentTimeMillis();
+        eventStore.addEvent("login", "user1", null, now - 10 * day);
+        eventStore.addEvent("purchase", "user1", null, now - 10 * day);
+        eventStore.addEvent("login", "user1", null, now);
+        assertEquals(2, eventStore.getSegmentCount());
+        
+        // Drop everything older than five days
+        long dropped = eventStore.dropSegmentsBefore(now - 5 * day);
+        
+        // Check that the old segment is gone with its index slices
+        assertEquals(2, dropped);
+        assertEquals(1, eventStore.getSegmentCount());
+        assertEquals(1, eventStore.getUserEvents("user1").size());
+        assertTrue(eventStore.getEventsByName("purchase").isEmpty());
+    }
+    
+    @Test
+    public void testMonthlyCapDropNewest() {
+        EventStore cappedStore = new EventStore(userProfileStore, 24 * 60 * 60 * 1000L,
+                3, UserEventQuota.CapPolicy.DROP_NEWEST);
+        long now = System.currentTimeMillis();
+        
+        // Add more events than the cap allows
+        for (int i = 0; i < 5; i++) {
+            Event event = cappedStore.addEvent("login", "user1", null, now + i);
+            if (i < 3) {
+                assertNotNull(event);
+            } else {
+                assertNull(event);
+            }
+        }
+        
+        // Check that only the first events were kept
+        List<Event> events = cappedStore.getUserEvents("user1");
+        assertEquals(3, events.size());
+        assertEquals(now, events.get(0).getTimestamp());
+        assertEquals(2, cappedStore.getRejectedEventCount());
+        assertEquals(0, cappedStore.getEvictedEventCount());
+    }
+    
+    @Test
+    public void testMonthlyCapDropOldest() {
+        EventStore cappedStore = new EventStore(userProfileStore, 24 * 60 * 60 * 1000L,
+                3, UserEventQuota.CapPolicy.DROP_OLDEST);
+        long now = System.currentTimeMillis();
+        
+        // Add more events than the cap allows
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(cappedStore.addEvent("login", "user1", null, now + i));
+        }
+        
+        // Check that the newest events were kept
+        List<Event> events = cappedStore.getUserEvents("user1");
+        assertEquals(3, events.size());
+        assertEquals(now + 2, events.get(0).getTimestamp());
+        assertEquals(now + 4, events.get(2).getTimestamp());
+        assertEquals(0, cappedStore.getRejectedEventCount());
+        assertEquals(2, cappedStore.getEvictedEventCount());
+        
+        // Check that evicted events leave the profile aggregates
+        assertEquals(3, userProfileStore.getProfile("user1").getEventCount());
+        assertEquals(3, userProfileStore.getProfile("user1").getEventCount("login"));
+    }
+    
+    @Test
+    public void testMonthlyCapHistoryMonths() {
+        EventStore cappedStore = new EventStore(userProfileStore, 24 * 60 * 60 * 1000L,
+                2, UserEventQuota.CapPolicy.DROP_OLDEST);
+        long january = 1704067200000L;
+        long february = 1706745600000L;
+        long march = 1709251200000L;
+        
+        // Fill January, then move on by two months
+        cappedStore.addEvent("login", "user1", null, january);
+        cappedStore.addEvent("login", "user1", null, january + 1);
+        cappedStore.addEvent("login", "user1", null, february);
+        cappedStore.addEvent("login", "user1", null, march);
+        
+        // January now keeps counts only, so a late event there is rejected instead of evicting
+        assertNull(cappedStore.addEvent("login", "user1", null, january + 2));
+        assertEquals(1, cappedStore.getRejectedEventCount());
+        
+        // The newest months still evict their oldest events
+        cappedStore.addEvent("login", "user1", null, march + 1);
+        assertNotNull(cappedStore.addEvent("login", "user1", null, march + 2));
+        assertEquals(1, cappedStore.getEvictedEventCount());
+        assertEquals(5, cappedStore.getUserEvents("user1").size());
+        assertEquals(5, userProfileStore.getProfile("user1").getEventCount());
+    }
+    
+    @Test
+    public void testMonthlyCapDownsample() {
+        EventStore cappedStore = new EventStore(userProfileStore, 24 * 60 * 60 * 1000L,
+                10, UserEventQuota.CapPolicy.DOWNSAMPLE);
+        long now = System.currentTimeMillis();
+        
+        // Add many more events than the cap allows
+        for (int i = 0; i < 100; i++) {
+            cappedStore.addEvent("login", "user1", null, now);
+        }
+        
+        // Check that the number of kept events never exceeds the cap
+        assertEquals(10, cappedStore.getUserEvents("user1").size());
+        assertEquals(90, cappedStore.getRejectedEventCount() + cappedStore.getEvictedEventCount());
+        assertEquals(10, userProfileStore.getProfile("user1").getEventCount());
+    }
+    
+    @Test
+    public void testOffHeapStorage() {
+        EventStore offHeapStore = new EventStore(userProfileStore, 24 * 60 * 60 * 1000L,
+                3, UserEventQuota.CapPolicy.DROP_OLDEST, EventStore.StorageMode.OFF_HEAP);
+        long now = System.currentTimeMillis();
+        
+        // Add events with mixed property types, enough to evict one
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("device", "mobile");
+        properties.put("amount", 19.99);
+        properties.put("count", 3);
+        properties.put("premium", true);
+        properties.put("tags", java.util.Arrays.asList("a", "b"));
+        for (int i = 0; i < 4; i++) {
+            offHeapStore.addEvent("purchase", "user1", properties, now + i);
+        }
+        
+        // Check that events are read back from the off-heap records
+        List<Event> events = offHeapStore.getUserEvents("user1");
+        assertEquals(3, events.size());
+        assertEquals(now + 1, events.get(0).getTimestamp());
+        assertEquals(properties, events.get(0).getProperties());
+        assertEquals(3, offHeapStore.getEventsInTimerange(now, now + 10).size());
+        
+        Event event = events.get(2);
+        Event retrieved = offHeapStore.getEvent(event.getEventId());
+        assertNotNull(retrieved);
+        assertEquals("purchase", retrieved.getEventName());
+        assertEquals("user1", retrieved.getUserId());
+        assertEquals(now + 3, retrieved.getTimestamp());
+    }
+    
+    @Test
+    public void testStreamEvents() {
+        long now = System.currentTimeMillis();
+        long day = 24 * 60 * 60 * 1000L;
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("amount", i * 10.0);
+            eventStore.addEvent("purchase", "user" + (i % 2), properties, now - i * day);
+            eventStore.addEvent("login", "user" + (i % 2), null, now - i * day);
+        }
+        
+        // Check name, time and predicate pushdown
+        assertEquals(10, eventStore.streamEvents("purchase", Long.MIN_VALUE, Long.MAX_VALUE, null, false).count());
+        assertEquals(3, eventStore.streamEvents("purchase", now - 2 * day, now, null, false).count());
+        assertEquals(4, eventStore.streamEvents("purchase", Long.MIN_VALUE, Long.MAX_VALUE,
+                event -> ((Double) event.getProperties().get("amount")) >= 60.0, false).count());
+        assertEquals(20, eventStore.streamEvents(null, Long.MIN_VALUE, Long.MAX_VALUE, null, false).count());
+        
+        // Check user scans
+        assertEquals(5, eventStore.streamUserEvents("user0", "purchase", Long.MIN_VALUE, Long.MAX_VALUE, null, false)
+                .count());
+        assertEquals(10, eventStore.streamUserEvents("user1", null, Long.MIN_VALUE, Long.MAX_VALUE, null, false)
+                .count());
+        
+        // Check that a parallel scan sees every event exactly once
+        double total = eventStore.streamEvents("purchase", Long.MIN_VALUE, Long.MAX_VALUE, null, true)
+                .mapToDouble(event -> (Double) event.getProperties().get("amount"))
+                .sum();
+        assertEquals(450.0, total, 0.001);
+        assertNotNull(eventStore.scanEvents("purchase", Long.MIN_VALUE, Long.MAX_VALUE, null).trySplit());
+    }
+    
+    @Test
+    public void testSnapshotIsolation() {
+        long now = System.currentTimeMillis();
+        long day = 24 * 60 * 60 * 1000L;
+        EventStore cappedStore = new EventStore(userProfileStore, day,
+                3, UserEventQuota.CapPolicy.DROP_OLDEST);
+        for (int i = 0; i < 3; i++) {
+            cappedStore.addEvent("login", "user1", null, now - (2 - i) * 1000L);
+        }
+        cappedStore.addEvent("login", "user2", null, now - 10 * day);
+        
+        try (EventStoreSnapshot snapshot = cappedStore.snapshot()) {
+            // Add, evict and expire events while the snapshot is open
+            cappedStore.addEvent("login", "user1", null, now);
+            cappedStore.addEvent("purchase", "user2", null, now + day);
+            assertEquals(1, cappedStore.dropSegmentsBefore(now - 5 * day));
+            assertEquals(3, cappedStore.getUserEvents("user1").size());
+            assertEquals(now - 1000L, cappedStore.getUserEvents("user1").get(0).getTimestamp());
+            
+            // Check that the snapshot still sees the events as they were
+            assertEquals(4, snapshot.getAllEvents().size());
+            assertEquals(3, snapshot.getUserEvents("user1").size());
+            assertEquals(now - 2000L, snapshot.getUserEvents("user1").get(0).getTimestamp());
+            assertEquals(1, snapshot.getUserEventsByName("user2", "login").size());
+            assertTrue(snapshot.getEventsByName("purchase").isEmpty());
+            assertEquals(3, snapshot.streamEvents("login", now - day, now, null, true).count());
+        }
+        
+        // Deferred removals apply once the snapshot is closed
+        assertEquals(4, cappedStore.getAllEvents().size());
+    }
+    
+    @Test
+    public void testSnapshotAcrossColdTier() throws IOException {
+        File coldDir = Files.createTempDirectory("cold-tier-test").toFile();
+        try {
+            long day = 24 * 60 * 60 * 1000L;
+            long now = System.currentTimeMillis();
+            eventStore.addEvent("login", "user1", null, now - 10 * day);
+            eventStore.enableColdTier(coldDir, 7 * day, Long.MAX_VALUE);
+            assertEquals(1, eventStore.moveSegmentsToColdTier(now));
+            
+            try (EventStoreSnapshot snapshot = eventStore.snapshot()) {
+                // A late event is merged into the pinned cold segment's file
+                eventStore.addEvent("login", "user1", null, now - 10 * day);
+                assertEquals(1, eventStore.moveSegmentsToColdTier(now));
+                assertEquals(2, eventStore.getAllEvents().size());
+                
+                assertEquals(1, snapshot.getAllEvents().size());
+                assertEquals(1, snapshot.getUserEvents("user1").size());
+            }
+            
+            // Retired files go once the snapshot is closed
+            assertEquals(1, coldDir.listFiles().length);
+        } finally {
+            File[] files = coldDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            coldDir.delete();
+        }
+    }
+    
+    @Test
+    public void testIdempotencyKey() {
+        long now = System.currentTimeMillis();
+        
+        // Add the same event twice, as a client retry would
+        Event first = eventStore.addEvent("purchase", "user1", null, now, "order-1001");
+        Event retry = eventStore.addEvent("purchase", "user1", null, now, "order-1001");
+        
+        // Check that the retry returned the original event
+        assertEquals(EventId.fromIdempotencyKey("user1", "order-1001"), first.getId());
+        assertSame(first, retry);
+        assertEquals(1, eventStore.getUserEvents("user1").size());
+        assertEquals(1, userProfileStore.getProfile("user1").getEventCount("purchase"));
+        assertEquals(1, eventStore.getDuplicateEventCount());
+        
+        // A different key is a different event
+        assertNotNull(eventStore.addEvent("purchase", "user1", null, now, "order-1002"));
+        assertEquals(2, eventStore.getUserEvents("user1").size());
+        
+        // Keys are scoped to the user
+        Event other = eventStore.addEvent("purchase", "user2", null, now, "order-1001");
+        assertNotEquals(first.getId(), other.getId());
+        assertEquals(1, eventStore.getUserEvents("user2").size());
+        
+        // A retry without a timestamp is found within the horizon
+        Event untimed = eventStore.addEvent("purchase", "user3", null, null, "order-1003");
+        assertSame(untimed, eventStore.addEvent("purchase", "user3", null, null, "order-1003"));
+        assertEquals(2, eventStore.getDuplicateEventCount());
+    }
+    
+    @Test
+    public void testIdempotencyKeyAfterRestart() {
+        long now = System.currentTimeMillis();
+        Event first = eventStore.addEvent("purchase", "user1", null, now, "order-1001");
+        
+        // Replay the event into a new store, as recovery would
+        EventStore recovered = new EventStore(new UserProfileStore());
+        assertNotNull(recovered.replayEvent(first));
+        
+        // Check that a retry after recovery is still suppressed
+        Event retry = recovered.addEvent("purchase", "user1", null, now, "order-1001");
+        assertEquals(first.getId(), retry.getId());
+        assertEquals(1, recovered.getUserEvents("user1").size());
+        assertEquals(1, recovered.getDuplicateEventCount());
+    }
+    
+    @Test
+    public void testColdTier() throws IOException {
+        File coldDir = Files.createTempDirectory("cold-tier-test").toFile();
+        try {
+            long day = 24 * 60 * 60 * 1000L;
+            long now = System.currentTimeMillis();
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("amount", 42.5);
+            Event oldEvent = eventStore.addEvent("purchase", "user1", properties, now - 40 * day);
+            eventStore.addEvent("login", "user1", null, now);
+            
+            // Seal everything older than thirty days
+            eventStore.enableColdTier(coldDir, 30 * day, Long.MAX_VALUE);
+            assertEquals(1, eventStore.moveSegmentsToColdTier(now));
+            assertEquals(1, eventStore.getSegmentCount());
+            assertEquals(1, eventStore.getColdSegmentCount());
+            
+            // Check that reads cover both tiers
+            assertEquals(2, eventStore.getUserEvents("user1").size());
+            assertEquals(2, eventStore.getUserEventIds("user1").size());
+            List<Event> purchases = eventStore.getEventsByName("purchase");
+            assertEquals(1, purchases.size());
+            assertEquals(42.5, purchases.get(0).getProperties().get("amount"));
+            assertEquals(oldEvent.getEventId(), eventStore.getEvent(oldEvent.getEventId()).getEventId());
+            assertEquals(1, eventStore.getEventsInTimerange(now - 41 * day, now - 39 * day).size());
+            
+            // A late event for the sealed range is merged into the same file
+            eventStore.addEvent("purchase", "user1", null, now - 40 * day + 1);
+            assertEquals(2, eventStore.getEventsByName("purchase").size());
+            assertEquals(1, eventStore.moveSegmentsToColdTier(now));
+            assertEquals(1, eventStore.getColdSegmentCount());
+            assertEquals(2, eventStore.getEventsByName("purchase").size());
+            
+            // Check that sealed segments are found again after a restart
+            EventStore reopened = new EventStore(new UserProfileStore());
+            reopened.enableColdTier(coldDir, 30 * day, Long.MAX_VALUE);
+            assertEquals(2, reopened.getUserEvents("user1").size());
+            
+            // Check that retention deletes cold files
+            assertEquals(2, eventStore.dropSegmentsBefore(now - 5 * day));
+            assertEquals(0, eventStore.getColdSegmentCount());
+        } finally {
+            File[] files = coldDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            coldDir.delete();
+        }
+    }
+    
+    @Test
+    public void testColdTierLookupByUnplacedId() throws IOException {
+        File coldDir = Files.createTempDirectory("cold-tier-test").toFile();
+        try {
+            long day = 24 * 60 * 60 * 1000L;
+            long now = System.currentTimeMillis();
+            Event keyed = eventStore.addEvent("purchase", "user1", null, now - 40 * day, "order-1001");
+            Event generated = eventStore.addEvent("login", "user1", null, now - 40 * day);
+            eventStore.enableColdTier(coldDir, 30 * day, Long.MAX_VALUE);
+            assertEquals(1, eventStore.moveSegmentsToColdTier(now));
+            
+            // Only IDs that do not embed a timestamp in the segment are listed in the summary
+            File file = coldDir.listFiles(ColdSegment::isSegmentFile)[0];
+            ColdSegment cold = ColdSegment.open(file, Config.SEGMENT_DURATION_MILLIS);
+            assertTrue(cold.mayContainEvent(keyed.getId()));
+            assertTrue(cold.mayContainEvent(generated.getId()));
+            assertFalse(cold.mayContainEvent(EventId.fromIdempotencyKey("user1", "order-1002")));
+            assertFalse(cold.mayContainEvent(EventId.generate(now)));
+            
+            // Check that both are found in the cold tier
+            assertEquals(keyed.getId(), eventStore.getEvent(keyed.getEventId()).getId());
+            assertEquals(generated.getId(), eventStore.getEvent(generated.getEventId()).getId());
+            assertNull(eventStore.getEvent("order-1002"));
+        } finally {
+            File[] files = coldDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            coldDir.delete();
+        }
+    }
+    
+    @Test
+    public void testColdTierMemoryBudget() throws IOException {
+        File coldDir = Files.createTempDirectory("cold-tier-test").toFile();
+        try {
+            long day = 24 * 60 * 60 * 1000L;
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < 3; i++) {
+                eventStore.addEvent("login", "user1", null, now - i * day);
+            }
+            
+            // With no memory to spare, only the newest segment stays hot
+            eventStore.enableColdTier(coldDir, 365 * day, 0);
+            assertEquals(2, eventStore.moveSegmentsToColdTier(now));
+            assertEquals(1, eventStore.getSegmentCount());
+            assertEquals(3, eventStore.getAllEvents().size());
+        } finally {
+            File[] files = coldDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            coldDir.delete();
+        }
+    }
+    
     @Test
     public void testEventToMap() {
         // Create an event
@@ -0,0 +1,46 @@
+package com.insightaxisdb.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the IoThrottle.
+ */
+public class IoThrottleTest {
+
+    @Test
+    public void testBurstWithinBucketDoesNotWait() {
+        IoThrottle throttle = new IoThrottle(10 * 1024 * 1024);
+        long start = System.nanoTime();
+        throttle.acquire(5 * 1024 * 1024);
+        assertTrue(System.nanoTime() - start < 100_000_000L);
+    }
+
+    @Test
+    public void testRateIsLimited() throws IOException {
+        IoThrottle throttle = new IoThrottle(1024 * 1024);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputStream out = throttle.wrap(bytes);
+
+        // The first second's worth is in the bucket, the next half second is not
+        long start = System.nanoTime();
+        out.write(new byte[1024 * 1024]);
+        out.write(new byte[512 * 1024]);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(1536 * 1024, bytes.size());
+        assertTrue("Took " + elapsedMillis + " ms", elapsedMillis >= 400);
+    }
+
+    @Test
+    public void testUnlimited() {
+        OutputStream out = new ByteArrayOutputStream();
+        assertSame(out, IoThrottle.UNLIMITED.wrap(out));
+        IoThrottle.UNLIMITED.acquire(Long.MAX_VALUE);
+    }
+}
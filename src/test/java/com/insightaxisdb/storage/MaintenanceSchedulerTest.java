@@ -0,0 +1,147 @@
+package com.insightaxisdb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the MaintenanceScheduler.
+ */
+public class MaintenanceSchedulerTest {
+
+    private MaintenanceScheduler scheduler;
+    private final AtomicInteger activeQueries = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<String> order = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void setUp() {
+        scheduler = new MaintenanceScheduler(1, IoThrottle.UNLIMITED, 4, 60000);
+        scheduler.setQueryLoad(activeQueries::get);
+        scheduler.register("blocker", MaintenanceScheduler.Priority.HIGH, () -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (MaintenanceScheduler.Priority priority : MaintenanceScheduler.Priority.values()) {
+            String name = priority.name().toLowerCase();
+            scheduler.register(name, priority, () -> order.add(name));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        scheduler.shutdown(5000);
+    }
+
+    private void awaitRunning(String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!isRunning(name) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(isRunning(name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean isRunning(String name) {
+        Map<String, Object> jobs = (Map<String, Object>) scheduler.getStats().get("jobs");
+        return (Boolean) ((Map<String, Object>) jobs.get(name)).get("running");
+    }
+
+    @Test
+    public void testHighestPriorityRunsFirst() throws Exception {
+        scheduler.request("blocker");
+        awaitRunning("blocker");
+
+        scheduler.request("low");
+        scheduler.request("normal");
+        CompletableFuture<Void> high = scheduler.request("high");
+        CompletableFuture<Void> low = scheduler.request("low");
+        release.countDown();
+
+        low.get(5, TimeUnit.SECONDS);
+        assertTrue(high.isDone());
+        assertEquals(Arrays.asList("high", "normal", "low"), order);
+    }
+
+    @Test
+    public void testWaitingRequestsShareOneRun() throws Exception {
+        scheduler.request("blocker");
+        awaitRunning("blocker");
+
+        CompletableFuture<Void> first = scheduler.request("normal");
+        assertSame(first, scheduler.request("normal"));
+        release.countDown();
+        first.get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, order.size());
+        assertNotSame(first, scheduler.request("normal"));
+    }
+
+    @Test
+    public void testLowPriorityJobsPauseUnderQueryLoad() throws Exception {
+        activeQueries.set(4);
+        CompletableFuture<Void> low = scheduler.request("low");
+        CompletableFuture<Void> high = scheduler.request("high");
+
+        // Checkpoints go on while queries are busy
+        high.get(5, TimeUnit.SECONDS);
+        Thread.sleep(300);
+        assertFalse(low.isDone());
+
+        activeQueries.set(0);
+        low.get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("high", "low"), order);
+    }
+
+    @Test
+    public void testPauseIsBounded() throws Exception {
+        MaintenanceScheduler bounded = new MaintenanceScheduler(1, IoThrottle.UNLIMITED, 1, 200);
+        try {
+            bounded.setQueryLoad(() -> 100);
+            bounded.register("low", MaintenanceScheduler.Priority.LOW, () -> order.add("low"));
+            bounded.request("low").get(5, TimeUnit.SECONDS);
+            assertEquals(Arrays.asList("low"), order);
+        } finally {
+            bounded.shutdown(5000);
+        }
+    }
+
+    @Test
+    public void testFailureIsReported() throws Exception {
+        scheduler.register("failing", MaintenanceScheduler.Priority.NORMAL, () -> {
+            throw new IllegalStateException("disk full");
+        });
+        try {
+            scheduler.request("failing").join();
+            fail("Expected the run to fail");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        // The scheduler keeps running jobs
+        scheduler.request("normal").get(5, TimeUnit.SECONDS);
+        assertEquals(Arrays.asList("normal"), order);
+    }
+
+    @Test
+    public void testRequestsAfterShutdownAreRejected() {
+        scheduler.shutdown(5000);
+        assertTrue(scheduler.request("normal").isCompletedExceptionally());
+    }
+}
@@ -7,6 +7,9 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -256,4 +259,49 @@ public class NCFTest {
             reader.readRows(6, 1);
         }
     }
+    
+    @Test
+    public void testReadColumnsWithReadAhead() throws IOException {
+        // Create NCF writer with enough rows to span several I/O buffers
+        NCF.Writer writer = new NCF.Writer("lz4");
+        int rowCount = 50000;
+        for (int i = 0; i < rowCount; i++) {
+            Map<String, Object> row = new HashMap<>();
+            row.put("id", i);
+            row.put("name", "User " + i);
+            if (i % 3 == 0) {
+                row.put("score", i * 0.5);
+            }
+            
+            writer.addRow(row);
+        }
+        
+        // Write to file through a channel
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long written = writer.write(channel);
+            assertEquals(written, channel.position());
+            assertEquals(written, channel.size());
+        }
+        
+        // Scan all columns and compare with reading them one by one
+        try (NCF.Reader reader = new NCF.Reader(tempFile)) {
+            Map<String, List<Object>> columns = reader.readColumns(reader.getColumns().keySet());
+            assertEquals(3, columns.size());
+            for (String name : columns.keySet()) {
+                assertEquals(reader.readColumn(name), columns.get(name));
+            }
+            
+            assertEquals(rowCount, columns.get("id").size());
+            assertEquals(49999L, columns.get("id").get(49999));
+            assertEquals("User 12345", columns.get("name").get(12345));
+            assertEquals(1.5, columns.get("score").get(3));
+            assertNull(columns.get("score").get(4));
+            
+            // A subset skips the columns in between
+            Map<String, List<Object>> subset = reader.readColumns(Arrays.asList("score", "id"));
+            assertEquals(2, subset.size());
+            assertEquals(columns.get("score"), subset.get("score"));
+        }
+    }
 }
@@ -0,0 +1,124 @@
+package com.insightaxisdb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the PersistenceIO.
+ */
+public class PersistenceIOTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("persistence-io-test", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private byte[] bytes(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) (i * 31 + 7);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testBufferPool() {
+        PersistenceIO.BufferPool pool = new PersistenceIO.BufferPool(64, 1);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        assertTrue(first.isDirect());
+        assertEquals(64, first.capacity());
+
+        first.putInt(42);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getPooledCount());
+
+        // Released buffers come back cleared
+        ByteBuffer reused = pool.acquire();
+        assertSame(first, reused);
+        assertEquals(0, reused.position());
+        assertEquals(0, pool.getPooledCount());
+    }
+
+    @Test
+    public void testGatheringWrite() throws IOException {
+        PersistenceIO.BufferPool pool = new PersistenceIO.BufferPool(16, 8);
+        byte[] data = bytes(100);
+
+        try (PersistenceIO.ChunkOutput head = new PersistenceIO.ChunkOutput(pool);
+             PersistenceIO.ChunkOutput body = new PersistenceIO.ChunkOutput(pool);
+             FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            head.write(data, 0, 10);
+            body.write(data, 10, 89);
+            body.write(data[99]);
+            assertEquals(90, body.size());
+
+            List<ByteBuffer> chunks = head.chunks();
+            chunks.addAll(body.chunks());
+            assertEquals(100, PersistenceIO.write(channel, 0, chunks.toArray(new ByteBuffer[0])));
+        }
+        assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+        // One chunk for the head and six for the body went back to the pool
+        assertEquals(7, pool.getPooledCount());
+    }
+
+    @Test
+    public void testReadAhead() throws IOException {
+        byte[] data = bytes(1000);
+        Files.write(file.toPath(), data);
+        PersistenceIO.BufferPool pool = new PersistenceIO.BufferPool(64, 16);
+
+        try (AsynchronousFileChannel channel = AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // Read a range that starts and ends inside buffers
+            try (PersistenceIO.ReadAhead in = new PersistenceIO.ReadAhead(channel, 100, 850, pool, 3)) {
+                assertEquals(data[100] & 0xFF, in.read());
+                assertEquals(99, in.skip(99));
+                byte[] chunk = in.readFully(700);
+                for (int i = 0; i < chunk.length; i++) {
+                    assertEquals(data[200 + i], chunk[i]);
+                }
+
+                ByteArrayOutputStream rest = new ByteArrayOutputStream();
+                byte[] buffer = new byte[37];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    rest.write(buffer, 0, n);
+                }
+                assertEquals(50, rest.size());
+                assertEquals(-1, in.read());
+            }
+
+            // A range past the end of the file fails instead of returning garbage
+            try (PersistenceIO.ReadAhead in = new PersistenceIO.ReadAhead(channel, 900, 200, pool, 2)) {
+                in.readFully(200);
+                fail("Expected EOFException");
+            } catch (EOFException e) {
+                // Expected
+            }
+        }
+        // The buffer being consumed plus three in flight, all returned and reused
+        assertEquals(4, pool.getPooledCount());
+    }
+}
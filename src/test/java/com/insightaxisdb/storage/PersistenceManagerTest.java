@@ -7,7 +7,10 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -111,8 +114,9 @@ public class PersistenceManagerTest {
         PersistenceManager newPersistenceManager = new PersistenceManager(
                 tempDir.getAbsolutePath(), newUserProfileStore, newEventStore, 60000);
         
-        // Load all data
-        newPersistenceManager.loadAll();
+        // Load all data, once
+        assertTrue(newPersistenceManager.loadAll());
+        assertFalse(newPersistenceManager.loadAll());
         
         // Check that data was loaded
         // Note: In a real implementation, we would need a way to get all profiles and events
@@ -146,6 +150,153 @@ public class PersistenceManagerTest {
         assertTrue(ncfFiles.length > 0);
     }
     
+    @Test
+    public void testLoadEventsNCF() throws IOException {
+        // Save events in NCF format
+        persistenceManager.saveEventsNCF();
+        
+        // Load them into new stores without replaying the log
+        UserProfileStore newUserProfileStore = new UserProfileStore();
+        EventStore newEventStore = new EventStore(newUserProfileStore);
+        PersistenceManager newPersistenceManager = new PersistenceManager(
+                tempDir.getAbsolutePath(), newUserProfileStore, newEventStore, 60000);
+        
+        assertEquals(6, newPersistenceManager.loadEventsNCF());
+        assertEquals(6, newEventStore.getAllEvents().size());
+        
+        List<Event> events = newEventStore.getUserEvents("user3");
+        assertEquals(3, events.size());
+        for (Event event : events) {
+            assertEquals("login", event.getEventName());
+            assertTrue(event.getProperties().get("device").toString().startsWith("device"));
+        }
+        
+        // Loading the same files again adds nothing
+        assertEquals(0, newPersistenceManager.loadEventsNCF());
+        assertEquals(6, newEventStore.getAllEvents().size());
+        
+        newPersistenceManager.shutdown();
+    }
+    
+    @Test
+    public void testBackupAndRestore() throws IOException {
+        File backupDir = new File(tempDir, "backup");
+        File restoredDir = new File(tempDir, "restored");
+        
+        // Back up, then change the data
+        Map<String, Object> stats = persistenceManager.backup(backupDir.getAbsolutePath());
+        assertEquals(0, stats.get("copiedFiles"));
+        userProfileStore.createProfile("user4", new HashMap<>());
+        persistenceManager.saveAll();
+        
+        // Restore the backup into a new data directory
+        PersistenceManager.restoreBackup(backupDir.getAbsolutePath(), restoredDir.getAbsolutePath());
+        UserProfileStore newUserProfileStore = new UserProfileStore();
+        EventStore newEventStore = new EventStore(newUserProfileStore);
+        PersistenceManager newPersistenceManager = new PersistenceManager(
+                restoredDir.getAbsolutePath(), newUserProfileStore, newEventStore, 60000);
+        newPersistenceManager.loadAll();
+        
+        assertEquals("User 3", newUserProfileStore.getProfile("user3").getProperties().get("name"));
+        assertNull(newUserProfileStore.getProfile("user4"));
+        assertEquals(6, newEventStore.getAllEvents().size());
+        
+        newPersistenceManager.shutdown();
+    }
+    
+    @Test
+    public void testBackupIncludesColdTier() throws IOException {
+        File backupDir = new File(tempDir, "backup");
+        File restoredDir = new File(tempDir, "restored");
+        
+        // An event stored after the last checkpoint whose segment is sealed before the next
+        persistenceManager.saveAll();
+        eventStore.addEvent("logout", "user1", new HashMap<>(), System.currentTimeMillis());
+        assertTrue(eventStore.moveSegmentsToColdTier(System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000) > 0);
+        
+        persistenceManager.backup(backupDir.getAbsolutePath());
+        PersistenceManager.restoreBackup(backupDir.getAbsolutePath(), restoredDir.getAbsolutePath());
+        UserProfileStore newUserProfileStore = new UserProfileStore();
+        EventStore newEventStore = new EventStore(newUserProfileStore);
+        PersistenceManager newPersistenceManager = new PersistenceManager(
+                restoredDir.getAbsolutePath(), newUserProfileStore, newEventStore, 60000);
+        newPersistenceManager.loadAll();
+        
+        assertEquals(7, newEventStore.getAllEvents().size());
+        assertEquals(1, newEventStore.getEventsByName("logout").size());
+        
+        newPersistenceManager.shutdown();
+    }
+    
+    @Test
+    public void testLoadAllCountsColdTierEvents() throws IOException {
+        // Old events for a user with properties and a user without, sealed after a checkpoint
+        long now = System.currentTimeMillis();
+        long old = now - 60L * 24 * 60 * 60 * 1000;
+        for (int i = 0; i < 5; i++) {
+            eventStore.addEvent("old", "user1", new HashMap<>(), old + i);
+        }
+        eventStore.addEvent("old", "cold-user", new HashMap<>(), old);
+        eventStore.addEvent("new", "user1", new HashMap<>(), now);
+        persistenceManager.saveAll();
+        persistenceManager.applyTieringPolicy();
+        assertTrue(eventStore.getColdSegmentCount() > 0);
+        persistenceManager.saveAll();
+        
+        UserProfileStore newUserProfileStore = new UserProfileStore();
+        EventStore newEventStore = new EventStore(newUserProfileStore);
+        PersistenceManager newPersistenceManager = new PersistenceManager(
+                tempDir.getAbsolutePath(), newUserProfileStore, newEventStore, 60000);
+        newPersistenceManager.loadAll();
+        
+        UserProfile profile = newUserProfileStore.getProfile("user1");
+        assertEquals(7, profile.getEventCount());
+        assertEquals(5, profile.getEventCount("old"));
+        assertEquals(1, profile.getEventCount("new"));
+        assertEquals(old, profile.getFirstSeenAt());
+        assertEquals(7, newEventStore.getUserEvents("user1").size());
+        
+        UserProfile coldProfile = newUserProfileStore.getProfile("cold-user");
+        assertNotNull(coldProfile);
+        assertEquals(1, coldProfile.getEventCount());
+        
+        newPersistenceManager.shutdown();
+    }
+    
+    @Test
+    public void testLoadAllReplaysEvictions() throws IOException {
+        File cappedDir = new File(tempDir, "capped");
+        UserProfileStore cappedProfileStore = new UserProfileStore();
+        EventStore cappedStore = new EventStore(cappedProfileStore, 24 * 60 * 60 * 1000L,
+                2, UserEventQuota.CapPolicy.DOWNSAMPLE);
+        PersistenceManager cappedManager = new PersistenceManager(
+                cappedDir.getAbsolutePath(), cappedProfileStore, cappedStore, 60000);
+        
+        // Random evictions, logged but not checkpointed
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 20; i++) {
+            cappedStore.addEvent("login", "user1", null, now + i);
+        }
+        assertTrue(cappedStore.getEvictedEventCount() > 0);
+        Set<String> kept = new HashSet<>(cappedStore.getUserEventIds("user1"));
+        assertEquals(2, kept.size());
+        
+        // The replay repeats the logged evictions instead of drawing new ones
+        UserProfileStore newProfileStore = new UserProfileStore();
+        EventStore newStore = new EventStore(newProfileStore, 24 * 60 * 60 * 1000L,
+                2, UserEventQuota.CapPolicy.DOWNSAMPLE);
+        PersistenceManager newManager = new PersistenceManager(
+                cappedDir.getAbsolutePath(), newProfileStore, newStore, 60000);
+        newManager.loadAll();
+        
+        assertEquals(kept, new HashSet<>(newStore.getUserEventIds("user1")));
+        assertEquals(2, newProfileStore.getProfile("user1").getEventCount());
+        assertEquals(0, newStore.getEvictedEventCount());
+        
+        newManager.shutdown();
+        cappedManager.shutdown();
+    }
+    
     @Test
     public void testApplyRetentionPolicy() throws IOException {
         // Save events in NCF format
@@ -0,0 +1,135 @@
+package com.insightaxisdb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.DoubleSummaryStatistics;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the ProfileColumnStore.
+ */
+public class ProfileColumnStoreTest {
+    
+    private ProfileColumnStore columns;
+    
+    @Before
+    public void setUp() {
+        columns = new ProfileColumnStore();
+        for (int i = 1; i <= 4; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("country", i % 2 == 0 ? "DE" : "US");
+            properties.put("ltv", 100.0 * i);
+            columns.update("user" + i, null, properties);
+        }
+    }
+    
+    @Test
+    public void testScanAndSummarize() {
+        // Select users by a dictionary-encoded string column
+        BitSet germans = columns.scan("country", new EqualsPredicate("DE"));
+        assertEquals(new HashSet<>(Arrays.asList("user2", "user4")), new HashSet<>(columns.getUserIds(germans)));
+        
+        // Summarize a double column over the selection
+        DoubleSummaryStatistics statistics = columns.summarize("ltv", germans);
+        assertEquals(2, statistics.getCount());
+        assertEquals(300.0, statistics.getAverage(), 0.0001);
+        assertEquals(2, columns.countDistinct("country", columns.all()));
+    }
+    
+    @Test
+    public void testTypePromotionAndRemoval() {
+        // A value of another type turns the column into boxed values
+        assertEquals(PropertySchema.SlotType.DOUBLE, columns.getColumnType("ltv"));
+        Map<String, Object> update = new HashMap<>();
+        update.put("ltv", "unknown");
+        columns.update("user1", null, update);
+        
+        assertEquals(PropertySchema.SlotType.OBJECT, columns.getColumnType("ltv"));
+        assertEquals(900.0, columns.summarize("ltv", columns.all()).getSum(), 0.0001);
+        
+        // Removed users leave the columns and their dense IDs are reused
+        columns.remove("user2");
+        assertEquals(3, columns.size());
+        assertFalse(columns.getUserIds(columns.all()).contains("user2"));
+        
+        columns.update("user5", null, new HashMap<>());
+        assertEquals(4, columns.size());
+        assertTrue(columns.scan("country", new EqualsPredicate("DE")).cardinality() == 1);
+    }
+    
+    @Test
+    public void testDictionaryReleasesUnusedStrings() {
+        assertEquals(2, columns.getDictionarySize("country"));
+        
+        // Moving every US user to FR frees the code of US
+        for (int i = 1; i <= 3; i += 2) {
+            Map<String, Object> update = new HashMap<>();
+            update.put("country", "FR");
+            columns.update("user" + i, null, update);
+        }
+        assertEquals(2, columns.getDictionarySize("country"));
+        assertEquals(0, columns.scan("country", new EqualsPredicate("US")).cardinality());
+        
+        // Removing the last German user frees the code of DE
+        columns.remove("user2");
+        columns.remove("user4");
+        assertEquals(1, columns.getDictionarySize("country"));
+        assertEquals(2, columns.scan("country", new EqualsPredicate("FR")).cardinality());
+    }
+    
+    @Test
+    public void testScanReadsSnapshot() {
+        // Update the column from within the scan, which would block on a lock held by the scan
+        BitSet germans = columns.scan("country", new EqualsPredicate("DE") {
+            @Override
+            public boolean matches(Object value) {
+                Map<String, Object> update = new HashMap<>();
+                update.put("country", "DE");
+                columns.update("user1", null, update);
+                return super.matches(value);
+            }
+        });
+        
+        // Check that the scan saw the column as of its start, and later scans see the update
+        assertEquals(2, germans.cardinality());
+        assertEquals(3, columns.scan("country", new EqualsPredicate("DE")).cardinality());
+    }
+    
+    /**
+     * Predicate matching values equal to a given value.
+     */
+    private static class EqualsPredicate implements ProfileColumnStore.ColumnPredicate {
+        private final Object expected;
+        
+        EqualsPredicate(Object expected) {
+            this.expected = expected;
+        }
+        
+        @Override
+        public boolean matchesMissing() {
+            return false;
+        }
+        
+        @Override
+        public boolean matches(long value, PropertySchema.SlotType type) {
+            return expected.equals(value);
+        }
+        
+        @Override
+        public boolean matches(double value) {
+            return expected.equals(value);
+        }
+        
+        @Override
+        public boolean matches(Object value) {
+            return expected.equals(value);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package com.insightaxisdb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the ProfileSnapshotFile.
+ */
+public class ProfileSnapshotFileTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("profile-snapshot-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private ProfileSnapshotFile.Record record(String userId, String plan, long seenAt) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("plan", plan);
+        properties.put("age", 30);
+        return ProfileSnapshotFile.Record.of(new UserProfile(userId, properties, seenAt));
+    }
+
+    private List<ProfileSnapshotFile.Record> readAll(ProfileSnapshotFile.Reader reader) {
+        List<ProfileSnapshotFile.Record> records = new ArrayList<>();
+        reader.iterator().forEachRemaining(records::add);
+        return records;
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        File file = new File(dir, "profiles.prof");
+        List<ProfileSnapshotFile.Record> records = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            records.add(record(String.format("user%05d", i), "plan" + (i % 3), 1000L + i));
+        }
+        records.add(ProfileSnapshotFile.Record.deletion("user99999"));
+
+        assertEquals(5001, ProfileSnapshotFile.write(file, records.iterator()));
+        assertFalse(new File(dir, "profiles.prof.index").exists());
+
+        try (ProfileSnapshotFile.Reader reader = new ProfileSnapshotFile.Reader(file)) {
+            assertEquals(5001, reader.getRecordCount());
+
+            ProfileSnapshotFile.Record record = reader.get(1234);
+            assertEquals("user01234", record.getUserId());
+            assertEquals("plan1", record.getProperties().get("plan"));
+            assertEquals(30, ((Number) record.getProperties().get("age")).intValue());
+            assertEquals(2234, record.getFirstSeenAt());
+            assertEquals(2234, record.getLastSeenAt());
+            assertTrue(reader.get(5000).isDeleted());
+
+            // Ranges decode independently
+            List<String> userIds = new ArrayList<>();
+            reader.read(4998, 5001, r -> userIds.add(r.getUserId()));
+            assertEquals(Arrays.asList("user04998", "user04999", "user99999"), userIds);
+        }
+    }
+
+    @Test
+    public void testFind() throws IOException {
+        File file = new File(dir, "profiles.prof");
+        List<ProfileSnapshotFile.Record> records = new ArrayList<>();
+        for (int i = 0; i < 100; i += 2) {
+            records.add(record(String.format("user%03d", i), "free", 1000L));
+        }
+        ProfileSnapshotFile.write(file, records.iterator());
+
+        try (ProfileSnapshotFile.Reader reader = new ProfileSnapshotFile.Reader(file)) {
+            assertEquals("user042", reader.find("user042").getUserId());
+            assertEquals("user000", reader.find("user000").getUserId());
+            assertEquals("user098", reader.find("user098").getUserId());
+            assertNull(reader.find("user043"));
+            assertNull(reader.find("user999"));
+        }
+    }
+
+    @Test
+    public void testEmptyFile() throws IOException {
+        File file = new File(dir, "empty.prof");
+        assertEquals(0, ProfileSnapshotFile.write(file, Collections.emptyIterator()));
+
+        try (ProfileSnapshotFile.Reader reader = new ProfileSnapshotFile.Reader(file)) {
+            assertEquals(0, reader.getRecordCount());
+            assertFalse(reader.iterator().hasNext());
+            assertNull(reader.find("user1"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsortedRecordsAreRejected() throws IOException {
+        ProfileSnapshotFile.write(new File(dir, "unsorted.prof"),
+                Arrays.asList(record("user2", "free", 0), record("user1", "free", 0)).iterator());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalidFileIsRejected() throws IOException {
+        File file = new File(dir, "invalid.prof");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[64]);
+        }
+        new ProfileSnapshotFile.Reader(file).close();
+    }
+
+    @Test
+    public void testMerge() throws IOException {
+        File older = new File(dir, "older.prof");
+        File newer = new File(dir, "newer.prof");
+        ProfileSnapshotFile.write(older, Arrays.asList(
+                record("user1", "free", 1000),
+                record("user2", "free", 1000),
+                record("user4", "free", 1000)).iterator());
+        ProfileSnapshotFile.write(newer, Arrays.asList(
+                record("user2", "pro", 2000),
+                record("user3", "pro", 2000),
+                ProfileSnapshotFile.Record.deletion("user4")).iterator());
+
+        try (ProfileSnapshotFile.Reader olderReader = new ProfileSnapshotFile.Reader(older);
+             ProfileSnapshotFile.Reader newerReader = new ProfileSnapshotFile.Reader(newer)) {
+            List<ProfileSnapshotFile.Reader> readers = Arrays.asList(olderReader, newerReader);
+
+            List<ProfileSnapshotFile.Record> merged = new ArrayList<>();
+            ProfileSnapshotFile.merge(readers, false).forEachRemaining(merged::add);
+            assertEquals(4, merged.size());
+            assertEquals("user2", merged.get(1).getUserId());
+            assertEquals("pro", merged.get(1).getProperties().get("plan"));
+            assertTrue(merged.get(3).isDeleted());
+
+            // The merged records can be written straight to a new file
+            File compacted = new File(dir, "compacted.prof");
+            Iterator<ProfileSnapshotFile.Record> records = ProfileSnapshotFile.merge(readers, true);
+            assertEquals(3, ProfileSnapshotFile.write(compacted, records));
+            try (ProfileSnapshotFile.Reader reader = new ProfileSnapshotFile.Reader(compacted)) {
+                List<ProfileSnapshotFile.Record> compactedRecords = readAll(reader);
+                assertEquals("user1", compactedRecords.get(0).getUserId());
+                assertEquals("user3", compactedRecords.get(2).getUserId());
+                assertNull(reader.find("user4"));
+            }
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.insightaxisdb.storage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the PropertySchema.
+ */
+public class PropertySchemaTest {
+    
+    private PropertySchema schema;
+    
+    @Before
+    public void setUp() {
+        schema = new PropertySchema("purchase");
+    }
+    
+    @Test
+    public void testEncodeTypedValues() {
+        // Encode properties of every slot type
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("premium", true);
+        properties.put("quantity", 2);
+        properties.put("orderId", 12345678901L);
+        properties.put("amount", 19.99);
+        properties.put("currency", "USD");
+        properties.put("tags", Arrays.asList("sale", "gift"));
+        
+        Map<String, Object> encoded = schema.encode(properties);
+        
+        // Check that values and their types round-trip
+        assertEquals(properties, encoded);
+        assertEquals(properties.size(), encoded.size());
+        assertEquals(Integer.valueOf(2), encoded.get("quantity"));
+        assertEquals(Long.valueOf(12345678901L), encoded.get("orderId"));
+        assertEquals(6, schema.getSlotCount());
+        assertEquals(PropertySchema.SlotType.DOUBLE, schema.getType(schema.slotOf("amount")));
+    }
+    
+    @Test
+    public void testSharedLayout() {
+        Map<String, Object> first = new HashMap<>();
+        first.put("amount", 10.0);
+        first.put("currency", "USD");
+        schema.encode(first);
+        
+        // A later event reuses the slots and adds only its new key
+        Map<String, Object> second = new HashMap<>();
+        second.put("amount", 20.0);
+        second.put("coupon", "SPRING");
+        Map<String, Object> encoded = schema.encode(second);
+        
+        assertEquals(3, schema.getSlotCount());
+        assertEquals(20.0, encoded.get("amount"));
+        assertFalse(encoded.containsKey("currency"));
+        assertNull(encoded.get("currency"));
+    }
+    
+    @Test
+    public void testOverflow() {
+        Map<String, Object> first = new HashMap<>();
+        first.put("amount", 10.0);
+        schema.encode(first);
+        
+        // Values that do not match the slot type, and nulls, go to the overflow map
+        Map<String, Object> second = new HashMap<>();
+        second.put("amount", "ten");
+        second.put("note", null);
+        Map<String, Object> encoded = schema.encode(second);
+        
+        assertEquals("ten", encoded.get("amount"));
+        assertTrue(encoded.containsKey("note"));
+        assertEquals(2, encoded.size());
+        assertEquals(second, encoded);
+    }
+    
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("amount", 10.0);
+        
+        schema.encode(properties).put("amount", 20.0);
+    }
+}
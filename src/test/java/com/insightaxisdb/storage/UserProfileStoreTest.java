@@ -3,8 +3,13 @@ package com.insightaxisdb.storage;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -36,7 +41,7 @@ public class UserProfileStoreTest {
         assertEquals("John Doe", profile.getProperties().get("name"));
         assertEquals("john@example.com", profile.getProperties().get("email"));
         assertEquals(0, profile.getEventCount());
-        assertTrue(profile.getEvents().isEmpty());
+        assertTrue(profile.getEventNameCounts().isEmpty());
     }
     
     @Test
@@ -203,6 +208,11 @@ public class UserProfileStoreTest {
         map.put("eventCount", 5);
         map.put("events", java.util.Arrays.asList("event1", "event2"));
         
+        Map<String, Object> eventNameCounts = new HashMap<>();
+        eventNameCounts.put("login", 3);
+        eventNameCounts.put("purchase", 2);
+        map.put("eventNameCounts", eventNameCounts);
+        
         // Create profile from map
         UserProfile profile = UserProfile.fromMap(map);
         
@@ -214,8 +224,120 @@ public class UserProfileStoreTest {
         assertEquals(1000L, profile.getFirstSeenAt());
         assertEquals(2000L, profile.getLastSeenAt());
         assertEquals(5, profile.getEventCount());
-        assertEquals(2, profile.getEvents().size());
-        assertEquals("event1", profile.getEvents().get(0));
-        assertEquals("event2", profile.getEvents().get(1));
+        assertEquals(3, profile.getEventCount("login"));
+        assertEquals(2, profile.getEventCount("purchase"));
+        assertFalse(profile.toMap().containsKey("events"));
+    }
+    
+    @Test
+    public void testConcurrentUpdates() throws Exception {
+        int threads = 8;
+        int updatesPerThread = 1000;
+        
+        // Update the same profile from many threads
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            executor.submit(() -> {
+                for (int i = 0; i < updatesPerThread; i++) {
+                    UserProfile profile = store.getOrCreateProfile("user1", null).getProfile();
+                    profile.addEvent(i % 2 == 0 ? "login" : "purchase");
+                    profile.updateProperty("thread" + thread, i);
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        
+        // Check that no update was lost
+        UserProfile profile = store.getProfile("user1");
+        assertEquals(threads * updatesPerThread, profile.getEventCount());
+        assertEquals(threads * updatesPerThread / 2, profile.getEventCount("login"));
+        assertEquals(threads * updatesPerThread / 2, profile.getEventCount("purchase"));
+        assertEquals(threads, profile.getProperties().size());
+        for (int t = 0; t < threads; t++) {
+            assertEquals(updatesPerThread - 1, profile.getProperties().get("thread" + t));
+        }
+    }
+    
+    @Test
+    public void testPropertySnapshot() {
+        // Take a snapshot of the properties
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("name", "John Doe");
+        UserProfile profile = store.createProfile("user1", properties);
+        Map<String, Object> snapshot = profile.getProperties();
+        
+        // Later updates must not show through the snapshot
+        profile.updateProperty("email", "john@example.com");
+        properties.put("age", 30);
+        
+        assertEquals(1, snapshot.size());
+        assertEquals(2, profile.getProperties().size());
+        assertFalse(profile.getProperties().containsKey("age"));
+    }
+    
+    @Test
+    public void testProfileIndexes() {
+        // Index a property before and one after creating profiles
+        ProfileIndex planIndex = store.createIndex("plan", ProfileIndex.IndexType.HASH);
+        for (int i = 1; i <= 4; i++) {
+            Map<String, Object> properties = new HashMap<>();
+            properties.put("plan", i % 2 == 0 ? "pro" : "free");
+            properties.put("age", 20 + i);
+            store.createProfile("user" + i, properties);
+        }
+        ProfileIndex ageIndex = store.createIndex("age", ProfileIndex.IndexType.SORTED);
+        
+        // Check lookups
+        assertEquals(new HashSet<>(Arrays.asList("user2", "user4")), planIndex.lookupEquals("pro"));
+        assertEquals(new HashSet<>(Arrays.asList("user3", "user4")), ageIndex.lookupRange(22, false, null, false));
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user2")), ageIndex.lookupRange(null, false, 22, true));
+        assertTrue(ageIndex.lookupRange("a", true, null, false).isEmpty());
+        
+        // Updates and deletes maintain the indexes
+        Map<String, Object> update = new HashMap<>();
+        update.put("plan", "pro");
+        store.updateProfile("user1", update);
+        store.deleteProfile("user4");
+        
+        assertEquals(new HashSet<>(Arrays.asList("user1", "user2")), planIndex.lookupEquals("pro"));
+        assertTrue(planIndex.lookupEquals("free").contains("user3"));
+        assertFalse(ageIndex.lookupRange(22, false, null, false).contains("user4"));
+    }
+    
+    @Test
+    public void testSnapshot() {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("plan", "free");
+        store.createProfile("user1", properties);
+        store.getProfile("user1").addEvent("login");
+        
+        UserProfileStoreSnapshot snapshot = store.snapshot();
+        
+        // Change the store after taking the snapshot
+        Map<String, Object> update = new HashMap<>();
+        update.put("plan", "pro");
+        store.updateProfile("user1", update);
+        store.getProfile("user1").addEvent("purchase");
+        store.createProfile("user2", null);
+        
+        // Check that the snapshot is unchanged
+        assertEquals(1, snapshot.getProfileCount());
+        UserProfile profile = snapshot.getProfile("user1");
+        assertEquals("free", profile.getProperties().get("plan"));
+        assertEquals(1, profile.getEventCount());
+        assertEquals(0, profile.getEventCount("purchase"));
+        assertNull(snapshot.getProfile("user2"));
+        assertEquals("pro", store.getProfile("user1").getProperties().get("plan"));
+    }
+    
+    @Test
+    public void testConfiguredIndexes() {
+        UserProfileStore indexedStore = new UserProfileStore("plan:hash, age:SORTED");
+        
+        assertEquals(ProfileIndex.IndexType.HASH, indexedStore.getIndex("plan").getType());
+        assertEquals(ProfileIndex.IndexType.SORTED, indexedStore.getIndex("age").getType());
+        assertNull(indexedStore.getIndex("country"));
     }
 }
@@ -0,0 +1,143 @@
+package com.insightaxisdb.storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test cases for the WriteAheadLog.
+ */
+public class WriteAheadLogTest {
+    
+    private File walDir;
+    
+    @Before
+    public void setUp() throws IOException {
+        walDir = Files.createTempDirectory("wal-test").toFile();
+    }
+    
+    @After
+    public void tearDown() {
+        File[] files = walDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        walDir.delete();
+    }
+    
+    @Test
+    public void testReplay() throws IOException {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("price", 9.5);
+        properties.put("quantity", 2);
+        
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 0)) {
+            wal.awaitDurable(wal.appendEvent(new Event("purchase", "user1", properties, 1000L, "order-1")));
+            wal.awaitDurable(wal.appendProfileUpdate("user1", Collections.singletonMap("plan", "pro")));
+            wal.awaitDurable(wal.appendProfileDelete("user2"));
+            wal.awaitDurable(wal.appendRemoval(new EventDelta.Removal(EventId.generate(500L), "user1", 500L)));
+        }
+        
+        // Records are replayed by the next run only
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 0)) {
+            assertEquals(4, wal.replay(records::add));
+        }
+        
+        Event event = records.get(0).getEvent();
+        assertEquals(WriteAheadLog.RecordType.EVENT, records.get(0).getType());
+        assertEquals("order-1", event.getEventId());
+        assertEquals("purchase", event.getEventName());
+        assertEquals("user1", event.getUserId());
+        assertEquals(1000L, event.getTimestamp());
+        assertEquals(properties, event.getProperties());
+        
+        assertEquals(WriteAheadLog.RecordType.PROFILE_UPDATE, records.get(1).getType());
+        assertEquals("pro", records.get(1).getProperties().get("plan"));
+        assertEquals(WriteAheadLog.RecordType.PROFILE_DELETE, records.get(2).getType());
+        assertEquals("user2", records.get(2).getUserId());
+        
+        EventDelta.Removal removal = records.get(3).getRemoval();
+        assertEquals(WriteAheadLog.RecordType.REMOVAL, records.get(3).getType());
+        assertEquals(500L, removal.getEventId().getTimestamp());
+        assertEquals("user1", removal.getUserId());
+        assertEquals(500L, removal.getTimestamp());
+    }
+    
+    @Test
+    public void testGroupCommit() throws Exception {
+        int threads = 8;
+        int perThread = 200;
+        
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 5)) {
+            List<Thread> writers = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                String userId = "user" + t;
+                Thread writer = new Thread(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        wal.awaitDurable(wal.appendEvent(new Event("login", userId, null, (long) i, null)));
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+        }
+        
+        // Every acknowledged record is replayed
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024, 0)) {
+            assertEquals(threads * perThread, wal.replay(record -> { }));
+        }
+    }
+    
+    @Test
+    public void testTornTail() throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 0)) {
+            wal.awaitDurable(wal.appendProfileUpdate("user1", null));
+            wal.awaitDurable(wal.appendProfileUpdate("user2", null));
+        }
+        
+        // Cut the last record short, as a crash during a write would
+        File segment = walDir.listFiles()[0];
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        
+        List<WriteAheadLog.Record> records = new ArrayList<>();
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 0)) {
+            assertEquals(1, wal.replay(records::add));
+        }
+        assertEquals("user1", records.get(0).getUserId());
+    }
+    
+    @Test
+    public void testRotateAndDelete() throws IOException {
+        try (WriteAheadLog wal = new WriteAheadLog(walDir, 1024 * 1024, 0)) {
+            long first = wal.getCurrentSegmentId();
+            wal.appendProfileUpdate("user1", null);
+            
+            // Records appended before the rotation are in older segments
+            long next = wal.rotate();
+            assertEquals(first + 1, next);
+            assertEquals(next, wal.getCurrentSegmentId());
+            assertEquals(1, wal.deleteSegmentsBefore(next));
+            assertEquals(1, walDir.listFiles().length);
+        }
+    }
+}